@@ -23,7 +23,7 @@ if [%1]==[] (
 
 if "%1"=="--help" goto usage
 
-if not "%1"=="start" if not "%1"=="stop" if not "%1"=="status" if not "%1"=="validate" if not "%1"=="shutdown" if not "%1"=="test" if not "%1"=="config" if not "%1"=="autodetect" if not "%1"=="settings" (
+if not "%1"=="start" if not "%1"=="stop" if not "%1"=="status" if not "%1"=="validate" if not "%1"=="shutdown" if not "%1"=="test" if not "%1"=="config" if not "%1"=="autodetect" if not "%1"=="settings" if not "%1"=="stats" if not "%1"=="metrics" if not "%1"=="connections" (
    @echo Unknown command "%1", try 'foomcli --help' for more information
    exit /B 1
 )
@@ -63,6 +63,16 @@ if "%1"=="settings" if "%2"=="-d" if [%3]==[]  (
    exit /B 1
 )
 
+if "%1"=="connections" if not [%2]==[] if not "%2"=="-k" (
+   @echo Invalid command: unknown option "%2", try 'foomcli --help' for more information
+   exit /B 1
+)
+
+if "%1"=="connections" if "%2"=="-k" if [%3]==[]  (
+   @echo Invalid command: the connection id is missing, try 'foomcli --help' for more information
+   exit /B 1
+)
+
 set "CTL_USER=admin:winfoom"
 
 if not defined FOOM_LOCATION set "FOOM_LOCATION=localhost:9999"
@@ -95,6 +105,10 @@ if "%1"=="config" (
             curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
         )
     ) else (
+        if "%1"=="connections" if "%2"=="-k" (
+            curl -X DELETE --user %CTL_USER% http://%FOOM_LOCATION%/%1?id=%3
+            goto exit
+        )
         if "%1"=="validate" @echo It may take some time, please be pacient ...
         curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
 	)
@@ -122,6 +136,10 @@ exit /B %ERRORLEVEL%
 @echo    start                              - start the local proxy facade
 @echo    stop                               - stop the local proxy facade
 @echo    status                             - get the current status of the local proxy facade
+@echo    stats                              - print the runtime statistics of the local proxy facade
+@echo    metrics                            - print the runtime metrics of the local proxy facade, in Prometheus format
+@echo    connections                        - print the active connections and tunnels, the busiest first
+@echo    connections -k [id]                - kill the active connection or tunnel having the [id]
 @echo    shutdown                           - shutdown the application
 @echo    validate                           - test the local proxy facade configuration
 @echo    autodetect                         - attempt to apply Internet Explorer settings
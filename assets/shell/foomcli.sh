@@ -29,6 +29,10 @@ usage() {
   echo "start                         - start the local proxy facade"
   echo "stop                          - stop the local proxy facade"
   echo "status                        - get the current status of the local proxy facade"
+  echo "stats                         - print the runtime statistics of the local proxy facade"
+  echo "metrics                       - print the runtime metrics of the local proxy facade, in Prometheus format"
+  echo "connections                   - print the active connections and tunnels, the busiest first"
+  echo "connections -k [id]           - kill the active connection or tunnel having the [id]"
   echo "shutdown                      - shutdown the application"
   echo "validate                      - test the local proxy facade configuration"
   echo "config                        - print the current configuration"
@@ -53,7 +57,7 @@ if [ "$1" == "--help" ]; then
   exit 0
 fi
 
-if [[ "$1" != "start" && "$1" != "stop" && "$1" != "status" && "$1" != "validate" && "$1" != "shutdown" && "$1" != "test" && "$1" != "config"  && "$1" != "settings" ]]; then
+if [[ "$1" != "start" && "$1" != "stop" && "$1" != "status" && "$1" != "validate" && "$1" != "shutdown" && "$1" != "test" && "$1" != "config"  && "$1" != "settings" && "$1" != "stats" && "$1" != "metrics" && "$1" != "connections" ]]; then
   echo "Invalid command, try 'foomcli --help' for more information"
   exit 1
 fi
@@ -80,6 +84,17 @@ if [ "$1" == "settings" ]; then
   fi
 fi
 
+if [ "$1" == "connections" ]; then
+  if [[ "$2" != "-k" && ! -z "$2" ]]; then
+    echo "Invalid option '$2', try 'foomcli --help' for more information"
+    exit 1
+  fi
+  if [[ "$2" == "-k" && -z "$3" ]]; then
+    echo "Missing option's value, try 'foomcli --help' for more information"
+    exit 1
+  fi
+fi
+
 CTL_USER="admin:winfoom"
 
 if [ -z ${FOOM_LOCATION+x} ]; then FOOM_LOCATION=localhost:9999; fi
@@ -102,6 +117,8 @@ elif [ "$1" == "settings" ]; then
   else
     curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
   fi
+elif [[ "$1" == "connections" && "$2" == "-k" ]]; then
+  curl -w '\n' -X DELETE --user "$CTL_USER" http://$FOOM_LOCATION/"$1"?id="$3"
 else
   if [ "$1" == "validate" ]; then echo "It may take some time, please be pacient ..."; fi
   curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
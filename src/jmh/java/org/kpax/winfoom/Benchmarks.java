@@ -0,0 +1,54 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The shared setup of the JMH benchmarks.
+ * <p>Run them with {@code mvn -Pbenchmark test-compile exec:exec}, the results being written
+ * as JSON into {@code target/jmh-result.json}. The JMH options go into {@code -Djmh.args}, for example
+ * {@code -Djmh.args="GlobPatternMatcherBenchmark -f 1"}.
+ */
+public final class Benchmarks {
+
+    /**
+     * A few host names that the PAC files used by the benchmarks decide in different ways.
+     */
+    public static final List<String> HOSTS = Arrays.asList(
+            "intranet", "localhost", "wiki.corp.example.com", "build.dev.example.com", "www.partner.org",
+            "www.example.com", "img.cdn-eu.net", "secure.example.net", "10.1.2.3", "192.168.5.5");
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Start the application context of the tests, without the network API server.
+     *
+     * @param properties the system settings to override, like {@code "pac.fastPath=true"}.
+     * @return the started application context, to be closed after the benchmark.
+     */
+    public static ConfigurableApplicationContext startContext(String... properties) {
+        return new SpringApplicationBuilder(FoomApplicationTest.class)
+                .profiles("test")
+                .web(WebApplicationType.NONE)
+                .properties(properties)
+                .run();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.Benchmarks;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code shExpMatch} GLOB patterns: compiled (as regex or automaton), looked up in the cache and matched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobPatternMatcherBenchmark {
+
+    private static final String[] GLOBS = {
+            "*.example.com", "*.corp.example.com", "intranet*", "*.cdn-??.net", "10.*", "*.partner.[a-z]rg", "*"};
+
+    private ConfigurableApplicationContext applicationContext;
+
+    private GlobPatternMatcher globPatternMatcher;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        applicationContext = Benchmarks.startContext();
+        globPatternMatcher = applicationContext.getBean(GlobPatternMatcher.class);
+    }
+
+    @Benchmark
+    public Pattern compileRegex() {
+        return Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(GLOBS[Math.floorMod(next++, GLOBS.length)]));
+    }
+
+    @Benchmark
+    public GlobAutomaton compileAutomaton() {
+        return GlobAutomaton.compile(GLOBS[Math.floorMod(next++, GLOBS.length)]);
+    }
+
+    @Benchmark
+    public Predicate<String> toPredicate() {
+        return globPatternMatcher.toPredicate(GLOBS[Math.floorMod(next++, GLOBS.length)]);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        int i = next++;
+        return globPatternMatcher.matches(Benchmarks.HOSTS.get(i % Benchmarks.HOSTS.size()), GLOBS[i % GLOBS.length]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applicationContext.close();
+    }
+
+}
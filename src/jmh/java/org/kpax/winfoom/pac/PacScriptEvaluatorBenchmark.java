@@ -0,0 +1,75 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.Benchmarks;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PacScriptEvaluator#findProxyForURL(URI)} on representative PAC files,
+ * evaluated by the JavaScript engine or compiled into a decision tree.
+ * <p>The decision cache is disabled, so that every call reaches the PAC script.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacScriptEvaluatorBenchmark {
+
+    @Param({"proxy-simple.pac", "proxy-corporate.pac", "proxy-complex.pac"})
+    private String pacFile;
+
+    @Param({"false", "true"})
+    private boolean fastPath;
+
+    private ConfigurableApplicationContext applicationContext;
+
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    private URI[] uris;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        applicationContext = Benchmarks.startContext("pac.fastPath=" + fastPath, "cache.pacDecision.ttl=0");
+        applicationContext.getBean(ProxyConfig.class).setProxyPacFileLocation(
+                Paths.get(getClass().getClassLoader().getResource(pacFile).toURI()).toString());
+        pacScriptEvaluator = applicationContext.getBean(PacScriptEvaluator.class);
+        pacScriptEvaluator.onStart();
+        uris = Benchmarks.HOSTS.stream().map(host -> URI.create("http://" + host + "/path?query=1")).toArray(URI[]::new);
+    }
+
+    @Benchmark
+    public List<ProxyInfo> findProxyForURL() throws Exception {
+        URI uri = uris[Math.floorMod(next++, uris.length)];
+        return pacScriptEvaluator.findProxyForURL(uri);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pacScriptEvaluator.onStop();
+        applicationContext.close();
+    }
+
+}
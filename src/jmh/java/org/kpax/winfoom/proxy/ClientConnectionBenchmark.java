@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpException;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parsing of the client's request by the {@link ClientConnection}'s constructor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientConnectionBenchmark {
+
+    @Param({"GET", "CONNECT", "POST"})
+    private String method;
+
+    private byte[] requestBytes;
+
+    /**
+     * Nothing is written, unless the request is invalid.
+     */
+    private final Socket socket = new Socket() {
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String request;
+        switch (method) {
+            case "CONNECT":
+                request = "CONNECT www.example.com:443 HTTP/1.1\r\n"
+                        + "Host: www.example.com:443\r\n"
+                        + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:85.0) Gecko/20100101 Firefox/85.0\r\n"
+                        + "Proxy-Connection: keep-alive\r\n"
+                        + "\r\n";
+                break;
+            case "POST":
+                request = "POST http://www.example.com/api/items?page=1 HTTP/1.1\r\n"
+                        + "Host: www.example.com\r\n"
+                        + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:85.0) Gecko/20100101 Firefox/85.0\r\n"
+                        + "Accept: application/json\r\n"
+                        + "Content-Type: application/json\r\n"
+                        + "Content-Length: 2\r\n"
+                        + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+                        + "\r\n"
+                        + "{}";
+                break;
+            default:
+                request = "GET http://www.example.com/index.html HTTP/1.1\r\n"
+                        + "Host: www.example.com\r\n"
+                        + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:85.0) Gecko/20100101 Firefox/85.0\r\n"
+                        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                        + "Accept-Language: en-US,en;q=0.5\r\n"
+                        + "Accept-Encoding: gzip, deflate\r\n"
+                        + "Proxy-Connection: keep-alive\r\n"
+                        + "\r\n";
+        }
+        requestBytes = request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public URI parseRequest() throws IOException, HttpException {
+        InputStream inputStream = new ByteArrayInputStream(requestBytes);
+        SessionInputBufferImpl sessionInputBuffer = ClientConnection.createSessionInputBuffer(inputStream);
+        return new ManualProxyClientConnection(socket, inputStream, sessionInputBuffer,
+                null, null, null, null).getRequestUri();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.Benchmarks;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProxyBlacklist#isActive(ProxyInfo)} called by many threads, half of the proxies being blacklisted,
+ * alone and while another thread keeps blacklisting them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProxyBlacklistBenchmark {
+
+    private static final int PROXY_COUNT = 16;
+
+    private ConfigurableApplicationContext applicationContext;
+
+    private ProxyBlacklist proxyBlacklist;
+
+    private ProxyInfo[] proxies;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        applicationContext = Benchmarks.startContext();
+        applicationContext.getBean(ProxyConfig.class).setBlacklistTimeout(30);
+        proxyBlacklist = applicationContext.getBean(ProxyBlacklist.class);
+        proxies = new ProxyInfo[PROXY_COUNT];
+        for (int i = 0; i < PROXY_COUNT; i++) {
+            proxies[i] = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("proxy" + i + ".example.com", 8080));
+            if (i % 2 == 0) {
+                proxyBlacklist.blacklist(proxies[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int next;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean isActive(ThreadState threadState) {
+        return proxyBlacklist.isActive(proxies[Math.floorMod(threadState.next++, PROXY_COUNT)]);
+    }
+
+    @Benchmark
+    @Group("blacklisting")
+    @GroupThreads(7)
+    public boolean isActiveWhileBlacklisting(ThreadState threadState) {
+        return proxyBlacklist.isActive(proxies[Math.floorMod(threadState.next++, PROXY_COUNT)]);
+    }
+
+    @Benchmark
+    @Group("blacklisting")
+    @GroupThreads(1)
+    public Instant blacklist(ThreadState threadState) {
+        return proxyBlacklist.blacklist(proxies[Math.floorMod(threadState.next++, PROXY_COUNT)]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applicationContext.close();
+    }
+
+}
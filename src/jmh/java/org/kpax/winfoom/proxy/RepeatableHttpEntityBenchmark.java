@@ -0,0 +1,90 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RepeatableHttpEntity#writeTo(OutputStream)} at several body sizes: the smaller ones are cached in memory,
+ * the larger ones into a temporary file. The repeated write is what happens when the request is retried,
+ * for example after a proxy authentication challenge.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepeatableHttpEntityBenchmark {
+
+    /**
+     * The default {@code internalBuffer.length} system setting.
+     */
+    private static final int INTERNAL_BUFFER_LENGTH = 102400;
+
+    @Param({"1024", "65536", "1048576"})
+    private int bodySize;
+
+    private byte[] body;
+
+    private BasicHttpEntityEnclosingRequest request;
+
+    private Path tempDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+        request = new BasicHttpEntityEnclosingRequest("POST", "http://www.example.com/upload");
+        request.setHeader(HttpHeaders.CONTENT_TYPE, "application/octet-stream");
+        request.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(bodySize));
+        tempDirectory = Files.createTempDirectory("winfoom-benchmark");
+    }
+
+    @Benchmark
+    public void writeTo() throws IOException {
+        try (RepeatableHttpEntity entity = createEntity()) {
+            entity.writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public void writeToRepeated() throws IOException {
+        try (RepeatableHttpEntity entity = createEntity()) {
+            entity.writeTo(OutputStream.nullOutputStream());
+            entity.writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private RepeatableHttpEntity createEntity() {
+        SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(new ByteArrayInputStream(body));
+        return new RepeatableHttpEntity(request, inputBuffer, tempDirectory, INTERNAL_BUFFER_LENGTH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(tempDirectory);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+import org.kpax.winfoom.util.CrlfConverter;
+import org.kpax.winfoom.util.HttpUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The writing of a response head to the client's unbuffered socket stream: one write per line
+ * with a {@link SimpleDateFormat} per response (as before {@link ResponseHeadEncoder})
+ * against the {@link ResponseHeadEncoder} with the cached date header.
+ * <p>The {@code writes} counter gives the socket writes (so the syscalls) per response;
+ * run with {@code -Djmh.args="ResponseHeadBenchmark -prof gc"} to see the allocated bytes per response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseHeadBenchmark {
+
+    private final StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK");
+
+    /**
+     * The headers of a typical response, as parsed from the upstream.
+     */
+    private final Header[] headers = {
+            BasicLineParser.parseHeader("Content-Type: text/html; charset=UTF-8", null),
+            BasicLineParser.parseHeader("Content-Length: 48213", null),
+            BasicLineParser.parseHeader("Cache-Control: private, max-age=0", null),
+            BasicLineParser.parseHeader("Server: nginx", null),
+            BasicLineParser.parseHeader("Set-Cookie: session=0123456789abcdef; Path=/; HttpOnly", null),
+            BasicLineParser.parseHeader("Via: 1.1 proxy.example.com", null)
+    };
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SocketStream extends OutputStream {
+
+        public long writes;
+
+        @Override
+        public void write(int b) {
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+        }
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            writes = 0;
+        }
+    }
+
+    @Benchmark
+    public void perLine(SocketStream socketStream) throws IOException {
+        socketStream.write(CrlfConverter.convert(statusLine));
+        DateFormat dateformat = new SimpleDateFormat(HttpUtils.PATTERN_RFC1123, Locale.US);
+        dateformat.setTimeZone(HttpUtils.GMT);
+        socketStream.write(CrlfConverter.convert(new BasicHeader(HTTP.DATE_HEADER, dateformat.format(new Date()))));
+        for (Header header : headers) {
+            socketStream.write(CrlfConverter.convert(header));
+        }
+        socketStream.write(CrlfConverter.convert(new BasicHeader(HttpHeaders.CONNECTION, HTTP.CONN_CLOSE)));
+        socketStream.write(CrlfConverter.CRLF.getBytes());
+    }
+
+    @Benchmark
+    public void encoder(SocketStream socketStream) throws IOException {
+        ResponseHeadEncoder responseHead = new ResponseHeadEncoder();
+        responseHead.append(statusLine);
+        responseHead.append(new BasicHeader(HTTP.DATE_HEADER, HttpUtils.getCurrentDate()));
+        for (Header header : headers) {
+            responseHead.append(header);
+        }
+        responseHead.append(new BasicHeader(HttpHeaders.CONNECTION, HTTP.CONN_CLOSE));
+        responseHead.writeTo(socketStream);
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpUtils#parsePacProxyLine(String, java.util.function.Predicate)} on the usual proxy lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpUtilsBenchmark {
+
+    @Param({"DIRECT",
+            "PROXY proxy.example.com:8080; DIRECT",
+            "PROXY proxy1.example.com:8080; PROXY proxy2.example.com:8080; SOCKS5 socks.example.com:1080; DIRECT"})
+    private String proxyLine;
+
+    @Benchmark
+    public List<ProxyInfo> parsePacProxyLine() {
+        return HttpUtils.parsePacProxyLine(proxyLine, proxyInfo -> true);
+    }
+
+}
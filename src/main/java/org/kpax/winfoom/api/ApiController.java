@@ -20,11 +20,15 @@ import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
 import org.apache.http.auth.Credentials;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.bootstrap.HttpServer;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.api.auth.ApiCredentials;
 import org.kpax.winfoom.api.dto.ConfigDto;
@@ -33,9 +37,17 @@ import org.kpax.winfoom.api.json.Views;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.pac.PacScriptEvaluator;
+import org.kpax.winfoom.pac.net.DnsResolver;
+import org.kpax.winfoom.proxy.AccessLog;
+import org.kpax.winfoom.proxy.AdmissionController;
+import org.kpax.winfoom.proxy.ConnectionRegistry;
 import org.kpax.winfoom.proxy.ProxyController;
 import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.ProxyMetrics;
 import org.kpax.winfoom.proxy.ProxyValidator;
+import org.kpax.winfoom.proxy.RelayEngine;
+import org.kpax.winfoom.proxy.TunnelPool;
 import org.kpax.winfoom.util.BeanUtils;
 import org.kpax.winfoom.util.JsonUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -47,6 +59,9 @@ import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -76,6 +91,30 @@ public class ApiController implements AutoCloseable {
     @Autowired
     private ConfigurableApplicationContext applicationContext;
 
+    @Autowired
+    private AdmissionController admissionController;
+
+    @Autowired
+    private RelayEngine relayEngine;
+
+    @Autowired
+    private TunnelPool tunnelPool;
+
+    @Autowired
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    @Autowired
+    private DnsResolver dnsResolver;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private AccessLog accessLog;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
     @PostConstruct
     private void init() throws IOException {
         Credentials credentials = new ApiCredentials(proxyConfig.getApiToken());
@@ -128,6 +167,80 @@ public class ApiController implements AutoCloseable {
                                         proxyController.isRunning() ? "up" : "stopped")));
                             }
                         }).
+                registerHandler("/stats",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'stats' command received");
+                                Map<String, Object> stats = new LinkedHashMap<>();
+                                stats.put("admission", admissionController.getStats());
+                                stats.put("relay", Collections.singletonMap("activeTunnels",
+                                        relayEngine.getActiveCount()));
+                                stats.put("tunnelPool", tunnelPool.getStats());
+                                stats.put("pacCache", pacScriptEvaluator.getDecisionCacheStats());
+                                stats.put("dnsCache", dnsResolver.getStats());
+                                stats.put("pacReload", pacScriptEvaluator.getReloadStatus());
+                                stats.put("pacEvaluation", pacScriptEvaluator.getEvaluationStats());
+                                stats.put("accessLog", accessLog.getStats());
+                                response.setEntity(new StringEntity(new ObjectMapper().
+                                        writerWithDefaultPrettyPrinter().
+                                        writeValueAsString(stats)));
+                            }
+                        }).
+                registerHandler("/metrics",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'metrics' command received");
+                                response.setEntity(new StringEntity(proxyMetrics.scrape(),
+                                        ContentType.TEXT_PLAIN.withParameters(new BasicNameValuePair("version", "0.0.4"))));
+                            }
+                        }).
+                registerHandler("/connections",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'connections' command received");
+                                response.setEntity(new StringEntity(new ObjectMapper().
+                                        writerWithDefaultPrettyPrinter().
+                                        writeValueAsString(connectionRegistry.getConnections()),
+                                        ContentType.APPLICATION_JSON));
+                            }
+
+                            @Override
+                            public void doDelete(HttpRequest request, HttpResponse response, HttpContext context) {
+                                logger.debug("'connections kill' command received");
+                                if (systemConfig.isApiReadOnly()) {
+                                    response.setStatusCode(HttpStatus.SC_FORBIDDEN);
+                                    response.setEntity(new StringEntity("Forbidden: Killing connections is disabled",
+                                            StandardCharsets.UTF_8));
+                                    return;
+                                }
+                                String id = null;
+                                for (NameValuePair parameter : URLEncodedUtils.parse(
+                                        request.getRequestLine().getUri().replaceFirst("^[^?]*\\??", ""),
+                                        StandardCharsets.UTF_8)) {
+                                    if ("id".equals(parameter.getName())) {
+                                        id = parameter.getValue();
+                                    }
+                                }
+                                if (id == null || !id.matches("\\d{1,18}")) {
+                                    response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+                                    response.setEntity(new StringEntity("Missing or invalid connection id",
+                                            StandardCharsets.UTF_8));
+                                } else if (connectionRegistry.kill(Long.parseLong(id))) {
+                                    response.setEntity(new StringEntity("Connection " + id + " killed",
+                                            StandardCharsets.UTF_8));
+                                } else {
+                                    response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+                                    response.setEntity(new StringEntity("No active connection with id " + id,
+                                            StandardCharsets.UTF_8));
+                                }
+                            }
+                        }).
                 registerHandler("/validate",
                         new GenericHttpRequestHandler(credentials, executorService, systemConfig) {
                             @Override
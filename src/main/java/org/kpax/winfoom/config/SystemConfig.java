@@ -77,12 +77,93 @@ public class SystemConfig {
     @Value("${connectionManager.idleTimeout:100}")
     private Integer connectionManagerIdleTimeout;
 
+    /**
+     * The number of upstream proxy connections kept authenticated up to the final
+     * handshake leg, ready for a CONNECT request, per proxy (0 means disabled).
+     */
+    @Value("${tunnelPool.size:0}")
+    private Integer tunnelPoolSize;
+
+    /**
+     * How long a prepared tunnel connection is kept in the pool (seconds).
+     */
+    @Value("${tunnelPool.idleTimeout:30}")
+    private Integer tunnelPoolIdleTimeout;
+
     /**
      * The maximum number of pending connections.
      */
     @Value("${serverSocket.backlog:1000}")
     private Integer serverSocketBacklog;
 
+    /**
+     * Whether the local proxy server uses the event-driven listener
+     * (selector threads read the request head without blocking),
+     * the CONNECT tunnels being relayed by a shared selector thread.
+     */
+    @Value("${serverSocket.nio:false}")
+    private boolean serverSocketNio;
+
+    /**
+     * The number of selector threads used by the event-driven listener.
+     */
+    @Value("${serverSocket.nio.selectors:2}")
+    private Integer serverSocketNioSelectors;
+
+    /**
+     * Whether the client's connections are kept open between non-CONNECT requests (HTTP/1.1 persistent connections).
+     */
+    @Value("${serverSocket.keepAlive:true}")
+    private boolean serverSocketKeepAlive;
+
+    /**
+     * How long a persistent connection waits for the next request, before being closed (seconds).
+     */
+    @Value("${serverSocket.keepAlive.timeout:15}")
+    private Integer serverSocketKeepAliveTimeout;
+
+    /**
+     * The max number of requests served on a persistent connection.
+     */
+    @Value("${serverSocket.keepAlive.maxRequests:100}")
+    private Integer serverSocketKeepAliveMaxRequests;
+
+    /**
+     * The max number of CONNECT tunnels processed concurrently.
+     */
+    @Value("${admission.maxTunnels:1000}")
+    private Integer admissionMaxTunnels;
+
+    /**
+     * The max number of non-CONNECT requests processed concurrently.
+     */
+    @Value("${admission.maxRequests:500}")
+    private Integer admissionMaxRequests;
+
+    /**
+     * The max number of connections waiting for admission, for each of tunnels and requests.
+     */
+    @Value("${admission.queue.size:200}")
+    private Integer admissionQueueSize;
+
+    /**
+     * The max time a connection waits for admission, before being rejected (seconds).
+     */
+    @Value("${admission.queue.timeout:5}")
+    private Integer admissionQueueTimeout;
+
+    /**
+     * The value of the Retry-After header sent on rejection (seconds).
+     */
+    @Value("${admission.retryAfter:5}")
+    private Integer admissionRetryAfter;
+
+    /**
+     * Whether the proxy executor runs the tasks on virtual threads (Java 21+, ignored otherwise).
+     */
+    @Value("${executor.virtualThreads:false}")
+    private boolean executorVirtualThreads;
+
     /**
      * The timeout for read/write through socket channel (seconds).
      */
@@ -95,6 +176,64 @@ public class SystemConfig {
     @Value("${socket.connectTimeout:20}")
     private Integer socketConnectTimeout;
 
+    /**
+     * Whether the connects to the proxies returned by the PAC script are raced,
+     * instead of trying them one after another.
+     */
+    @Value("${pac.connectRace:false}")
+    private boolean pacConnectRace;
+
+    /**
+     * The delay before racing the next PAC proxy when the previous ones
+     * have neither connected nor failed (milliseconds).
+     */
+    @Value("${pac.connectRace.stagger:250}")
+    private Integer pacConnectRaceStagger;
+
+    /**
+     * How long the outcome of a connect race is reused for the same PAC proxies, before racing them again (seconds).
+     * <p>Use 0 to race on every request.
+     */
+    @Value("${pac.connectRace.cacheTtl:60}")
+    private Integer pacConnectRaceCacheTtl;
+
+    /**
+     * Whether the PAC scripts made of the common constructs are compiled into a Java decision tree,
+     * instead of being evaluated by the JavaScript engine.
+     */
+    @Value("${pac.fastPath:false}")
+    private boolean pacFastPath;
+
+    /**
+     * The min duration of a request to be logged with the breakdown of its phases (milliseconds, 0 means disabled).
+     */
+    @Value("${slowRequest.threshold:0}")
+    private Integer slowRequestThreshold;
+
+    /**
+     * Whether each request or tunnel is written to the access log.
+     */
+    @Value("${accessLog.enabled:false}")
+    private boolean accessLogEnabled;
+
+    /**
+     * The number of access log lines buffered in memory, rounded up to a power of two.
+     */
+    @Value("${accessLog.bufferSize:8192}")
+    private Integer accessLogBufferSize;
+
+    /**
+     * The size reached by the access log file before being archived (bytes).
+     */
+    @Value("${accessLog.maxFileSize:10485760}")
+    private Long accessLogMaxFileSize;
+
+    /**
+     * The max number of archived access log files.
+     */
+    @Value("${accessLog.maxFiles:4}")
+    private Integer accessLogMaxFiles;
+
     /**
      * The timeout for request connection (seconds).
      */
@@ -112,17 +251,85 @@ public class SystemConfig {
     private boolean preferIPv6Addresses;
 
     /**
-     * The cache2k globPattern capacity.
+     * The cache2k globPattern capacity, raised to the number of {@code shExpMatch} calls of the PAC script.
      */
     @Value("${cache.globPattern.capacity:100}")
     private Integer cacheGlobPatternCapacity;
 
+    /**
+     * The cache2k networkPattern capacity.
+     */
+    @Value("${cache.networkPattern.capacity:100}")
+    private Integer cacheNetworkPatternCapacity;
+
     /**
      * The cache2k credentialsProvider capacity.
      */
     @Value("${cache.credentialsProvider.capacity:100}")
     private Integer cacheCredentialsProviderCapacity;
 
+    /**
+     * The cache2k httpClient capacity.
+     */
+    @Value("${cache.httpClient.capacity:100}")
+    private Integer cacheHttpClientCapacity;
+
+    /**
+     * The cache2k pacDecision capacity.
+     */
+    @Value("${cache.pacDecision.capacity:1000}")
+    private Integer cachePacDecisionCapacity;
+
+    /**
+     * How long the proxies returned by the PAC script are cached (seconds, 0 means disabled).
+     * <p>Off by default: a cached decision doesn't see the changes of {@code myIpAddress()},
+     * {@code timeRange()}, {@code weekdayRange()} etc. until it expires.
+     */
+    @Value("${cache.pacDecision.ttl:0}")
+    private Integer cachePacDecisionTtl;
+
+    /**
+     * How often the PAC file is checked for changes, to be reloaded without restarting (seconds, 0 means disabled).
+     */
+    @Value("${pac.reload.interval:60}")
+    private Integer pacReloadInterval;
+
+    /**
+     * The max time a call to the PAC script function may last, before being cancelled (milliseconds, 0 means disabled).
+     */
+    @Value("${pac.evaluation.timeout:5000}")
+    private Integer pacEvaluationTimeout;
+
+    /**
+     * The proxy line used when a call to the PAC script function is cancelled.
+     */
+    @Value("${pac.evaluation.fallback:DIRECT}")
+    private String pacEvaluationFallback;
+
+    /**
+     * The cache2k dns capacity.
+     */
+    @Value("${cache.dns.capacity:1000}")
+    private Integer cacheDnsCapacity;
+
+    /**
+     * How long a host name resolved by the PAC helper functions is cached (seconds, 0 means disabled).
+     */
+    @Value("${cache.dns.ttl:60}")
+    private Integer cacheDnsTtl;
+
+    /**
+     * How long a host name that cannot be resolved is cached (seconds).
+     */
+    @Value("${cache.dns.negativeTtl:10}")
+    private Integer cacheDnsNegativeTtl;
+
+    /**
+     * The max time a PAC helper function waits for a host name resolution (milliseconds).
+     */
+    @Value("${dns.timeout:2000}")
+    private Integer dnsTimeout;
+
     /**
      * The pacScriptEngine pool maximum total instances.
      */
@@ -135,6 +342,19 @@ public class SystemConfig {
     @Value("${pacScriptEngine.pool.minIdle:20}")
     private Integer pacScriptEnginePoolMinIdle;
 
+    /**
+     * Whether the PAC script is evaluated by a few engines shared by all the threads,
+     * instead of a pool growing up to {@code pacScriptEngine.pool.maxTotal} engines.
+     */
+    @Value("${pacScriptEngine.shared:false}")
+    private boolean pacScriptEngineShared;
+
+    /**
+     * The number of shared pacScriptEngine instances (0 means the number of processors).
+     */
+    @Value("${pacScriptEngine.shared.size:0}")
+    private Integer pacScriptEngineSharedSize;
+
     /**
      * The request timeout for API server (seconds).
      */
@@ -43,12 +43,11 @@
  */
 package org.kpax.winfoom.pac;
 
-import inet.ipaddr.IPAddressString;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.pac.datetime.PacDateTimeUtils;
-import org.kpax.winfoom.pac.net.IpAddressMatcher;
+import org.kpax.winfoom.pac.net.DnsResolver;
 import org.kpax.winfoom.pac.net.IpAddresses;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -79,6 +78,12 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Autowired
     private GlobPatternMatcher globPatternMatcher;
 
+    @Autowired
+    private DnsResolver dnsResolver;
+
+    @Autowired
+    private NetworkPatternMatcher networkPatternMatcher;
+
     // *************************************************************
     //  Official helper functions.
     // *************************************************************
@@ -115,7 +120,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public boolean isResolvable(String host) {
         try {
-            return !IpAddresses.resolve(host, isIPv4Predicate).isEmpty();
+            return !dnsResolver.resolve(host, isIPv4Predicate).isEmpty();
         } catch (UnknownHostException ex) {
             logger.debug("Error on resolving host [{}]", host);
             return false;
@@ -125,7 +130,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public String dnsResolve(String host) {
         try {
-            List<InetAddress> addresses = IpAddresses.resolve(host, isIPv4Predicate);
+            List<InetAddress> addresses = dnsResolver.resolve(host, isIPv4Predicate);
             if (!addresses.isEmpty()) {
                 return addresses.get(0).getHostAddress();
             }
@@ -148,11 +153,13 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean isInNet(String host, String pattern, String mask) {
-        final String dnsResolve = dnsResolve(host);
-        if (dnsResolve == null) {
+        try {
+            InetAddress address = dnsResolver.resolveFirst(host, isIPv4Predicate);
+            return address != null && networkPatternMatcher.matches(address, pattern, mask);
+        } catch (UnknownHostException ex) {
+            logger.debug("Error on resolving host [{}]", host);
             return false;
         }
-        return new IPAddressString(pattern + "/" + mask).contains(new IPAddressString(host));
     }
 
     @Override
@@ -162,7 +169,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean shExpMatch(String str, String shexp) {
-        return globPatternMatcher.toPattern(shexp).matcher(str).matches();
+        return globPatternMatcher.matches(str, shexp);
     }
 
     @Override
@@ -206,7 +213,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public boolean isResolvableEx(String host) {
         try {
-            return !IpAddresses.resolve(host).isEmpty();
+            return !dnsResolver.resolve(host).isEmpty();
         } catch (UnknownHostException ex) {
             return false;
         }
@@ -215,7 +222,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public String dnsResolveEx(String host) {
         try {
-            List<InetAddress> addresses = IpAddresses.resolve(host);
+            List<InetAddress> addresses = dnsResolver.resolve(host);
             if (!addresses.isEmpty()) {
                 if (addresses.size() > 1) {
                     addresses.sort(IpAddresses.addressComparator(systemConfig.isPreferIPv6Addresses()));
@@ -271,7 +278,8 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public boolean isInNetEx(String ipAddress, String ipPrefix) {
         try {
-            return new IpAddressMatcher(ipPrefix).matches(ipAddress);
+            InetAddress address = dnsResolver.resolveFirst(ipAddress, null);
+            return address != null && networkPatternMatcher.matches(address, ipPrefix);
         } catch (UnknownHostException e) {
             return false;
         }
@@ -0,0 +1,317 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A GLOB pattern made of literal characters, {@code *}, {@code ?} and {@code [...]} compiled
+ * into a non-deterministic automaton whose states are the bits of a {@code long}.
+ * <p>The matching is linear in the length of the input, never backtracks and does not allocate.
+ * It agrees with the regex built by {@link GlobPatternMatcher#convertGlobToRegEx(String)}: {@code *} and {@code ?}
+ * do not match the line terminators and the input is read by code points.
+ * <p>The most common patterns, made of literals and {@code *} only, are matched part by part
+ * with {@link String#startsWith(String)}, {@link String#indexOf(String, int)} and {@link String#endsWith(String)}.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class GlobAutomaton {
+
+    /**
+     * The states are the bits of a {@code long}, including the final one.
+     */
+    static final int MAX_TOKENS = Long.SIZE - 1;
+
+    /**
+     * The characters having a meaning in the regex built by {@link GlobPatternMatcher#convertGlobToRegEx(String)}
+     * and not supported by the automaton.
+     */
+    private static final String REGEX_CHARS = "^$|+(){}]";
+
+    private static final int LITERAL = 0;
+    private static final int ANY = 1;
+    private static final int STAR = 2;
+    private static final int CLASS = 3;
+
+    private final int[] kinds;
+
+    private final int[] literals;
+
+    /**
+     * The inclusive bounds of the ranges of each character class.
+     */
+    private final int[][] ranges;
+
+    private final boolean[] negated;
+
+    private final int[] stars;
+
+    /**
+     * The states looping on any character but the line terminators.
+     */
+    private final long starStates;
+
+    private final long finalState;
+
+    /**
+     * The literal parts between the {@code *}, when the pattern has nothing else, otherwise {@code null}.
+     */
+    private final String[] segments;
+
+    private GlobAutomaton(List<Token> tokens) {
+        int length = tokens.size();
+        kinds = new int[length];
+        literals = new int[length];
+        ranges = new int[length][];
+        negated = new boolean[length];
+        List<Integer> starList = new ArrayList<>();
+        long loops = 0;
+        for (int i = 0; i < length; i++) {
+            Token token = tokens.get(i);
+            kinds[i] = token.kind;
+            literals[i] = token.literal;
+            ranges[i] = token.ranges;
+            negated[i] = token.negated;
+            if (token.kind == STAR) {
+                starList.add(i);
+                loops |= 1L << (i + 1);
+            }
+        }
+        stars = starList.stream().mapToInt(Integer::intValue).toArray();
+        starStates = loops;
+        finalState = 1L << length;
+        segments = toSegments(tokens);
+    }
+
+    private static String[] toSegments(List<Token> tokens) {
+        List<String> segmentList = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        for (Token token : tokens) {
+            if (token.kind == STAR) {
+                segmentList.add(segment.toString());
+                segment.setLength(0);
+            } else if (token.kind == LITERAL && !Character.isSupplementaryCodePoint(token.literal)
+                    && !Character.isSurrogate((char) token.literal) && !isLineTerminator(token.literal)) {
+                segment.append((char) token.literal);
+            } else {
+                return null;
+            }
+        }
+        segmentList.add(segment.toString());
+        return segmentList.toArray(new String[0]);
+    }
+
+    /**
+     * Compile a GLOB pattern.
+     *
+     * @param glob the trimmed GLOB pattern.
+     * @return the automaton or {@code null} if the pattern contains anything else than
+     * literal characters, {@code *}, {@code ?} and simple {@code [...]} classes, or is too long.
+     */
+    public static GlobAutomaton compile(@NotNull String glob) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < glob.length()) {
+            int c = glob.codePointAt(i);
+            i += Character.charCount(c);
+            if (c == '*') {
+                tokens.add(new Token(STAR, 0, null, false));
+            } else if (c == '?') {
+                tokens.add(new Token(ANY, 0, null, false));
+            } else if (c == '[') {
+                int end = glob.indexOf(']', i);
+                if (end < 0) {
+                    return null;
+                }
+                Token token = parseClass(glob.substring(i, end));
+                if (token == null) {
+                    return null;
+                }
+                tokens.add(token);
+                i = end + 1;
+            } else if (c < 128 && REGEX_CHARS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                tokens.add(new Token(LITERAL, c, null, false));
+            }
+            if (tokens.size() > MAX_TOKENS) {
+                return null;
+            }
+        }
+        return new GlobAutomaton(tokens);
+    }
+
+    /**
+     * Parse a class like {@code abc}, {@code a-z0-9} or {@code !abc}/{@code ^abc} (negated).
+     *
+     * @return the class token or {@code null} if not supported.
+     */
+    private static Token parseClass(String body) {
+        boolean negatedClass = body.startsWith("!") || body.startsWith("^");
+        String members = negatedClass ? body.substring(1) : body;
+        if (members.isEmpty()) {
+            return null;
+        }
+        List<int[]> bounds = new ArrayList<>();
+        for (int i = 0; i < members.length(); i++) {
+            char low = members.charAt(i);
+            if (!isClassMember(low)) {
+                return null;
+            }
+            char high = low;
+            if (i + 2 < members.length() && members.charAt(i + 1) == '-') {
+                high = members.charAt(i + 2);
+                if (!isClassMember(high) || high < low) {
+                    return null;
+                }
+                i += 2;
+            } else if (i + 1 < members.length() && members.charAt(i + 1) == '-') {
+                return null;
+            }
+            bounds.add(new int[]{low, high});
+        }
+        int[] flat = new int[bounds.size() * 2];
+        for (int i = 0; i < bounds.size(); i++) {
+            flat[2 * i] = bounds.get(i)[0];
+            flat[2 * i + 1] = bounds.get(i)[1];
+        }
+        return new Token(CLASS, 0, flat, negatedClass);
+    }
+
+    private static boolean isClassMember(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == ':' || c == '.';
+    }
+
+    /**
+     * @param input the string to match.
+     * @return {@code true} iff the whole input matches the pattern.
+     */
+    public boolean matches(@NotNull String input) {
+        if (segments != null && !hasLineTerminator(input)) {
+            return matchesSegments(input);
+        }
+        long states = closure(1L);
+        for (int i = 0; i < input.length() && states != 0; ) {
+            int c = input.codePointAt(i);
+            i += Character.charCount(c);
+            long next = 0;
+            for (long active = states; active != 0; active &= active - 1) {
+                int state = Long.numberOfTrailingZeros(active);
+                if (state < kinds.length && kinds[state] != STAR && accepts(state, c)) {
+                    next |= 1L << (state + 1);
+                }
+                if ((starStates & (1L << state)) != 0 && !isLineTerminator(c)) {
+                    next |= 1L << state;
+                }
+            }
+            states = closure(next);
+        }
+        return (states & finalState) != 0;
+    }
+
+    /**
+     * Match the literal parts from left to right, each {@code *} taking the shortest run:
+     * with nothing but literals and {@code *} there is no need to go back.
+     */
+    private boolean matchesSegments(String input) {
+        String first = segments[0];
+        if (segments.length == 1) {
+            return input.equals(first);
+        }
+        String last = segments[segments.length - 1];
+        int end = input.length() - last.length();
+        if (end < first.length() || !input.startsWith(first) || !input.endsWith(last)) {
+            return false;
+        }
+        int position = first.length();
+        for (int i = 1; i < segments.length - 1; i++) {
+            int index = input.indexOf(segments[i], position);
+            if (index < 0 || index + segments[i].length() > end) {
+                return false;
+            }
+            position = index + segments[i].length();
+        }
+        return true;
+    }
+
+    private static boolean hasLineTerminator(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if ((c <= '\r' || c >= '\u0085') && isLineTerminator(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Follow the empty transitions: a {@code *} can match nothing.
+     */
+    private long closure(long states) {
+        for (int star : stars) {
+            if ((states & (1L << star)) != 0) {
+                states |= 1L << (star + 1);
+            }
+        }
+        return states;
+    }
+
+    private boolean accepts(int token, int c) {
+        switch (kinds[token]) {
+            case LITERAL:
+                return literals[token] == c;
+            case ANY:
+                return !isLineTerminator(c);
+            default:
+                int[] bounds = ranges[token];
+                for (int i = 0; i < bounds.length; i += 2) {
+                    if (c >= bounds[i] && c <= bounds[i + 1]) {
+                        return !negated[token];
+                    }
+                }
+                return negated[token];
+        }
+    }
+
+    /**
+     * The characters not matched by the regex {@code .}
+     */
+    private static boolean isLineTerminator(int c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static final class Token {
+
+        private final int kind;
+
+        private final int literal;
+
+        private final int[] ranges;
+
+        private final boolean negated;
+
+        private Token(int kind, int literal, int[] ranges, boolean negated) {
+            this.kind = kind;
+            this.literal = literal;
+            this.ranges = ranges;
+            this.negated = negated;
+        }
+    }
+
+}
@@ -17,52 +17,90 @@ import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
 import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 /**
  * GLOB pattern matcher.
+ * <p>The GLOB patterns are compiled into {@link GlobAutomaton}s, the regex being only used for
+ * the patterns the automaton does not support, like {@code (ab|cd)}.
  */
 @Slf4j
 @Component
-public class GlobPatternMatcher {
+public class GlobPatternMatcher implements StopListener {
 
     @Autowired
     private SystemConfig systemConfig;
 
-    private final SingletonSupplier<Cache<String, Pattern>> globPatternCacheSupplier =
+    /**
+     * The number of GLOB patterns expected to be matched, when known.
+     */
+    private volatile int expectedGlobCount;
+
+    private final SingletonSupplier<Cache<String, Predicate<String>>> globPatternCacheSupplier =
             new SingletonSupplier<>(() ->
-                    Cache2kBuilder.of(String.class, Pattern.class)
-                            .name("precompiledGlobPattern")
+                    new Cache2kBuilder<String, Predicate<String>>() {
+                    }
                             .eternal(true)
-                            .entryCapacity(systemConfig.getCacheGlobPatternCapacity())
+                            .entryCapacity(Math.max(systemConfig.getCacheGlobPatternCapacity(), expectedGlobCount))
                             .build()
             );
 
     /**
-     * Translate a GLOB pattern into a {@link Pattern} instance.
+     * Check whether a string matches a GLOB pattern.
      * <p>
-     * <b>Note:</b> The result is cached.
+     * <b>Note:</b> The compiled pattern is cached.
      *
+     * @param str  the string to match.
      * @param glob the GLOB pattern.
-     * @return the {@link Pattern} instance.
+     * @return {@code true} iff the whole string matches the pattern.
      * @see #convertGlobToRegEx(String)
      */
-    public Pattern toPattern(@NotNull String glob) {
+    public boolean matches(@NotNull String str, @NotNull String glob) {
+        return toPredicate(glob).test(str);
+    }
+
+    /**
+     * Translate a GLOB pattern into a match predicate.
+     * <p>
+     * <b>Note:</b> The result is cached.
+     *
+     * @param glob the GLOB pattern.
+     * @return the predicate testing the whole string.
+     */
+    public Predicate<String> toPredicate(@NotNull String glob) {
         Assert.notNull(glob, "glob cannot be null");
-        Pattern pattern = globPatternCacheSupplier.get().get(glob);
-        if (pattern == null) {
-            logger.debug("Create pattern for {}", glob);
-            String regexPattern = convertGlobToRegEx(glob.trim());
-            logger.debug("glob regexPattern={}", regexPattern);
-            pattern = Pattern.compile(regexPattern);
-            globPatternCacheSupplier.get().put(glob, pattern);
+        Predicate<String> predicate = globPatternCacheSupplier.get().get(glob);
+        if (predicate == null) {
+            GlobAutomaton automaton = GlobAutomaton.compile(glob.trim());
+            if (automaton != null) {
+                logger.debug("Create automaton for {}", glob);
+                predicate = automaton::matches;
+            } else {
+                String regexPattern = convertGlobToRegEx(glob.trim());
+                logger.debug("glob regexPattern={}", regexPattern);
+                predicate = Pattern.compile(regexPattern).asMatchPredicate();
+            }
+            globPatternCacheSupplier.get().put(glob, predicate);
         }
-        return pattern;
+        return predicate;
+    }
+
+    /**
+     * Size the cache for the GLOB patterns of the loaded PAC script,
+     * when more than {@link SystemConfig#getCacheGlobPatternCapacity()}.
+     * <p>It takes effect when the cache is created, that is after the next stop.
+     *
+     * @param globCount the number of GLOB patterns in the script.
+     */
+    void setExpectedGlobCount(int globCount) {
+        this.expectedGlobCount = globCount;
     }
 
     /**
@@ -111,4 +149,9 @@ public class GlobPatternMatcher {
         return stringBuilder.toString();
     }
 
+    @Override
+    public void onStop() {
+        globPatternCacheSupplier.reset(Cache::close);
+    }
+
 }
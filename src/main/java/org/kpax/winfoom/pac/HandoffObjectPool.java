@@ -0,0 +1,205 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.BaseObjectPool;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of objects, all created upfront, handed off between threads through a lock-free queue.
+ * <p>Unlike {@link org.apache.commons.pool2.impl.GenericObjectPool}, it never grows: when every object is borrowed,
+ * the callers wait for one to be returned. It is meant for expensive objects that are quickly used and returned,
+ * like the JavaScript contexts evaluating a PAC script.
+ *
+ * @param <T> the pooled object's type.
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+class HandoffObjectPool<T> extends BaseObjectPool<T> {
+
+    private final PooledObjectFactory<T> factory;
+
+    private final int size;
+
+    private final List<PooledObject<T>> pooledObjects;
+
+    /**
+     * The slots left empty by an invalidated object whose replacement failed, to be filled by the next borrower.
+     */
+    private final AtomicInteger missingObjects = new AtomicInteger();
+
+    private final Queue<T> idleObjects = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of idle objects or empty slots that can be taken: it is released after an object is queued
+     * or a slot emptied and acquired before an object is polled, so a borrower always finds one of them.
+     */
+    private final Semaphore available;
+
+    /**
+     * Create the pool and all its objects.
+     *
+     * @param factory the objects' factory.
+     * @param size    the number of objects.
+     * @throws Exception when an object cannot be created.
+     */
+    HandoffObjectPool(PooledObjectFactory<T> factory, int size) throws Exception {
+        this.factory = factory;
+        this.size = size;
+        this.pooledObjects = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                PooledObject<T> pooledObject = factory.makeObject();
+                pooledObjects.add(pooledObject);
+                idleObjects.add(pooledObject.getObject());
+            }
+        } catch (Exception e) {
+            destroyAll();
+            throw e;
+        }
+        this.available = new Semaphore(size);
+    }
+
+    /**
+     * Take an idle object, waiting for one to be returned if all of them are borrowed.
+     * <p>When there is no idle object but an empty slot, a new object is created for it.
+     */
+    @Override
+    public T borrowObject() throws Exception {
+        assertOpen();
+        available.acquire();
+        T obj = idleObjects.poll();
+        if (obj != null) {
+            return obj;
+        }
+        if (!isClosed() && missingObjects.getAndUpdate(n -> n > 0 ? n - 1 : n) > 0) {
+            try {
+                PooledObject<T> pooledObject = factory.makeObject();
+                synchronized (pooledObjects) {
+                    pooledObjects.add(pooledObject);
+                }
+                return pooledObject.getObject();
+            } catch (Exception e) {
+                // Leave the slot empty for the next borrower
+                missingObjects.incrementAndGet();
+                available.release();
+                throw e;
+            }
+        }
+        // Closed meanwhile
+        available.release();
+        throw new IllegalStateException("Pool not open");
+    }
+
+    @Override
+    public void returnObject(T obj) throws Exception {
+        if (isClosed()) {
+            destroy(findPooledObject(obj));
+            return;
+        }
+        idleObjects.offer(obj);
+        available.release();
+    }
+
+    /**
+     * Replace the object by a new one.
+     * <p>When the replacement cannot be created, the slot is left empty, to be filled by the next borrower.
+     */
+    @Override
+    public void invalidateObject(T obj) {
+        PooledObject<T> pooledObject = findPooledObject(obj);
+        synchronized (pooledObjects) {
+            pooledObjects.remove(pooledObject);
+        }
+        destroy(pooledObject);
+        if (isClosed()) {
+            return;
+        }
+        try {
+            PooledObject<T> replacement = factory.makeObject();
+            synchronized (pooledObjects) {
+                pooledObjects.add(replacement);
+            }
+            idleObjects.offer(replacement.getObject());
+        } catch (Exception e) {
+            logger.warn("Cannot replace the invalidated pooled object, the slot is left empty", e);
+            missingObjects.incrementAndGet();
+        } finally {
+            available.release();
+        }
+    }
+
+    /**
+     * @return the idle objects, not counting the empty slots.
+     */
+    @Override
+    public int getNumIdle() {
+        return isClosed() ? 0 : idleObjects.size();
+    }
+
+    /**
+     * @return the borrowed objects, not counting the empty slots.
+     */
+    @Override
+    public int getNumActive() {
+        return isClosed() ? 0 : Math.max(0, size - idleObjects.size() - missingObjects.get());
+    }
+
+    /**
+     * Destroy the idle objects, the borrowed ones being destroyed when returned.
+     */
+    @Override
+    public void close() {
+        super.close();
+        for (T obj = idleObjects.poll(); obj != null; obj = idleObjects.poll()) {
+            destroy(findPooledObject(obj));
+        }
+        // Wake up the waiting callers, to find the pool closed
+        available.release(size);
+    }
+
+    private PooledObject<T> findPooledObject(T obj) {
+        synchronized (pooledObjects) {
+            for (PooledObject<T> pooledObject : pooledObjects) {
+                if (pooledObject.getObject() == obj) {
+                    return pooledObject;
+                }
+            }
+        }
+        throw new IllegalStateException("Returned object not currently part of this pool");
+    }
+
+    private void destroyAll() {
+        pooledObjects.forEach(this::destroy);
+    }
+
+    private void destroy(PooledObject<T> pooledObject) {
+        try {
+            factory.destroyObject(pooledObject);
+        } catch (Exception e) {
+            logger.debug("Error on destroying pooled object", e);
+        }
+    }
+
+}
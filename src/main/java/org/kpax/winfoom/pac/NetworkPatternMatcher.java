@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.net.CidrMatcher;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.Optional;
+
+/**
+ * Network pattern matcher, for the {@code isInNet} and {@code isInNetEx} PAC functions.
+ */
+@Slf4j
+@Component
+public class NetworkPatternMatcher implements StopListener {
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    /**
+     * The compiled networks by {@code address/mask}, empty when not valid.
+     */
+    private final SingletonSupplier<Cache<String, Optional<CidrMatcher>>> networkPatternCacheSupplier =
+            new SingletonSupplier<>(() ->
+                    new Cache2kBuilder<String, Optional<CidrMatcher>>() {
+                    }
+                            .eternal(true)
+                            .entryCapacity(systemConfig.getCacheNetworkPatternCapacity())
+                            .build()
+            );
+
+    /**
+     * Check whether an address is in the network given by an address and a mask.
+     * <p>
+     * <b>Note:</b> The compiled network is cached.
+     *
+     * @param address the address to check.
+     * @param pattern the network address.
+     * @param mask    the mask, either an address (like {@code 255.255.0.0}) or a prefix length.
+     * @return {@code true} iff the address is in the network, {@code false} if not or the network is not valid.
+     */
+    public boolean matches(@NotNull InetAddress address, String pattern, String mask) {
+        return matches(address, pattern + "/" + mask);
+    }
+
+    /**
+     * Check whether an address is in the network given in CIDR notation (like {@code 198.95.0.0/16}).
+     * <p>
+     * <b>Note:</b> The compiled network is cached.
+     *
+     * @param address the address to check.
+     * @param prefix  the network or a single address.
+     * @return {@code true} iff the address is in the network, {@code false} if not or the network is not valid.
+     */
+    public boolean matches(@NotNull InetAddress address, String prefix) {
+        if (prefix == null) {
+            return false;
+        }
+        Optional<CidrMatcher> cidrMatcher = networkPatternCacheSupplier.get().peek(prefix);
+        if (cidrMatcher == null) {
+            logger.debug("Compile network {}", prefix);
+            cidrMatcher = Optional.ofNullable(CidrMatcher.compile(prefix));
+            networkPatternCacheSupplier.get().put(prefix, cidrMatcher);
+        }
+        return cidrMatcher.map(matcher -> matcher.matches(address)).orElse(false);
+    }
+
+    @Override
+    public void onStop() {
+        networkPatternCacheSupplier.reset(Cache::close);
+    }
+
+}
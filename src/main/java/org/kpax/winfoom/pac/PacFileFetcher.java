@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Fetches the PAC file, remembering what is needed to avoid downloading it again when unchanged:
+ * the {@code ETag} and {@code Last-Modified} headers for a http(s) URL, the modification time and the size
+ * for a file URL.
+ * Any other URL is downloaded each time and compared with the previous content.
+ */
+@Slf4j
+@NotThreadSafe
+class PacFileFetcher {
+
+    private final URL url;
+
+    private String content;
+
+    private String etag;
+
+    private String lastModified;
+
+    private long fileModifiedTime = Long.MIN_VALUE;
+
+    private long fileSize = -1;
+
+    /**
+     * @param url the PAC file location.
+     */
+    PacFileFetcher(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * Fetch the PAC file, the first call always returning the content.
+     *
+     * @param timeout the connect and read timeout for a http(s) URL (milliseconds).
+     * @return the new content or {@code null} if unchanged since the previous call.
+     * @throws IOException when the file cannot be fetched.
+     */
+    String fetchIfChanged(int timeout) throws IOException {
+        String protocol = url.getProtocol();
+        if ("file".equalsIgnoreCase(protocol)) {
+            Path path = toPath();
+            if (path != null) {
+                // The modification time alone may miss a change, on a coarse-grained file system
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                long modifiedTime = attributes.lastModifiedTime().toMillis();
+                if (modifiedTime == fileModifiedTime && attributes.size() == fileSize) {
+                    return null;
+                }
+                fileModifiedTime = modifiedTime;
+                fileSize = attributes.size();
+            }
+            return changed(read(url.openConnection()));
+        } else if ("http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol)) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+                if (content != null && etag != null) {
+                    connection.setRequestProperty(HttpHeaders.IF_NONE_MATCH, etag);
+                }
+                if (content != null && lastModified != null) {
+                    connection.setRequestProperty(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+                }
+                if (connection.getResponseCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    logger.debug("PAC file not modified: {}", url);
+                    return null;
+                }
+                String newContent = read(connection);
+                etag = connection.getHeaderField(HttpHeaders.ETAG);
+                lastModified = connection.getHeaderField(HttpHeaders.LAST_MODIFIED);
+                return changed(newContent);
+            } finally {
+                connection.disconnect();
+            }
+        } else {
+            return changed(read(url.openConnection()));
+        }
+    }
+
+    private Path toPath() {
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            logger.debug("Cannot get the path of {}", url, e);
+            return null;
+        }
+    }
+
+    private String read(URLConnection connection) throws IOException {
+        if (content == null) {
+            logger.info("Get PAC file from: {}", url);
+        } else {
+            logger.debug("Get PAC file from: {}", url);
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
+    private String changed(String newContent) {
+        if (Objects.equals(content, newContent)) {
+            logger.debug("PAC file content unchanged: {}", url);
+            return null;
+        }
+        if (content == null) {
+            logger.info("PAC content: {}", newContent);
+        } else {
+            logger.debug("PAC content: {}", newContent);
+        }
+        content = newContent;
+        return newContent;
+    }
+
+}
@@ -34,13 +34,19 @@ import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.ObjectPool;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.cache2k.event.CacheEntryExpiredListener;
 import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.Engine;
 import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.annotation.TypeQualifier;
 import org.kpax.winfoom.config.ProxyConfig;
@@ -48,8 +54,14 @@ import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.MissingResourceException;
 import org.kpax.winfoom.exception.PacFileException;
 import org.kpax.winfoom.exception.PacScriptException;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree;
+import org.kpax.winfoom.pac.compiler.PacScriptCompiler;
+import org.kpax.winfoom.proxy.HttpClientBuilderFactory;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.jfr.PacEvaluatedEvent;
 import org.kpax.winfoom.proxy.listener.ProxyListener;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
@@ -58,14 +70,29 @@ import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import javax.annotation.PostConstruct;
 import javax.script.ScriptException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Slf4j
 @ThreadSafe
@@ -86,6 +113,25 @@ public class PacScriptEvaluator implements ProxyListener {
      */
     private static final String IPV6_AWARE_PAC_MAIN_FUNCTION = "FindProxyForURLEx";
 
+    /**
+     * Removes the global properties not in the allowed list.
+     */
+    private static final Source GLOBALS_CLEANER = Source.create("js", "(function(allowed) {\n"
+            + "   var names = Object.getOwnPropertyNames(this);\n"
+            + "   MAIN: for (var i = 0; i < names.length; i++) {\n"
+            + "     for (var j = 0; j < allowed.length; j++) {\n"
+            + "       if (names[i] === allowed[j]) {\n"
+            + "         continue MAIN;\n"
+            + "       }\n"
+            + "     }\n"
+            + "     delete this[names[i]];\n"
+            + "   }\n"
+            + "})");
+
+    /**
+     * A {@code shExpMatch} call, each one having a GLOB pattern.
+     */
+    private static final Pattern SH_EXP_MATCH_CALL = Pattern.compile("\\bshExpMatch\\s*\\(");
 
     @Autowired
     private ProxyConfig proxyConfig;
@@ -99,6 +145,15 @@ public class PacScriptEvaluator implements ProxyListener {
     @Autowired
     private ProxyBlacklist proxyBlacklist;
 
+    @Autowired
+    private GlobPatternMatcher globPatternMatcher;
+
+    @Autowired
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     /**
      * The supplier for the sharable {@link Engine} instance.
      */
@@ -106,64 +161,255 @@ public class PacScriptEvaluator implements ProxyListener {
             Engine.newBuilder().allowExperimentalOptions(true).build()
     );
 
-    private final SingletonSupplier<String> helperJSScriptSupplier = new SingletonSupplier<>(() -> {
+    private final SingletonSupplier<Source> helperJSScriptSupplier = new SingletonSupplier<>(() -> {
         try {
-            return IOUtils.toString(getClass().getClassLoader().
-                    getResourceAsStream("javascript/pacFunctions.js"), StandardCharsets.UTF_8);
+            return Source.newBuilder("js", IOUtils.toString(getClass().getClassLoader().
+                    getResourceAsStream("javascript/pacFunctions.js"), StandardCharsets.UTF_8),
+                    "pacFunctions.js").build();
         } catch (Exception e) {
             throw new MissingResourceException("pacFunctions.js not found in classpath", e);
         }
     });
 
+    private final LongAdder decisionCacheHits = new LongAdder();
+
+    private final LongAdder decisionCacheMisses = new LongAdder();
+
+    private final LongAdder decisionCachePuts = new LongAdder();
+
+    private final LongAdder decisionCacheExpired = new LongAdder();
+
+    private final LongAdder decisionCacheInvalidated = new LongAdder();
 
     /**
-     * The {@link GenericObjectPool} supplier.
-     * <p>Since the Graaljs {@link Context} is not thread safe, we maintain a pool of {@link GraalJSScriptEngine} instances.
+     * The proxies returned by the PAC script, before blacklist filtering.
+     * <p>The key is the stripped URL passed to the PAC script function, which also contains the host
+     * (the function's second argument), so it identifies the call.
      */
-    private final SingletonSupplier<GenericObjectPool<GraalJSScriptEngine>> enginePoolSingletonSupplier =
-            new SingletonSupplier<>(() -> {
-                GenericObjectPoolConfig<GraalJSScriptEngine> config = new GenericObjectPoolConfig<>();
-                config.setMaxTotal(systemConfig.getPacScriptEnginePoolMaxTotal());
-                config.setMinIdle(systemConfig.getPacScriptEnginePoolMinIdle());
-                config.setTestOnBorrow(false);
-                config.setTestOnCreate(false);
-                config.setTestOnReturn(false);
-                config.setBlockWhenExhausted(true);
-                return new GenericObjectPool<>(
-                        new BasePooledObjectFactory<GraalJSScriptEngine>() {
-                            @Override
-                            public GraalJSScriptEngine create() throws PacFileException, IOException {
-                                return createScriptEngine();
-                            }
-
-                            @Override
-                            public PooledObject<GraalJSScriptEngine> wrap(GraalJSScriptEngine obj) {
-                                return new DefaultPooledObject<>(obj);
-                            }
-                        }, config);
-            });
-
-    private String jsMainFunction;
+    private final SingletonSupplier<Cache<String, CachedDecision>> decisionCacheSupplier =
+            new SingletonSupplier<>(() ->
+                    new Cache2kBuilder<String, CachedDecision>() {
+                    }
+                            .expireAfterWrite(systemConfig.getCachePacDecisionTtl(), TimeUnit.SECONDS)
+                            .entryCapacity(systemConfig.getCachePacDecisionCapacity())
+                            .addListener((CacheEntryExpiredListener<String, CachedDecision>)
+                                    (cache, entry) -> decisionCacheExpired.increment())
+                            .build()
+            );
+
+    /**
+     * Numbers the loaded PAC scripts, so the decisions of a previous script are told apart.
+     */
+    private final AtomicLong scriptGenerations = new AtomicLong();
+
+    /**
+     * Cancels the PAC script calls lasting more than {@link SystemConfig#getPacEvaluationTimeout()}.
+     */
+    private final SingletonSupplier<ScheduledExecutorService> watchdogSupplier = new SingletonSupplier<>(() -> {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1,
+                new ProxyExecutorService.DefaultThreadFactory());
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    });
+
+    /**
+     * Polls the PAC file, on its own thread since a slow PAC server would block it for a while.
+     */
+    private final SingletonSupplier<ScheduledExecutorService> reloaderSupplier = new SingletonSupplier<>(() ->
+            new ScheduledThreadPoolExecutor(1, new ProxyExecutorService.DefaultThreadFactory()));
+
+    private ScheduledFuture<?> reloadTask;
 
+    private final LongAdder evaluationTimeouts = new LongAdder();
+
+    private final LongAdder recycledEngines = new LongAdder();
+
+    private final LongAdder reloads = new LongAdder();
+
+    private final LongAdder reloadFailures = new LongAdder();
+
+    /**
+     * Guards the loading, the reloading and the unloading of the PAC script.
+     */
+    private final Object loadLock = new Object();
+
+    /**
+     * The current PAC script, {@code null} when the local proxy server is stopped.
+     */
+    private volatile LoadedScript loadedScript;
+
+    private PacFileFetcher pacFileFetcher;
+
+    private volatile Instant lastReloadCheck;
+
+    private volatile Instant lastReload;
+
+    private volatile String lastReloadStatus;
+
+    private volatile String lastReloadError;
+
+    private volatile long lastReloadMillis;
+
+    @PostConstruct
+    void init() {
+        proxyMetrics.register("winfoom_pac_decision_cache_requests_total",
+                "The lookups of the PAC decision cache, by result", ProxyMetrics.Type.COUNTER, sink -> {
+                    sink.accept(decisionCacheHits.sum(), "hit");
+                    sink.accept(decisionCacheMisses.sum(), "miss");
+                }, "result");
+    }
 
     @TypeQualifier(ProxyConfig.Type.PAC)
     @Override
     public void onStart() throws Exception {
-        GraalJSScriptEngine scriptEngine = enginePoolSingletonSupplier.get().borrowObject();
+        URL url = proxyConfig.getProxyPacFileLocationAsURL();
+        Assert.state(url != null, "No proxy PAC file location found");
+        synchronized (loadLock) {
+            long start = System.nanoTime();
+            PacFileFetcher fetcher = new PacFileFetcher(url);
+            loadedScript = load(fetcher.fetchIfChanged(systemConfig.getSocketConnectTimeout() * 1000));
+            pacFileFetcher = fetcher;
+            lastReloadCheck = Instant.now();
+            setReloadStatus("LOADED", null, start);
+            int interval = systemConfig.getPacReloadInterval();
+            if (reloadTask != null) {
+                reloadTask.cancel(false);
+            }
+            if (interval > 0) {
+                reloadTask = reloaderSupplier.get().scheduleWithFixedDelay(this::checkForChange,
+                        interval, interval, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Load a PAC script into a new engine pool, checking that it can be evaluated
+     * and has a main function.
+     *
+     * @param content the PAC script.
+     * @return the loaded script.
+     * @throws PacFileException when the PAC script is invalid.
+     */
+    private LoadedScript load(String content) throws Exception {
+        Source pacSource = Source.newBuilder("js", content, "pacFile.js").build();
+        ObjectPool<GraalJSScriptEngine> enginePool = createEnginePool(pacSource);
         try {
-            if (isJsFunctionAvailable(scriptEngine, IPV6_AWARE_PAC_MAIN_FUNCTION)) {
-                jsMainFunction = IPV6_AWARE_PAC_MAIN_FUNCTION;
-            } else if (isJsFunctionAvailable(scriptEngine, STANDARD_PAC_MAIN_FUNCTION)) {
-                jsMainFunction = STANDARD_PAC_MAIN_FUNCTION;
-            } else {
-                throw new PacFileException("Function " + STANDARD_PAC_MAIN_FUNCTION +
-                        " or " + IPV6_AWARE_PAC_MAIN_FUNCTION + " not found in PAC Script.");
+            String jsMainFunction;
+            GraalJSScriptEngine scriptEngine = enginePool.borrowObject();
+            try {
+                if (isJsFunctionAvailable(scriptEngine, IPV6_AWARE_PAC_MAIN_FUNCTION)) {
+                    jsMainFunction = IPV6_AWARE_PAC_MAIN_FUNCTION;
+                } else if (isJsFunctionAvailable(scriptEngine, STANDARD_PAC_MAIN_FUNCTION)) {
+                    jsMainFunction = STANDARD_PAC_MAIN_FUNCTION;
+                } else {
+                    throw new PacFileException("Function " + STANDARD_PAC_MAIN_FUNCTION +
+                            " or " + IPV6_AWARE_PAC_MAIN_FUNCTION + " not found in PAC Script.");
+                }
+            } finally {
+                enginePool.returnObject(scriptEngine);
+            }
+            int globCount = 0;
+            for (Matcher matcher = SH_EXP_MATCH_CALL.matcher(content); matcher.find(); ) {
+                globCount++;
+            }
+            logger.debug("The PAC script has {} shExpMatch calls", globCount);
+            globPatternMatcher.setExpectedGlobCount(globCount);
+            PacDecisionTree decisionTree = null;
+            if (systemConfig.isPacFastPath() && STANDARD_PAC_MAIN_FUNCTION.equals(jsMainFunction)) {
+                decisionTree = PacScriptCompiler.compile(content, pacHelperMethods);
+                if (decisionTree != null) {
+                    logger.info("The PAC script is compiled into a decision tree ({} rules indexed)",
+                            decisionTree.getIndexedRuleCount());
+                }
+            }
+            return new LoadedScript(enginePool, jsMainFunction, decisionTree, scriptGenerations.incrementAndGet());
+        } catch (Exception e) {
+            enginePool.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether the PAC file has changed and if so, load it and swap it in.
+     * <p>The in-flight calls finish with the previous script, whose engines are released afterwards.
+     * If the new script cannot be loaded, the previous one is kept.
+     *
+     * @return {@code true} iff the PAC script has been reloaded.
+     */
+    public boolean reloadIfChanged() {
+        synchronized (loadLock) {
+            LoadedScript previous = loadedScript;
+            if (previous == null) {
+                return false;
+            }
+            lastReloadCheck = Instant.now();
+            long start = System.nanoTime();
+            try {
+                String content = pacFileFetcher.fetchIfChanged(getReloadTimeout());
+                if (content == null) {
+                    return false;
+                }
+                loadedScript = load(content);
+                previous.retire();
+                clearDecisionCache();
+                httpClientBuilderFactory.clearHttpClients();
+                reloads.increment();
+                setReloadStatus("RELOADED", null, start);
+                logger.info("The PAC script has been reloaded in {} ms", lastReloadMillis);
+                return true;
+            } catch (Exception e) {
+                logger.warn("Cannot reload the PAC script, the previous one is kept", e);
+                reloadFailures.increment();
+                setReloadStatus("FAILED", e.getMessage(), start);
+                return false;
             }
-        } finally {
-            enginePoolSingletonSupplier.get().returnObject(scriptEngine);
         }
     }
 
+    private void setReloadStatus(String status, String error, long start) {
+        lastReloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastReload = Instant.now();
+        lastReloadStatus = status;
+        lastReloadError = error;
+    }
+
+    /**
+     * Poll the PAC file, every {@link SystemConfig#getPacReloadInterval()} seconds while the PAC script is loaded.
+     */
+    void checkForChange() {
+        try {
+            reloadIfChanged();
+        } catch (Exception e) {
+            // Keep polling
+            logger.warn("Error on checking the PAC file for changes", e);
+        }
+    }
+
+    /**
+     * @return the connect and read timeout of a reload (milliseconds): the socket connect timeout,
+     * but no longer than the reload interval.
+     */
+    private int getReloadTimeout() {
+        int interval = systemConfig.getPacReloadInterval();
+        int timeout = systemConfig.getSocketConnectTimeout();
+        return (interval > 0 ? Math.min(timeout, interval) : timeout) * 1000;
+    }
+
+    /**
+     * @return the last reload's status, latency (milliseconds) and time, with the reload counters.
+     */
+    public Map<String, Object> getReloadStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("lastCheck", Objects.toString(lastReloadCheck, null));
+        status.put("lastReload", Objects.toString(lastReload, null));
+        status.put("status", lastReloadStatus);
+        status.put("error", lastReloadError);
+        status.put("latency", lastReloadMillis);
+        status.put("reloads", reloads.sum());
+        status.put("failures", reloadFailures.sum());
+        return status;
+    }
+
     private boolean isJsFunctionAvailable(GraalJSScriptEngine eng, String functionName) {
         // We want to test if the function is there, but without actually
         // invoking it.
@@ -178,24 +424,54 @@ public class PacScriptEvaluator implements ProxyListener {
     }
 
     /**
-     * Load and parse the PAC script file.
-     *
-     * @return the {@link PacScriptEvaluator} instance.
-     * @throws IOException
+     * Create the pool of engines evaluating a PAC script.
+     * <p>Since the Graaljs {@link Context} is not thread safe, we maintain a pool of {@link GraalJSScriptEngine} instances:
+     * <ul>
+     * <li>by default, a {@link GenericObjectPool} growing on demand up to
+     * {@link SystemConfig#getPacScriptEnginePoolMaxTotal()} engines,</li>
+     * <li>when {@link SystemConfig#isPacScriptEngineShared()} is {@code true}, a {@link HandoffObjectPool}
+     * of a few engines shared by all the threads, trading some waiting under contention for much less memory.</li>
+     * </ul>
      */
-    private String loadScript() throws IOException {
-        URL url = proxyConfig.getProxyPacFileLocationAsURL();
-        Assert.state(url != null, "No proxy PAC file location found");
-        logger.info("Get PAC file from: {}", url);
-        try (InputStream inputStream = url.openStream()) {
-            String content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
-            logger.info("PAC content: {}", content);
-            return content;
+    private ObjectPool<GraalJSScriptEngine> createEnginePool(Source pacSource) throws Exception {
+        BasePooledObjectFactory<GraalJSScriptEngine> engineFactory = new BasePooledObjectFactory<GraalJSScriptEngine>() {
+            @Override
+            public GraalJSScriptEngine create() throws PacFileException {
+                return createScriptEngine(pacSource);
+            }
+
+            @Override
+            public PooledObject<GraalJSScriptEngine> wrap(GraalJSScriptEngine obj) {
+                return new DefaultPooledObject<>(obj);
+            }
+
+            @Override
+            public void destroyObject(PooledObject<GraalJSScriptEngine> p) {
+                p.getObject().close();
+            }
+        };
+        if (systemConfig.isPacScriptEngineShared()) {
+            int size = systemConfig.getPacScriptEngineSharedSize() > 0 ? systemConfig.getPacScriptEngineSharedSize() :
+                    Runtime.getRuntime().availableProcessors();
+            logger.debug("Create {} shared script engines", size);
+            return new HandoffObjectPool<>(engineFactory, size);
         }
+        GenericObjectPoolConfig<GraalJSScriptEngine> config = new GenericObjectPoolConfig<>();
+        config.setMaxTotal(systemConfig.getPacScriptEnginePoolMaxTotal());
+        config.setMinIdle(systemConfig.getPacScriptEnginePoolMinIdle());
+        config.setTestOnBorrow(false);
+        config.setTestOnCreate(false);
+        config.setTestOnReturn(false);
+        config.setBlockWhenExhausted(true);
+        return new GenericObjectPool<>(engineFactory, config);
     }
 
-    private GraalJSScriptEngine createScriptEngine() throws PacFileException, IOException {
-        String pacSource = loadScript();
+    /**
+     * Create an engine having evaluated the PAC script.
+     * <p>The same cached {@link Source} being evaluated by every pooled context of the shared {@link Engine},
+     * the script is parsed only once.
+     */
+    private GraalJSScriptEngine createScriptEngine(Source pacSource) throws PacFileException {
         try {
             GraalJSScriptEngine scriptEngine = GraalJSScriptEngine.create(engineSingletonSupplier.get(),
                     Context.newBuilder("js")
@@ -217,35 +493,16 @@ public class PacScriptEvaluator implements ProxyListener {
                             + "WeakSet,Symbol,Reflect,Proxy,Promise,SharedArrayBuffer,"
                             + "Atomics,console,performance,"
                             + "arguments").split(",");
-            Object cleaner = scriptEngine.eval("(function(allowed) {\n"
-                    + "   var names = Object.getOwnPropertyNames(this);\n"
-                    + "   MAIN: for (var i = 0; i < names.length; i++) {\n"
-                    + "     for (var j = 0; j < allowed.length; j++) {\n"
-                    + "       if (names[i] === allowed[j]) {\n"
-                    + "         continue MAIN;\n"
-                    + "       }\n"
-                    + "     }\n"
-                    + "     delete this[names[i]];\n"
-                    + "   }\n"
-                    + "})");
-            try {
-                scriptEngine.invokeMethod(cleaner, "call", null, allowedGlobals);
-            } catch (NoSuchMethodException ex) {
-                throw new ScriptException(ex);
-            }
+            Context context = scriptEngine.getPolyglotContext();
+            context.eval(GLOBALS_CLEANER).execute((Object) allowedGlobals);
 
             // Execute the PAC javascript file
-            scriptEngine.eval(pacSource);
+            context.eval(pacSource);
 
             // Load the Javascript file helper
-            try {
-                scriptEngine.invokeMethod(scriptEngine.eval(helperJSScriptSupplier.get()),
-                        "call", null, pacHelperMethods);
-            } catch (NoSuchMethodException ex) {
-                throw new ScriptException(ex);
-            }
+            context.eval(helperJSScriptSupplier.get()).invokeMember("call", null, pacHelperMethods);
             return scriptEngine;
-        } catch (ScriptException e) {
+        } catch (PolyglotException e) {
             throw new PacFileException(e);
         }
     }
@@ -255,6 +512,9 @@ public class PacScriptEvaluator implements ProxyListener {
      * Call the JavaScript {@code FindProxyForURL(url, host)}
      * function in the PAC script (or alternatively the
      * {@code FindProxyForURLEx(url, host)} function).
+     * <p>The decision is cached for {@link SystemConfig#getCachePacDecisionTtl()} seconds,
+     * the blacklisted proxies being filtered out on each call. A cached decision is only used
+     * with the PAC script that made it.
      *
      * @param uri URI to get proxies for.
      * @return The non-blacklisted proxies {@link ProxyInfo} list.
@@ -263,29 +523,325 @@ public class PacScriptEvaluator implements ProxyListener {
      * @throws IOException        when the PAC file cannot be loaded.
      */
     public List<ProxyInfo> findProxyForURL(URI uri) throws Exception {
-        GraalJSScriptEngine scriptEngine = enginePoolSingletonSupplier.get().borrowObject();
+        PacEvaluatedEvent event = new PacEvaluatedEvent();
+        event.begin();
+        String strippedUrl = HttpUtils.toStrippedURLStr(uri);
+        List<ProxyInfo> proxyInfos = null;
+        boolean cached = false;
+        LoadedScript script = acquireLoadedScript();
         try {
-            Object callResult;
-            try {
-                callResult = scriptEngine.invokeFunction(jsMainFunction,
-                        HttpUtils.toStrippedURLStr(uri), uri.getHost());
-            } finally {
-                // Make sure we return the PacScriptEngine instance back to the pool
-                enginePoolSingletonSupplier.get().returnObject(scriptEngine);
+            Cache<String, CachedDecision> decisionCache = null;
+            CachedDecision cachedDecision = null;
+            if (systemConfig.getCachePacDecisionTtl() > 0) {
+                decisionCache = decisionCacheSupplier.get();
+                cachedDecision = decisionCache.peek(strippedUrl);
+                if (cachedDecision != null && cachedDecision.generation == script.generation) {
+                    decisionCacheHits.increment();
+                    proxyInfos = cachedDecision.proxyInfos;
+                    cached = true;
+                } else {
+                    decisionCacheMisses.increment();
+                }
+            }
+            if (proxyInfos == null) {
+                proxyInfos = callFindProxyForURL(script, strippedUrl, uri);
+                if (proxyInfos == null) {
+                    // Not cached, the next call gives the script another chance
+                    String proxyLine = systemConfig.getPacEvaluationFallback();
+                    logger.warn("The PAC script function {} timed out for uri [{}], use [{}]",
+                            script.jsMainFunction, uri, proxyLine);
+                    proxyInfos = HttpUtils.parsePacProxyLine(proxyLine, proxyInfo -> true);
+                } else if (decisionCache != null) {
+                    cache(decisionCache, strippedUrl, cachedDecision,
+                            new CachedDecision(proxyInfos, script.generation));
+                }
+            }
+        } finally {
+            script.release();
+        }
+        event.emit(uri.getHost(), proxyInfos, cached);
+        return filterActive(proxyInfos);
+    }
+
+    /**
+     * @param previous the entry found on lookup, made by a previous script, or {@code null}
+     */
+    private void cache(Cache<String, CachedDecision> decisionCache, String strippedUrl,
+                       CachedDecision previous, CachedDecision decision) {
+        // A decision of the previous script, put after the cache was cleared on reload, is replaced
+        if (previous != null) {
+            if (decisionCache.replaceIfEquals(strippedUrl, previous, decision)) {
+                decisionCacheInvalidated.increment();
+                decisionCachePuts.increment();
+            }
+        } else if (decisionCache.putIfAbsent(strippedUrl, decision)) {
+            decisionCachePuts.increment();
+        }
+    }
+
+    /**
+     * @return the proxies returned by the PAC script function,
+     * or {@code null} when the call has been cancelled for lasting too long.
+     */
+    private List<ProxyInfo> callFindProxyForURL(LoadedScript script, String strippedUrl, URI uri)
+            throws Exception {
+        long start = System.nanoTime();
+        try {
+            PacDecisionTree tree = script.decisionTree;
+            String proxyLine;
+            if (tree != null) {
+                proxyLine = tree.findProxyForURL(strippedUrl, uri.getHost());
+            } else {
+                try {
+                    proxyLine = invoke(script, strippedUrl, uri.getHost());
+                } catch (TimeoutException e) {
+                    proxyMetrics.pacEvaluationTime(false, System.nanoTime() - start);
+                    return null;
+                }
             }
-            String proxyLine = Objects.toString(callResult, null);
+            proxyMetrics.pacEvaluationTime(tree != null, System.nanoTime() - start);
             logger.debug("Parse proxyLine [{}] for uri [{}]", proxyLine, uri);
-            return HttpUtils.parsePacProxyLine(proxyLine, proxyBlacklist::isActive);
+            return HttpUtils.parsePacProxyLine(proxyLine, proxyInfo -> true);
         } catch (Exception ex) {
-            throw new PacScriptException("Error when executing PAC script function: " + jsMainFunction, ex);
+            throw new PacScriptException("Error when executing PAC script function: " + script.jsMainFunction, ex);
         }
     }
 
+    /**
+     * Call the PAC script function through the JavaScript engine.
+     *
+     * @param url  the URL.
+     * @param host the host.
+     * @return the proxy line.
+     * @throws Exception when the call fails.
+     */
+    String invokeScript(String url, String host) throws Exception {
+        LoadedScript script = acquireLoadedScript();
+        try {
+            return invoke(script, url, host);
+        } finally {
+            script.release();
+        }
+    }
+
+    /**
+     * Call the PAC script function on a pooled engine, under the watchdog: when the call lasts more than
+     * {@link SystemConfig#getPacEvaluationTimeout()} milliseconds (an infinite loop, a catastrophic regex etc.)
+     * the engine's context is cancelled and the engine replaced by a new one.
+     *
+     * @throws TimeoutException when the call has been cancelled.
+     */
+    private String invoke(LoadedScript script, String url, String host) throws Exception {
+        GraalJSScriptEngine scriptEngine = script.enginePool.borrowObject();
+        int timeout = systemConfig.getPacEvaluationTimeout();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ScheduledFuture<?> watchdog = timeout > 0 ? watchdogSupplier.get().schedule(() -> {
+            cancelled.set(true);
+            try {
+                scriptEngine.getPolyglotContext().close(true);
+            } catch (Exception e) {
+                logger.debug("Error on cancelling the PAC script call", e);
+            }
+        }, timeout, TimeUnit.MILLISECONDS) : null;
+        boolean poisoned = false;
+        try {
+            String proxyLine = Objects.toString(scriptEngine.invokeFunction(script.jsMainFunction, url, host), null);
+            // Too late to cancel it, the context is closed or about to be
+            poisoned = watchdog != null && !watchdog.cancel(false);
+            return proxyLine;
+        } catch (Exception e) {
+            poisoned = cancelled.get() || (watchdog != null && !watchdog.cancel(false));
+            if (cancelled.get()) {
+                evaluationTimeouts.increment();
+                throw new TimeoutException("The PAC script call has been cancelled after " + timeout + " ms");
+            }
+            throw e;
+        } finally {
+            if (poisoned) {
+                recycledEngines.increment();
+                try {
+                    script.enginePool.invalidateObject(scriptEngine);
+                } catch (Exception e) {
+                    // Do not hide the call's outcome
+                    logger.warn("Error on replacing the cancelled PAC script engine", e);
+                }
+            } else {
+                // Make sure we return the PacScriptEngine instance back to the pool
+                script.enginePool.returnObject(scriptEngine);
+            }
+        }
+    }
+
+    /**
+     * @return the number of PAC script calls cancelled for lasting too long and of engines replaced.
+     */
+    public Map<String, Object> getEvaluationStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("timeouts", evaluationTimeouts.sum());
+        stats.put("recycledEngines", recycledEngines.sum());
+        return stats;
+    }
+
+    /**
+     * @return the current PAC script, to be released after use.
+     */
+    private LoadedScript acquireLoadedScript() {
+        while (true) {
+            LoadedScript script = loadedScript;
+            Assert.state(script != null, "The PAC script is not loaded");
+            if (script.acquire()) {
+                return script;
+            }
+            // Just swapped, take the new one
+        }
+    }
+
+    /**
+     * @return the compiled PAC script or {@code null} when evaluated by the JavaScript engine.
+     */
+    PacDecisionTree getDecisionTree() {
+        LoadedScript script = loadedScript;
+        return script != null ? script.decisionTree : null;
+    }
+
+    private List<ProxyInfo> filterActive(List<ProxyInfo> proxyInfos) {
+        return proxyInfos.stream().filter(proxyInfo -> {
+            if (proxyInfo.getType().isDirect() || proxyBlacklist.isActive(proxyInfo)) {
+                return true;
+            }
+            logger.debug("Ignore blacklisted proxy {}", proxyInfo);
+            return false;
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Drop the cached decisions, for instance when the PAC script changes.
+     */
+    public void clearDecisionCache() {
+        decisionCacheSupplier.value().ifPresent(cache -> {
+            decisionCacheInvalidated.add(cache.asMap().size());
+            cache.removeAll();
+        });
+    }
+
+    /**
+     * @return the decision cache counters.
+     */
+    public Map<String, Object> getDecisionCacheStats() {
+        long size = decisionCacheSupplier.value().map(cache -> cache.asMap().size()).orElse(0);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("hits", decisionCacheHits.sum());
+        stats.put("misses", decisionCacheMisses.sum());
+        stats.put("expired", decisionCacheExpired.sum());
+        // Whatever was put and is neither present, expired nor invalidated, was evicted for capacity
+        stats.put("evicted", Math.max(0, decisionCachePuts.sum() - size
+                - decisionCacheExpired.sum() - decisionCacheInvalidated.sum()));
+        return stats;
+    }
+
     @Override
     public void onStop() {
-        logger.debug("Reset the scriptEngineSupplier");
-        enginePoolSingletonSupplier.reset();
-        jsMainFunction = null;
+        logger.debug("Unload the PAC script");
+        synchronized (loadLock) {
+            LoadedScript script = loadedScript;
+            loadedScript = null;
+            pacFileFetcher = null;
+            if (reloadTask != null) {
+                reloadTask.cancel(false);
+                reloadTask = null;
+            }
+            if (script != null) {
+                script.retire();
+            }
+        }
+        clearDecisionCache();
+        decisionCacheSupplier.reset(Cache::close);
+        // The pending watchdogs still run, the in-flight calls cannot be left uncancelled
+        watchdogSupplier.reset(ScheduledExecutorService::shutdown);
+        reloaderSupplier.reset(ScheduledExecutorService::shutdownNow);
+    }
+
+    /**
+     * The proxies returned by a PAC script, tagged with the script's generation.
+     */
+    private static final class CachedDecision {
+
+        private final List<ProxyInfo> proxyInfos;
+
+        private final long generation;
+
+        private CachedDecision(List<ProxyInfo> proxyInfos, long generation) {
+            this.proxyInfos = proxyInfos;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A loaded PAC script with its engine pool, swapped as a whole on reload.
+     * <p>Once retired, the engine pool is closed when the last in-flight call is done.
+     */
+    private static final class LoadedScript {
+
+        private final ObjectPool<GraalJSScriptEngine> enginePool;
+
+        private final String jsMainFunction;
+
+        /**
+         * The PAC script compiled by {@link PacScriptCompiler}, {@code null} when evaluated by the JavaScript engine.
+         */
+        private final PacDecisionTree decisionTree;
+
+        /**
+         * Tags the decisions of this script in the decision cache.
+         */
+        private final long generation;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private volatile boolean retired;
+
+        private LoadedScript(ObjectPool<GraalJSScriptEngine> enginePool, String jsMainFunction,
+                             PacDecisionTree decisionTree, long generation) {
+            this.enginePool = enginePool;
+            this.jsMainFunction = jsMainFunction;
+            this.decisionTree = decisionTree;
+            this.generation = generation;
+        }
+
+        /**
+         * @return {@code false} if retired.
+         */
+        private boolean acquire() {
+            inFlight.incrementAndGet();
+            if (retired) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        private void release() {
+            if (inFlight.decrementAndGet() == 0 && retired) {
+                close();
+            }
+        }
+
+        private void retire() {
+            retired = true;
+            if (inFlight.get() == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                logger.debug("Close the engine pool of the retired PAC script");
+                enginePool.close();
+            }
+        }
     }
 
 }
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.compiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces a run of {@code if (<host tests>) return "<proxy line>";} rules, finding the first matching rule
+ * with a few lookups instead of testing the rules one by one:
+ * <ul>
+ * <li>the exact host names in a hash map,</li>
+ * <li>the {@code shExpMatch(host, "*suffix")} suffixes in a trie of the reversed host,</li>
+ * <li>the {@code dnsDomainIs(host, domain)} domains in a hash map, looked up with the host without its first label
+ * (with and without the leading dot), which is how
+ * {@link org.kpax.winfoom.pac.DefaultPacHelperMethods#dnsDomainIs(String, String)} compares them.</li>
+ * </ul>
+ *
+ * @author Eugen Covaci
+ */
+final class HostIndex implements PacDecisionTree.Statement {
+
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    private final int slot;
+
+    private final String[] proxyLines;
+
+    private final Map<String, Integer> exactHosts = new HashMap<>();
+
+    private final Map<String, Integer> domains = new HashMap<>();
+
+    private final TrieNode suffixes = new TrieNode();
+
+    private int plainHostRule = NO_RULE;
+
+    /**
+     * @param slot       the frame slot of the tested variable.
+     * @param rules      the tests of each rule, in the script's order.
+     * @param proxyLines the proxy line returned by each rule.
+     */
+    HostIndex(int slot, List<List<PacDecisionTree.HostTest>> rules, List<String> proxyLines) {
+        this.slot = slot;
+        this.proxyLines = proxyLines.toArray(new String[0]);
+        for (int rule = rules.size() - 1; rule >= 0; rule--) {
+            // Going backwards, so the first rule wins
+            for (PacDecisionTree.HostTest hostTest : rules.get(rule)) {
+                switch (hostTest.kind) {
+                    case PLAIN:
+                        plainHostRule = rule;
+                        break;
+                    case EQUALS:
+                        exactHosts.put(hostTest.literal, rule);
+                        break;
+                    case ENDS_WITH:
+                        suffixes.add(hostTest.literal, rule);
+                        break;
+                    case DOMAIN:
+                        domains.put(hostTest.literal, rule);
+                        break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String execute(String[] frame) {
+        int rule = findRule(frame[slot]);
+        return rule != NO_RULE ? proxyLines[rule] : null;
+    }
+
+    private int findRule(String host) {
+        int rule = suffixes.find(host);
+        if (host.indexOf('.') < 0) {
+            rule = Math.min(rule, plainHostRule);
+        }
+        rule = Math.min(rule, exactHosts.getOrDefault(host, NO_RULE));
+        if (!domains.isEmpty()) {
+            int dotPos = host.indexOf('.');
+            if (dotPos != -1 && dotPos < host.length() - 1) {
+                rule = Math.min(rule, domains.getOrDefault(host.substring(dotPos), NO_RULE));
+                rule = Math.min(rule, domains.getOrDefault(host.substring(dotPos + 1), NO_RULE));
+            }
+        }
+        return rule;
+    }
+
+    /**
+     * A trie node keyed by the characters of the reversed suffixes.
+     */
+    private static final class TrieNode {
+
+        private char[] labels = new char[0];
+
+        private TrieNode[] children = new TrieNode[0];
+
+        private int rule = NO_RULE;
+
+        private void add(String suffix, int rule) {
+            TrieNode node = this;
+            for (int i = suffix.length() - 1; i >= 0; i--) {
+                node = node.getOrCreateChild(suffix.charAt(i));
+            }
+            node.rule = Math.min(node.rule, rule);
+        }
+
+        /**
+         * @return the first rule whose suffix ends the host.
+         */
+        private int find(String host) {
+            int found = rule;
+            TrieNode node = this;
+            for (int i = host.length() - 1; i >= 0 && node != null; i--) {
+                node = node.getChild(host.charAt(i));
+                if (node != null) {
+                    found = Math.min(found, node.rule);
+                }
+            }
+            return found;
+        }
+
+        private TrieNode getChild(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private TrieNode getOrCreateChild(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -index - 1;
+            char[] newLabels = new char[labels.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(labels, insertAt, newLabels, insertAt + 1, labels.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            newLabels[insertAt] = label;
+            newChildren[insertAt] = new TrieNode();
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.compiler;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.List;
+
+/**
+ * A PAC script's {@code FindProxyForURL(url, host)} function compiled by {@link PacScriptCompiler}.
+ * <p>The helper functions are called on the same {@link org.kpax.winfoom.pac.PacHelperMethodsNetscape}
+ * instance as the JavaScript engine, so both give the same decision.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class PacDecisionTree {
+
+    /**
+     * The frame slot of the {@code url} parameter.
+     */
+    static final int URL_SLOT = 0;
+
+    /**
+     * The frame slot of the {@code host} parameter.
+     */
+    static final int HOST_SLOT = 1;
+
+    private final Statement body;
+
+    private final int slotCount;
+
+    private final int indexedRuleCount;
+
+    PacDecisionTree(Statement body, int slotCount, int indexedRuleCount) {
+        this.body = body;
+        this.slotCount = slotCount;
+        this.indexedRuleCount = indexedRuleCount;
+    }
+
+    /**
+     * Evaluate the compiled function.
+     *
+     * @param url  the URL.
+     * @param host the host.
+     * @return the proxy line or {@code null} if the function returns nothing.
+     */
+    public String findProxyForURL(String url, String host) {
+        String[] frame = new String[slotCount];
+        frame[URL_SLOT] = url;
+        frame[HOST_SLOT] = host;
+        return body.execute(frame);
+    }
+
+    /**
+     * @return the number of rules matched through a host index instead of one by one.
+     */
+    public int getIndexedRuleCount() {
+        return indexedRuleCount;
+    }
+
+    /**
+     * A statement of the function body.
+     */
+    interface Statement {
+
+        /**
+         * @param frame the values of the parameters and the local variables.
+         * @return the returned proxy line or {@code null} if the execution continues with the next statement.
+         */
+        String execute(String[] frame);
+    }
+
+    /**
+     * A boolean expression.
+     */
+    interface Condition {
+        boolean test(String[] frame);
+    }
+
+    /**
+     * A string expression.
+     */
+    interface StringExpression {
+        String evaluate(String[] frame);
+    }
+
+    /**
+     * A number expression (the PAC subset only deals with integers).
+     */
+    interface NumberExpression {
+        int evaluate(String[] frame);
+    }
+
+    static final class Block implements Statement {
+
+        final Statement[] statements;
+
+        Block(List<Statement> statements) {
+            this.statements = statements.toArray(new Statement[0]);
+        }
+
+        @Override
+        public String execute(String[] frame) {
+            for (Statement statement : statements) {
+                String result = statement.execute(frame);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class If implements Statement {
+
+        final Condition condition;
+
+        final Statement then;
+
+        final Statement otherwise;
+
+        If(Condition condition, Statement then, Statement otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        public String execute(String[] frame) {
+            if (condition.test(frame)) {
+                return then.execute(frame);
+            }
+            return otherwise != null ? otherwise.execute(frame) : null;
+        }
+    }
+
+    static final class Return implements Statement {
+
+        final String value;
+
+        Return(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String execute(String[] frame) {
+            return value;
+        }
+    }
+
+    static final class Assign implements Statement {
+
+        final int slot;
+
+        final StringExpression expression;
+
+        Assign(int slot, StringExpression expression) {
+            this.slot = slot;
+            this.expression = expression;
+        }
+
+        @Override
+        public String execute(String[] frame) {
+            frame[slot] = expression.evaluate(frame);
+            return null;
+        }
+    }
+
+    static final class Or implements Condition {
+
+        final Condition left;
+
+        final Condition right;
+
+        Or(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(String[] frame) {
+            return left.test(frame) || right.test(frame);
+        }
+    }
+
+    /**
+     * A test on a variable against a string literal that can be answered by a {@link HostIndex}.
+     */
+    static final class HostTest implements Condition {
+
+        enum Kind {
+            /**
+             * {@code isPlainHostName(host)}
+             */
+            PLAIN,
+            /**
+             * {@code host == "literal"} or {@code shExpMatch(host, "literal")}
+             */
+            EQUALS,
+            /**
+             * {@code shExpMatch(host, "*literal")}
+             */
+            ENDS_WITH,
+            /**
+             * {@code dnsDomainIs(host, "literal")}
+             */
+            DOMAIN
+        }
+
+        final Kind kind;
+
+        final int slot;
+
+        final String literal;
+
+        /**
+         * The same test through the helper function.
+         */
+        final Condition delegate;
+
+        HostTest(Kind kind, int slot, String literal, Condition delegate) {
+            this.kind = kind;
+            this.slot = slot;
+            this.literal = literal;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean test(String[] frame) {
+            return delegate.test(frame);
+        }
+    }
+
+}
@@ -0,0 +1,802 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.compiler;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.pac.PacHelperMethodsNetscape;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree.Condition;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree.HostTest;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree.NumberExpression;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree.Statement;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree.StringExpression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compiles the PAC scripts made of the commonly used constructs into a {@link PacDecisionTree}.
+ * <p>The supported subset is a single {@code FindProxyForURL(url, host)} function whose body contains:
+ * <ul>
+ * <li>{@code if}/{@code else} statements, blocks, {@code var} declarations (at the function's top level)
+ * and assignments of string expressions, {@code return} of string literals,</li>
+ * <li>the {@code !}, {@code &&}, {@code ||}, {@code ==}, {@code ===}, {@code !=}, {@code !==} operators
+ * and the {@code <}, {@code <=}, {@code >}, {@code >=} operators on numbers,</li>
+ * <li>the {@code isPlainHostName}, {@code dnsDomainIs}, {@code localHostOrDomainIs}, {@code isResolvable},
+ * {@code isInNet}, {@code shExpMatch}, {@code dnsDomainLevels}, {@code dnsResolve} and {@code myIpAddress}
+ * helper functions,</li>
+ * <li>the {@code substring}, {@code toLowerCase} and {@code toUpperCase} string methods.</li>
+ * </ul>
+ * Any other construct makes the compilation fail, the script being left to the JavaScript engine.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+public final class PacScriptCompiler {
+
+    private static final String MAIN_FUNCTION = "FindProxyForURL";
+
+    private static final Set<String> RESERVED_WORDS = new HashSet<>(Arrays.asList(
+            "break", "case", "catch", "class", "const", "continue", "debugger", "default", "delete", "do",
+            "else", "export", "extends", "false", "finally", "for", "function", "if", "import", "in",
+            "instanceof", "let", "new", "null", "return", "super", "switch", "this", "throw", "true",
+            "try", "typeof", "undefined", "var", "void", "while", "with", "yield"));
+
+    /**
+     * The only characters allowed in a {@code shExpMatch} literal for it to be indexed:
+     * they must have no meaning both in a glob and in a regex.
+     */
+    private static final String LITERAL_GLOB_CHARS =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.-_:";
+
+    private PacScriptCompiler() {
+    }
+
+    /**
+     * Compile a PAC script.
+     *
+     * @param script        the PAC script.
+     * @param helperMethods the helper functions, the same ones the JavaScript engine calls.
+     * @return the {@link PacDecisionTree} or {@code null} if the script is outside the supported subset.
+     */
+    public static PacDecisionTree compile(@NotNull final String script,
+                                          @NotNull final PacHelperMethodsNetscape helperMethods) {
+        try {
+            return new Parser(tokenize(script), helperMethods).parseScript();
+        } catch (UnsupportedScriptException e) {
+            logger.info("The PAC script cannot be compiled, use the JavaScript engine: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    static List<Token> tokenize(String script) throws UnsupportedScriptException {
+        List<Token> tokens = new ArrayList<>();
+        int pos = 0;
+        int length = script.length();
+        boolean newline = false;
+        while (pos < length) {
+            char c = script.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                newline |= c == '\n' || c == '\r';
+                pos++;
+                continue;
+            } else if (script.startsWith("//", pos)) {
+                int end = script.indexOf('\n', pos);
+                pos = end < 0 ? length : end;
+                continue;
+            } else if (script.startsWith("/*", pos)) {
+                int end = script.indexOf("*/", pos + 2);
+                if (end < 0) {
+                    throw new UnsupportedScriptException("Unterminated comment at " + pos);
+                }
+                newline |= script.substring(pos, end).indexOf('\n') >= 0;
+                pos = end + 2;
+                continue;
+            } else if (Character.isJavaIdentifierStart(c) && c != '\\') {
+                int start = pos;
+                while (pos < length && Character.isJavaIdentifierPart(script.charAt(pos))
+                        && script.charAt(pos) != '\\') {
+                    pos++;
+                }
+                tokens.add(new Token(TokenType.IDENTIFIER, script.substring(start, pos), start, newline));
+            } else if (c >= '0' && c <= '9') {
+                int start = pos;
+                while (pos < length && script.charAt(pos) >= '0' && script.charAt(pos) <= '9') {
+                    pos++;
+                }
+                // No decimals, no exponent, no octal literal and no overflow
+                if (pos < length && (Character.isJavaIdentifierPart(script.charAt(pos))
+                        || script.charAt(pos) == '.') || (c == '0' && pos - start > 1) || pos - start > 9) {
+                    throw new UnsupportedScriptException("Unsupported number at " + start);
+                }
+                tokens.add(new Token(TokenType.NUMBER, script.substring(start, pos), start, newline));
+            } else if (c == '"' || c == '\'') {
+                int start = pos++;
+                StringBuilder value = new StringBuilder();
+                while (true) {
+                    if (pos >= length || script.charAt(pos) == '\n') {
+                        throw new UnsupportedScriptException("Unterminated string at " + start);
+                    }
+                    char s = script.charAt(pos++);
+                    if (s == c) {
+                        break;
+                    } else if (s == '\\') {
+                        if (pos >= length) {
+                            throw new UnsupportedScriptException("Unterminated string at " + start);
+                        }
+                        char escaped = script.charAt(pos++);
+                        switch (escaped) {
+                            case '\\':
+                            case '\'':
+                            case '"':
+                                value.append(escaped);
+                                break;
+                            case 'n':
+                                value.append('\n');
+                                break;
+                            case 't':
+                                value.append('\t');
+                                break;
+                            default:
+                                throw new UnsupportedScriptException("Unsupported escape sequence at " + (pos - 2));
+                        }
+                    } else {
+                        value.append(s);
+                    }
+                }
+                tokens.add(new Token(TokenType.STRING, value.toString(), start, newline));
+            } else {
+                String punctuator = null;
+                for (String candidate : Token.PUNCTUATORS) {
+                    if (script.startsWith(candidate, pos)) {
+                        punctuator = candidate;
+                        break;
+                    }
+                }
+                if (punctuator == null) {
+                    throw new UnsupportedScriptException("Unsupported character '" + c + "' at " + pos);
+                }
+                tokens.add(new Token(TokenType.PUNCTUATOR, punctuator, pos, newline));
+                pos += punctuator.length();
+            }
+            newline = false;
+        }
+        tokens.add(new Token(TokenType.END, "", length, newline));
+        return tokens;
+    }
+
+    enum TokenType {
+        IDENTIFIER, NUMBER, STRING, PUNCTUATOR, END
+    }
+
+    static final class Token {
+
+        /**
+         * The longest first.
+         */
+        private static final String[] PUNCTUATORS = {"===", "!==", "==", "!=", "<=", ">=", "&&", "||",
+                "(", ")", "{", "}", ";", ",", ".", "!", "<", ">", "=", "+"};
+
+        final TokenType type;
+
+        final String text;
+
+        final int pos;
+
+        /**
+         * Whether a line terminator precedes the token, which matters for the automatic semicolon insertion.
+         */
+        final boolean newlineBefore;
+
+        Token(TokenType type, String text, int pos, boolean newlineBefore) {
+            this.type = type;
+            this.text = text;
+            this.pos = pos;
+            this.newlineBefore = newlineBefore;
+        }
+
+        boolean is(TokenType type, String text) {
+            return this.type == type && this.text.equals(text);
+        }
+
+        @Override
+        public String toString() {
+            return type == TokenType.END ? "end of script" : "'" + text + "' at " + pos;
+        }
+    }
+
+    static final class UnsupportedScriptException extends Exception {
+        UnsupportedScriptException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Parser {
+
+        private final List<Token> tokens;
+
+        private final PacHelperMethodsNetscape helperMethods;
+
+        private final Map<String, Integer> slots = new HashMap<>();
+
+        private int indexedRuleCount;
+
+        private int pos;
+
+        private Parser(List<Token> tokens, PacHelperMethodsNetscape helperMethods) {
+            this.tokens = tokens;
+            this.helperMethods = helperMethods;
+        }
+
+        private PacDecisionTree parseScript() throws UnsupportedScriptException {
+            expect(TokenType.IDENTIFIER, "function");
+            Token name = next();
+            if (!name.is(TokenType.IDENTIFIER, MAIN_FUNCTION)) {
+                throw unsupported(name);
+            }
+            expect(TokenType.PUNCTUATOR, "(");
+            String url = parseNewName();
+            expect(TokenType.PUNCTUATOR, ",");
+            String host = parseNewName();
+            expect(TokenType.PUNCTUATOR, ")");
+            if (url.equals(host)) {
+                throw new UnsupportedScriptException("Duplicate parameter " + host);
+            }
+            slots.put(url, PacDecisionTree.URL_SLOT);
+            slots.put(host, PacDecisionTree.HOST_SLOT);
+            expect(TokenType.PUNCTUATOR, "{");
+            List<Statement> body = new ArrayList<>();
+            while (!peek().is(TokenType.PUNCTUATOR, "}")) {
+                parseStatement(body, true);
+            }
+            expect(TokenType.PUNCTUATOR, "}");
+            if (peek().type != TokenType.END) {
+                throw unsupported(peek());
+            }
+            return new PacDecisionTree(new PacDecisionTree.Block(index(body)), slots.size(), indexedRuleCount);
+        }
+
+        private void parseStatement(List<Statement> statements, boolean topLevel) throws UnsupportedScriptException {
+            Token token = next();
+            if (token.is(TokenType.PUNCTUATOR, ";")) {
+                return;
+            }
+            if (token.is(TokenType.PUNCTUATOR, "{")) {
+                List<Statement> block = new ArrayList<>();
+                while (!peek().is(TokenType.PUNCTUATOR, "}")) {
+                    parseStatement(block, false);
+                }
+                next();
+                statements.add(new PacDecisionTree.Block(index(block)));
+            } else if (token.is(TokenType.IDENTIFIER, "if")) {
+                expect(TokenType.PUNCTUATOR, "(");
+                Condition condition = parseCondition();
+                expect(TokenType.PUNCTUATOR, ")");
+                Statement then = parseSingleStatement();
+                Statement otherwise = null;
+                if (accept(TokenType.IDENTIFIER, "else")) {
+                    otherwise = parseSingleStatement();
+                }
+                statements.add(new PacDecisionTree.If(condition, then, otherwise));
+            } else if (token.is(TokenType.IDENTIFIER, "return")) {
+                Token value = next();
+                // A line terminator after return ends the statement
+                if (value.type != TokenType.STRING || value.newlineBefore) {
+                    throw unsupported(value);
+                }
+                StringBuilder proxyLine = new StringBuilder(value.text);
+                while (accept(TokenType.PUNCTUATOR, "+")) {
+                    value = next();
+                    if (value.type != TokenType.STRING) {
+                        throw unsupported(value);
+                    }
+                    proxyLine.append(value.text);
+                }
+                endStatement();
+                statements.add(new PacDecisionTree.Return(proxyLine.toString()));
+            } else if (token.is(TokenType.IDENTIFIER, "var") && topLevel) {
+                // The variables are only declared at the top level, so they are always assigned before use
+                do {
+                    String name = parseNewName();
+                    expect(TokenType.PUNCTUATOR, "=");
+                    StringExpression expression = toStringExpression(parseOperand());
+                    statements.add(new PacDecisionTree.Assign(slots.computeIfAbsent(name, key -> slots.size()),
+                            expression));
+                } while (accept(TokenType.PUNCTUATOR, ","));
+                endStatement();
+            } else if (token.type == TokenType.IDENTIFIER && slots.containsKey(token.text)
+                    && peek().is(TokenType.PUNCTUATOR, "=")) {
+                next();
+                statements.add(new PacDecisionTree.Assign(slots.get(token.text),
+                        toStringExpression(parseOperand())));
+                endStatement();
+            } else {
+                throw unsupported(token);
+            }
+        }
+
+        private Statement parseSingleStatement() throws UnsupportedScriptException {
+            List<Statement> statements = new ArrayList<>();
+            parseStatement(statements, false);
+            if (statements.size() == 1) {
+                return statements.get(0);
+            }
+            return new PacDecisionTree.Block(statements);
+        }
+
+        private void endStatement() throws UnsupportedScriptException {
+            Token token = peek();
+            if (token.is(TokenType.PUNCTUATOR, ";")) {
+                next();
+            } else if (!token.is(TokenType.PUNCTUATOR, "}")) {
+                throw unsupported(token);
+            }
+        }
+
+        private String parseNewName() throws UnsupportedScriptException {
+            Token token = next();
+            if (token.type != TokenType.IDENTIFIER || RESERVED_WORDS.contains(token.text)
+                    || isHelperFunction(token.text)) {
+                throw unsupported(token);
+            }
+            return token.text;
+        }
+
+        private Condition parseCondition() throws UnsupportedScriptException {
+            Condition condition = parseAnd();
+            while (accept(TokenType.PUNCTUATOR, "||")) {
+                condition = new PacDecisionTree.Or(condition, parseAnd());
+            }
+            return condition;
+        }
+
+        private Condition parseAnd() throws UnsupportedScriptException {
+            Condition condition = parseUnary();
+            while (accept(TokenType.PUNCTUATOR, "&&")) {
+                Condition left = condition;
+                Condition right = parseUnary();
+                condition = frame -> left.test(frame) && right.test(frame);
+            }
+            return condition;
+        }
+
+        /**
+         * Parse a negation, a parenthesized condition or a comparison.
+         * <p>Neither a negation nor a parenthesized condition can be the operand of a comparison,
+         * since the JavaScript conversions of the booleans are not supported.
+         */
+        private Condition parseUnary() throws UnsupportedScriptException {
+            if (accept(TokenType.PUNCTUATOR, "!")) {
+                Condition condition = parseNegated();
+                return frame -> !condition.test(frame);
+            }
+            if (accept(TokenType.PUNCTUATOR, "(")) {
+                Condition condition = parseCondition();
+                expect(TokenType.PUNCTUATOR, ")");
+                return condition;
+            }
+            Token start = peek();
+            Object left = parseOperand();
+            Token operator = peek();
+            if (operator.type == TokenType.PUNCTUATOR) {
+                switch (operator.text) {
+                    case "==":
+                    case "===":
+                    case "!=":
+                    case "!==":
+                        next();
+                        return parseEquality(left, parseOperand(), operator.text.startsWith("!"), start);
+                    case "<":
+                    case "<=":
+                    case ">":
+                    case ">=":
+                        next();
+                        return parseRelation(left, parseOperand(), operator.text, start);
+                }
+            }
+            return toCondition(left);
+        }
+
+        /**
+         * Parse the operand of {@code !}, which binds tighter than the comparisons.
+         */
+        private Condition parseNegated() throws UnsupportedScriptException {
+            if (accept(TokenType.PUNCTUATOR, "!")) {
+                Condition condition = parseNegated();
+                return frame -> !condition.test(frame);
+            }
+            if (accept(TokenType.PUNCTUATOR, "(")) {
+                Condition condition = parseCondition();
+                expect(TokenType.PUNCTUATOR, ")");
+                return condition;
+            }
+            return toCondition(parseOperand());
+        }
+
+        /**
+         * The JavaScript truthiness of an operand.
+         */
+        private Condition toCondition(Object operand) {
+            if (operand instanceof Condition) {
+                return (Condition) operand;
+            } else if (operand instanceof StringExpression) {
+                StringExpression expression = (StringExpression) operand;
+                return frame -> !expression.evaluate(frame).isEmpty();
+            } else {
+                NumberExpression expression = (NumberExpression) operand;
+                return frame -> expression.evaluate(frame) != 0;
+            }
+        }
+
+        private Condition parseEquality(Object left, Object right, boolean negated, Token start)
+                throws UnsupportedScriptException {
+            Condition condition;
+            if (left instanceof StringExpression && right instanceof StringExpression) {
+                condition = toHostTest(HostTest.Kind.EQUALS, left, right);
+                if (condition == null) {
+                    condition = toHostTest(HostTest.Kind.EQUALS, right, left);
+                }
+                if (condition == null) {
+                    StringExpression leftExpression = (StringExpression) left;
+                    StringExpression rightExpression = (StringExpression) right;
+                    condition = frame -> Objects.equals(leftExpression.evaluate(frame),
+                            rightExpression.evaluate(frame));
+                }
+            } else if (left instanceof NumberExpression && right instanceof NumberExpression) {
+                NumberExpression leftExpression = (NumberExpression) left;
+                NumberExpression rightExpression = (NumberExpression) right;
+                condition = frame -> leftExpression.evaluate(frame) == rightExpression.evaluate(frame);
+            } else {
+                // Comparing different types involves the JavaScript conversions
+                throw unsupported(start);
+            }
+            if (negated) {
+                Condition equality = condition;
+                return frame -> !equality.test(frame);
+            }
+            return condition;
+        }
+
+        private Condition parseRelation(Object left, Object right, String operator, Token start)
+                throws UnsupportedScriptException {
+            if (!(left instanceof NumberExpression && right instanceof NumberExpression)) {
+                throw unsupported(start);
+            }
+            NumberExpression leftExpression = (NumberExpression) left;
+            NumberExpression rightExpression = (NumberExpression) right;
+            switch (operator) {
+                case "<":
+                    return frame -> leftExpression.evaluate(frame) < rightExpression.evaluate(frame);
+                case "<=":
+                    return frame -> leftExpression.evaluate(frame) <= rightExpression.evaluate(frame);
+                case ">":
+                    return frame -> leftExpression.evaluate(frame) > rightExpression.evaluate(frame);
+                default:
+                    return frame -> leftExpression.evaluate(frame) >= rightExpression.evaluate(frame);
+            }
+        }
+
+        /**
+         * Parse an operand: a literal, a variable, a helper function call or a string method call.
+         *
+         * @return a {@link Condition}, a {@link StringExpression} or a {@link NumberExpression}.
+         */
+        private Object parseOperand() throws UnsupportedScriptException {
+            Token token = next();
+            Object operand;
+            if (token.type == TokenType.STRING) {
+                operand = new StringLiteral(token.text);
+            } else if (token.type == TokenType.NUMBER) {
+                int value = Integer.parseInt(token.text);
+                operand = (NumberExpression) frame -> value;
+            } else if (token.is(TokenType.IDENTIFIER, "true") || token.is(TokenType.IDENTIFIER, "false")) {
+                boolean value = Boolean.parseBoolean(token.text);
+                operand = (Condition) frame -> value;
+            } else if (token.type == TokenType.IDENTIFIER && slots.containsKey(token.text)) {
+                operand = new Variable(slots.get(token.text));
+            } else if (token.type == TokenType.IDENTIFIER && peek().is(TokenType.PUNCTUATOR, "(")) {
+                operand = parseHelperCall(token);
+            } else {
+                throw unsupported(token);
+            }
+            while (accept(TokenType.PUNCTUATOR, ".")) {
+                operand = parseStringMethod(toStringExpression(operand));
+            }
+            return operand;
+        }
+
+        private Object parseHelperCall(Token name) throws UnsupportedScriptException {
+            List<Object> arguments = new ArrayList<>();
+            expect(TokenType.PUNCTUATOR, "(");
+            if (!peek().is(TokenType.PUNCTUATOR, ")")) {
+                do {
+                    arguments.add(parseOperand());
+                } while (accept(TokenType.PUNCTUATOR, ","));
+            }
+            expect(TokenType.PUNCTUATOR, ")");
+            StringExpression[] args = new StringExpression[arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                if (!(arguments.get(i) instanceof StringExpression)) {
+                    throw unsupported(name);
+                }
+                args[i] = (StringExpression) arguments.get(i);
+            }
+            // The helper functions are exposed to the script through pacFunctions.js
+            switch (name.text + "/" + args.length) {
+                case "isPlainHostName/1": {
+                    Condition condition = frame -> helperMethods.isPlainHostName(args[0].evaluate(frame));
+                    return hostTest(HostTest.Kind.PLAIN, args[0], null, condition);
+                }
+                case "dnsDomainIs/2": {
+                    Condition condition = frame -> helperMethods.dnsDomainIs(args[0].evaluate(frame),
+                            args[1].evaluate(frame));
+                    return hostTest(HostTest.Kind.DOMAIN, args[0], args[1], condition);
+                }
+                case "shExpMatch/2": {
+                    Condition condition = frame -> helperMethods.shExpMatch(args[0].evaluate(frame),
+                            args[1].evaluate(frame));
+                    if (args[1] instanceof StringLiteral) {
+                        String glob = ((StringLiteral) args[1]).value.trim();
+                        if (glob.startsWith("*") && isLiteralGlob(glob.substring(1))) {
+                            return hostTest(HostTest.Kind.ENDS_WITH, args[0],
+                                    new StringLiteral(glob.substring(1)), condition);
+                        } else if (isLiteralGlob(glob)) {
+                            return hostTest(HostTest.Kind.EQUALS, args[0], new StringLiteral(glob), condition);
+                        }
+                    }
+                    return condition;
+                }
+                case "localHostOrDomainIs/2":
+                    return (Condition) frame -> helperMethods.localHostOrDomainIs(args[0].evaluate(frame),
+                            args[1].evaluate(frame));
+                case "isResolvable/1":
+                    return (Condition) frame -> helperMethods.isResolvable(args[0].evaluate(frame));
+                case "isInNet/3":
+                    return (Condition) frame -> helperMethods.isInNet(args[0].evaluate(frame),
+                            args[1].evaluate(frame), args[2].evaluate(frame));
+                case "dnsDomainLevels/1":
+                    return (NumberExpression) frame -> helperMethods.dnsDomainLevels(args[0].evaluate(frame));
+                case "dnsResolve/1":
+                    // String(...) in pacFunctions.js turns a null into "null"
+                    return (StringExpression) frame -> String.valueOf(
+                            helperMethods.dnsResolve(args[0].evaluate(frame)));
+                case "myIpAddress/0":
+                    return (StringExpression) frame -> String.valueOf(helperMethods.myIpAddress());
+                default:
+                    throw unsupported(name);
+            }
+        }
+
+        private StringExpression parseStringMethod(StringExpression target) throws UnsupportedScriptException {
+            Token name = next();
+            List<NumberExpression> arguments = new ArrayList<>();
+            expect(TokenType.PUNCTUATOR, "(");
+            if (!peek().is(TokenType.PUNCTUATOR, ")")) {
+                do {
+                    Object argument = parseOperand();
+                    if (!(argument instanceof NumberExpression)) {
+                        throw unsupported(name);
+                    }
+                    arguments.add((NumberExpression) argument);
+                } while (accept(TokenType.PUNCTUATOR, ","));
+            }
+            expect(TokenType.PUNCTUATOR, ")");
+            switch (name.text + "/" + arguments.size()) {
+                case "toLowerCase/0":
+                    return frame -> target.evaluate(frame).toLowerCase(Locale.ROOT);
+                case "toUpperCase/0":
+                    return frame -> target.evaluate(frame).toUpperCase(Locale.ROOT);
+                case "substring/1": {
+                    NumberExpression start = arguments.get(0);
+                    return frame -> {
+                        String value = target.evaluate(frame);
+                        return substring(value, start.evaluate(frame), value.length());
+                    };
+                }
+                case "substring/2": {
+                    NumberExpression start = arguments.get(0);
+                    NumberExpression end = arguments.get(1);
+                    return frame -> substring(target.evaluate(frame), start.evaluate(frame), end.evaluate(frame));
+                }
+                default:
+                    throw unsupported(name);
+            }
+        }
+
+        private Condition hostTest(HostTest.Kind kind, StringExpression subject, StringExpression literal,
+                                   Condition condition) {
+            if (subject instanceof Variable && (literal == null || literal instanceof StringLiteral)) {
+                return new HostTest(kind, ((Variable) subject).slot,
+                        literal != null ? ((StringLiteral) literal).value : null, condition);
+            }
+            return condition;
+        }
+
+        private Condition toHostTest(HostTest.Kind kind, Object subject, Object literal) {
+            if (subject instanceof Variable && literal instanceof StringLiteral) {
+                int slot = ((Variable) subject).slot;
+                String value = ((StringLiteral) literal).value;
+                return new HostTest(kind, slot, value, frame -> value.equals(frame[slot]));
+            }
+            return null;
+        }
+
+        /**
+         * Replace the runs of {@code if (<host tests>) return "<proxy line>";} statements
+         * testing the same variable with a {@link HostIndex}.
+         */
+        private List<Statement> index(List<Statement> statements) {
+            List<Statement> indexed = new ArrayList<>();
+            int i = 0;
+            while (i < statements.size()) {
+                int slot = getIndexableSlot(statements.get(i));
+                int end = i;
+                while (slot >= 0 && end < statements.size() && getIndexableSlot(statements.get(end)) == slot) {
+                    end++;
+                }
+                if (end - i > 1) {
+                    List<List<HostTest>> rules = new ArrayList<>();
+                    List<String> proxyLines = new ArrayList<>();
+                    for (Statement statement : statements.subList(i, end)) {
+                        PacDecisionTree.If rule = (PacDecisionTree.If) statement;
+                        List<HostTest> hostTests = new ArrayList<>();
+                        collectHostTests(rule.condition, hostTests);
+                        rules.add(hostTests);
+                        proxyLines.add(((PacDecisionTree.Return) unwrap(rule.then)).value);
+                    }
+                    indexed.add(new HostIndex(slot, rules, proxyLines));
+                    indexedRuleCount += rules.size();
+                    i = end;
+                } else {
+                    indexed.add(statements.get(i++));
+                }
+            }
+            return indexed;
+        }
+
+        /**
+         * @return the slot tested by the statement if it can be indexed, {@code -1} otherwise.
+         */
+        private int getIndexableSlot(Statement statement) {
+            if (statement instanceof PacDecisionTree.If) {
+                PacDecisionTree.If rule = (PacDecisionTree.If) statement;
+                if (rule.otherwise == null && unwrap(rule.then) instanceof PacDecisionTree.Return) {
+                    List<HostTest> hostTests = new ArrayList<>();
+                    if (collectHostTests(rule.condition, hostTests) && hostTests.stream().
+                            allMatch(hostTest -> hostTest.slot == hostTests.get(0).slot)) {
+                        return hostTests.get(0).slot;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return {@code true} iff the condition is a disjunction of {@link HostTest}s.
+         */
+        private boolean collectHostTests(Condition condition, List<HostTest> hostTests) {
+            if (condition instanceof HostTest) {
+                hostTests.add((HostTest) condition);
+                return true;
+            }
+            if (condition instanceof PacDecisionTree.Or) {
+                PacDecisionTree.Or or = (PacDecisionTree.Or) condition;
+                return collectHostTests(or.left, hostTests) && collectHostTests(or.right, hostTests);
+            }
+            return false;
+        }
+
+        private Statement unwrap(Statement statement) {
+            if (statement instanceof PacDecisionTree.Block
+                    && ((PacDecisionTree.Block) statement).statements.length == 1) {
+                return ((PacDecisionTree.Block) statement).statements[0];
+            }
+            return statement;
+        }
+
+        private StringExpression toStringExpression(Object operand) throws UnsupportedScriptException {
+            if (operand instanceof StringExpression) {
+                return (StringExpression) operand;
+            }
+            throw new UnsupportedScriptException("String expression expected before " + peek());
+        }
+
+        private Token peek() {
+            return tokens.get(pos);
+        }
+
+        private Token next() {
+            Token token = tokens.get(pos);
+            if (token.type != TokenType.END) {
+                pos++;
+            }
+            return token;
+        }
+
+        /**
+         * Consume the next token iff it matches.
+         */
+        private boolean accept(TokenType type, String text) {
+            if (peek().is(type, text)) {
+                next();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(TokenType type, String text) throws UnsupportedScriptException {
+            Token token = next();
+            if (!token.is(type, text)) {
+                throw unsupported(token);
+            }
+        }
+
+        private UnsupportedScriptException unsupported(Token token) {
+            return new UnsupportedScriptException("Unsupported " + token);
+        }
+    }
+
+    private static boolean isHelperFunction(String name) {
+        return Arrays.stream(PacHelperMethodsNetscape.class.getMethods()).
+                anyMatch(method -> method.getName().equals(name));
+    }
+
+    private static boolean isLiteralGlob(String glob) {
+        return glob.chars().allMatch(c -> LITERAL_GLOB_CHARS.indexOf(c) >= 0);
+    }
+
+    /**
+     * The JavaScript {@code String.prototype.substring}: the indexes are clamped then swapped if needed.
+     */
+    private static String substring(String value, int start, int end) {
+        int from = Math.min(Math.max(start, 0), value.length());
+        int to = Math.min(Math.max(end, 0), value.length());
+        return value.substring(Math.min(from, to), Math.max(from, to));
+    }
+
+    private static final class StringLiteral implements StringExpression {
+
+        private final String value;
+
+        private StringLiteral(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String evaluate(String[] frame) {
+            return value;
+        }
+    }
+
+    private static final class Variable implements StringExpression {
+
+        private final int slot;
+
+        private Variable(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public String evaluate(String[] frame) {
+            return frame[slot];
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A network given by an address and a mask, compiled for matching the addresses with bitmasks:
+ * an IPv4 network is held as an {@code int}, an IPv6 one as two {@code long}s.
+ * <p>An IPv4 network never matches an IPv6 address, and vice-versa.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class CidrMatcher {
+
+    private final boolean ipv6;
+
+    private final int network4;
+
+    private final int mask4;
+
+    private final long highNetwork;
+
+    private final long highMask;
+
+    private final long lowNetwork;
+
+    private final long lowMask;
+
+    private CidrMatcher(byte[] network, byte[] mask) {
+        this.ipv6 = network.length == 16;
+        if (ipv6) {
+            this.mask4 = 0;
+            this.network4 = 0;
+            this.highMask = toLong(mask, 0);
+            this.lowMask = toLong(mask, 8);
+            this.highNetwork = toLong(network, 0) & highMask;
+            this.lowNetwork = toLong(network, 8) & lowMask;
+        } else {
+            this.mask4 = toInt(mask);
+            this.network4 = toInt(network) & mask4;
+            this.highMask = 0;
+            this.lowMask = 0;
+            this.highNetwork = 0;
+            this.lowNetwork = 0;
+        }
+    }
+
+    /**
+     * Compile a network like the {@code isInNet(host, pattern, mask)} PAC function arguments.
+     *
+     * @param address the network address.
+     * @param mask    the mask, either an address (like {@code 255.255.0.0}) or a prefix length.
+     * @return the matcher or {@code null} if the arguments are not valid.
+     */
+    public static CidrMatcher compile(String address, String mask) {
+        byte[] network = toBytes(address);
+        if (network == null || mask == null) {
+            return null;
+        }
+        byte[] maskBytes = isPrefixLength(mask) ? toMask(Integer.parseInt(mask), network.length) : toBytes(mask);
+        if (maskBytes == null || maskBytes.length != network.length) {
+            return null;
+        }
+        return new CidrMatcher(network, maskBytes);
+    }
+
+    /**
+     * Compile a network like the {@code isInNetEx(ipAddress, ipPrefix)} PAC function's prefix.
+     *
+     * @param prefix the network in CIDR notation (like {@code 198.95.0.0/16}), or a single address.
+     * @return the matcher or {@code null} if the prefix is not valid.
+     */
+    public static CidrMatcher compile(String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        int slashPos = prefix.indexOf('/');
+        if (slashPos < 0) {
+            byte[] network = toBytes(prefix);
+            return network != null ? new CidrMatcher(network, toMask(network.length * 8, network.length)) : null;
+        }
+        return compile(prefix.substring(0, slashPos), prefix.substring(slashPos + 1));
+    }
+
+    /**
+     * @param address the address to check.
+     * @return {@code true} iff the address is in this network.
+     */
+    public boolean matches(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (ipv6) {
+            return bytes.length == 16
+                    && (toLong(bytes, 0) & highMask) == highNetwork
+                    && (toLong(bytes, 8) & lowMask) == lowNetwork;
+        }
+        return bytes.length == 4 && (toInt(bytes) & mask4) == network4;
+    }
+
+    /**
+     * @return the bytes of an IP address, or {@code null} if not an IP address (no DNS lookup is made).
+     */
+    private static byte[] toBytes(String address) {
+        // An empty string would be the loopback address
+        if (address == null || address.isEmpty() || !IpAddresses.isValidIPAddress(address)) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static boolean isPrefixLength(String mask) {
+        if (mask.isEmpty() || mask.length() > 3) {
+            return false;
+        }
+        for (int i = 0; i < mask.length(); i++) {
+            if (!Character.isDigit(mask.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the mask having the first {@code prefixLength} bits set or {@code null} if the length is too big.
+     */
+    private static byte[] toMask(int prefixLength, int byteCount) {
+        if (prefixLength > byteCount * 8) {
+            return null;
+        }
+        byte[] mask = new byte[byteCount];
+        for (int i = 0; i < byteCount; i++) {
+            int bits = Math.max(0, Math.min(8, prefixLength - i * 8));
+            mask[i] = (byte) (0xFF00 >> bits);
+        }
+        return mask;
+    }
+
+    private static int toInt(byte[] bytes) {
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFFL);
+        }
+        return value;
+    }
+
+}
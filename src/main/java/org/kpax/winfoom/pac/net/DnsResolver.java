@@ -0,0 +1,285 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves the host names for the PAC helper functions, so that a slow name service
+ * does not hold the script engines longer than {@link SystemConfig#getDnsTimeout()}.
+ * <ul>
+ * <li>The lookups run on the {@link ProxyExecutorService}, the caller waiting for at most the timeout.
+ * A lookup still running after the timeout keeps going and fills the cache when done.</li>
+ * <li>The concurrent lookups of the same host share the same {@link Lookup}.</li>
+ * <li>The resolved hosts are cached for {@link SystemConfig#getCacheDnsTtl()},
+ * the unknown ones for {@link SystemConfig#getCacheDnsNegativeTtl()}.</li>
+ * <li>A resolved host still in use during the last quarter of its TTL is resolved again in background,
+ * the cached addresses being served meanwhile.</li>
+ * </ul>
+ * <p>The name service itself is the {@link HostResolver} bean.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Component
+public class DnsResolver implements StopListener {
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private HostResolver hostResolver;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    private final SingletonSupplier<Cache<String, Lookup>> cacheSupplier =
+            new SingletonSupplier<>(() ->
+                    new Cache2kBuilder<String, Lookup>() {
+                    }
+                            .eternal(true)
+                            .entryCapacity(systemConfig.getCacheDnsCapacity())
+                            .build()
+            );
+
+    /**
+     * @see #resolve(String, Predicate)
+     */
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        return resolve(host, null);
+    }
+
+    /**
+     * Same as {@link IpAddresses#resolve(String, Predicate)} but cached and with a timeout.
+     *
+     * @param host   the IP address or hostname
+     * @param filter for filtering the result
+     * @return the filtered list (possible empty) of {@link InetAddress} instances
+     * @throws UnknownHostException if the host cannot be resolved within the timeout.
+     */
+    public List<InetAddress> resolve(String host, Predicate<InetAddress> filter) throws UnknownHostException {
+        InetAddress[] addresses = resolveAll(host);
+        if (filter == null) {
+            return new ArrayList<>(Arrays.asList(addresses));
+        }
+        return Arrays.stream(addresses).filter(filter).collect(Collectors.toList());
+    }
+
+    /**
+     * Like {@link #resolve(String, Predicate)} but only returning the first address, without copying the cached ones.
+     *
+     * @param host   the IP address or hostname
+     * @param filter for filtering the result
+     * @return the first address accepted by the filter or {@code null} if none.
+     * @throws UnknownHostException if the host cannot be resolved within the timeout.
+     */
+    public InetAddress resolveFirst(String host, Predicate<InetAddress> filter) throws UnknownHostException {
+        for (InetAddress address : resolveAll(host)) {
+            if (filter == null || filter.test(address)) {
+                return address;
+            }
+        }
+        return null;
+    }
+
+    private InetAddress[] resolveAll(String host) throws UnknownHostException {
+        if (systemConfig.getCacheDnsTtl() < 1) {
+            if (IpAddresses.isValidIPAddress(host)) {
+                // No DNS lookup is needed in this case
+                return new InetAddress[]{InetAddress.getByName(host)};
+            }
+            misses.increment();
+            return await(start(new Lookup(host)));
+        }
+        return await(getLookup(host));
+    }
+
+    private Lookup getLookup(String host) throws UnknownHostException {
+        Cache<String, Lookup> cache = cacheSupplier.get();
+        long now = System.nanoTime();
+        Lookup lookup = cache.peek(host);
+        if (lookup != null && !lookup.isExpired(now)) {
+            hits.increment();
+            if (lookup.isRefreshDue(now) && lookup.refreshing.compareAndSet(false, true)) {
+                refresh(cache, lookup);
+            }
+            return lookup;
+        }
+        if (lookup == null && IpAddresses.isValidIPAddress(host)) {
+            // No DNS lookup is needed in this case, the address is cached so it is parsed only once
+            Lookup literal = new Lookup(host, InetAddress.getByName(host));
+            cache.putIfAbsent(host, literal);
+            return literal;
+        }
+        Lookup newLookup = new Lookup(host);
+        boolean cached = lookup == null ? cache.putIfAbsent(host, newLookup)
+                : cache.replaceIfEquals(host, lookup, newLookup);
+        if (cached) {
+            misses.increment();
+            return start(newLookup);
+        }
+        // Another thread has just started a lookup for this host, share it
+        Lookup concurrentLookup = cache.peek(host);
+        if (concurrentLookup != null) {
+            hits.increment();
+            return concurrentLookup;
+        }
+        misses.increment();
+        return start(newLookup);
+    }
+
+    private void refresh(Cache<String, Lookup> cache, Lookup lookup) {
+        logger.debug("Refresh ahead the host {}", lookup.host);
+        refreshes.increment();
+        Lookup refreshed = start(new Lookup(lookup.host));
+        refreshed.future.thenRun(() -> cache.replaceIfEquals(lookup.host, lookup, refreshed));
+    }
+
+    private Lookup start(Lookup lookup) {
+        try {
+            executorService.execute(lookup::run);
+        } catch (RejectedExecutionException e) {
+            // Not cached
+            lookup.expiresAt = System.nanoTime();
+            lookup.future.completeExceptionally(e);
+        }
+        return lookup;
+    }
+
+    private InetAddress[] await(Lookup lookup) throws UnknownHostException {
+        try {
+            return lookup.future.get(systemConfig.getDnsTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw (UnknownHostException) new UnknownHostException(lookup.host).initCause(e.getCause());
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            logger.debug("Timeout on resolving host [{}]", lookup.host);
+            throw new UnknownHostException(lookup.host + ": timeout");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(lookup.host + ": interrupted");
+        }
+    }
+
+    /**
+     * @return the cache statistics.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", cacheSupplier.value().map(cache -> cache.asMap().size()).orElse(0));
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("refreshes", refreshes.sum());
+        stats.put("timeouts", timeouts.sum());
+        return stats;
+    }
+
+    @Override
+    public void onStop() {
+        logger.debug("Reset the DNS cache");
+        cacheSupplier.reset(Cache::close);
+    }
+
+    /**
+     * The lookup of a host, pending or done.
+     */
+    private final class Lookup {
+
+        private final String host;
+
+        private final CompletableFuture<InetAddress[]> future = new CompletableFuture<>();
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * Set before the future is completed.
+         */
+        private volatile long expiresAt;
+
+        private volatile long refreshAt;
+
+        private volatile boolean resolved;
+
+        /**
+         * Whether the host is an IP address.
+         */
+        private final boolean literal;
+
+        private Lookup(String host) {
+            this.host = host;
+            this.literal = false;
+        }
+
+        private Lookup(String host, InetAddress address) {
+            this.host = host;
+            this.literal = true;
+            this.resolved = true;
+            this.future.complete(new InetAddress[]{address});
+        }
+
+        private void run() {
+            try {
+                InetAddress[] addresses = hostResolver.resolve(host);
+                long ttl = TimeUnit.SECONDS.toNanos(systemConfig.getCacheDnsTtl());
+                long now = System.nanoTime();
+                expiresAt = now + ttl;
+                refreshAt = now + ttl * 3 / 4;
+                resolved = true;
+                future.complete(addresses);
+            } catch (UnknownHostException e) {
+                expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(systemConfig.getCacheDnsNegativeTtl());
+                future.completeExceptionally(e);
+            } catch (Exception e) {
+                // Not cached
+                expiresAt = System.nanoTime();
+                future.completeExceptionally(e);
+            }
+        }
+
+        private boolean isExpired(long now) {
+            return !literal && future.isDone() && now - expiresAt >= 0;
+        }
+
+        private boolean isRefreshDue(long now) {
+            return !literal && future.isDone() && resolved && now - refreshAt >= 0;
+        }
+    }
+
+}
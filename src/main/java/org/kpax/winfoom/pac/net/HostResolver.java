@@ -0,0 +1,35 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The name service used by {@link DnsResolver}.
+ *
+ * @author Eugen Covaci
+ */
+@FunctionalInterface
+public interface HostResolver {
+
+    /**
+     * Resolve a host name, blocking until done.
+     *
+     * @param host the host name.
+     * @return the addresses of the host.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+
+}
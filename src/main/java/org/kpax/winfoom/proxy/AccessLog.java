@@ -0,0 +1,426 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log: one line for each request or tunnel, written to {@code logs/access.log}
+ * in the application's home directory.
+ * <p>The request threads only copy the line's fields into a slot of a preallocated ring buffer,
+ * without locking nor formatting; a line is dropped when the ring buffer is full.
+ * A single background thread formats the lines and writes them to the file,
+ * which is rotated when it exceeds {@link SystemConfig#getAccessLogMaxFileSize()}.
+ * <p>A line holds, separated by spaces: the time, the client's address, the method, the target,
+ * the upstream proxy ({@code direct} if none), the response status, the bytes received from and sent to the client,
+ * the duration (milliseconds) and the proxy authentication scheme, a missing value being {@code -}.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Component
+public class AccessLog implements StopListener {
+
+    public static final String FILENAME = "access.log";
+
+    private static final DateTimeFormatter TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.ROOT).withZone(ZoneId.systemDefault());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private final LongAdder logged = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final SingletonSupplier<RingWriter> writerSupplier = new SingletonSupplier<>(() -> {
+        RingWriter ringWriter = new RingWriter(getLogDirectory(), systemConfig.getAccessLogBufferSize(),
+                systemConfig.getAccessLogMaxFileSize(), systemConfig.getAccessLogMaxFiles());
+        ringWriter.start();
+        return ringWriter;
+    });
+
+    @PostConstruct
+    void init() {
+        proxyMetrics.register("winfoom_access_log_lines_total",
+                "The access log lines, by whether they were written or dropped for the buffer being full",
+                ProxyMetrics.Type.COUNTER,
+                sink -> {
+                    sink.accept(logged.sum(), "written");
+                    sink.accept(dropped.sum(), "dropped");
+                }, "result");
+    }
+
+    public boolean isEnabled() {
+        return systemConfig.isAccessLogEnabled();
+    }
+
+    /**
+     * Log a request or tunnel, unless the access log is disabled.
+     * <p>It never blocks: the line is dropped if the ring buffer is full.
+     *
+     * @param clientConnection the client's connection
+     * @param bytesIn          the bytes received from the client
+     * @param bytesOut         the bytes sent to the client
+     */
+    public void log(@NotNull final ClientConnection clientConnection, long bytesIn, long bytesOut) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (writerSupplier.get().offer(clientConnection, bytesIn, bytesOut)) {
+            logged.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    Path getLogDirectory() {
+        return Paths.get(System.getProperty(SystemConfig.WINFOOM_CONFIG_ENV), SystemConfig.APP_HOME_DIR_NAME, "logs");
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("logged", logged.sum());
+        stats.put("dropped", dropped.sum());
+        return stats;
+    }
+
+    /**
+     * Write the pending lines, then close the file.
+     */
+    @Override
+    public void onStop() {
+        writerSupplier.reset(RingWriter::close);
+    }
+
+    /**
+     * A slot of the ring buffer, holding the fields of a line.
+     * <p>The slot belongs to the producer when {@code sequence} equals the claimed position,
+     * to the writer when it equals the position plus one.
+     */
+    private static final class Slot {
+
+        private volatile long sequence;
+
+        private long time;
+
+        private SocketAddress client;
+
+        private String method;
+
+        private String target;
+
+        private ProxyInfo proxyInfo;
+
+        private int status;
+
+        private long bytesIn;
+
+        private long bytesOut;
+
+        private long durationNanos;
+
+        private String authScheme;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The ring buffer (a bounded multi-producer queue), consumed by its own writer thread.
+     */
+    private static final class RingWriter implements Runnable {
+
+        private final Slot[] slots;
+
+        private final int mask;
+
+        private final AtomicLong tail = new AtomicLong();
+
+        private final Path directory;
+
+        private final long maxFileSize;
+
+        private final int maxFiles;
+
+        private final StringBuilder line = new StringBuilder(256);
+
+        /**
+         * The next position to be written, confined to the writer thread.
+         */
+        private long head;
+
+        private Writer writer;
+
+        /**
+         * The size of the current file, in bytes.
+         */
+        private long fileSize;
+
+        /**
+         * Whether there are lines written since the last flush.
+         */
+        private boolean unflushed;
+
+        private volatile boolean running = true;
+
+        /**
+         * Set by the writer thread before parking, so the producers know to unpark it.
+         */
+        private volatile boolean waiting;
+
+        private Thread thread;
+
+        private RingWriter(Path directory, int bufferSize, long maxFileSize, int maxFiles) {
+            int capacity = Integer.highestOneBit(Math.max(bufferSize - 1, 1)) << 1;
+            this.slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot(i);
+            }
+            this.mask = capacity - 1;
+            this.directory = directory;
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = maxFiles;
+        }
+
+        private void start() {
+            thread = new ProxyExecutorService.DefaultThreadFactory().newThread(this);
+            thread.setName("access-log-writer");
+            thread.start();
+        }
+
+        private boolean offer(ClientConnection clientConnection, long bytesIn, long bytesOut) {
+            long position = tail.get();
+            while (true) {
+                Slot slot = slots[(int) position & mask];
+                long difference = slot.sequence - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slot.time = System.currentTimeMillis();
+                        slot.client = clientConnection.getClientAddress();
+                        slot.method = clientConnection.getRequestLine().getMethod();
+                        slot.target = clientConnection.getRequestLine().getUri();
+                        slot.proxyInfo = clientConnection.getProxyInfo();
+                        slot.status = clientConnection.getResponseStatus();
+                        slot.bytesIn = bytesIn;
+                        slot.bytesOut = bytesOut;
+                        slot.durationNanos = clientConnection.getTimings().getElapsed();
+                        slot.authScheme = clientConnection.getAuthScheme();
+                        slot.sequence = position + 1;
+                        if (waiting) {
+                            LockSupport.unpark(thread);
+                        }
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    // Full
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.createDirectories(directory.resolve("archived"));
+                open();
+                while (running) {
+                    if (!drain()) {
+                        if (unflushed) {
+                            writer.flush();
+                            unflushed = false;
+                        }
+                        waiting = true;
+                        // Check again, a line published before the flag was set wouldn't unpark us
+                        if (running && !isAvailable()) {
+                            LockSupport.park(this);
+                        }
+                        waiting = false;
+                    }
+                }
+                while (drain()) {
+                    // Write the lines logged before closing
+                }
+                writer.flush();
+            } catch (Exception e) {
+                logger.error("Access log writer failed", e);
+            } finally {
+                InputOutputs.close(writer);
+            }
+        }
+
+        private boolean isAvailable() {
+            return slots[(int) head & mask].sequence == head + 1;
+        }
+
+        /**
+         * Write the available lines.
+         *
+         * @return {@code false} iff there was none.
+         */
+        private boolean drain() throws IOException {
+            boolean written = false;
+            while (true) {
+                Slot slot = slots[(int) head & mask];
+                if (slot.sequence != head + 1) {
+                    return written;
+                }
+                format(slot);
+                slot.client = null;
+                slot.method = null;
+                slot.target = null;
+                slot.proxyInfo = null;
+                slot.authScheme = null;
+                slot.sequence = head + slots.length;
+                head++;
+                writer.append(line);
+                fileSize += utf8Length(line);
+                unflushed = true;
+                written = true;
+                if (fileSize >= maxFileSize) {
+                    rotate();
+                }
+            }
+        }
+
+        private void format(Slot slot) {
+            line.setLength(0);
+            TIME_FORMATTER.formatTo(Instant.ofEpochMilli(slot.time), line);
+            line.append(' ');
+            if (slot.client instanceof InetSocketAddress) {
+                InetSocketAddress address = (InetSocketAddress) slot.client;
+                line.append(address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString())
+                        .append(':').append(address.getPort());
+            } else {
+                line.append('-');
+            }
+            append(slot.method);
+            append(slot.target);
+            append(slot.proxyInfo != null ? ProxyMetrics.upstream(slot.proxyInfo) : null);
+            append(slot.status > 0 ? Integer.toString(slot.status) : null);
+            line.append(' ').append(slot.bytesIn).append(' ').append(slot.bytesOut).append(' ')
+                    .append(TimeUnit.NANOSECONDS.toMillis(slot.durationNanos));
+            append(slot.authScheme);
+            line.append(System.lineSeparator());
+        }
+
+        /**
+         * @return the length of the chars once encoded in UTF-8, as written to the file.
+         */
+        private static int utf8Length(CharSequence chars) {
+            int length = 0;
+            for (int i = 0; i < chars.length(); i++) {
+                char c = chars.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                        && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        private void append(String value) {
+            line.append(' ').append(value != null && !value.isEmpty() ? value : "-");
+        }
+
+        private void open() throws IOException {
+            Path file = directory.resolve(FILENAME);
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            fileSize = Files.size(file);
+        }
+
+        /**
+         * Move the current file to {@code archived/access_1.log}, shifting the older ones.
+         */
+        private void rotate() throws IOException {
+            writer.close();
+            Path archived = directory.resolve("archived");
+            Files.deleteIfExists(archived.resolve(archivedName(maxFiles)));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path source = archived.resolve(archivedName(i));
+                if (Files.exists(source)) {
+                    Files.move(source, archived.resolve(archivedName(i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(directory.resolve(FILENAME), archived.resolve(archivedName(1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(directory.resolve(FILENAME));
+            }
+            open();
+        }
+
+        private static String archivedName(int index) {
+            return "access_" + index + ".log";
+        }
+
+        private void close() {
+            running = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of client connections processed concurrently, with separate limits
+ * for CONNECT tunnels and plain requests.
+ * <p>When the limit is reached, a connection waits in a bounded queue, at most
+ * {@link SystemConfig#getAdmissionQueueTimeout()}; if the queue is full or the deadline passes, the connection
+ * is rejected with a {@code 503 Service Unavailable} response carrying a {@code Retry-After} header.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Component
+public class AdmissionController {
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private Limiter tunnelLimiter;
+
+    private Limiter requestLimiter;
+
+    @PostConstruct
+    void init() {
+        this.tunnelLimiter = new Limiter(systemConfig.getAdmissionMaxTunnels(), systemConfig.getAdmissionQueueSize());
+        this.requestLimiter = new Limiter(systemConfig.getAdmissionMaxRequests(), systemConfig.getAdmissionQueueSize());
+    }
+
+    /**
+     * Admit the client's connection for processing, waiting if necessary.
+     * <p>On rejection, the {@code 503} response is committed.
+     *
+     * @param clientConnection the {@link ClientConnection} instance.
+     * @return the permit to be released when the processing is done, {@code null} if rejected.
+     */
+    public Permit admit(@NotNull final ClientConnection clientConnection) {
+        Limiter limiter = clientConnection.isConnect() ? tunnelLimiter : requestLimiter;
+        Permit permit = limiter.acquire(systemConfig.getAdmissionQueueTimeout());
+        if (permit == null) {
+            logger.debug("Reject {}, too many concurrent connections", clientConnection);
+            clientConnection.writeErrorResponse(HttpStatus.SC_SERVICE_UNAVAILABLE,
+                    "Too many concurrent connections",
+                    HttpUtils.createHttpHeader(HttpHeaders.RETRY_AFTER,
+                            String.valueOf(systemConfig.getAdmissionRetryAfter())));
+        }
+        return permit;
+    }
+
+    /**
+     * @return the admission counters, for tunnels and requests.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tunnels", tunnelLimiter.getStats());
+        stats.put("requests", requestLimiter.getStats());
+        return stats;
+    }
+
+    /**
+     * The right to process a connection, released once.
+     */
+    public static final class Permit {
+
+        private final Limiter limiter;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Limiter limiter) {
+            this.limiter = limiter;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                limiter.permits.release();
+            }
+        }
+    }
+
+    private static final class Limiter {
+
+        private final int limit;
+
+        private final Semaphore permits;
+
+        private final Semaphore queueSlots;
+
+        private final LongAdder admitted = new LongAdder();
+
+        private final LongAdder queued = new LongAdder();
+
+        private final LongAdder rejected = new LongAdder();
+
+        private final LongAdder timedOut = new LongAdder();
+
+        private Limiter(int limit, int queueSize) {
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+            this.queueSlots = new Semaphore(queueSize);
+        }
+
+        private Permit acquire(int timeout) {
+            if (!permits.tryAcquire()) {
+                if (!queueSlots.tryAcquire()) {
+                    rejected.increment();
+                    return null;
+                }
+                queued.increment();
+                try {
+                    if (!permits.tryAcquire(timeout, TimeUnit.SECONDS)) {
+                        timedOut.increment();
+                        rejected.increment();
+                        return null;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.increment();
+                    return null;
+                } finally {
+                    queueSlots.release();
+                }
+            }
+            admitted.increment();
+            return new Permit(this);
+        }
+
+        private Map<String, Object> getStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("limit", limit);
+            stats.put("inFlight", limit - permits.availablePermits());
+            stats.put("waiting", permits.getQueueLength());
+            stats.put("admitted", admitted.sum());
+            stats.put("queued", queued.sum());
+            stats.put("rejected", rejected.sum());
+            stats.put("timedOut", timedOut.sum());
+            return stats;
+        }
+    }
+
+}
@@ -13,6 +13,8 @@
 package org.kpax.winfoom.proxy;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
 import org.apache.http.config.MessageConstraints;
@@ -26,20 +28,21 @@ import org.kpax.winfoom.annotation.NotThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.ProxyConnectException;
-import org.kpax.winfoom.pac.PacScriptEvaluator;
 import org.kpax.winfoom.proxy.processor.ClientConnectionProcessor;
 import org.kpax.winfoom.proxy.processor.ConnectionProcessorSelector;
-import org.kpax.winfoom.util.CrlfConverter;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.StreamSource;
+import org.springframework.util.Assert;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.List;
@@ -50,6 +53,7 @@ import java.util.Locale;
  * <p>It provides various methods for exchanging data with the client,
  * also some information about the state of the request's processing.
  * <p><b>Note:</b> This class doesn't have the responsibility to close the underlying socket.
+ * Unless {@link #detach()}-ed, this is the caller's responsibility.
  *
  * @author Eugen Covaci
  */
@@ -69,20 +73,37 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
     private final SystemConfig systemConfig;
 
     /**
-     * The socket's input stream.
+     * The socket's input stream, counting the bytes read directly (not through {@link #sessionInputBuffer}).
+     * <p>When the request head has been read by the event-driven listener,
+     * it starts with the bytes already read.
      */
-    private final InputStream inputStream;
+    private final CountingInputStream inputStream;
 
     /**
-     * The socket's output stream.
+     * The socket's output stream, counting the bytes sent to the client.
      */
-    private final OutputStream outputStream;
+    private final CountingOutputStream outputStream;
+
+    /**
+     * The response's status line and headers, written at once by {@link #writeln()}.
+     */
+    private final ResponseHeadEncoder responseHead = new ResponseHeadEncoder();
+
+    /**
+     * The {@link System#nanoTime()} of the last bytes read from or written to the client's socket.
+     */
+    private volatile long lastActivity = System.nanoTime();
 
     /**
      * Used for request parsing also by the {@link org.kpax.winfoom.proxy.RepeatableHttpEntity} class.
      */
     private final SessionInputBufferImpl sessionInputBuffer;
 
+    /**
+     * The bytes consumed from {@link #sessionInputBuffer} before this request.
+     */
+    private final long consumedBefore;
+
     /**
      * The parsed {@link HttpRequest}.
      */
@@ -98,6 +119,47 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      */
     private final boolean connect;
 
+    /**
+     * Whether the underlying socket has been handed over to another owner (see {@link #detach()}).
+     */
+    private boolean detached;
+
+    /**
+     * Whether the client's connection can be reused for the next request.
+     * <p>Initially, whether the client asks for a persistent connection.
+     */
+    private boolean keepAlive;
+
+    /**
+     * The admission permit, released on {@link #close()} unless the socket has been detached.
+     */
+    private AdmissionController.Permit permit;
+
+    /**
+     * The timestamps of the request's phases, starting before the request is parsed.
+     */
+    private final RequestTimings timings = new RequestTimings();
+
+    /**
+     * The status code of the response written so far, {@code 0} if none.
+     */
+    private int responseStatus;
+
+    /**
+     * The name of the last {@link ClientConnectionProcessor} used, if any.
+     */
+    private String processorName;
+
+    /**
+     * The last proxy used, if any.
+     */
+    private ProxyInfo proxyInfo;
+
+    /**
+     * The scheme of the proxy authentication, if any.
+     */
+    private String authScheme;
+
     /**
      * The proxy iterator for PAC.
      */
@@ -114,6 +176,9 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      * <p><b>The response should be committed before throwing any exception.</b></p>
      *
      * @param socket
+     * @param inputStream        the socket's input stream, possibly preceded by the bytes already read
+     * @param sessionInputBuffer the session input buffer bound to {@code inputStream},
+     *                           shared by all the requests of a persistent connection
      * @param proxyConfig
      * @param systemConfig
      * @param connectionProcessorSelector
@@ -121,6 +186,8 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      * @throws HttpException
      */
     ClientConnection(final Socket socket,
+                     final InputStream inputStream,
+                     final SessionInputBufferImpl sessionInputBuffer,
                      final ProxyConfig proxyConfig,
                      final SystemConfig systemConfig,
                      final ConnectionProcessorSelector connectionProcessorSelector) throws IOException, HttpException {
@@ -128,25 +195,36 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
         this.proxyConfig = proxyConfig;
         this.systemConfig = systemConfig;
         this.connectionProcessorSelector = connectionProcessorSelector;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
+        this.inputStream = new CountingInputStream(inputStream) {
+            @Override
+            protected synchronized void afterRead(int n) {
+                super.afterRead(n);
+                if (n > 0) {
+                    lastActivity = System.nanoTime();
+                }
+            }
+        };
+        this.outputStream = new CountingOutputStream(socket.getOutputStream()) {
+            @Override
+            protected synchronized void beforeWrite(int n) {
+                super.beforeWrite(n);
+                lastActivity = System.nanoTime();
+            }
+        };
+        this.sessionInputBuffer = sessionInputBuffer;
+        this.consumedBefore = getConsumed(sessionInputBuffer);
 
         // Parse the request
         try {
-            this.sessionInputBuffer = new SessionInputBufferImpl(
-                    new HttpTransportMetricsImpl(),
-                    InputOutputs.DEFAULT_BUFFER_SIZE,
-                    InputOutputs.DEFAULT_BUFFER_SIZE,
-                    MessageConstraints.DEFAULT,
-                    StandardCharsets.UTF_8.newDecoder());
-            this.sessionInputBuffer.bind(this.inputStream);
             this.request = new DefaultHttpRequestParser(this.sessionInputBuffer).parse();
             this.connect = HttpUtils.HTTP_CONNECT.equals(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT));
+            this.keepAlive = !this.connect && isKeepAliveRequested(this.request);
             try {
                 this.requestUri = HttpUtils.parseRequestUri(this.connect, this.request.getRequestLine().getUri());
             } catch (URISyntaxException e) {
                 throw new HttpException("Invalid request uri", e);
             }
+            timings.mark(RequestTimings.Phase.PARSED);
         } catch (Exception e) {
             if (e instanceof HttpException) {
                 // Most likely a bad request
@@ -169,6 +247,8 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      * Constructor for manual proxy case.
      *
      * @param socket
+     * @param inputStream        the socket's input stream, possibly preceded by the bytes already read
+     * @param sessionInputBuffer the session input buffer bound to {@code inputStream}
      * @param proxyConfig
      * @param systemConfig
      * @param connectionProcessorSelector
@@ -177,52 +257,62 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      * @throws HttpException
      */
     ClientConnection(final Socket socket,
+                     final InputStream inputStream,
+                     final SessionInputBufferImpl sessionInputBuffer,
                      final ProxyConfig proxyConfig,
                      final SystemConfig systemConfig,
                      final ConnectionProcessorSelector connectionProcessorSelector,
                      final ProxyInfo manualProxy) throws IOException, HttpException {
-        this(socket, proxyConfig, systemConfig, connectionProcessorSelector);
+        this(socket, inputStream, sessionInputBuffer, proxyConfig, systemConfig, connectionProcessorSelector);
         this.manualProxy = manualProxy;
     }
 
     /**
-     * Constructor for PAC case.<br>
+     * Create the session input buffer used to parse the requests read from a client's socket.
      *
-     * @param socket
-     * @param proxyConfig
-     * @param systemConfig
-     * @param connectionProcessorSelector
-     * @param pacScriptEvaluator
-     * @throws IOException
-     * @throws HttpException
+     * @param inputStream the socket's input stream
+     * @return the new {@link SessionInputBufferImpl} instance, bound to {@code inputStream}
      */
-    ClientConnection(final Socket socket,
-                     final ProxyConfig proxyConfig,
-                     final SystemConfig systemConfig,
-                     final ConnectionProcessorSelector connectionProcessorSelector,
-                     final PacScriptEvaluator pacScriptEvaluator)
-            throws Exception {
-        this(socket, proxyConfig, systemConfig, connectionProcessorSelector);
-        URI requestUri = getRequestUri();
-        logger.debug("Extracted URI from request {}", requestUri);
-        try {
-            List<ProxyInfo> activeProxies = pacScriptEvaluator.findProxyForURL(requestUri);
-            logger.debug("activeProxies: {}", activeProxies);
-            this.proxyInfoIterator = activeProxies.iterator();
-        } catch (Exception e) {
-            writeErrorResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, HttpUtils.reasonPhraseForPac(e));
-            throw e;
+    static SessionInputBufferImpl createSessionInputBuffer(@NotNull final InputStream inputStream) {
+        SessionInputBufferImpl sessionInputBuffer = new SessionInputBufferImpl(
+                new HttpTransportMetricsImpl(),
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                MessageConstraints.DEFAULT,
+                StandardCharsets.UTF_8.newDecoder());
+        sessionInputBuffer.bind(inputStream);
+        return sessionInputBuffer;
+    }
+
+    /**
+     * A HTTP/1.1 connection is persistent unless the client asks otherwise.
+     *
+     * @param request the client's request
+     * @return {@code true} iff the client asks for a persistent connection.
+     */
+    private static boolean isKeepAliveRequested(@NotNull final HttpRequest request) {
+        if (request.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+            return false;
+        }
+        for (Header header : request.getHeaders(HTTP.CONN_DIRECTIVE)) {
+            if (StringUtils.containsIgnoreCase(header.getValue(), HTTP.CONN_CLOSE)) {
+                return false;
+            }
         }
-        if (!this.proxyInfoIterator.hasNext()) {
-            writeErrorResponse(
-                    HttpStatus.SC_BAD_GATEWAY,
-                    "Proxy Auto Config error: no available proxy server");
-            throw new IllegalStateException("All proxy servers are blacklisted!");
+        for (Header header : request.getHeaders(HttpUtils.PROXY_CONNECTION)) {
+            if (StringUtils.containsIgnoreCase(header.getValue(), HTTP.CONN_CLOSE)) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    private static long getConsumed(final SessionInputBufferImpl sessionInputBuffer) {
+        return sessionInputBuffer.getMetrics().getBytesTransferred() - sessionInputBuffer.length();
     }
 
     /**
-     * @return the input stream of the client's socket
+     * @return the input stream of the client's socket (see {@link #inputStream})
      */
     @NotNull
     @Override
@@ -264,22 +354,32 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
     }
 
     /**
-     * Write an object to the output stream using CRLF format.
+     * Append a line of the response's head: the status line or a header, using CRLF format.
+     * <p>Nothing is sent until {@link #writeln()} is called.
+     * <p>The first {@link StatusLine} written gives the response's status code.
      *
      * @param obj the object
-     * @throws IOException
      */
-    public void write(@NotNull Object obj) throws IOException {
-        outputStream.write(CrlfConverter.convert(obj));
+    public void write(@NotNull Object obj) {
+        if (obj instanceof StatusLine) {
+            if (responseStatus == 0) {
+                responseStatus = ((StatusLine) obj).getStatusCode();
+            }
+            responseHead.append((StatusLine) obj);
+        } else if (obj instanceof Header) {
+            responseHead.append((Header) obj);
+        } else {
+            responseHead.append(obj.toString());
+        }
     }
 
     /**
-     * Write an empty line to the output stream using CRLF format.
+     * Write the empty line ending the response's head, sending the whole head at once.
      *
      * @throws IOException
      */
     public void writeln() throws IOException {
-        outputStream.write(CrlfConverter.CRLF.getBytes());
+        responseHead.writeTo(outputStream);
     }
 
     /**
@@ -300,11 +400,28 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      * @param reasonPhrase the request's reason code
      */
     public void writeErrorResponse(int statusCode, String reasonPhrase) {
+        writeErrorResponse(statusCode, reasonPhrase, new Header[0]);
+    }
+
+    /**
+     * Write a simple response with only the status line, date header and the provided headers,
+     * followed by an empty line.
+     * <p><b>This method commits the response.</b></p>
+     *
+     * @param statusCode   the request's status code.
+     * @param reasonPhrase the request's reason code
+     * @param headers      the additional headers
+     */
+    public void writeErrorResponse(int statusCode, String reasonPhrase, Header... headers) {
         logger.debug("Write error response: statusCode = {}  reasonPhrase = [{}]", statusCode, reasonPhrase);
+        startErrorResponse();
         try {
             write(HttpUtils.toStatusLine(request != null ? request.getProtocolVersion() : HttpVersion.HTTP_1_1,
                     statusCode, HttpUtils.replaceCRAndLF(reasonPhrase, StringUtils.SPACE)));
             write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER, HttpUtils.getCurrentDate()));
+            for (Header header : headers) {
+                write(header);
+            }
             writeln();
         } catch (Exception ex) {
             logger.debug("Error on writing error response", ex);
@@ -313,6 +430,7 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
 
     public void writeProxyAuthRequiredErrorResponse() {
         logger.debug("Write error response: statusCode = {}", HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
+        startErrorResponse();
         String body = "<!DOCTYPE HTML \"-//IETF//DTD HTML 2.0//EN\">\n"
                 + "<html><head>\n"
                 + "<title>" + "Proxy authentication failed" + "</title>\n"
@@ -333,6 +451,16 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
         }
     }
 
+    private void startErrorResponse() {
+        // The response is close-delimited
+        keepAlive = false;
+        if (responseHead.isPending()) {
+            // Replace the unfinished head, never sent
+            responseHead.reset();
+            responseStatus = 0;
+        }
+    }
+
     /**
      * Write the response to the output stream as it is.
      * <p><b>This method commits the response.</b></p>
@@ -341,6 +469,7 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
      * @throws Exception
      */
     public void writeHttpResponse(@NotNull final HttpResponse httpResponse) throws IOException {
+        keepAlive = false;
         StatusLine statusLine = httpResponse.getStatusLine();
         logger.debug("Write statusLine {}", statusLine);
         write(statusLine);
@@ -365,6 +494,155 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
         return connect;
     }
 
+    /**
+     * @return the channel of the client's socket,
+     * {@code null} when the socket has not been accepted by the event-driven listener.
+     */
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
+    /**
+     * Hand over the underlying socket to another owner, which becomes responsible for closing it.
+     *
+     * @return the channel of the client's socket
+     * @see #getChannel()
+     */
+    public SocketChannel detach() {
+        Assert.state(socket.getChannel() != null, "Only a channel backed socket can be detached");
+        detached = true;
+        return socket.getChannel();
+    }
+
+    /**
+     * @return {@code true} iff the client's connection can be reused for the next request,
+     * that is the client asks for a persistent connection, the request's body has been entirely read
+     * and the response committed so far is delimited.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive && isRequestConsumed();
+    }
+
+    /**
+     * Set whether the client's connection can be reused for the next request.
+     * <p>The response must not have a close-delimited body when set to {@code true}.
+     *
+     * @param keepAlive whether the client's connection is persistent
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @return {@code true} iff the request's body, if any, has been entirely read from the socket.
+     */
+    private boolean isRequestConsumed() {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null
+                    || entity.getContentLength() == 0
+                    || (!entity.isStreaming() && (entity.getContentLength() > 0 || entity.isChunked()));
+        }
+        return true;
+    }
+
+    /**
+     * @return the admission permit, if any.
+     */
+    public AdmissionController.Permit getPermit() {
+        return permit;
+    }
+
+    void setPermit(AdmissionController.Permit permit) {
+        this.permit = permit;
+    }
+
+    /**
+     * @return the status code of the response written so far, {@code 0} if none.
+     */
+    public int getResponseStatus() {
+        return responseStatus;
+    }
+
+    /**
+     * @return the address of the client.
+     */
+    public SocketAddress getClientAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * @return the bytes received from the client so far, the request head included.
+     */
+    public long getBytesIn() {
+        return getConsumed(sessionInputBuffer) - consumedBefore + inputStream.getByteCount();
+    }
+
+    /**
+     * @return the bytes sent to the client so far.
+     */
+    public long getBytesOut() {
+        return outputStream.getByteCount();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last bytes read from or written to the client's socket,
+     * the session input buffer's reads excepted.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Close the client's socket, from any thread, unblocking the thread processing the request.
+     */
+    void kill() {
+        InputOutputs.close(socket);
+    }
+
+    /**
+     * @return the last proxy used, {@code null} if none.
+     */
+    public ProxyInfo getProxyInfo() {
+        return proxyInfo;
+    }
+
+    /**
+     * @return the scheme of the proxy authentication (Basic, NTLM etc.), {@code null} if none.
+     */
+    public String getAuthScheme() {
+        return authScheme;
+    }
+
+    /**
+     * @param authScheme the scheme of the proxy authentication.
+     */
+    public void setAuthScheme(String authScheme) {
+        this.authScheme = authScheme;
+    }
+
+    /**
+     * @return the timestamps of the request's phases.
+     */
+    @NotNull
+    public RequestTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * @return the name of the last {@link ClientConnectionProcessor} used, {@code null} if none.
+     */
+    public String getProcessorName() {
+        return processorName;
+    }
+
+    /**
+     * @return {@code true} iff the underlying socket has been handed over to another owner.
+     */
+    public boolean isDetached() {
+        return detached;
+    }
+
     /**
      * @return {@code true} iff the underlying socket is closed.
      */
@@ -379,7 +657,13 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
         return request.getRequestLine();
     }
 
-    void prepare() {
+    /**
+     * Prepare the client's connection for processing.
+     * <p><b>The response should be committed before throwing any exception.</b></p>
+     *
+     * @throws Exception
+     */
+    void prepare() throws Exception {
         if (!connect) {
             try {
                 prepareRequest();
@@ -464,6 +748,8 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
         ClientConnectionProcessor connectionProcessor = connectionProcessorSelector.selectConnectionProcessor(
                 connect, proxy);
         logger.debug("Process connection for proxy {} using connectionProcessor: {}", proxy, connectionProcessor);
+        processorName = connectionProcessor.getName();
+        proxyInfo = proxy;
         try {
             connectionProcessor.process(this, proxy);
             return true;
@@ -483,6 +769,10 @@ public abstract class ClientConnection implements StreamSource, AutoCloseable {
 
     @Override
     public void close() {
+        responseHead.reset();
+        if (permit != null && !detached) {
+            permit.release();
+        }
         if (request instanceof HttpEntityEnclosingRequest) {
             HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
             if (entity instanceof AutoCloseable) {
@@ -16,6 +16,7 @@ package org.kpax.winfoom.proxy;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpHost;
 import org.apache.http.RequestLine;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
@@ -27,7 +28,13 @@ import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 
 /**
  * Responsible for handling client's connection.
@@ -49,6 +56,21 @@ public class ClientConnectionHandler implements StopListener {
     @Autowired
     private ConnectionProcessorSelector connectionProcessorSelector;
 
+    @Autowired
+    private AdmissionController admissionController;
+
+    @Autowired
+    private ProxyConnectRacer proxyConnectRacer;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private AccessLog accessLog;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
     /**
      * Supplier for ProxyInfo, manual case.
      */
@@ -60,20 +82,165 @@ public class ClientConnectionHandler implements StopListener {
      * Create a {@link ClientConnection} instance then process it.
      *
      * @param socket the client's socket
+     * @return {@code true} iff the socket has been handed over to another owner, so it must not be closed
+     * @throws Exception
+     */
+    public boolean handleConnection(@NotNull final Socket socket) throws Exception {
+        return handleConnection(socket, socket.getInputStream());
+    }
+
+    /**
+     * Create a {@link ClientConnection} instance then process it.
+     *
+     * @param socket      the client's socket
+     * @param inputStream the socket's input stream, possibly preceded by the bytes already read
+     * @return {@code true} iff the socket has been handed over to another owner, so it must not be closed
+     * @throws Exception
+     * @see ClientConnection#detach()
+     */
+    public boolean handleConnection(@NotNull final Socket socket, @NotNull final InputStream inputStream)
+            throws Exception {
+        return handleConnection(socket, inputStream, null, null);
+    }
+
+    /**
+     * Process the requests of a client's connection, one {@link ClientConnection} instance for each request.
+     * <p>A persistent connection is kept open between requests, at most
+     * {@link SystemConfig#getServerSocketKeepAliveTimeout()} seconds, and serves at most
+     * {@link SystemConfig#getServerSocketKeepAliveMaxRequests()} requests.
+     *
+     * @param socket      the client's socket
+     * @param inputStream the socket's input stream, possibly preceded by the bytes already read
+     * @param idleHandler when not {@code null}, it is offered the channel of an idle persistent connection
+     *                    together with its state, and returns {@code true} iff it takes over the wait
+     *                    for the next request
+     * @param state       the state of a persistent connection dispatched again after waiting for its next request,
+     *                    {@code null} for a new connection
+     * @return {@code true} iff the socket has been handed over to another owner, so it must not be closed
      * @throws Exception
+     * @see ClientConnection#detach()
      */
-    public void handleConnection(@NotNull final Socket socket) throws Exception {
-        try (ClientConnection clientConnection = proxyConfig.isAutoConfig() ?
-                new PacClientConnection(socket, proxyConfig, systemConfig,
-                        connectionProcessorSelector, pacScriptEvaluator) :
-                new ManualProxyClientConnection(socket, proxyConfig, systemConfig,
-                        connectionProcessorSelector, proxyInfoSupplier.get())
-        ) {
-            RequestLine requestLine = clientConnection.getRequestLine();
-            logger.debug("Handle request: {}", requestLine);
-            clientConnection.prepare();
-            clientConnection.process();
-            logger.debug("Done handling request: {}", requestLine);
+    boolean handleConnection(@NotNull final Socket socket,
+                             @NotNull final InputStream inputStream,
+                             final BiPredicate<SocketChannel, ConnectionState> idleHandler,
+                             final ConnectionState state) throws Exception {
+        ConnectionState connectionState = state != null ? state : new ConnectionState(proxyMetrics);
+        Outcome outcome = Outcome.CLOSE;
+        try {
+            outcome = handleRequests(socket, inputStream, idleHandler, connectionState);
+            return outcome != Outcome.CLOSE;
+        } finally {
+            // The idle handler now owns the connection, the state included
+            if (outcome != Outcome.IDLE) {
+                connectionState.closed();
+            }
+        }
+    }
+
+    private Outcome handleRequests(final Socket socket,
+                                   final InputStream inputStream,
+                                   final BiPredicate<SocketChannel, ConnectionState> idleHandler,
+                                   final ConnectionState connectionState) throws Exception {
+        SessionInputBufferImpl sessionInputBuffer = ClientConnection.createSessionInputBuffer(inputStream);
+        while (true) {
+            int requestCount = connectionState.nextRequest();
+            try (ClientConnection clientConnection = proxyConfig.isAutoConfig() ?
+                    new PacClientConnection(socket, inputStream, sessionInputBuffer, proxyConfig, systemConfig,
+                            connectionProcessorSelector, pacScriptEvaluator, proxyConnectRacer) :
+                    new ManualProxyClientConnection(socket, inputStream, sessionInputBuffer, proxyConfig, systemConfig,
+                            connectionProcessorSelector, proxyInfoSupplier.get())
+            ) {
+                RequestLine requestLine = clientConnection.getRequestLine();
+                logger.debug("Handle request: {}", requestLine);
+                if (!systemConfig.isServerSocketKeepAlive()
+                        || requestCount >= systemConfig.getServerSocketKeepAliveMaxRequests()) {
+                    clientConnection.setKeepAlive(false);
+                }
+                connectionRegistry.register(clientConnection);
+                try {
+                    AdmissionController.Permit permit = admissionController.admit(clientConnection);
+                    if (permit == null) {
+                        return Outcome.CLOSE;
+                    }
+                    clientConnection.setPermit(permit);
+                    clientConnection.getTimings().mark(RequestTimings.Phase.ADMITTED);
+                    clientConnection.prepare();
+                    clientConnection.process();
+                } finally {
+                    requestDone(clientConnection);
+                }
+                logger.debug("Done handling request: {}", requestLine);
+                if (clientConnection.isDetached()) {
+                    return Outcome.DETACHED;
+                }
+                if (!clientConnection.isKeepAlive()) {
+                    return Outcome.CLOSE;
+                }
+            }
+
+            // Wait for the next request, unless already received
+            if (!sessionInputBuffer.hasBufferedData()) {
+                if (idleHandler != null
+                        && socket.getChannel() != null
+                        && inputStream.available() == 0
+                        && idleHandler.test(socket.getChannel(), connectionState)) {
+                    logger.debug("Hand over the idle connection");
+                    return Outcome.IDLE;
+                }
+                if (!awaitNextRequest(socket, sessionInputBuffer)) {
+                    return Outcome.CLOSE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the request's metrics and, when it took longer than {@link SystemConfig#getSlowRequestThreshold()},
+     * log the breakdown of its phases.
+     * <p>Unless handed over to the {@link RelayEngine}, which does it once the tunnel is closed,
+     * the request is written to the {@link AccessLog} and removed from the {@link ConnectionRegistry}.
+     *
+     * @param clientConnection the request's {@link ClientConnection}
+     */
+    private void requestDone(final ClientConnection clientConnection) {
+        RequestTimings timings = clientConnection.getTimings();
+        if (!timings.isMarked(RequestTimings.Phase.COMPLETED)) {
+            timings.mark(RequestTimings.Phase.COMPLETED);
+        }
+        proxyMetrics.requestProcessed(clientConnection.getProcessorName(), clientConnection.getResponseStatus());
+        proxyMetrics.requestTimings(timings);
+        int slowRequestThreshold = systemConfig.getSlowRequestThreshold();
+        if (slowRequestThreshold > 0
+                && timings.getTotal() >= TimeUnit.MILLISECONDS.toNanos(slowRequestThreshold)) {
+            logger.warn("Slow request: {} processor: {} status: {} timings: {}", clientConnection.getRequestLine(),
+                    clientConnection.getProcessorName(), clientConnection.getResponseStatus(), timings);
+        }
+        if (!clientConnection.isDetached()) {
+            connectionRegistry.unregister(clientConnection);
+            accessLog.log(clientConnection, clientConnection.getBytesIn(), clientConnection.getBytesOut());
+        }
+    }
+
+    /**
+     * Block until the next request arrives on a persistent connection.
+     *
+     * @param socket             the client's socket
+     * @param sessionInputBuffer the session input buffer
+     * @return {@code false} iff the client closed the connection or the keep-alive timeout expired.
+     * @throws IOException
+     */
+    private boolean awaitNextRequest(final Socket socket, final SessionInputBufferImpl sessionInputBuffer)
+            throws IOException {
+        socket.setSoTimeout(systemConfig.getServerSocketKeepAliveTimeout() * 1000);
+        try {
+            return sessionInputBuffer.fillBuffer() != -1;
+        } catch (SocketTimeoutException e) {
+            logger.debug("Close idle persistent connection");
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                systemConfig.configureSocket(socket);
+            }
         }
     }
 
@@ -81,4 +248,22 @@ public class ClientConnectionHandler implements StopListener {
     public void onStop() {
         proxyInfoSupplier.reset();
     }
+
+    /**
+     * How the handling of a client's connection ended.
+     */
+    private enum Outcome {
+        /**
+         * The connection must be closed.
+         */
+        CLOSE,
+        /**
+         * The connection has been detached, see {@link ClientConnection#detach()}.
+         */
+        DETACHED,
+        /**
+         * The idle handler took over the connection.
+         */
+        IDLE
+    }
 }
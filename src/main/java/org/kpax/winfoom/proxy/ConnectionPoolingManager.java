@@ -13,11 +13,15 @@
 package org.kpax.winfoom.proxy;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.proxy.listener.StopListener;
@@ -28,6 +32,8 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -54,6 +60,9 @@ class ConnectionPoolingManager implements StopListener {
     @Autowired
     private Socks4ConnectionSocketFactory socks4ConnectionSocketFactory;
 
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     /**
      * For HTTP proxy type
      */
@@ -75,6 +84,27 @@ class ConnectionPoolingManager implements StopListener {
     private final List<SingletonSupplier<PoolingHttpClientConnectionManager>> poolingHttpSuppliers =
             Arrays.asList(httpSupplier, socks5Supplier, socks4Supplier);
 
+    @PostConstruct
+    void init() {
+        proxyMetrics.register("winfoom_connection_pool_connections",
+                "The pooled connections of the non-CONNECT requests, by connection manager and state",
+                ProxyMetrics.Type.GAUGE, sink -> {
+                    collectStats(sink, "http", httpSupplier);
+                    collectStats(sink, "socks5", socks5Supplier);
+                    collectStats(sink, "socks4", socks4Supplier);
+                }, "manager", "state");
+    }
+
+    private void collectStats(ProxyMetrics.Sink sink, String manager,
+                              SingletonSupplier<PoolingHttpClientConnectionManager> connectionManagerSupplier) {
+        connectionManagerSupplier.value().ifPresent(connectionManager -> {
+            PoolStats totalStats = connectionManager.getTotalStats();
+            sink.accept(totalStats.getLeased(), manager, "leased");
+            sink.accept(totalStats.getAvailable(), manager, "available");
+            sink.accept(totalStats.getPending(), manager, "pending");
+        });
+    }
+
     /**
      * Lazy getter for HTTP proxy.
      *
@@ -147,8 +177,8 @@ class ConnectionPoolingManager implements StopListener {
     private PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
         Assert.state(proxyController.isRunning(), "Cannot create connectionManagers: ConnectionPoolingManager is not started");
         PoolingHttpClientConnectionManager connectionManager = socketFactoryRegistry != null
-                ? new PoolingHttpClientConnectionManager(socketFactoryRegistry) :
-                new PoolingHttpClientConnectionManager();
+                ? new TimingConnectionManager(socketFactoryRegistry) :
+                new TimingConnectionManager();
         logger.info("Configure connection manager");
         if (systemConfig.getMaxConnections() != null) {
             connectionManager.setMaxTotal(systemConfig.getMaxConnections());
@@ -176,6 +206,29 @@ class ConnectionPoolingManager implements StopListener {
         return createConnectionManager(socketFactoryRegistry);
     }
 
+    /**
+     * Leaves in the context the time spent connecting, for the {@link ProxyMetrics},
+     * and marks the {@link RequestTimings.Phase#CONNECTED} phase.
+     */
+    private static final class TimingConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private TimingConnectionManager() {
+        }
+
+        private TimingConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+            super(socketFactoryRegistry);
+        }
+
+        @Override
+        public void connect(HttpClientConnection managedConn, HttpRoute route, int connectTimeout,
+                            HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            super.connect(managedConn, route, connectTimeout, context);
+            context.setAttribute(ProxyMetrics.CONNECT_NANOS, System.nanoTime() - start);
+            RequestTimings.mark(context, RequestTimings.Phase.CONNECTED);
+        }
+    }
+
     @Override
     public void onStop() {
         logger.debug("Close all active connection managers and reset the suppliers");
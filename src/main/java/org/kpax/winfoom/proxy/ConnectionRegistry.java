@@ -0,0 +1,369 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The live table of the requests being processed and of the tunnels in flight.
+ * <p>A connection registers itself once its request is parsed and unregisters when done
+ * or, for a tunnel handed over to the {@link RelayEngine}, when the relay is closed.
+ * The registration is a single {@link ConcurrentHashMap} insertion, so the connection setup
+ * does not wait for the readers of the table, which only take a snapshot.
+ * <p>The byte counters are those of the {@link ClientConnection}, plus those updated by
+ * the {@link RelayEngine}'s loop for a relayed tunnel.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Component
+public class ConnectionRegistry {
+
+    /**
+     * The bandwidth is averaged over at least this interval between two snapshots (milliseconds).
+     */
+    private static final long MIN_SAMPLE_INTERVAL = 1000;
+
+    @Autowired
+    private RelayEngine relayEngine;
+
+    private final Map<ClientConnection, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong idGenerator = new AtomicLong();
+
+    /**
+     * Add a connection to the table.
+     *
+     * @param clientConnection the client's connection.
+     */
+    public void register(@NotNull final ClientConnection clientConnection) {
+        entries.put(clientConnection, new Entry(idGenerator.incrementAndGet(), clientConnection));
+    }
+
+    /**
+     * Remove a connection from the table.
+     *
+     * @param clientConnection the client's connection.
+     */
+    public void unregister(@NotNull final ClientConnection clientConnection) {
+        entries.remove(clientConnection);
+    }
+
+    /**
+     * Record the remote socket of a tunnel relayed by the current thread, so that killing it
+     * unblocks both directions.
+     *
+     * @param clientConnection the client's connection.
+     * @param upstreamSocket   the remote socket.
+     */
+    public void tunneled(@NotNull final ClientConnection clientConnection, @NotNull final Socket upstreamSocket) {
+        Entry entry = entries.get(clientConnection);
+        if (entry != null) {
+            entry.upstreamSocket = upstreamSocket;
+        }
+    }
+
+    /**
+     * Record the {@link RelayEngine.Relay} a tunnel has been handed over to.
+     *
+     * @param clientConnection the client's connection.
+     * @param relay            the relay's handle.
+     */
+    public void relayed(@NotNull final ClientConnection clientConnection, @NotNull final RelayEngine.Relay relay) {
+        Entry entry = entries.get(clientConnection);
+        if (entry != null) {
+            entry.relay = relay;
+        }
+    }
+
+    /**
+     * @return the snapshot of the active connections, the ones with the highest bandwidth first.
+     */
+    public List<ConnectionInfo> getConnections() {
+        long now = System.nanoTime();
+        List<ConnectionInfo> connections = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            connections.add(entry.snapshot(now));
+        }
+        connections.sort(Comparator.comparingLong(ConnectionInfo::getBandwidth).reversed()
+                .thenComparingLong(ConnectionInfo::getId));
+        return connections;
+    }
+
+    /**
+     * @return the number of active connections.
+     */
+    public int getActiveCount() {
+        return entries.size();
+    }
+
+    /**
+     * Close a connection: the client's socket and, for a tunnel, the remote one.
+     * <p>The request's thread, if any, fails on its next read or write and cleans up as usual.
+     *
+     * @param id the connection's id (see {@link ConnectionInfo#getId()}).
+     * @return {@code true} iff the connection was found.
+     */
+    public boolean kill(long id) {
+        for (Entry entry : entries.values()) {
+            if (entry.id == id) {
+                logger.info("Kill connection {}: {}", id, entry.clientConnection.getRequestLine());
+                RelayEngine.Relay relay = entry.relay;
+                if (relay != null) {
+                    relayEngine.kill(relay);
+                } else {
+                    entry.clientConnection.kill();
+                    Socket upstreamSocket = entry.upstreamSocket;
+                    if (upstreamSocket != null) {
+                        InputOutputs.close(upstreamSocket);
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A registered connection.
+     */
+    private static final class Entry {
+
+        private final long id;
+
+        private final ClientConnection clientConnection;
+
+        private final long startTime = System.currentTimeMillis();
+
+        private final long start = System.nanoTime();
+
+        private volatile Socket upstreamSocket;
+
+        private volatile RelayEngine.Relay relay;
+
+        /**
+         * The bytes transferred and the time of the bandwidth sample, guarded by this entry.
+         */
+        private long sampleBytes;
+
+        private long sampleTime = start;
+
+        private long bandwidth;
+
+        private Entry(long id, ClientConnection clientConnection) {
+            this.id = id;
+            this.clientConnection = clientConnection;
+        }
+
+        private ConnectionInfo snapshot(long now) {
+            RelayEngine.Relay relay = this.relay;
+            long bytesIn = clientConnection.getBytesIn();
+            long bytesOut = clientConnection.getBytesOut();
+            long lastActivity = clientConnection.getLastActivity();
+            if (relay != null) {
+                bytesIn += relay.getClientToUpstreamBytes();
+                bytesOut += relay.getUpstreamToClientBytes();
+                lastActivity = Math.max(lastActivity, relay.getLastActivity());
+            }
+            ProxyInfo proxyInfo = clientConnection.getProxyInfo();
+            return new ConnectionInfo(id,
+                    format(clientConnection.getClientAddress()),
+                    clientConnection.getRequestLine().getMethod(),
+                    clientConnection.getRequestLine().getUri(),
+                    proxyInfo != null ? ProxyMetrics.upstream(proxyInfo) : null,
+                    clientConnection.isConnect(),
+                    relay != null,
+                    startTime,
+                    TimeUnit.NANOSECONDS.toMillis(now - start),
+                    TimeUnit.NANOSECONDS.toMillis(Math.max(now - lastActivity, 0)),
+                    bytesIn,
+                    bytesOut,
+                    sampleBandwidth(bytesIn + bytesOut, now));
+        }
+
+        /**
+         * @return the bytes per second since the previous sample, at least {@link #MIN_SAMPLE_INTERVAL} old.
+         */
+        private synchronized long sampleBandwidth(long bytes, long now) {
+            long elapsed = now - sampleTime;
+            if (elapsed >= TimeUnit.MILLISECONDS.toNanos(MIN_SAMPLE_INTERVAL) || sampleTime == start) {
+                bandwidth = elapsed > 0 ? (bytes - sampleBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+                sampleBytes = bytes;
+                sampleTime = now;
+            }
+            return bandwidth;
+        }
+
+        private static String format(SocketAddress address) {
+            if (address instanceof InetSocketAddress) {
+                InetSocketAddress socketAddress = (InetSocketAddress) address;
+                return (socketAddress.getAddress() != null ? socketAddress.getAddress().getHostAddress()
+                        : socketAddress.getHostString()) + ':' + socketAddress.getPort();
+            }
+            return String.valueOf(address);
+        }
+    }
+
+    /**
+     * The snapshot of an active connection.
+     */
+    public static final class ConnectionInfo {
+
+        private final long id;
+
+        private final String client;
+
+        private final String method;
+
+        private final String target;
+
+        private final String upstream;
+
+        private final boolean tunnel;
+
+        private final boolean relayed;
+
+        private final long startTime;
+
+        private final long age;
+
+        private final long idle;
+
+        private final long bytesIn;
+
+        private final long bytesOut;
+
+        private final long bandwidth;
+
+        ConnectionInfo(long id, String client, String method, String target, String upstream,
+                       boolean tunnel, boolean relayed, long startTime, long age, long idle,
+                       long bytesIn, long bytesOut, long bandwidth) {
+            this.id = id;
+            this.client = client;
+            this.method = method;
+            this.target = target;
+            this.upstream = upstream;
+            this.tunnel = tunnel;
+            this.relayed = relayed;
+            this.startTime = startTime;
+            this.age = age;
+            this.idle = idle;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.bandwidth = bandwidth;
+        }
+
+        /**
+         * @return the id to kill the connection with.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return the client's address.
+         */
+        public String getClient() {
+            return client;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return the upstream proxy ({@code direct} if none), {@code null} when not chosen yet.
+         */
+        public String getUpstream() {
+            return upstream;
+        }
+
+        /**
+         * @return {@code true} iff this is a CONNECT tunnel.
+         */
+        public boolean isTunnel() {
+            return tunnel;
+        }
+
+        /**
+         * @return {@code true} iff the tunnel is relayed by the {@link RelayEngine}.
+         */
+        public boolean isRelayed() {
+            return relayed;
+        }
+
+        /**
+         * @return the time when the request was registered (milliseconds since epoch).
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the time since the request was registered (milliseconds).
+         */
+        public long getAge() {
+            return age;
+        }
+
+        /**
+         * @return the time since the last byte transferred (milliseconds).
+         */
+        public long getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return the bytes received from the client.
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * @return the bytes sent to the client.
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * @return the bytes per second, in both directions, since the previous snapshot.
+         */
+        public long getBandwidth() {
+            return bandwidth;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What outlives a single request on a client's connection: the number of requests served so far
+ * and the open connection's bookkeeping.
+ * <p>While an idle persistent connection waits in the {@link NioConnectionAcceptor},
+ * its state travels with the channel, then it is given back on the next dispatch.
+ * It is used by one thread at a time, the hand-over between threads being done through the executor.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+final class ConnectionState {
+
+    private final ProxyMetrics proxyMetrics;
+
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    private int requestCount;
+
+    ConnectionState(@NotNull final ProxyMetrics proxyMetrics) {
+        this.proxyMetrics = proxyMetrics;
+        proxyMetrics.connectionOpened();
+    }
+
+    /**
+     * @return the number of the request about to be served, starting with {@code 1}.
+     */
+    int nextRequest() {
+        return ++requestCount;
+    }
+
+    /**
+     * Account for the connection being closed; only the first call counts.
+     */
+    void closed() {
+        if (open.compareAndSet(true, false)) {
+            proxyMetrics.connectionClosed();
+        }
+    }
+
+}
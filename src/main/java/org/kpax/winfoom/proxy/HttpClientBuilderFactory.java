@@ -12,31 +12,51 @@
 
 package org.kpax.winfoom.proxy;
 
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthSchemeProvider;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.Registry;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.functional.ProxySingletonSupplier;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.util.Objects;
+
 /**
  * A factory for {@link HttpClientBuilder} for different proxy types.
  * <p><b>Note:</b> The {@link HttpClientBuilder} class is not thread safe.
+ * <p>The built {@link CloseableHttpClient} instances are cached by proxy and authentication protocol,
+ * the cache being dropped when the local proxy server stops.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
  * Created on 4/10/2020
  */
+@Slf4j
 @ThreadSafe
 @Component
-public class HttpClientBuilderFactory {
+public class HttpClientBuilderFactory implements StopListener {
 
     @Autowired
     private SystemConfig systemConfig;
@@ -53,6 +73,41 @@ public class HttpClientBuilderFactory {
     @Autowired
     private ConnectionPoolingManager connectionPoolingManager;
 
+    /**
+     * The built clients, they all share the connection managers so there is nothing to release on eviction.
+     */
+    private final SingletonSupplier<Cache<ClientKey, CloseableHttpClient>> httpClientCacheSupplier =
+            new SingletonSupplier<>(() ->
+                    Cache2kBuilder.of(ClientKey.class, CloseableHttpClient.class)
+                            .eternal(true)
+                            .entryCapacity(systemConfig.getCacheHttpClientCapacity())
+                            .build()
+            );
+
+    /**
+     * Get a {@link CloseableHttpClient} instance for the requested proxy, built on first use.
+     * <p><b>Note:</b> The result is cached, so the caller must not close it.
+     *
+     * @param proxyInfo the proxy.
+     * @return a pre-configured {@link CloseableHttpClient} instance for the requested proxy.
+     */
+    public CloseableHttpClient getHttpClient(@NotNull final ProxyInfo proxyInfo) {
+        ClientKey clientKey = new ClientKey(proxyInfo, proxyInfo.getType().isHttp() ?
+                (proxyConfig.isAutoConfig() ? proxyConfig.getPacHttpAuthProtocol() : proxyConfig.getHttpAuthProtocol())
+                : null);
+        return httpClientCacheSupplier.get().computeIfAbsent(clientKey, () -> {
+            logger.debug("Build HTTP client for {}", clientKey);
+            return createClientBuilder(proxyInfo).build();
+        });
+    }
+
+    /**
+     * Drop the cached clients, for instance when the PAC script changes.
+     */
+    public void clearHttpClients() {
+        httpClientCacheSupplier.value().ifPresent(Cache::removeAll);
+    }
+
     /**
      * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
      *
@@ -87,6 +142,7 @@ public class HttpClientBuilderFactory {
                 setConnectionManagerShared(true).
                 setDefaultRequestConfig(requestConfig).
                 setRoutePlanner(new DefaultProxyRoutePlanner(requestConfig.getProxy())).
+                setRequestExecutor(new TimingRequestExecutor()).
                 disableAutomaticRetries().
                 disableRedirectHandling().
                 disableCookieManagement();
@@ -104,6 +160,7 @@ public class HttpClientBuilderFactory {
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
                         .build())
+                .setRequestExecutor(new TimingRequestExecutor())
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
                 .disableCookieManagement();
@@ -122,9 +179,77 @@ public class HttpClientBuilderFactory {
                         .setCircularRedirectsAllowed(true)
                         .build())
                 .setConnectionManagerShared(true)
+                .setRequestExecutor(new TimingRequestExecutor())
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
                 .disableCookieManagement();
     }
 
+    @Override
+    public void onStop() {
+        httpClientCacheSupplier.reset(Cache::close);
+    }
+
+    /**
+     * Leaves in the context the time spent in the proxy authentication's challenges
+     * and the time until the final response's head is received, for the {@link ProxyMetrics},
+     * marking the corresponding {@link RequestTimings} phases.
+     */
+    private static final class TimingRequestExecutor extends HttpRequestExecutor {
+
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            long start = System.nanoTime();
+            HttpResponse response = super.execute(request, conn, context);
+            long elapsed = System.nanoTime() - start;
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+                Object authNanos = context.getAttribute(ProxyMetrics.AUTH_NANOS);
+                context.setAttribute(ProxyMetrics.AUTH_NANOS,
+                        authNanos instanceof Long ? (Long) authNanos + elapsed : elapsed);
+                RequestTimings.mark(context, RequestTimings.Phase.AUTHENTICATED);
+            } else {
+                context.setAttribute(ProxyMetrics.FIRST_BYTE_NANOS, elapsed);
+                RequestTimings.mark(context, RequestTimings.Phase.FIRST_BYTE);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * The key of the cached clients.
+     */
+    private static final class ClientKey {
+
+        private final ProxyInfo proxyInfo;
+
+        private final ProxyConfig.HttpAuthProtocol httpAuthProtocol;
+
+        private ClientKey(ProxyInfo proxyInfo, ProxyConfig.HttpAuthProtocol httpAuthProtocol) {
+            this.proxyInfo = proxyInfo;
+            this.httpAuthProtocol = httpAuthProtocol;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ClientKey clientKey = (ClientKey) o;
+            return proxyInfo.equals(clientKey.proxyInfo) && httpAuthProtocol == clientKey.httpAuthProtocol;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(proxyInfo, httpAuthProtocol);
+        }
+
+        @Override
+        public String toString() {
+            return "ClientKey{" +
+                    "proxyInfo=" + proxyInfo +
+                    ", httpAuthProtocol=" + httpAuthProtocol +
+                    '}';
+        }
+    }
+
 }
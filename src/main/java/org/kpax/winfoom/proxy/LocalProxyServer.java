@@ -16,6 +16,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.jfr.ConnectionAcceptedEvent;
 import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
@@ -25,9 +26,12 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.function.BiPredicate;
 
 /**
  * The local proxy server.
@@ -54,6 +58,11 @@ class LocalProxyServer implements StopListener {
 
     private ServerSocket serverSocket;
 
+    /**
+     * The event-driven listener, used instead of {@link #serverSocket} when enabled.
+     */
+    private volatile NioConnectionAcceptor nioConnectionAcceptor;
+
     /**
      * Start the local proxy server.
      * <p>This means:
@@ -62,27 +71,42 @@ class LocalProxyServer implements StopListener {
      * <li>When a connection arrives, it delegates the handling to the {@link ClientConnectionHandler}, on a new
      * thread.</li>
      * </ul>
+     * <p>When {@link SystemConfig#isServerSocketNio()} is on, the connections are accepted by a
+     * {@link NioConnectionAcceptor} instead, that reads the request head without blocking.
      *
      * @throws Exception
      */
     synchronized void start() throws IOException {
         Assert.isTrue(serverSocket == null || serverSocket.isClosed(),
                 "There is an active ServerSocket instance that needs to be closed before creating another one");
+        Assert.isTrue(nioConnectionAcceptor == null,
+                "There is an active NioConnectionAcceptor instance that needs to be closed before creating another one");
         logger.info("Start local proxy server with userConfig {}", proxyConfig);
         try {
+            if (systemConfig.isServerSocketNio()) {
+                if (NioConnectionAcceptor.isSupported()) {
+                    nioConnectionAcceptor = new NioConnectionAcceptor(systemConfig, executorService,
+                            (socket, inputStream, state) ->
+                                    handleConnection(socket, inputStream, this::awaitNextRequest, state));
+                    nioConnectionAcceptor.start(proxyConfig.getLocalPort(), systemConfig.getServerSocketBacklog());
+                    logger.info("Server started (event-driven), listening on port: " + proxyConfig.getLocalPort());
+                    return;
+                }
+                logger.warn("The event-driven listener requires Java 13 or later, use the blocking one");
+            }
             serverSocket = new ServerSocket(proxyConfig.getLocalPort(),
                     systemConfig.getServerSocketBacklog());
             executorService.submit(() -> {
                 while (true) {
                     try {
                         Socket socket = serverSocket.accept();
+                        ConnectionAcceptedEvent.emit(socket, false);
                         systemConfig.configureSocket(socket);
                         executorService.submit(() -> {
                             try {
-                                clientConnectionHandler.handleConnection(socket);
-                            } catch (Exception e) {
-                                logger.debug("Error on handling connection", e);
-                            } finally {
+                                handleConnection(socket, socket.getInputStream(), null, null);
+                            } catch (IOException e) {
+                                logger.debug("Error on getting the socket's input stream", e);
                                 InputOutputs.close(socket);
                             }
                         });
@@ -110,10 +134,40 @@ class LocalProxyServer implements StopListener {
         }
     }
 
+    private void handleConnection(Socket socket, InputStream inputStream,
+                                  BiPredicate<SocketChannel, ConnectionState> idleHandler, ConnectionState state) {
+        boolean detached = false;
+        try {
+            detached = clientConnectionHandler.handleConnection(socket, inputStream, idleHandler, state);
+        } catch (Exception e) {
+            logger.debug("Error on handling connection", e);
+        } finally {
+            if (!detached) {
+                InputOutputs.close(socket);
+            }
+        }
+    }
+
+    /**
+     * Let the event-driven listener wait for the next request of an idle persistent connection.
+     *
+     * @param channel the client's channel
+     * @param state   the connection's state
+     * @return {@code true} iff the listener took over the connection.
+     */
+    private boolean awaitNextRequest(SocketChannel channel, ConnectionState state) {
+        NioConnectionAcceptor acceptor = nioConnectionAcceptor;
+        return acceptor != null && acceptor.awaitNextRequest(channel, state);
+    }
+
     @Override
     public synchronized void onStop() {
         logger.info("Close the local proxy server");
         InputOutputs.close(serverSocket);
+        if (nioConnectionAcceptor != null) {
+            nioConnectionAcceptor.close();
+            nioConnectionAcceptor = null;
+        }
     }
 
 }
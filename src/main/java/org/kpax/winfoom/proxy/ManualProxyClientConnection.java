@@ -1,11 +1,13 @@
 package org.kpax.winfoom.proxy;
 
 import org.apache.http.HttpException;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.proxy.processor.ConnectionProcessorSelector;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 
 /**
@@ -14,11 +16,13 @@ import java.net.Socket;
 public class ManualProxyClientConnection extends ClientConnection {
 
     ManualProxyClientConnection(Socket socket,
+                                InputStream inputStream,
+                                SessionInputBufferImpl sessionInputBuffer,
                                 ProxyConfig proxyConfig,
                                 SystemConfig systemConfig,
                                 ConnectionProcessorSelector connectionProcessorSelector,
                                 ProxyInfo manualProxy) throws IOException, HttpException {
-        super(socket, proxyConfig, systemConfig, connectionProcessorSelector, manualProxy);
+        super(socket, inputStream, sessionInputBuffer, proxyConfig, systemConfig, connectionProcessorSelector, manualProxy);
     }
 
     @Override
@@ -0,0 +1,463 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.jfr.ConnectionAcceptedEvent;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event-driven listener of the local proxy server.
+ * <p>A single task accepts the connections, then a small, fixed set of selector threads
+ * read the request head without blocking. Once the head is complete, the connection is switched back
+ * to blocking mode and dispatched, on a new thread, together with an input stream
+ * that replays the bytes already read.
+ * <p>This way, a connection that doesn't send a complete request head doesn't hold any thread.
+ * Neither does an idle persistent connection, handed back by
+ * {@link #awaitNextRequest(SocketChannel, ConnectionState)}: its {@link ConnectionState} is kept
+ * with the channel, then given back on the next dispatch.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+class NioConnectionAcceptor implements AutoCloseable {
+
+    /**
+     * The max request head length buffered by a selector thread.
+     * <p>When reached, the connection is dispatched anyway, and the rest is parsed in blocking mode.
+     */
+    static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    /**
+     * The selector's timeout, also the granularity of idle connections check (milliseconds).
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final SystemConfig systemConfig;
+
+    private final ExecutorService executorService;
+
+    /**
+     * Consumes the socket in blocking mode, together with its input stream.
+     */
+    private final ConnectionConsumer connectionConsumer;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final SelectorLoop[] selectorLoops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private volatile boolean started;
+
+    private volatile boolean closed;
+
+    NioConnectionAcceptor(@NotNull final SystemConfig systemConfig,
+                          @NotNull final ExecutorService executorService,
+                          @NotNull final ConnectionConsumer connectionConsumer) throws IOException {
+        this.systemConfig = systemConfig;
+        this.executorService = executorService;
+        this.connectionConsumer = connectionConsumer;
+        this.serverChannel = ServerSocketChannel.open();
+        this.selectorLoops = new SelectorLoop[Math.max(1, systemConfig.getServerSocketNioSelectors())];
+        try {
+            for (int i = 0; i < selectorLoops.length; i++) {
+                selectorLoops[i] = new SelectorLoop(Selector.open());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * The blocking mode of the socket adaptors of a {@link SocketChannel}
+     * (used once the connection is dispatched) allows concurrent read/write only from Java 13 on.
+     *
+     * @return {@code true} iff the current runtime supports the event-driven listener.
+     */
+    static boolean isSupported() {
+        return Runtime.version().feature() >= 13;
+    }
+
+    /**
+     * Bind the server channel, then start accepting connections.
+     *
+     * @param port    the local port
+     * @param backlog the maximum number of pending connections
+     * @throws IOException
+     */
+    void start(int port, int backlog) throws IOException {
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        for (SelectorLoop selectorLoop : selectorLoops) {
+            executorService.submit(selectorLoop);
+        }
+        started = true;
+        executorService.submit(() -> {
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    ConnectionAcceptedEvent.emit(channel.socket(), true);
+                    try {
+                        systemConfig.configureSocket(channel.socket());
+                        channel.configureBlocking(false);
+                        nextSelectorLoop().register(channel, systemConfig.getSocketSoTimeout(), null);
+                    } catch (Exception e) {
+                        logger.debug("Error on registering connection", e);
+                        InputOutputs.close(channel);
+                    }
+                } catch (ClosedChannelException e) {
+                    // The server channel has been closed, exit the while loop
+                    break;
+                } catch (Exception e) {
+                    logger.debug("Generic error on getting connection", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take over an idle persistent connection: the next request head is read without blocking,
+     * then the connection is dispatched again.
+     *
+     * @param channel the channel of the client's connection, in blocking mode
+     * @param state   the connection's state, given back on dispatch, or accounted as closed
+     *                when the connection is closed while waiting
+     * @return {@code true} iff the connection has been taken over, also when closed because the listener is stopped.
+     */
+    boolean awaitNextRequest(@NotNull final SocketChannel channel, @NotNull final ConnectionState state) {
+        if (!started) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            logger.debug("Cannot switch the connection to non-blocking mode", e);
+            return false;
+        }
+        // Checked under the close() lock, otherwise the registration could miss the selector loop's shutdown
+        synchronized (this) {
+            if (closed) {
+                logger.debug("Listener stopped, close the idle connection");
+                InputOutputs.close(channel);
+                state.closed();
+            } else {
+                nextSelectorLoop().register(channel, systemConfig.getServerSocketKeepAliveTimeout(), state);
+            }
+        }
+        return true;
+    }
+
+    private SelectorLoop nextSelectorLoop() {
+        return selectorLoops[Math.floorMod(nextLoop.getAndIncrement(), selectorLoops.length)];
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        InputOutputs.close(serverChannel);
+        for (SelectorLoop selectorLoop : selectorLoops) {
+            if (selectorLoop != null) {
+                if (started) {
+                    selectorLoop.close();
+                } else {
+                    InputOutputs.close(selectorLoop.selector);
+                }
+            }
+        }
+    }
+
+    /**
+     * The request head bytes read so far, attached to the selection key.
+     */
+    private static class HeadBuffer {
+
+        private byte[] bytes = new byte[0];
+
+        private int length;
+
+        /**
+         * The position from which the search for the end of the head is resumed.
+         */
+        private int scanned;
+
+        private final long deadline;
+
+        /**
+         * The state of a persistent connection, {@code null} for a new one.
+         */
+        private final ConnectionState state;
+
+        HeadBuffer(long deadline, ConnectionState state) {
+            this.deadline = deadline;
+            this.state = state;
+        }
+
+        void append(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + count, Math.min(bytes.length * 2, MAX_HEAD_LENGTH)));
+            }
+            buffer.get(bytes, length, count);
+            length += count;
+        }
+
+        /**
+         * @return {@code true} iff the buffer contains an empty line (LF LF or LF CR LF).
+         */
+        boolean isComplete() {
+            for (int i = scanned; i < length; i++) {
+                if (bytes[i] == '\n') {
+                    if (i + 1 < length && bytes[i + 1] == '\n') {
+                        return true;
+                    }
+                    if (i + 2 < length && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') {
+                        return true;
+                    }
+                }
+            }
+            scanned = Math.max(0, length - 2);
+            return false;
+        }
+
+        boolean isFull() {
+            return length >= MAX_HEAD_LENGTH;
+        }
+
+        InputStream toInputStream(InputStream inputStream) {
+            return new SequenceInputStream(new ByteArrayInputStream(bytes, 0, length), inputStream);
+        }
+    }
+
+    /**
+     * A connection waiting to be registered with a selector loop.
+     */
+    private static class Registration {
+
+        private final SocketChannel channel;
+
+        /**
+         * The max time to wait for the request head (seconds).
+         */
+        private final int timeout;
+
+        /**
+         * The state of a persistent connection, {@code null} for a new one.
+         */
+        private final ConnectionState state;
+
+        Registration(SocketChannel channel, int timeout, ConnectionState state) {
+            this.channel = channel;
+            this.timeout = timeout;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Reads the request head of the registered connections.
+     */
+    private class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Shared by all the connections of this loop, the received bytes are copied into {@link HeadBuffer}.
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(InputOutputs.DEFAULT_BUFFER_SIZE);
+
+        private volatile boolean running = true;
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel, int timeout, ConnectionState state) {
+            registrations.add(new Registration(channel, timeout, state));
+            selector.wakeup();
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            List<SelectionKey> completed = new ArrayList<>();
+            long lastIdleCheck = System.nanoTime();
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT);
+                    registerPending();
+
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        if (key.isValid() && key.isReadable() && read(key)) {
+                            key.cancel();
+                            completed.add(key);
+                        }
+                    }
+
+                    if (!completed.isEmpty()) {
+                        // Flush the cancelled keys, so the channels can be switched to blocking mode
+                        selector.selectNow();
+                        for (SelectionKey key : completed) {
+                            dispatch((SocketChannel) key.channel(), (HeadBuffer) key.attachment());
+                        }
+                        completed.clear();
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastIdleCheck >= TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT)) {
+                        closeExpired(now);
+                        lastIdleCheck = now;
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                logger.debug("Selector closed");
+            } catch (Exception e) {
+                logger.error("Selector loop error", e);
+            } finally {
+                shutdown();
+            }
+        }
+
+        private void registerPending() {
+            long now = System.nanoTime();
+            for (Registration registration; (registration = registrations.poll()) != null; ) {
+                try {
+                    registration.channel.register(selector, SelectionKey.OP_READ,
+                            new HeadBuffer(now + TimeUnit.SECONDS.toNanos(registration.timeout), registration.state));
+                } catch (Exception e) {
+                    logger.debug("Error on registering channel", e);
+                    closeConnection(registration.channel, registration.state);
+                }
+            }
+        }
+
+        /**
+         * @return {@code true} iff the connection is ready to be dispatched.
+         */
+        private boolean read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            HeadBuffer headBuffer = (HeadBuffer) key.attachment();
+            try {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    // The client gave up before sending the request head
+                    key.cancel();
+                    closeConnection(channel, headBuffer.state);
+                    return false;
+                }
+                readBuffer.flip();
+                headBuffer.append(readBuffer);
+                return headBuffer.isComplete() || headBuffer.isFull();
+            } catch (Exception e) {
+                logger.debug("Error on reading request head", e);
+                key.cancel();
+                closeConnection(channel, headBuffer.state);
+                return false;
+            }
+        }
+
+        private void dispatch(SocketChannel channel, HeadBuffer headBuffer) {
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                InputStream inputStream = headBuffer.toInputStream(socket.getInputStream());
+                executorService.submit(() -> connectionConsumer.accept(socket, inputStream, headBuffer.state));
+            } catch (Exception e) {
+                logger.debug("Error on dispatching connection", e);
+                closeConnection(channel, headBuffer.state);
+            }
+        }
+
+        private void closeExpired(long now) {
+            for (SelectionKey key : selector.keys()) {
+                HeadBuffer headBuffer = (HeadBuffer) key.attachment();
+                if (key.isValid() && now - headBuffer.deadline > 0) {
+                    logger.debug("Close idle connection {}", key.channel());
+                    key.cancel();
+                    closeConnection((SocketChannel) key.channel(), headBuffer.state);
+                }
+            }
+        }
+
+        private void shutdown() {
+            for (Registration registration; (registration = registrations.poll()) != null; ) {
+                closeConnection(registration.channel, registration.state);
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    closeConnection((SocketChannel) key.channel(), ((HeadBuffer) key.attachment()).state);
+                }
+            } catch (ClosedSelectorException e) {
+                // Nothing left to close
+            }
+            InputOutputs.close(selector);
+        }
+
+        private void closeConnection(SocketChannel channel, ConnectionState state) {
+            InputOutputs.close(channel);
+            if (state != null) {
+                state.closed();
+            }
+        }
+    }
+
+    /**
+     * Consumes a dispatched connection.
+     */
+    @FunctionalInterface
+    interface ConnectionConsumer {
+
+        /**
+         * @param socket      the client's socket, in blocking mode
+         * @param inputStream the socket's input stream, preceded by the bytes already read
+         * @param state       the state of a persistent connection, {@code null} for a new one
+         */
+        void accept(Socket socket, InputStream inputStream, ConnectionState state);
+    }
+
+}
@@ -1,27 +1,91 @@
 package org.kpax.winfoom.proxy;
 
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.pac.PacScriptEvaluator;
 import org.kpax.winfoom.proxy.processor.ConnectionProcessorSelector;
+import org.kpax.winfoom.util.HttpUtils;
 
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.URI;
+import java.util.List;
 
 /**
  * A specialized {@link ClientConnection} for PAC proxy type.
  */
+@Slf4j
 public class PacClientConnection extends ClientConnection {
 
+    private final PacScriptEvaluator pacScriptEvaluator;
+
+    private final ProxyConnectRacer proxyConnectRacer;
+
+    private List<ProxyInfo> activeProxies;
+
     PacClientConnection(Socket socket,
+                        InputStream inputStream,
+                        SessionInputBufferImpl sessionInputBuffer,
                         ProxyConfig proxyConfig,
                         SystemConfig systemConfig,
                         ConnectionProcessorSelector connectionProcessorSelector,
-                        PacScriptEvaluator pacScriptEvaluator) throws Exception {
-        super(socket, proxyConfig, systemConfig, connectionProcessorSelector, pacScriptEvaluator);
+                        PacScriptEvaluator pacScriptEvaluator,
+                        ProxyConnectRacer proxyConnectRacer) throws Exception {
+        super(socket, inputStream, sessionInputBuffer, proxyConfig, systemConfig, connectionProcessorSelector);
+        this.pacScriptEvaluator = pacScriptEvaluator;
+        this.proxyConnectRacer = proxyConnectRacer;
+    }
+
+    /**
+     * Find the proxies for the request URI, then prepare the request.
+     * <p>The PAC lookup is done here and not in the constructor, so the admission
+     * of the connection is decided before evaluating the PAC script.
+     *
+     * @throws Exception
+     */
+    @Override
+    void prepare() throws Exception {
+        URI requestUri = getRequestUri();
+        logger.debug("Extracted URI from request {}", requestUri);
+        try {
+            this.activeProxies = pacScriptEvaluator.findProxyForURL(requestUri);
+            logger.debug("activeProxies: {}", activeProxies);
+            this.proxyInfoIterator = activeProxies.iterator();
+            getTimings().mark(RequestTimings.Phase.RESOLVED);
+        } catch (Exception e) {
+            writeErrorResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, HttpUtils.reasonPhraseForPac(e));
+            throw e;
+        }
+        if (!this.proxyInfoIterator.hasNext()) {
+            writeErrorResponse(
+                    HttpStatus.SC_BAD_GATEWAY,
+                    "Proxy Auto Config error: no available proxy server");
+            throw new IllegalStateException("All proxy servers are blacklisted!");
+        }
+        super.prepare();
     }
 
+    /**
+     * Try the proxies one after another until one succeeds.
+     * <p>When the connect racing is enabled and there are several proxies,
+     * the one connecting first is tried first.
+     */
     @Override
     void process() {
+        if (activeProxies.size() > 1 && proxyConnectRacer.isEnabled()) {
+            List<ProxyInfo> reachableProxies = proxyConnectRacer.race(activeProxies, getRequestUri());
+            logger.debug("reachableProxies: {}", reachableProxies);
+            if (reachableProxies.isEmpty()) {
+                writeErrorResponse(
+                        HttpStatus.SC_BAD_GATEWAY,
+                        "Proxy Auto Config error: no proxy server could be reached");
+                return;
+            }
+            this.proxyInfoIterator = reachableProxies.iterator();
+        }
         while (proxyInfoIterator.hasNext()) {
             if (processProxy(proxyInfoIterator.next())) {
                 break;
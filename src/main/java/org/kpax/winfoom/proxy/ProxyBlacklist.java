@@ -16,10 +16,12 @@ import lombok.extern.slf4j.Slf4j;
 import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.jfr.ProxyBlacklistedEvent;
 import org.kpax.winfoom.proxy.listener.StopListener;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
@@ -51,6 +53,15 @@ public class ProxyBlacklist implements StopListener {
     @Autowired
     private ProxyConfig proxyConfig;
 
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @PostConstruct
+    void init() {
+        proxyMetrics.register("winfoom_proxy_blacklist_size", "The upstream proxies currently blacklisted",
+                ProxyMetrics.Type.GAUGE, sink -> sink.accept(getActiveBlacklistMap().size()));
+    }
+
     /**
      * Attempt to blacklist a proxy. Does nothing if the blacklisting is disabled.<br>
      * If the proxy is already blacklisted, it keeps the existent timeout.
@@ -70,6 +81,8 @@ public class ProxyBlacklist implements StopListener {
                 Instant timeoutInstant = now.plus(proxyConfig.getBlacklistTimeout(),
                         TEMPORAL_UNIT);
                 logger.debug("Blacklisted until {}", timeoutInstant);
+                proxyMetrics.proxyBlacklisted(proxyInfo);
+                ProxyBlacklistedEvent.emit(ProxyMetrics.upstream(proxyInfo), timeoutInstant);
                 return timeoutInstant;
             } else {
                 logger.debug("Already blacklisted until {}", value);
@@ -0,0 +1,273 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Races the TCP connects to the proxies returned by the PAC script, in the manner of <i>Happy Eyeballs</i>:
+ * the connect to the first candidate is started, the next one being launched after
+ * {@link SystemConfig#getPacConnectRaceStagger()} milliseconds or as soon as the previous ones failed.
+ * The first candidate to connect wins, the pending connects being cancelled by closing their sockets.
+ * <p>The candidates that failed to connect during the race are blacklisted
+ * (except for {@code DIRECT}, never filtered out), the cancelled ones are not.
+ * <p>Since the processing connects to the winner again, the outcome of a race is reused for the same candidates
+ * during {@link SystemConfig#getPacConnectRaceCacheTtl()} seconds, so the extra connect is paid only now and then.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Component
+public class ProxyConnectRacer implements StopListener {
+
+    /**
+     * The max number of races kept in {@link #raceCache}.
+     */
+    private static final int MAX_CACHED_RACES = 1000;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    /**
+     * Key = the candidates, followed by the request's endpoint when there is a {@code DIRECT} one<br>
+     * Value = the race's outcome
+     */
+    private final Map<List<Object>, CachedRace> raceCache = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return systemConfig.isPacConnectRace();
+    }
+
+    /**
+     * Race the connects to the candidates.
+     *
+     * @param candidates the proxies in the PAC script's order.
+     * @param requestUri the request URI, the endpoint of a {@code DIRECT} candidate.
+     * @return the winner followed by the other candidates not known to be down, in their original order,
+     * or an empty list if none could connect.
+     */
+    public List<ProxyInfo> race(@NotNull final List<ProxyInfo> candidates, @NotNull final URI requestUri) {
+        List<Object> cacheKey = getCacheKey(candidates, requestUri);
+        CachedRace cachedRace = raceCache.get(cacheKey);
+        if (cachedRace != null && !cachedRace.isExpired()) {
+            logger.debug("Reuse the connect race's outcome: {}", cachedRace.ordered);
+            return new ArrayList<>(cachedRace.ordered);
+        }
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        List<Attempt> attempts = new ArrayList<>();
+        Set<ProxyInfo> failed = new HashSet<>();
+        ProxyInfo winner = null;
+        try {
+            int running = 0;
+            while (winner == null && (running > 0 || attempts.size() < candidates.size())) {
+                if (running == 0) {
+                    // Nothing in flight, launch the next candidate right away
+                    attempts.add(start(candidates.get(attempts.size()), requestUri, completed));
+                    running++;
+                }
+                Attempt attempt = attempts.size() < candidates.size()
+                        ? completed.poll(systemConfig.getPacConnectRaceStagger(), TimeUnit.MILLISECONDS)
+                        : completed.take();
+                if (attempt == null) {
+                    logger.debug("No connect within the stagger delay, launch the next candidate");
+                    attempts.add(start(candidates.get(attempts.size()), requestUri, completed));
+                    running++;
+                } else {
+                    running--;
+                    if (attempt.error == null) {
+                        winner = attempt.proxyInfo;
+                        logger.debug("Connect race won by {}", winner);
+                    } else {
+                        logger.debug("Connect to {} failed: {}", attempt.proxyInfo, attempt.error.getMessage());
+                        failed.add(attempt.proxyInfo);
+                        blacklist(attempt);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Connect race interrupted, keep the candidates' order");
+            Thread.currentThread().interrupt();
+            return candidates;
+        } finally {
+            // Cancel the losers still pending, the ones completed meanwhile are handled here
+            attempts.forEach(Attempt::abandon);
+            for (Attempt attempt = completed.poll(); attempt != null; attempt = completed.poll()) {
+                if (attempt.error != null) {
+                    blacklist(attempt);
+                }
+            }
+        }
+
+        if (winner == null) {
+            return new ArrayList<>();
+        }
+        List<ProxyInfo> ordered = new ArrayList<>();
+        ordered.add(winner);
+        ProxyInfo first = winner;
+        ordered.addAll(candidates.stream().
+                filter(proxyInfo -> !proxyInfo.equals(first) && !failed.contains(proxyInfo)).
+                collect(Collectors.toList()));
+        cache(cacheKey, ordered);
+        return ordered;
+    }
+
+    private List<Object> getCacheKey(List<ProxyInfo> candidates, URI requestUri) {
+        List<Object> cacheKey = new ArrayList<>(candidates);
+        if (candidates.stream().anyMatch(proxyInfo -> proxyInfo.getType().isDirect())) {
+            cacheKey.add(requestUri.getHost() + ":" + getPort(requestUri));
+        }
+        return cacheKey;
+    }
+
+    private void cache(List<Object> cacheKey, List<ProxyInfo> ordered) {
+        int cacheTtl = systemConfig.getPacConnectRaceCacheTtl();
+        if (cacheTtl < 1) {
+            return;
+        }
+        if (raceCache.size() >= MAX_CACHED_RACES) {
+            raceCache.values().removeIf(CachedRace::isExpired);
+            if (raceCache.size() >= MAX_CACHED_RACES) {
+                raceCache.clear();
+            }
+        }
+        raceCache.put(cacheKey, new CachedRace(new ArrayList<>(ordered),
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(cacheTtl)));
+    }
+
+    private Attempt start(ProxyInfo proxyInfo, URI requestUri, BlockingQueue<Attempt> completed) {
+        logger.debug("Start connect to {}", proxyInfo);
+        Attempt attempt = new Attempt(proxyInfo);
+        executorService.execute(() -> {
+            try {
+                InetSocketAddress address = proxyInfo.getType().isDirect()
+                        ? new InetSocketAddress(requestUri.getHost(), getPort(requestUri))
+                        : new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                        proxyInfo.getProxyHost().getPort());
+                if (address.isUnresolved()) {
+                    throw new IOException("Cannot resolve " + address.getHostString());
+                }
+                attempt.socket.connect(address, systemConfig.getSocketConnectTimeout() * 1000);
+            } catch (Exception e) {
+                attempt.error = e;
+            } finally {
+                InputOutputs.close(attempt.socket);
+                if (attempt.complete()) {
+                    completed.add(attempt);
+                } else {
+                    // Failed or not, the socket has been closed because the race is over
+                    logger.debug("Connect to {} cancelled", proxyInfo);
+                }
+            }
+        });
+        return attempt;
+    }
+
+    private void blacklist(Attempt attempt) {
+        if (!attempt.proxyInfo.getType().isDirect()) {
+            proxyBlacklist.blacklist(attempt.proxyInfo);
+        }
+    }
+
+    private static int getPort(URI requestUri) {
+        if (requestUri.getPort() > 0) {
+            return requestUri.getPort();
+        }
+        return "https".equalsIgnoreCase(requestUri.getScheme()) ? 443 : 80;
+    }
+
+    @Override
+    public void onStop() {
+        raceCache.clear();
+    }
+
+    private static final class CachedRace {
+
+        private final List<ProxyInfo> ordered;
+
+        private final long expiry;
+
+        private CachedRace(List<ProxyInfo> ordered, long expiry) {
+            this.ordered = ordered;
+            this.expiry = expiry;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiry > 0;
+        }
+    }
+
+    private static final class Attempt {
+
+        private final ProxyInfo proxyInfo;
+
+        private final Socket socket = new Socket();
+
+        private volatile Exception error;
+
+        /**
+         * Whether the connect has completed during the race ({@code TRUE}) or has been cancelled ({@code FALSE}).
+         */
+        private final AtomicReference<Boolean> outcome = new AtomicReference<>();
+
+        private Attempt(ProxyInfo proxyInfo) {
+            this.proxyInfo = proxyInfo;
+        }
+
+        /**
+         * @return {@code true} iff the race is not over yet.
+         */
+        private boolean complete() {
+            return outcome.compareAndSet(null, Boolean.TRUE);
+        }
+
+        /**
+         * Cancel the connect, if still pending, by closing the socket.
+         */
+        private void abandon() {
+            if (outcome.compareAndSet(null, Boolean.FALSE)) {
+                InputOutputs.close(socket);
+            }
+        }
+    }
+
+}
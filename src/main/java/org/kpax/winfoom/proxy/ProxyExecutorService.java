@@ -13,8 +13,11 @@
 package org.kpax.winfoom.proxy;
 
 import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.VirtualThreads;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
@@ -26,19 +29,34 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * A wrapper for {@link ThreadPoolExecutor} that forbids {@link #shutdown()}, {@link #shutdownNow()}
  * and {@link #awaitTermination(long, TimeUnit)}.
+ * <p>When {@link SystemConfig#isExecutorVirtualThreads()} is on and the runtime supports it (Java 21+),
+ * each task runs on a new virtual thread instead.
  */
 @Slf4j
 @Order(2)
 @Component
 public class ProxyExecutorService implements ExecutorService, StopListener {
 
-    private final SingletonSupplier<ThreadPoolExecutor> threadPoolSupplier;
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private final SingletonSupplier<ExecutorService> threadPoolSupplier;
 
     public ProxyExecutorService() {
-        this.threadPoolSupplier =
-                new SingletonSupplier<>(() -> new ThreadPoolExecutor(0, Integer.MAX_VALUE,
-                        60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
-                        new DefaultThreadFactory()));
+        this.threadPoolSupplier = new SingletonSupplier<>(this::createExecutorService);
+    }
+
+    private ExecutorService createExecutorService() {
+        if (systemConfig.isExecutorVirtualThreads()) {
+            if (VirtualThreads.isSupported()) {
+                logger.info("Use virtual threads");
+                return VirtualThreads.newThreadPerTaskExecutor("vthread-");
+            }
+            logger.warn("Virtual threads require Java 21 or later, use platform threads");
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new DefaultThreadFactory());
     }
 
     public void execute(Runnable task) {
@@ -102,6 +120,18 @@ public class ProxyExecutorService implements ExecutorService, StopListener {
         return threadPoolSupplier.hasValue() && threadPoolSupplier.get().isTerminated();
     }
 
+    /**
+     * @return the approximate number of pool threads running a task, {@code -1} when running on virtual threads.
+     */
+    public int getActiveCount() {
+        if (!threadPoolSupplier.hasValue()) {
+            return 0;
+        }
+        ExecutorService executorService = threadPoolSupplier.get();
+        return executorService instanceof ThreadPoolExecutor ?
+                ((ThreadPoolExecutor) executorService).getActiveCount() : -1;
+    }
+
     @Override
     public void onStop() {
         logger.debug("Reset the proxy executor service");
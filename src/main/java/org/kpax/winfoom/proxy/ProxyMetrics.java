@@ -0,0 +1,476 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The runtime metrics of the local proxy server, rendered in the Prometheus text format.
+ * <p>The recording is lock-free: every series is a {@link LongAdder}, a histogram having one for each bucket.
+ * The values only known by their owners (the connection pools, the PAC decision cache etc.)
+ * are read by the {@link Collector}s they register, on scrape only.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class ProxyMetrics {
+
+    /**
+     * The {@link HttpContext} attribute holding the time spent connecting to the upstream (nanoseconds).
+     */
+    public static final String CONNECT_NANOS = "winfoom.connectNanos";
+
+    /**
+     * The {@link HttpContext} attribute holding the time spent in the proxy authentication's round trips (nanoseconds).
+     */
+    public static final String AUTH_NANOS = "winfoom.authNanos";
+
+    /**
+     * The {@link HttpContext} attribute holding the time until the final response's head is received (nanoseconds).
+     */
+    public static final String FIRST_BYTE_NANOS = "winfoom.firstByteNanos";
+
+    /**
+     * The upper bounds of the latency buckets (seconds).
+     */
+    private static final double[] LATENCY_BUCKETS =
+            {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final RequestTimings.Phase[] PHASES = RequestTimings.Phase.values();
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private final LongAdder activeConnections = gauge("winfoom_client_connections_active",
+            "The client connections being processed").labels();
+
+    private final Series activeTunnels = gauge("winfoom_tunnels_active",
+            "The CONNECT tunnels in flight, relayed by the relay engine or by a blocking thread pair", "mode");
+
+    private final LongAdder relayedTunnels = activeTunnels.labels("relayed");
+
+    private final LongAdder blockingTunnels = activeTunnels.labels("blocking");
+
+    private final Series requests = counter("winfoom_requests_total",
+            "The processed requests, by the processor handling them and the response status", "processor", "status");
+
+    private final Series relayedBytes = counter("winfoom_tunnel_bytes_total",
+            "The bytes relayed through the CONNECT tunnels", "direction");
+
+    private final LongAdder clientToUpstreamBytes = relayedBytes.labels("client_to_upstream");
+
+    private final LongAdder upstreamToClientBytes = relayedBytes.labels("upstream_to_client");
+
+    private final Histograms connectLatency = histogram("winfoom_upstream_connect_seconds",
+            "The time spent connecting to the upstream proxy, or to the target host when direct", "upstream");
+
+    private final Histograms authLatency = histogram("winfoom_upstream_auth_seconds",
+            "The time spent in the upstream proxy authentication's challenges", "upstream");
+
+    private final Histograms firstByteLatency = histogram("winfoom_upstream_first_byte_seconds",
+            "The time from sending the request upstream to receiving the response's head", "upstream");
+
+    private final Histograms pacEvaluationLatency = histogram("winfoom_pac_evaluation_seconds",
+            "The time spent evaluating the PAC script, by the compiled decision tree or the JavaScript engine",
+            "evaluator");
+
+    private final Histograms phaseLatency = histogram("winfoom_request_phase_seconds",
+            "The time spent in each phase of a request, from the previous phase's end, and in total", "phase");
+
+    private final Histogram[] phaseHistograms = Arrays.stream(PHASES)
+            .map(phase -> phaseLatency.labels(phase.getLabel())).toArray(Histogram[]::new);
+
+    private final Histogram totalHistogram = phaseLatency.labels("total");
+
+    private final Series blacklisted = counter("winfoom_proxy_blacklisted_total",
+            "The upstream proxies blacklisted for not responding", "upstream");
+
+    /**
+     * The label identifying an upstream proxy: {@code direct} or the proxy's scheme, host and port.
+     *
+     * @param proxyInfo the upstream proxy.
+     * @return the label's value.
+     */
+    public static String upstream(@NotNull final ProxyInfo proxyInfo) {
+        ProxyType type = proxyInfo.getType();
+        if (type.isDirect() || proxyInfo.getProxyHost() == null) {
+            return "direct";
+        }
+        String scheme = type.isSocks4() ? "socks4" : type.isSocks5() ? "socks5" : "http";
+        return scheme + "://" + proxyInfo.getProxyHost().toHostString();
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * @param relayed whether the tunnel is relayed by the relay engine.
+     */
+    public void tunnelOpened(boolean relayed) {
+        (relayed ? relayedTunnels : blockingTunnels).increment();
+    }
+
+    /**
+     * @param relayed whether the tunnel is relayed by the relay engine.
+     */
+    public void tunnelClosed(boolean relayed) {
+        (relayed ? relayedTunnels : blockingTunnels).decrement();
+    }
+
+    /**
+     * @param clientToUpstream the direction.
+     * @param bytes            the number of bytes relayed through a tunnel.
+     */
+    public void tunnelBytes(boolean clientToUpstream, long bytes) {
+        (clientToUpstream ? clientToUpstreamBytes : upstreamToClientBytes).add(bytes);
+    }
+
+    /**
+     * @param processor the name of the processor that handled the request, {@code null} if none.
+     * @param status    the response's status code, {@code 0} if no response has been written.
+     */
+    public void requestProcessed(String processor, int status) {
+        requests.labels(processor != null ? processor : "none", status > 0 ? Integer.toString(status) : "none")
+                .increment();
+    }
+
+    public void connectTime(@NotNull final String upstream, long nanos) {
+        connectLatency.labels(upstream).record(nanos);
+    }
+
+    public void authTime(@NotNull final String upstream, long nanos) {
+        authLatency.labels(upstream).record(nanos);
+    }
+
+    public void firstByteTime(@NotNull final String upstream, long nanos) {
+        firstByteLatency.labels(upstream).record(nanos);
+    }
+
+    /**
+     * Record the latencies left by an exchange in its {@link HttpContext}.
+     *
+     * @param upstream the upstream's label.
+     * @param context  the exchange's context.
+     */
+    public void exchangeTimes(@NotNull final String upstream, @NotNull final HttpContext context) {
+        Object connectNanos = context.getAttribute(CONNECT_NANOS);
+        if (connectNanos instanceof Long) {
+            connectTime(upstream, (Long) connectNanos);
+        }
+        Object authNanos = context.getAttribute(AUTH_NANOS);
+        if (authNanos instanceof Long) {
+            authTime(upstream, (Long) authNanos);
+        }
+        Object firstByteNanos = context.getAttribute(FIRST_BYTE_NANOS);
+        if (firstByteNanos instanceof Long) {
+            firstByteTime(upstream, (Long) firstByteNanos);
+        }
+    }
+
+    /**
+     * Record the time spent in each marked phase of a request, and in total.
+     *
+     * @param timings the request's timings.
+     */
+    public void requestTimings(@NotNull final RequestTimings timings) {
+        for (RequestTimings.Phase phase : PHASES) {
+            long nanos = timings.getDuration(phase);
+            if (nanos >= 0) {
+                phaseHistograms[phase.ordinal()].record(nanos);
+            }
+        }
+        totalHistogram.record(timings.getTotal());
+    }
+
+    /**
+     * @param compiled whether evaluated by the compiled decision tree.
+     * @param nanos    the evaluation's time.
+     */
+    public void pacEvaluationTime(boolean compiled, long nanos) {
+        pacEvaluationLatency.labels(compiled ? "compiled" : "javascript").record(nanos);
+    }
+
+    public void proxyBlacklisted(@NotNull final ProxyInfo proxyInfo) {
+        blacklisted.labels(upstream(proxyInfo)).increment();
+    }
+
+    /**
+     * Register a metric whose values are read on scrape.
+     *
+     * @param name       the metric's name.
+     * @param help       the metric's description.
+     * @param type       the metric's type.
+     * @param collector  reads the values.
+     * @param labelNames the label names.
+     */
+    public void register(@NotNull final String name, @NotNull final String help, @NotNull final Type type,
+                         @NotNull final Collector collector, final String... labelNames) {
+        add(new Family(name, help, type, labelNames) {
+            @Override
+            void writeSamples(StringBuilder builder) {
+                collector.collect((value, labelValues) -> writeSample(builder, name, labelNames, labelValues, null,
+                        value instanceof Double || value instanceof Float ?
+                                formatDouble(value.doubleValue()) : String.valueOf(value.longValue())));
+            }
+        });
+    }
+
+    /**
+     * @return all the metrics, in the Prometheus text format (version 0.0.4).
+     */
+    public String scrape() {
+        StringBuilder builder = new StringBuilder(4096);
+        synchronized (families) {
+            for (Family family : families.values()) {
+                builder.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+                builder.append("# TYPE ").append(family.name).append(' ')
+                        .append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+                family.writeSamples(builder);
+            }
+        }
+        return builder.toString();
+    }
+
+    private Series counter(String name, String help, String... labelNames) {
+        return add(new Series(name, help, Type.COUNTER, labelNames));
+    }
+
+    private Series gauge(String name, String help, String... labelNames) {
+        return add(new Series(name, help, Type.GAUGE, labelNames));
+    }
+
+    private Histograms histogram(String name, String help, String... labelNames) {
+        return add(new Histograms(name, help, labelNames));
+    }
+
+    private <F extends Family> F add(F family) {
+        synchronized (families) {
+            Assert.state(!families.containsKey(family.name), "Metric already registered: " + family.name);
+            families.put(family.name, family);
+        }
+        return family;
+    }
+
+    private static void writeSample(StringBuilder builder, String name, String[] labelNames, List<String> labelValues,
+                                    String le, String value) {
+        builder.append(name);
+        if (labelNames.length > 0 || le != null) {
+            builder.append('{');
+            for (int i = 0; i < labelNames.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(labelNames[i]).append("=\"");
+                escape(builder, labelValues.get(i));
+                builder.append('"');
+            }
+            if (le != null) {
+                if (labelNames.length > 0) {
+                    builder.append(',');
+                }
+                builder.append("le=\"").append(le).append('"');
+            }
+            builder.append('}');
+        }
+        builder.append(' ').append(value).append('\n');
+    }
+
+    private static void escape(StringBuilder builder, String labelValue) {
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.isNaN(value) ? "NaN" : BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * The metric types.
+     */
+    public enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    /**
+     * Reads the values of a metric, on scrape.
+     */
+    @FunctionalInterface
+    public interface Collector {
+        void collect(Sink sink);
+    }
+
+    /**
+     * Receives the values read by a {@link Collector}.
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * @param value       the value.
+         * @param labelValues the label values, in the order of the registered label names.
+         */
+        void accept(Number value, List<String> labelValues);
+
+        default void accept(Number value, String... labelValues) {
+            accept(value, Arrays.asList(labelValues));
+        }
+    }
+
+    /**
+     * A metric with its series, one for each combination of label values.
+     */
+    private abstract static class Family {
+
+        final String name;
+
+        final String help;
+
+        final Type type;
+
+        final String[] labelNames;
+
+        Family(String name, String help, Type type, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        List<String> key(String... labelValues) {
+            Assert.isTrue(labelValues.length == labelNames.length, "Wrong number of label values for " + name);
+            return Arrays.asList(labelValues);
+        }
+
+        abstract void writeSamples(StringBuilder builder);
+    }
+
+    /**
+     * A counter or gauge.
+     */
+    private static final class Series extends Family {
+
+        private final ConcurrentMap<List<String>, LongAdder> children = new ConcurrentHashMap<>();
+
+        private Series(String name, String help, Type type, String[] labelNames) {
+            super(name, help, type, labelNames);
+        }
+
+        private LongAdder labels(String... labelValues) {
+            List<String> key = key(labelValues);
+            LongAdder adder = children.get(key);
+            return adder != null ? adder : children.computeIfAbsent(key, k -> new LongAdder());
+        }
+
+        @Override
+        void writeSamples(StringBuilder builder) {
+            children.forEach((labelValues, adder) ->
+                    writeSample(builder, name, labelNames, labelValues, null, String.valueOf(adder.sum())));
+        }
+    }
+
+    /**
+     * A latency histogram for each combination of label values.
+     */
+    private static final class Histograms extends Family {
+
+        private static final long[] BOUNDS_NANOS = Arrays.stream(LATENCY_BUCKETS)
+                .mapToLong(seconds -> (long) (seconds * TimeUnit.SECONDS.toNanos(1))).toArray();
+
+        private static final String[] BOUNDS_LABELS = Arrays.stream(LATENCY_BUCKETS)
+                .mapToObj(ProxyMetrics::formatDouble).toArray(String[]::new);
+
+        private final ConcurrentMap<List<String>, Histogram> children = new ConcurrentHashMap<>();
+
+        private Histograms(String name, String help, String[] labelNames) {
+            super(name, help, Type.HISTOGRAM, labelNames);
+        }
+
+        private Histogram labels(String... labelValues) {
+            List<String> key = key(labelValues);
+            Histogram histogram = children.get(key);
+            return histogram != null ? histogram : children.computeIfAbsent(key, k -> new Histogram());
+        }
+
+        @Override
+        void writeSamples(StringBuilder builder) {
+            children.forEach((labelValues, histogram) -> {
+                long cumulative = 0;
+                for (int i = 0; i <= BOUNDS_NANOS.length; i++) {
+                    cumulative += histogram.buckets[i].sum();
+                    writeSample(builder, name + "_bucket", labelNames, labelValues,
+                            i < BOUNDS_NANOS.length ? BOUNDS_LABELS[i] : "+Inf", String.valueOf(cumulative));
+                }
+                writeSample(builder, name + "_sum", labelNames, labelValues, null,
+                        formatDouble(histogram.sumNanos.sum() / 1e9));
+                writeSample(builder, name + "_count", labelNames, labelValues, null, String.valueOf(cumulative));
+            });
+        }
+    }
+
+    /**
+     * The buckets are not cumulative, they are summed up on scrape.
+     */
+    private static final class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[Histograms.BOUNDS_NANOS.length + 1];
+
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            int i = 0;
+            while (i < Histograms.BOUNDS_NANOS.length && nanos > Histograms.BOUNDS_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+}
@@ -0,0 +1,525 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Relays the bytes of the CONNECT tunnels between the client's channel and the remote channel.
+ * <p>All the tunnels share a single selector thread. The bytes are moved through a shared direct buffer;
+ * a pooled direct buffer is held by a tunnel only while the receiving side cannot keep up (backpressure),
+ * in which case the reading from the sending side is suspended until the pending bytes are written.
+ * <p>End of stream on one side shuts down the output of the other side (half-close),
+ * the tunnel being closed when both directions are done, on error or when idle for more than
+ * {@link SystemConfig#getSocketSoTimeout()}.
+ * <p>Enabled only together with the event-driven listener, since it needs channel backed sockets.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Order(1)
+@Component
+public class RelayEngine implements StopListener {
+
+    /**
+     * The size of the shared read buffer and of the pooled buffers.
+     */
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The max number of idle buffers kept in the pool.
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    /**
+     * The selector's timeout, also the granularity of idle tunnels check (milliseconds).
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private final Set<Relay> relays = ConcurrentHashMap.newKeySet();
+
+    private final Queue<Relay> registrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The relays to be closed on request, by the selector loop.
+     */
+    private final Queue<Relay> kills = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+
+    /**
+     * @return {@code true} iff the tunnels can be relayed by this engine.
+     */
+    public boolean isEnabled() {
+        return systemConfig.isServerSocketNio() && NioConnectionAcceptor.isSupported();
+    }
+
+    /**
+     * Start relaying the bytes between the two channels.
+     * <p>The engine takes the ownership of both channels, closing them when done,
+     * even if this method fails.
+     *
+     * @param clientChannel   the client's channel
+     * @param upstreamChannel the remote channel
+     * @param onClose         called once, after the channels are closed
+     * @return the relay's handle
+     */
+    public Relay relay(@NotNull final SocketChannel clientChannel,
+                       @NotNull final SocketChannel upstreamChannel,
+                       final Consumer<Relay> onClose) {
+        proxyMetrics.tunnelOpened(true);
+        Relay relay = new Relay(clientChannel, upstreamChannel, closedRelay -> {
+            proxyMetrics.tunnelClosed(true);
+            if (onClose != null) {
+                onClose.accept(closedRelay);
+            }
+        });
+        try {
+            clientChannel.configureBlocking(false);
+            upstreamChannel.configureBlocking(false);
+            // Under the lock the selector loop takes on exit, so the relay is either seen by it or not started
+            synchronized (this) {
+                relay.selector = getSelector();
+                relays.add(relay);
+                registrations.add(relay);
+            }
+            relay.selector.wakeup();
+        } catch (Exception e) {
+            logger.debug("Error on starting relay", e);
+            relays.remove(relay);
+            relay.close();
+        }
+        return relay;
+    }
+
+    /**
+     * Close a relay, from any thread.
+     * <p>The relay is closed asynchronously, by the engine's thread.
+     *
+     * @param relay the relay's handle
+     */
+    public void kill(@NotNull final Relay relay) {
+        Selector relaySelector = relay.selector;
+        if (relaySelector != null && relaySelector.isOpen()) {
+            kills.add(relay);
+            relaySelector.wakeup();
+        } else {
+            relay.close();
+        }
+    }
+
+    /**
+     * @return the number of the active tunnels
+     */
+    public int getActiveCount() {
+        return relays.size();
+    }
+
+    private synchronized Selector getSelector() throws IOException {
+        if (selector == null) {
+            Selector newSelector = Selector.open();
+            executorService.submit(new SelectorLoop(newSelector));
+            selector = newSelector;
+        }
+        return selector;
+    }
+
+    @Override
+    public synchronized void onStop() {
+        if (selector != null) {
+            logger.debug("Close the relay engine");
+            // The selector loop closes the active tunnels on exit
+            InputOutputs.close(selector);
+            selector = null;
+        }
+    }
+
+    /**
+     * One end of a tunnel, attached to its selection key.
+     */
+    private static final class Endpoint {
+
+        private final Relay relay;
+
+        private final SocketChannel channel;
+
+        private Endpoint peer;
+
+        private SelectionKey key;
+
+        /**
+         * The bytes read from the peer not yet written to this channel.
+         */
+        private ByteBuffer pending;
+
+        /**
+         * End of stream has been read from this channel.
+         */
+        private boolean inputShutdown;
+
+        private boolean outputShutdown;
+
+        private Endpoint(Relay relay, SocketChannel channel) {
+            this.relay = relay;
+            this.channel = channel;
+        }
+
+        private void updateInterestOps() {
+            int ops = 0;
+            if (!inputShutdown && peer.pending == null) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (pending != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void shutdownOutput() throws IOException {
+            if (!outputShutdown) {
+                outputShutdown = true;
+                channel.shutdownOutput();
+            }
+        }
+    }
+
+    /**
+     * A relayed tunnel.
+     */
+    public static final class Relay {
+
+        private final Endpoint client;
+
+        private final Endpoint upstream;
+
+        private final Consumer<Relay> onClose;
+
+        /**
+         * The selector of the engine's thread handling this relay.
+         */
+        private Selector selector;
+
+        private final long startTime = System.currentTimeMillis();
+
+        private volatile long clientToUpstreamBytes;
+
+        private volatile long upstreamToClientBytes;
+
+        private volatile long lastActivity = System.nanoTime();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Relay(SocketChannel clientChannel, SocketChannel upstreamChannel, Consumer<Relay> onClose) {
+            this.client = new Endpoint(this, clientChannel);
+            this.upstream = new Endpoint(this, upstreamChannel);
+            this.client.peer = upstream;
+            this.upstream.peer = client;
+            this.onClose = onClose;
+        }
+
+        /**
+         * @return the number of bytes transferred from the client to the remote side
+         */
+        public long getClientToUpstreamBytes() {
+            return clientToUpstreamBytes;
+        }
+
+        /**
+         * @return the number of bytes transferred from the remote side to the client
+         */
+        public long getUpstreamToClientBytes() {
+            return upstreamToClientBytes;
+        }
+
+        /**
+         * @return the time when the relay started (milliseconds since epoch)
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} of the last bytes transferred
+         */
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            InputOutputs.close(client.channel);
+            InputOutputs.close(upstream.channel);
+            if (onClose != null) {
+                try {
+                    onClose.accept(this);
+                } catch (Exception e) {
+                    logger.debug("Error on relay close callback", e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Relay{client=" + client.channel + ", upstream=" + upstream.channel
+                    + ", clientToUpstreamBytes=" + clientToUpstreamBytes
+                    + ", upstreamToClientBytes=" + upstreamToClientBytes + '}';
+        }
+    }
+
+    /**
+     * The engine's thread: everything below is confined to it.
+     */
+    private class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final Deque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+        private SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            logger.debug("Relay engine started");
+            long lastIdleCheck = System.nanoTime();
+            try {
+                while (selector.isOpen()) {
+                    selector.select(SELECT_TIMEOUT);
+                    registerPending();
+                    closeKilled();
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                read(endpoint);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(endpoint);
+                            }
+                        } catch (Exception e) {
+                            logger.debug("Error on relaying, close the tunnel: {}", e.getMessage());
+                            close(endpoint.relay);
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (now - lastIdleCheck >= TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT)) {
+                        closeIdle(now);
+                        lastIdleCheck = now;
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                logger.debug("Relay engine selector closed");
+            } catch (Exception e) {
+                logger.error("Relay engine error", e);
+            } finally {
+                synchronized (RelayEngine.this) {
+                    // From now on, no relay is added to this selector
+                    InputOutputs.close(selector);
+                    if (RelayEngine.this.selector == selector) {
+                        RelayEngine.this.selector = null;
+                    }
+                }
+                registrations.removeIf(relay -> relay.selector == selector);
+                kills.removeIf(relay -> relay.selector == selector);
+                for (Relay relay : relays) {
+                    if (relay.selector == selector) {
+                        close(relay);
+                    }
+                }
+                logger.debug("Relay engine stopped");
+            }
+        }
+
+        private void registerPending() {
+            for (Relay relay; (relay = registrations.poll()) != null; ) {
+                try {
+                    relay.client.key = relay.client.channel.register(selector, 0, relay.client);
+                    relay.upstream.key = relay.upstream.channel.register(selector, 0, relay.upstream);
+                    relay.client.updateInterestOps();
+                    relay.upstream.updateInterestOps();
+                } catch (Exception e) {
+                    logger.debug("Error on registering relay", e);
+                    close(relay);
+                }
+            }
+        }
+
+        /**
+         * Read from the endpoint's channel and write to the peer's channel.
+         * What cannot be written is kept pending, and the reading is suspended.
+         */
+        private void read(Endpoint source) throws IOException {
+            Endpoint target = source.peer;
+            if (target.pending != null) {
+                // Already suspended
+                source.updateInterestOps();
+                return;
+            }
+            readBuffer.clear();
+            int read = source.channel.read(readBuffer);
+            if (read < 0) {
+                source.inputShutdown = true;
+                if (target.pending == null) {
+                    target.shutdownOutput();
+                }
+                source.updateInterestOps();
+                closeIfDone(source.relay);
+                return;
+            }
+            if (read == 0) {
+                return;
+            }
+            count(source, read);
+            readBuffer.flip();
+            target.channel.write(readBuffer);
+            if (readBuffer.hasRemaining()) {
+                ByteBuffer pending = acquireBuffer();
+                pending.put(readBuffer).flip();
+                target.pending = pending;
+                source.updateInterestOps();
+                target.updateInterestOps();
+            }
+        }
+
+        /**
+         * Write the pending bytes, then resume the reading from the peer when none left.
+         */
+        private void write(Endpoint target) throws IOException {
+            ByteBuffer pending = target.pending;
+            if (pending == null) {
+                target.updateInterestOps();
+                return;
+            }
+            target.channel.write(pending);
+            if (!pending.hasRemaining()) {
+                target.pending = null;
+                releaseBuffer(pending);
+                if (target.peer.inputShutdown) {
+                    target.shutdownOutput();
+                }
+                target.updateInterestOps();
+                target.peer.updateInterestOps();
+                closeIfDone(target.relay);
+            }
+        }
+
+        private void count(Endpoint source, int read) {
+            Relay relay = source.relay;
+            if (source == relay.client) {
+                relay.clientToUpstreamBytes += read;
+            } else {
+                relay.upstreamToClientBytes += read;
+            }
+            proxyMetrics.tunnelBytes(source == relay.client, read);
+            relay.lastActivity = System.nanoTime();
+        }
+
+        private void closeIfDone(Relay relay) {
+            if (relay.client.inputShutdown && relay.upstream.inputShutdown
+                    && relay.client.pending == null && relay.upstream.pending == null) {
+                logger.debug("Both directions done, close {}", relay);
+                close(relay);
+            }
+        }
+
+        private void closeKilled() {
+            for (Relay relay; (relay = kills.poll()) != null; ) {
+                logger.debug("Close killed {}", relay);
+                close(relay);
+            }
+        }
+
+        private void closeIdle(long now) {
+            long idleTimeout = TimeUnit.SECONDS.toNanos(systemConfig.getSocketSoTimeout());
+            for (Relay relay : relays) {
+                if (relay.client.key != null && now - relay.lastActivity > idleTimeout) {
+                    logger.debug("Close idle {}", relay);
+                    close(relay);
+                }
+            }
+        }
+
+        private void close(Relay relay) {
+            relays.remove(relay);
+            for (Endpoint endpoint : new Endpoint[]{relay.client, relay.upstream}) {
+                if (endpoint.key != null) {
+                    endpoint.key.cancel();
+                }
+                if (endpoint.pending != null) {
+                    releaseBuffer(endpoint.pending);
+                    endpoint.pending = null;
+                }
+            }
+            relay.close();
+        }
+
+        private ByteBuffer acquireBuffer() {
+            ByteBuffer buffer = bufferPool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private void releaseBuffer(ByteBuffer buffer) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                bufferPool.push(buffer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+
+import java.util.Locale;
+
+/**
+ * The monotonic timestamps ({@link System#nanoTime()}) of a request's phase boundaries,
+ * starting when its {@link ClientConnection} is created.
+ * <p>A phase not gone through (no PAC lookup, no proxy authentication etc.) stays unmarked,
+ * its time being counted by the next marked one. When a phase is marked again
+ * (the next PAC proxy being tried, for instance), the last timestamp wins.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+public final class RequestTimings {
+
+    /**
+     * The {@link HttpContext} attribute holding the request's {@link RequestTimings}.
+     */
+    public static final String ATTRIBUTE = "winfoom.requestTimings";
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long start;
+
+    private final long[] timestamps = new long[PHASES.length];
+
+    /**
+     * The marked phases, one bit for each.
+     */
+    private int marked;
+
+    RequestTimings() {
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Mark the end of a phase, now.
+     *
+     * @param phase the phase.
+     */
+    public void mark(@NotNull final Phase phase) {
+        mark(phase, System.nanoTime());
+    }
+
+    /**
+     * Mark the end of a phase.
+     *
+     * @param phase    the phase.
+     * @param nanoTime the {@link System#nanoTime()} the phase ended.
+     */
+    public void mark(@NotNull final Phase phase, long nanoTime) {
+        timestamps[phase.ordinal()] = nanoTime;
+        marked |= 1 << phase.ordinal();
+    }
+
+    /**
+     * Mark the end of a phase, now, for the request whose timings are held by an {@link HttpContext}, if any.
+     *
+     * @param context the exchange's context.
+     * @param phase   the phase.
+     */
+    public static void mark(@NotNull final HttpContext context, @NotNull final Phase phase) {
+        Object timings = context.getAttribute(ATTRIBUTE);
+        if (timings instanceof RequestTimings) {
+            ((RequestTimings) timings).mark(phase);
+        }
+    }
+
+    public boolean isMarked(@NotNull final Phase phase) {
+        return (marked & 1 << phase.ordinal()) != 0;
+    }
+
+    /**
+     * @param phase the phase.
+     * @return the time from the previous marked phase (or the start) to the end of this one (nanoseconds),
+     * {@code -1} when not marked.
+     */
+    public long getDuration(@NotNull final Phase phase) {
+        if (!isMarked(phase)) {
+            return -1;
+        }
+        long previous = start;
+        for (int i = phase.ordinal() - 1; i >= 0; i--) {
+            if (isMarked(PHASES[i])) {
+                previous = timestamps[i];
+                break;
+            }
+        }
+        return Math.max(timestamps[phase.ordinal()] - previous, 0);
+    }
+
+    /**
+     * @return the time from the start to the last marked phase (nanoseconds).
+     */
+    public long getTotal() {
+        for (int i = PHASES.length - 1; i >= 0; i--) {
+            if (isMarked(PHASES[i])) {
+                return Math.max(timestamps[i] - start, 0);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the time from the start until now (nanoseconds).
+     */
+    public long getElapsed() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the breakdown of the marked phases, in milliseconds.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(128);
+        for (Phase phase : PHASES) {
+            if (isMarked(phase)) {
+                appendMillis(builder.append(phase.getLabel()).append('='), getDuration(phase)).append("ms ");
+            }
+        }
+        return appendMillis(builder.append("total="), getTotal()).append("ms").toString();
+    }
+
+    private static StringBuilder appendMillis(StringBuilder builder, long nanos) {
+        return builder.append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+    }
+
+    /**
+     * The request's phases, in order, each one named after what is done before its end is marked.
+     */
+    public enum Phase {
+
+        /**
+         * The request head has been parsed.
+         */
+        PARSED("parse"),
+
+        /**
+         * The request has been admitted for processing.
+         */
+        ADMITTED("admission"),
+
+        /**
+         * The PAC script gave the proxies to try.
+         */
+        RESOLVED("resolve"),
+
+        /**
+         * The connection to the upstream proxy, or to the target host when direct, is open.
+         */
+        CONNECTED("connect"),
+
+        /**
+         * The last proxy authentication challenge has been received.
+         */
+        AUTHENTICATED("auth"),
+
+        /**
+         * The head of the upstream's final response has been received.
+         */
+        FIRST_BYTE("first_byte"),
+
+        /**
+         * The response has been written to the client or, for a CONNECT request, the tunnel is established.
+         */
+        COMPLETED("transfer");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+}
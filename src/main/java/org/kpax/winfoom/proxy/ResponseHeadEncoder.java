@@ -0,0 +1,202 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.FormattedHeader;
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.util.CharArrayBuffer;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Accumulate the status line and the headers of a response, encoded byte per char
+ * (ISO-8859-1, the chars above {@code 0xFF} being replaced by {@code ?}),
+ * then write them all with a single call when the head is complete.
+ * <p>The buffers are taken from a shared pool and given back once the head is written.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+public final class ResponseHeadEncoder {
+
+    /**
+     * The size of the pooled buffers, large enough for most response heads.
+     */
+    static final int BUFFER_SIZE = InputOutputs.DEFAULT_BUFFER_SIZE;
+
+    private static final int POOL_SIZE = 256;
+
+    private static final ArrayBlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private byte[] buffer;
+
+    private int count;
+
+    /**
+     * Append a status line, formatted like {@link org.apache.http.message.BasicLineFormatter} does.
+     *
+     * @param statusLine the status line.
+     */
+    public void append(@NotNull final StatusLine statusLine) {
+        ProtocolVersion version = statusLine.getProtocolVersion();
+        appendChars(version.getProtocol());
+        appendByte('/');
+        appendInt(version.getMajor());
+        appendByte('.');
+        appendInt(version.getMinor());
+        appendByte(' ');
+        appendInt(statusLine.getStatusCode());
+        appendByte(' ');
+        if (statusLine.getReasonPhrase() != null) {
+            appendChars(statusLine.getReasonPhrase());
+        }
+        appendCrlf();
+    }
+
+    /**
+     * Append a header, as received when already formatted, otherwise as {@code name: value}.
+     *
+     * @param header the header.
+     */
+    public void append(@NotNull final Header header) {
+        if (header instanceof FormattedHeader) {
+            CharArrayBuffer formatted = ((FormattedHeader) header).getBuffer();
+            ensureCapacity(formatted.length());
+            for (int i = 0; i < formatted.length(); i++) {
+                buffer[count++] = encode(formatted.charAt(i));
+            }
+        } else {
+            appendChars(header.getName());
+            appendByte(':');
+            appendByte(' ');
+            if (header.getValue() != null) {
+                appendChars(header.getValue());
+            }
+        }
+        appendCrlf();
+    }
+
+    /**
+     * Append a line.
+     *
+     * @param line the line, without the ending CRLF.
+     */
+    public void append(@NotNull final CharSequence line) {
+        appendChars(line);
+        appendCrlf();
+    }
+
+    /**
+     * End the head with an empty line, write it with a single call, then release the buffer.
+     *
+     * @param outputStream where to write the head.
+     * @throws IOException on writing failure.
+     */
+    public void writeTo(@NotNull final OutputStream outputStream) throws IOException {
+        appendCrlf();
+        try {
+            outputStream.write(buffer, 0, count);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * @return {@code true} iff there is something appended and not written yet.
+     */
+    public boolean isPending() {
+        return count > 0;
+    }
+
+    /**
+     * Discard what has been appended and give the buffer back to the pool.
+     */
+    public void reset() {
+        if (buffer != null) {
+            if (buffer.length == BUFFER_SIZE) {
+                pool.offer(buffer);
+            }
+            buffer = null;
+        }
+        count = 0;
+    }
+
+    private void appendChars(final CharSequence chars) {
+        int length = chars.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = encode(chars.charAt(i));
+        }
+    }
+
+    private void appendInt(final int value) {
+        if (value < 0) {
+            appendChars(Integer.toString(value));
+            return;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        int rest = value;
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        count += digits;
+    }
+
+    private void appendByte(final int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void appendCrlf() {
+        ensureCapacity(2);
+        buffer[count++] = CR;
+        buffer[count++] = LF;
+    }
+
+    private void ensureCapacity(final int length) {
+        if (buffer == null) {
+            buffer = pool.poll();
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+        }
+        if (count + length > buffer.length) {
+            byte[] larger = new byte[Math.max(buffer.length << 1, count + length)];
+            System.arraycopy(buffer, 0, larger, 0, count);
+            if (buffer.length == BUFFER_SIZE) {
+                pool.offer(buffer);
+            }
+            buffer = larger;
+        }
+    }
+
+    private static byte encode(final char c) {
+        return c <= 0xFF ? (byte) c : (byte) '?';
+    }
+
+}
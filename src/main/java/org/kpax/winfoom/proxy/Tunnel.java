@@ -24,6 +24,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.Socket;
 
 /**
  * Encapsulate the response of a {@link TunnelConnection}.
@@ -37,14 +38,23 @@ public final class Tunnel implements StreamSource, Closeable {
     private final ManagedHttpClientConnection connection;
     private final HttpResponse response;
 
+    /**
+     * The scheme of the proxy authentication, if any.
+     */
+    private final String authScheme;
+
     private final InputStream inputStream;
     private final OutputStream outputStream;
 
-    Tunnel(final ManagedHttpClientConnection connection, final HttpResponse response) throws IOException {
+    private volatile boolean detached;
+
+    Tunnel(final ManagedHttpClientConnection connection, final HttpResponse response,
+           final String authScheme) throws IOException {
         Assert.notNull(connection, "connection cannot be null");
         Assert.notNull(response, "response cannot be null");
         this.connection = connection;
         this.response = response;
+        this.authScheme = authScheme;
         this.inputStream = connection.getSocket().getInputStream();
         this.outputStream = connection.getSocket().getOutputStream();
     }
@@ -53,6 +63,20 @@ public final class Tunnel implements StreamSource, Closeable {
         return connection;
     }
 
+    /**
+     * @return the socket connected to the proxy
+     */
+    public Socket getSocket() {
+        return connection.getSocket();
+    }
+
+    /**
+     * Hand over the underlying connection to another owner, so {@link #close()} won't close it anymore.
+     */
+    public void detach() {
+        detached = true;
+    }
+
     @Override
     public InputStream getInputStream() {
         return this.inputStream;
@@ -71,8 +95,17 @@ public final class Tunnel implements StreamSource, Closeable {
         return response.getStatusLine();
     }
 
+    /**
+     * @return the scheme of the proxy authentication (Basic, NTLM etc.), {@code null} if none.
+     */
+    public String getAuthScheme() {
+        return authScheme;
+    }
+
     @Override
     public void close() {
-        InputOutputs.close(connection);
+        if (!detached) {
+            InputOutputs.close(connection);
+        }
     }
 }
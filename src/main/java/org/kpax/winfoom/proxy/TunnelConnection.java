@@ -15,9 +15,12 @@ package org.kpax.winfoom.proxy;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.*;
 import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthOption;
+import org.apache.http.auth.AuthProtocolState;
 import org.apache.http.auth.AuthSchemeProvider;
 import org.apache.http.auth.AuthState;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.protocol.RequestClientConnControl;
@@ -39,6 +42,8 @@ import org.apache.http.util.Args;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.jfr.ProxyAuthChallengeEvent;
+import org.kpax.winfoom.proxy.jfr.UpstreamConnectEvent;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.functional.ProxySingletonSupplier;
@@ -47,7 +52,10 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
 
 /**
  * Establish a tunnel via a HTTP proxy.<br>
@@ -69,6 +77,15 @@ public class TunnelConnection {
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private RelayEngine relayEngine;
+
+    @Autowired
+    private TunnelPool tunnelPool;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     private HttpProcessor httpProcessor;
     private HttpRequestExecutor requestExec;
     private ProxyAuthenticationStrategy proxyAuthStrategy;
@@ -83,76 +100,211 @@ public class TunnelConnection {
         this.authenticator = new HttpAuthenticator();
     }
 
+    /**
+     * Open a tunnel to the target host, on a prepared connection from the {@link TunnelPool} if available.
+     *
+     * @param proxy           the upstream proxy.
+     * @param target          the target host.
+     * @param protocolVersion the CONNECT request's protocol version.
+     * @return the open tunnel.
+     * @throws IOException
+     * @throws HttpException
+     */
     public Tunnel open(final HttpHost proxy, final HttpHost target,
                        final ProtocolVersion protocolVersion)
             throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, null);
+    }
+
+    /**
+     * Open a tunnel to the target host, on a prepared connection from the {@link TunnelPool} if available,
+     * marking the phases of the CONNECT request.
+     *
+     * @param proxy           the upstream proxy.
+     * @param target          the target host.
+     * @param protocolVersion the CONNECT request's protocol version.
+     * @param timings         the CONNECT request's timings, may be {@code null}.
+     * @return the open tunnel.
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Tunnel open(final HttpHost proxy, final HttpHost target,
+                       final ProtocolVersion protocolVersion,
+                       final RequestTimings timings)
+            throws IOException, HttpException {
         Args.notNull(proxy, "Proxy host");
         Args.notNull(target, "Target host");
 
+        if (tunnelPool.isEnabled()) {
+            TunnelPool.PreparedConnection preparedConnection = tunnelPool.poll(proxy);
+            if (preparedConnection != null) {
+                logger.debug("Use prepared tunnel connection {}", preparedConnection.getConnection());
+                try {
+                    Tunnel tunnel = establish(proxy, target, protocolVersion,
+                            preparedConnection.getConnection(), preparedConnection.getAuthState(), timings);
+                    refill(proxy, target, protocolVersion);
+                    return tunnel;
+                } catch (TunnelRefusedException e) {
+                    if (e.getResponse().getStatusLine().getStatusCode() != HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+                        throw e;
+                    }
+                    logger.debug("Prepared tunnel connection not authorized, use a new one");
+                } catch (IOException e) {
+                    logger.debug("Prepared tunnel connection failed, use a new one", e);
+                }
+            }
+        }
+
         AuthState proxyAuthState = new AuthState();
+        Tunnel tunnel = establish(proxy, target, protocolVersion,
+                createConnection(proxy, target), proxyAuthState, timings);
+        if (proxyAuthState.getState() != AuthProtocolState.UNCHALLENGED) {
+            // The proxy requires authentication, so it's worth preparing connections
+            refill(proxy, target, protocolVersion);
+        }
+        return tunnel;
+    }
 
-        HttpHost host = target;
-        if (host.getPort() <= 0) {
-            host = new HttpHost(host.getHostName(), 80, host.getSchemeName());
+    /**
+     * Carry out the authentication handshake on a new connection, stopping before its final leg.
+     *
+     * @param proxy           the upstream proxy.
+     * @param target          the target host of the probing CONNECT request.
+     * @param protocolVersion the CONNECT request's protocol version.
+     * @return the prepared connection or {@code null} if the proxy does not require authentication
+     * or the handshake cannot be completed on the same connection.
+     * @throws IOException
+     * @throws HttpException
+     */
+    TunnelPool.PreparedConnection prepare(final HttpHost proxy, final HttpHost target,
+                                          final ProtocolVersion protocolVersion)
+            throws IOException, HttpException {
+        AuthState proxyAuthState = new AuthState();
+        ManagedHttpClientConnection connection = createConnection(proxy, target);
+        boolean prepared = false;
+        try {
+            HttpRequest connect = createConnectRequest(target, protocolVersion);
+            HttpContext context = createContext(proxy, target, connection, connect, proxyAuthState);
+            bind(proxy, connection);
+            while (true) {
+                authenticator.generateAuthResponse(connect, proxyAuthState, context);
+                HttpResponse response = requestExec.execute(connect, connection, context);
+                if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED
+                        || !authenticator.isAuthenticationRequested(
+                        proxy, response, proxyAuthStrategy, proxyAuthState, context)
+                        || !authenticator.handleAuthChallenge(
+                        proxy, response, proxyAuthStrategy, proxyAuthState, context)
+                        || !DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context)) {
+                    logger.debug("Cannot prepare tunnel connection, status: {}", response.getStatusLine());
+                    return null;
+                }
+                EntityUtils.consume(response.getEntity());
+                connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
+                if (isFinalLeg(proxyAuthState)) {
+                    prepared = true;
+                    return new TunnelPool.PreparedConnection(connection, proxyAuthState);
+                }
+            }
+        } finally {
+            if (!prepared) {
+                InputOutputs.close(connection);
+            }
         }
-        final HttpRoute route = new HttpRoute(host, RequestConfig.DEFAULT.getLocalAddress(),
-                proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
-        final ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route,
-                ConnectionConfig.DEFAULT);
-        final HttpContext context = new BasicHttpContext();
-        final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
+    }
 
-        // Populate the execution context
-        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, target);
-        context.setAttribute(HttpCoreContext.HTTP_CONNECTION, connection);
-        context.setAttribute(HttpCoreContext.HTTP_REQUEST, connect);
-        context.setAttribute(HttpClientContext.HTTP_ROUTE, route);
-        context.setAttribute(HttpClientContext.PROXY_AUTH_STATE, proxyAuthState);
-        context.setAttribute(HttpClientContext.CREDS_PROVIDER, credentialsProviderSupplier.get());
-        context.setAttribute(HttpClientContext.REQUEST_CONFIG, RequestConfig.DEFAULT);
-        context.setAttribute(HttpClientContext.AUTHSCHEME_REGISTRY, authSchemeRegistrySupplier.get());
+    private void refill(final HttpHost proxy, final HttpHost target, final ProtocolVersion protocolVersion) {
+        tunnelPool.refill(proxy, () -> prepare(proxy, target, protocolVersion));
+    }
 
-        requestExec.preProcess(connect, httpProcessor, context);
+    /**
+     * Send the CONNECT request, going through the authentication challenges.
+     * <p>The connection is closed on failure.
+     */
+    private Tunnel establish(final HttpHost proxy, final HttpHost target,
+                             final ProtocolVersion protocolVersion,
+                             final ManagedHttpClientConnection connection,
+                             final AuthState proxyAuthState,
+                             final RequestTimings timings)
+            throws IOException, HttpException {
+        final HttpRequest connect = createConnectRequest(target, protocolVersion);
+        final HttpContext context = createContext(proxy, target, connection, connect, proxyAuthState);
 
+        final String upstream = "http://" + proxy.toHostString();
+        final ProxyAuthChallengeEvent authEvent = new ProxyAuthChallengeEvent();
+        authEvent.begin();
         HttpResponse response;
-        while (true) {
-            if (!connection.isOpen()) {
-                Socket socket = new Socket(proxy.getHostName(), proxy.getPort());
-                systemConfig.configureSocket(socket);
-                connection.bind(socket);
-            }
+        long authNanos = 0;
+        int roundTrips = 0;
+        try {
+            while (true) {
+                if (!connection.isOpen()) {
+                    UpstreamConnectEvent connectEvent = new UpstreamConnectEvent();
+                    connectEvent.begin();
+                    long connectStart = System.nanoTime();
+                    try {
+                        bind(proxy, connection);
+                    } finally {
+                        connectEvent.emit(upstream, target.toHostString(), connection.isOpen());
+                    }
+                    long connectEnd = System.nanoTime();
+                    proxyMetrics.connectTime(upstream, connectEnd - connectStart);
+                    if (timings != null) {
+                        timings.mark(RequestTimings.Phase.CONNECTED, connectEnd);
+                    }
+                }
 
-            authenticator.generateAuthResponse(connect, proxyAuthState, context);
-            response = requestExec.execute(connect, connection, context);
+                authenticator.generateAuthResponse(connect, proxyAuthState, context);
+                long exchangeStart = System.nanoTime();
+                response = requestExec.execute(connect, connection, context);
+                long exchangeEnd = System.nanoTime();
+                long exchangeNanos = exchangeEnd - exchangeStart;
 
-            final int status = response.getStatusLine().getStatusCode();
-            logger.debug("Tunnel status code: {}", status);
-            if (status < HttpStatus.SC_OK) {
-                throw new HttpException("Unexpected response to CONNECT request: " + response.getStatusLine());
-            }
+                final int status = response.getStatusLine().getStatusCode();
+                logger.debug("Tunnel status code: {}", status);
+                if (status < HttpStatus.SC_OK) {
+                    throw new HttpException("Unexpected response to CONNECT request: " + response.getStatusLine());
+                }
 
-            if (authenticator.isAuthenticationRequested(
-                    proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
-                if (authenticator.handleAuthChallenge(
+                if (authenticator.isAuthenticationRequested(
                         proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
-                    // Retry request
-                    if (DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context)) {
-                        // Consume response content
-                        logger.debug("Now consume entity");
-                        EntityUtils.consume(response.getEntity());
+                    if (authenticator.handleAuthChallenge(
+                            proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
+                        authNanos += exchangeNanos;
+                        roundTrips++;
+                        if (timings != null) {
+                            timings.mark(RequestTimings.Phase.AUTHENTICATED, exchangeEnd);
+                        }
+
+                        // Retry request
+                        if (DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context)) {
+                            // Consume response content
+                            logger.debug("Now consume entity");
+                            EntityUtils.consume(response.getEntity());
+                        } else {
+                            logger.debug("Close tunnel connection");
+                            InputOutputs.close(connection);
+                        }
+                        // discard previous auth header
+                        connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
                     } else {
-                        logger.debug("Close tunnel connection");
-                        InputOutputs.close(connection);
+                        firstByte(upstream, exchangeNanos, exchangeEnd, timings);
+                        break;
                     }
-                    // discard previous auth header
-                    connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
                 } else {
+                    firstByte(upstream, exchangeNanos, exchangeEnd, timings);
                     break;
                 }
-            } else {
-                break;
-            }
 
+            }
+            if (authNanos > 0) {
+                proxyMetrics.authTime(upstream, authNanos);
+                authEvent.emit(upstream, target.toHostString(),
+                        proxyAuthState.getAuthScheme() != null ? proxyAuthState.getAuthScheme().getSchemeName() : null,
+                        roundTrips, response.getStatusLine().getStatusCode());
+            }
+        } catch (IOException | HttpException | RuntimeException e) {
+            InputOutputs.close(connection);
+            throw e;
         }
 
         final int status = response.getStatusLine().getStatusCode();
@@ -170,7 +322,87 @@ public class TunnelConnection {
             throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
         }
 
-        return new Tunnel(connection, response);
+        return new Tunnel(connection, response,
+                proxyAuthState.getAuthScheme() != null ? proxyAuthState.getAuthScheme().getSchemeName() : null);
+    }
+
+    private void firstByte(final String upstream, final long exchangeNanos, final long exchangeEnd,
+                           final RequestTimings timings) {
+        proxyMetrics.firstByteTime(upstream, exchangeNanos);
+        if (timings != null) {
+            timings.mark(RequestTimings.Phase.FIRST_BYTE, exchangeEnd);
+        }
+    }
+
+    private ManagedHttpClientConnection createConnection(final HttpHost proxy, final HttpHost target) {
+        return ManagedHttpClientConnectionFactory.INSTANCE.create(createRoute(proxy, target),
+                ConnectionConfig.DEFAULT);
+    }
+
+    private HttpRoute createRoute(final HttpHost proxy, final HttpHost target) {
+        return new HttpRoute(withDefaultPort(target), RequestConfig.DEFAULT.getLocalAddress(),
+                proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
+    }
+
+    private static HttpHost withDefaultPort(final HttpHost target) {
+        if (target.getPort() <= 0) {
+            return new HttpHost(target.getHostName(), 80, target.getSchemeName());
+        }
+        return target;
+    }
+
+    private HttpRequest createConnectRequest(final HttpHost target, final ProtocolVersion protocolVersion) {
+        return new BasicHttpRequest(HttpUtils.HTTP_CONNECT, withDefaultPort(target).toHostString(), protocolVersion);
+    }
+
+    private HttpContext createContext(final HttpHost proxy,
+                                      final HttpHost target,
+                                      final ManagedHttpClientConnection connection,
+                                      final HttpRequest connect,
+                                      final AuthState proxyAuthState) throws IOException, HttpException {
+        final HttpContext context = new BasicHttpContext();
+
+        // Populate the execution context
+        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, target);
+        context.setAttribute(HttpCoreContext.HTTP_CONNECTION, connection);
+        context.setAttribute(HttpCoreContext.HTTP_REQUEST, connect);
+        context.setAttribute(HttpClientContext.HTTP_ROUTE, createRoute(proxy, target));
+        context.setAttribute(HttpClientContext.PROXY_AUTH_STATE, proxyAuthState);
+        context.setAttribute(HttpClientContext.CREDS_PROVIDER, credentialsProviderSupplier.get());
+        context.setAttribute(HttpClientContext.REQUEST_CONFIG, RequestConfig.DEFAULT);
+        context.setAttribute(HttpClientContext.AUTHSCHEME_REGISTRY, authSchemeRegistrySupplier.get());
+
+        requestExec.preProcess(connect, httpProcessor, context);
+        return context;
+    }
+
+    private void bind(final HttpHost proxy, final ManagedHttpClientConnection connection) throws IOException {
+        // A channel backed socket can be relayed by the RelayEngine
+        Socket socket = relayEngine.isEnabled() ? SocketChannel.open().socket() : new Socket();
+        try {
+            socket.connect(new InetSocketAddress(proxy.getHostName(), proxy.getPort()));
+        } catch (IOException e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+        systemConfig.configureSocket(socket);
+        connection.bind(socket);
+    }
+
+    /**
+     * The next request carries the final credentials: the NTLM challenge was received,
+     * or a single leg scheme (Basic, Digest, Kerberos) was offered.
+     */
+    private static boolean isFinalLeg(final AuthState proxyAuthState) {
+        if (proxyAuthState.getState() == AuthProtocolState.HANDSHAKE) {
+            return true;
+        }
+        if (proxyAuthState.getState() == AuthProtocolState.CHALLENGED) {
+            Queue<AuthOption> authOptions = proxyAuthState.getAuthOptions();
+            return authOptions != null && !authOptions.isEmpty()
+                    && !AuthSchemes.NTLM.equalsIgnoreCase(authOptions.peek().getAuthScheme().getSchemeName());
+        }
+        return false;
     }
 
 }
@@ -0,0 +1,266 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthState;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Keeps, for each upstream HTTP proxy, a few connections on which the authentication handshake
+ * has already been carried out up to its final leg, so that a CONNECT request only needs one round trip.
+ * <p>The pool is refilled in background, the expired or stale connections being evicted
+ * by a scheduled task and checked again when polled.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+@ThreadSafe
+@Component
+public class TunnelPool implements StopListener {
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    private final Map<HttpHost, Pool> pools = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @return {@code true} iff the pool size is positive.
+     */
+    public boolean isEnabled() {
+        return systemConfig.getTunnelPoolSize() > 0;
+    }
+
+    /**
+     * Take a healthy prepared connection out of the pool, closing the unusable ones.
+     *
+     * @param proxy the upstream proxy.
+     * @return the prepared connection or {@code null} if none available.
+     */
+    PreparedConnection poll(@NotNull final HttpHost proxy) {
+        Pool pool = pools.get(proxy);
+        if (pool != null) {
+            PreparedConnection preparedConnection;
+            while ((preparedConnection = pool.poll()) != null) {
+                if (isUsable(preparedConnection)) {
+                    hits.increment();
+                    return preparedConnection;
+                }
+                logger.debug("Evict unusable tunnel connection {}", preparedConnection.connection);
+                evicted.increment();
+                preparedConnection.close();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Submit as many tasks as needed to bring the pool back to its configured size.
+     *
+     * @param proxy   the upstream proxy.
+     * @param factory creates a prepared connection, or returns {@code null} when the proxy
+     *                does not require authentication.
+     */
+    void refill(@NotNull final HttpHost proxy, @NotNull final Callable<PreparedConnection> factory) {
+        if (!isEnabled()) {
+            return;
+        }
+        Pool pool = pools.computeIfAbsent(proxy, key -> new Pool());
+        for (int i = pool.reserve(systemConfig.getTunnelPoolSize()); i > 0; i--) {
+            executorService.execute(() -> {
+                PreparedConnection preparedConnection = null;
+                try {
+                    preparedConnection = factory.call();
+                } catch (Exception e) {
+                    logger.debug("Cannot prepare tunnel connection to " + proxy, e);
+                } finally {
+                    if (!pool.release(preparedConnection) && preparedConnection != null) {
+                        preparedConnection.close();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * A job that closes the expired/stale tunnel connections.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.connectionManagerCleanInterval * 1000}")
+    void evictIdleConnections() {
+        pools.values().forEach(pool -> {
+            for (PreparedConnection preparedConnection : pool.removeIf(this::isUnusable)) {
+                logger.debug("Evict idle tunnel connection {}", preparedConnection.connection);
+                evicted.increment();
+                preparedConnection.close();
+            }
+        });
+    }
+
+    /**
+     * @return the pool counters.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", systemConfig.getTunnelPoolSize());
+        stats.put("idle", pools.values().stream().mapToInt(Pool::size).sum());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evicted", evicted.sum());
+        return stats;
+    }
+
+    int getIdleCount(@NotNull final HttpHost proxy) {
+        Pool pool = pools.get(proxy);
+        return pool != null ? pool.size() : 0;
+    }
+
+    private boolean isUsable(PreparedConnection preparedConnection) {
+        return !isUnusable(preparedConnection);
+    }
+
+    private boolean isUnusable(PreparedConnection preparedConnection) {
+        return System.nanoTime() - preparedConnection.created >
+                TimeUnit.SECONDS.toNanos(systemConfig.getTunnelPoolIdleTimeout())
+                || preparedConnection.connection.isStale();
+    }
+
+    @Override
+    public void onStop() {
+        logger.debug("Close all pooled tunnel connections");
+        for (Iterator<Pool> itr = pools.values().iterator(); itr.hasNext(); ) {
+            itr.next().close().forEach(PreparedConnection::close);
+            itr.remove();
+        }
+    }
+
+    /**
+     * A connection waiting to send the CONNECT request, together with its authentication state.
+     */
+    static final class PreparedConnection {
+
+        private final ManagedHttpClientConnection connection;
+
+        private final AuthState authState;
+
+        private final long created = System.nanoTime();
+
+        PreparedConnection(ManagedHttpClientConnection connection, AuthState authState) {
+            this.connection = connection;
+            this.authState = authState;
+        }
+
+        ManagedHttpClientConnection getConnection() {
+            return connection;
+        }
+
+        AuthState getAuthState() {
+            return authState;
+        }
+
+        private void close() {
+            InputOutputs.close(connection);
+        }
+    }
+
+    private static final class Pool {
+
+        private final Deque<PreparedConnection> idle = new ArrayDeque<>();
+
+        private int pending;
+
+        private boolean closed;
+
+        private synchronized PreparedConnection poll() {
+            // The most recently prepared first, they are the least likely to be closed by the proxy
+            return idle.pollLast();
+        }
+
+        private synchronized int size() {
+            return idle.size();
+        }
+
+        private synchronized int reserve(int size) {
+            if (closed) {
+                return 0;
+            }
+            int missing = Math.max(0, size - idle.size() - pending);
+            pending += missing;
+            return missing;
+        }
+
+        /**
+         * @return {@code false} iff the connection was not accepted and should be closed.
+         */
+        private synchronized boolean release(PreparedConnection preparedConnection) {
+            pending--;
+            if (closed || preparedConnection == null) {
+                return false;
+            }
+            idle.addLast(preparedConnection);
+            return true;
+        }
+
+        private synchronized List<PreparedConnection> removeIf(
+                Predicate<PreparedConnection> predicate) {
+            List<PreparedConnection> removed = new ArrayList<>();
+            for (Iterator<PreparedConnection> itr = idle.iterator(); itr.hasNext(); ) {
+                PreparedConnection preparedConnection = itr.next();
+                if (predicate.test(preparedConnection)) {
+                    itr.remove();
+                    removed.add(preparedConnection);
+                }
+            }
+            return removed;
+        }
+
+        private synchronized List<PreparedConnection> close() {
+            closed = true;
+            List<PreparedConnection> removed = new ArrayList<>(idle);
+            idle.clear();
+            return removed;
+        }
+    }
+
+}
@@ -22,6 +22,8 @@ import javax.security.auth.login.LoginException;
 import java.security.PrivilegedActionException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Responsible for Kerberos authentication, authorization.
@@ -77,7 +79,22 @@ public class KerberosModule implements ProxyListener {
 
         volatile KerberosTicket kerberosTicket;
 
-        private synchronized void authenticate() throws LoginException {
+        /**
+         * Not a monitor, since the login might block on the KDC: a virtual thread
+         * blocked inside a {@code synchronized} block would pin its carrier thread.
+         */
+        private final Lock lock = new ReentrantLock();
+
+        private void authenticate() throws LoginException {
+            lock.lock();
+            try {
+                doAuthenticate();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void doAuthenticate() throws LoginException {
             logger.debug("Attempting Kerberos authentication");
 
             if (kerberosTicket != null) {
@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.*;
+import org.kpax.winfoom.annotation.NotNull;
+
+import java.net.Socket;
+
+/**
+ * A client's connection accepted by the local proxy server.
+ *
+ * @author Eugen Covaci
+ */
+@Name("winfoom.ConnectionAccepted")
+@Label("Connection Accepted")
+@Category("Winfoom")
+@Description("A client's connection accepted by the local proxy server")
+@StackTrace(false)
+public final class ConnectionAcceptedEvent extends Event {
+
+    @Label("Client")
+    @Description("The client's address")
+    String client;
+
+    @Label("Event Driven")
+    @Description("Whether the connection has been accepted by the event-driven listener")
+    boolean eventDriven;
+
+    /**
+     * Commit the event, unless not enabled.
+     *
+     * @param socket      the client's socket.
+     * @param eventDriven whether the connection has been accepted by the event-driven listener.
+     */
+    public static void emit(@NotNull final Socket socket, boolean eventDriven) {
+        ConnectionAcceptedEvent event = new ConnectionAcceptedEvent();
+        if (event.shouldCommit()) {
+            event.client = String.valueOf(socket.getRemoteSocketAddress());
+            event.eventDriven = eventDriven;
+            event.commit();
+        }
+    }
+
+}
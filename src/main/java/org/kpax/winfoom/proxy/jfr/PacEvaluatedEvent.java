@@ -0,0 +1,63 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.*;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The PAC decision for a request: the call of the PAC script function or the decision cache lookup.
+ * <p>To be started with {@link #begin()}, then ended with {@link #emit(String, List, boolean)}.
+ *
+ * @author Eugen Covaci
+ */
+@Name("winfoom.PacEvaluated")
+@Label("PAC Evaluated")
+@Category("Winfoom")
+@Description("The PAC decision for a request")
+@StackTrace(false)
+public final class PacEvaluatedEvent extends Event {
+
+    @Label("Host")
+    @Description("The request's host")
+    String host;
+
+    @Label("Result")
+    @Description("The proxies to try, in order, before filtering out the blacklisted ones")
+    String result;
+
+    @Label("Cached")
+    @Description("Whether the decision has been found in the decision cache")
+    boolean cached;
+
+    /**
+     * Commit the event, unless not enabled or shorter than its threshold.
+     *
+     * @param host       the request's host.
+     * @param proxyInfos the proxies to try.
+     * @param cached     whether the decision has been found in the decision cache.
+     */
+    public void emit(String host, List<ProxyInfo> proxyInfos, boolean cached) {
+        if (shouldCommit()) {
+            this.host = host;
+            this.result = proxyInfos.stream().map(ProxyMetrics::upstream).collect(Collectors.joining("; "));
+            this.cached = cached;
+            commit();
+        }
+    }
+
+}
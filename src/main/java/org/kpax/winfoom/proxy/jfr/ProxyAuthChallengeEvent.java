@@ -0,0 +1,71 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * The CONNECT exchange with an upstream proxy that challenged it for authentication,
+ * from the first request to the final response.
+ * <p>To be started with {@link #begin()}, then ended with {@link #emit(String, String, String, int, int)}.
+ *
+ * @author Eugen Covaci
+ */
+@Name("winfoom.ProxyAuthChallenge")
+@Label("Proxy Auth Challenge")
+@Category("Winfoom")
+@Description("The CONNECT exchange with an upstream proxy that challenged it for authentication")
+@StackTrace(false)
+public final class ProxyAuthChallengeEvent extends Event {
+
+    @Label("Upstream")
+    @Description("The upstream proxy")
+    String upstream;
+
+    @Label("Target")
+    @Description("The target host")
+    String target;
+
+    @Label("Scheme")
+    @Description("The authentication scheme: Basic, NTLM, Negotiate etc.")
+    String scheme;
+
+    @Label("Round Trips")
+    @Description("The challenges answered before the final response")
+    int roundTrips;
+
+    @Label("Status")
+    @Description("The status code of the final response")
+    int status;
+
+    /**
+     * Commit the event, unless not enabled or shorter than its threshold.
+     *
+     * @param upstream   the upstream proxy.
+     * @param target     the target host.
+     * @param scheme     the authentication scheme.
+     * @param roundTrips the challenges answered before the final response.
+     * @param status     the status code of the final response.
+     */
+    public void emit(String upstream, String target, String scheme, int roundTrips, int status) {
+        if (shouldCommit()) {
+            this.upstream = upstream;
+            this.target = target;
+            this.scheme = scheme;
+            this.roundTrips = roundTrips;
+            this.status = status;
+            commit();
+        }
+    }
+
+}
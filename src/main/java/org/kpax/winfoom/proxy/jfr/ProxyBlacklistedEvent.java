@@ -0,0 +1,54 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.*;
+
+import java.time.Instant;
+
+/**
+ * An upstream proxy blacklisted after failing to connect.
+ *
+ * @author Eugen Covaci
+ */
+@Name("winfoom.ProxyBlacklisted")
+@Label("Proxy Blacklisted")
+@Category("Winfoom")
+@Description("An upstream proxy blacklisted after failing to connect")
+public final class ProxyBlacklistedEvent extends Event {
+
+    @Label("Upstream")
+    @Description("The blacklisted proxy")
+    String upstream;
+
+    @Label("Until")
+    @Description("The end of the blacklisting")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long until;
+
+    /**
+     * Commit the event, unless not enabled.
+     *
+     * @param upstream the blacklisted proxy.
+     * @param until    the end of the blacklisting.
+     */
+    public static void emit(String upstream, Instant until) {
+        ProxyBlacklistedEvent event = new ProxyBlacklistedEvent();
+        if (event.shouldCommit()) {
+            event.upstream = upstream;
+            event.until = until.toEpochMilli();
+            event.commit();
+        }
+    }
+
+}
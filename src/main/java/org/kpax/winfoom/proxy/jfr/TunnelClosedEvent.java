@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A CONNECT tunnel, from the start of the relaying until closed.
+ * <p>To be started with {@link #start()}, then ended with {@link #emit(String, String, String, long, long, boolean)}.
+ *
+ * @author Eugen Covaci
+ */
+@Name("winfoom.TunnelClosed")
+@Label("Tunnel Closed")
+@Category("Winfoom")
+@Description("A CONNECT tunnel, from the start of the relaying until closed")
+@StackTrace(false)
+public final class TunnelClosedEvent extends Event {
+
+    private static final EventType EVENT_TYPE = EventType.getEventType(TunnelClosedEvent.class);
+
+    @Label("Client")
+    @Description("The client's address")
+    String client;
+
+    @Label("Target")
+    @Description("The target host")
+    String target;
+
+    @Label("Upstream")
+    @Description("The upstream proxy, direct if none")
+    String upstream;
+
+    @Label("Bytes In")
+    @Description("The bytes received from the client")
+    @DataAmount
+    long bytesIn;
+
+    @Label("Bytes Out")
+    @Description("The bytes sent to the client")
+    @DataAmount
+    long bytesOut;
+
+    @Label("Relayed")
+    @Description("Whether the tunnel has been relayed by the event-driven engine")
+    boolean relayed;
+
+    /**
+     * Since a tunnel's event outlives the current method, it is only allocated when enabled.
+     *
+     * @return the started event, {@code null} when not enabled.
+     */
+    public static TunnelClosedEvent start() {
+        if (!EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+        TunnelClosedEvent event = new TunnelClosedEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit the event, unless shorter than its threshold.
+     *
+     * @param client   the client's address.
+     * @param target   the target host.
+     * @param upstream the upstream proxy, {@code direct} if none.
+     * @param bytesIn  the bytes received from the client.
+     * @param bytesOut the bytes sent to the client.
+     * @param relayed  whether the tunnel has been relayed by the event-driven engine.
+     */
+    public void emit(String client, String target, String upstream, long bytesIn, long bytesOut, boolean relayed) {
+        if (shouldCommit()) {
+            this.client = client;
+            this.target = target;
+            this.upstream = upstream;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.relayed = relayed;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * The opening of a connection to an upstream proxy or, when direct, to the target host.
+ * <p>To be started with {@link #begin()}, then ended with {@link #emit(String, String, boolean)}.
+ *
+ * @author Eugen Covaci
+ */
+@Name("winfoom.UpstreamConnect")
+@Label("Upstream Connect")
+@Category("Winfoom")
+@Description("The opening of a connection to an upstream proxy or, when direct, to the target host")
+@StackTrace(false)
+public final class UpstreamConnectEvent extends Event {
+
+    @Label("Upstream")
+    @Description("The upstream proxy, direct if none")
+    String upstream;
+
+    @Label("Target")
+    @Description("The target host")
+    String target;
+
+    @Label("Success")
+    boolean success;
+
+    /**
+     * Commit the event, unless not enabled or shorter than its threshold.
+     *
+     * @param upstream the upstream proxy, {@code direct} if none.
+     * @param target   the target host.
+     * @param success  whether the connection has been opened.
+     */
+    public void emit(String upstream, String target, boolean success) {
+        if (shouldCommit()) {
+            this.upstream = upstream;
+            this.target = target;
+            this.success = success;
+            commit();
+        }
+    }
+
+}
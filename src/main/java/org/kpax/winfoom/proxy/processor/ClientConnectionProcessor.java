@@ -13,23 +13,38 @@
 package org.kpax.winfoom.proxy.processor;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpException;
 import org.apache.http.HttpStatus;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.exception.ProxyAuthorizationException;
 import org.kpax.winfoom.exception.ProxyConnectException;
+import org.kpax.winfoom.proxy.AccessLog;
+import org.kpax.winfoom.proxy.AdmissionController;
 import org.kpax.winfoom.proxy.ClientConnection;
+import org.kpax.winfoom.proxy.ConnectionRegistry;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.RelayEngine;
+import org.kpax.winfoom.proxy.RequestTimings;
 import org.kpax.winfoom.proxy.auth.KerberosModule;
+import org.kpax.winfoom.proxy.jfr.TunnelClosedEvent;
+import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.StreamSource;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.ClassUtils;
 
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.security.PrivilegedActionException;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -57,6 +72,31 @@ public abstract class ClientConnectionProcessor {
     @Autowired
     private KerberosModule kerberosModule;
 
+    @Autowired
+    private RelayEngine relayEngine;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private AccessLog accessLog;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
+    /**
+     * The processor's name, as it appears in the metrics.
+     */
+    private final String name = StringUtils.removeEnd(
+            ClassUtils.getUserClass(getClass()).getSimpleName(), ClientConnectionProcessor.class.getSimpleName());
+
+    /**
+     * @return the processor's name, like {@code HttpConnect} or {@code SocksNonConnect}.
+     */
+    public String getName() {
+        return name;
+    }
+
     /**
      * Process the client's connection. That is:<br>
      * <ul>
@@ -127,16 +167,17 @@ public abstract class ClientConnectionProcessor {
     /**
      * Simultaneously transfer bytes between two sources in a mutually independent manner.
      *
-     * @param firstSource  The first source.
-     * @param secondSource The second source.
+     * @param firstSource  The first source, the remote side.
+     * @param secondSource The second source, the client's side.
      */
     void duplex(@NotNull final StreamSource firstSource,
                 @NotNull final StreamSource secondSource) {
         logger.debug("Start full duplex communication");
+        proxyMetrics.tunnelOpened(false);
         Future<?> secondToFirst = executorService.submit(
                 () -> {
                     try {
-                        secondSource.getInputStream().transferTo(firstSource.getOutputStream());
+                        transfer(secondSource.getInputStream(), firstSource.getOutputStream(), true);
                     } catch (SocketTimeoutException e) {
                         logger.debug("Timeout exception on executing second to first transfer: {}", e.getMessage());
                     } catch (SocketException e) {
@@ -146,7 +187,7 @@ public abstract class ClientConnectionProcessor {
                     }
                 });
         try {
-            firstSource.getInputStream().transferTo(secondSource.getOutputStream());
+            transfer(firstSource.getInputStream(), secondSource.getOutputStream(), false);
         } catch (SocketTimeoutException e) {
             logger.debug("Timeout exception on executing first to second transfer: {}", e.getMessage());
         } catch (SocketException e) {
@@ -166,9 +207,97 @@ public abstract class ClientConnectionProcessor {
                 logger.debug("Transfer from second to first cancelled: {}", e.getMessage());
             }
         }
+        proxyMetrics.tunnelClosed(false);
         logger.debug("End full duplex communication");
     }
 
+    /**
+     * Like {@link InputStream#transferTo(OutputStream)}, the bytes being counted as they go.
+     */
+    private void transfer(final InputStream inputStream, final OutputStream outputStream,
+                          final boolean clientToUpstream) throws IOException {
+        byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, read);
+            proxyMetrics.tunnelBytes(clientToUpstream, read);
+        }
+    }
+
+    /**
+     * Transfer bytes between the remote socket and the client's connection until either side is done.
+     * <p>When both sockets are channel backed and the {@link RelayEngine} is enabled, the transfer is handed over
+     * to the {@link RelayEngine} and this method returns immediately, without holding the current thread.
+     * Otherwise, it falls back to {@link #duplex(StreamSource, StreamSource)}.
+     * <p>The request is considered completed once the tunnel is established, before relaying.
+     *
+     * @param socket           the remote socket.
+     * @param clientConnection the {@link ClientConnection} instance.
+     * @return {@code true} iff both sockets have been handed over to the {@link RelayEngine},
+     * so the caller must not close them anymore.
+     * @throws IOException
+     */
+    boolean relay(@NotNull final Socket socket,
+                  @NotNull final ClientConnection clientConnection) throws IOException {
+        clientConnection.getTimings().mark(RequestTimings.Phase.COMPLETED);
+        TunnelClosedEvent event = TunnelClosedEvent.start();
+        SocketChannel channel = socket.getChannel();
+        if (!relayEngine.isEnabled() || channel == null || clientConnection.getChannel() == null) {
+            connectionRegistry.tunneled(clientConnection, socket);
+            duplex(StreamSource.from(socket), clientConnection);
+            tunnelClosed(event, clientConnection, clientConnection.getBytesIn(), clientConnection.getBytesOut(), false);
+            return false;
+        }
+
+        // Forward what the client has already sent past the request head
+        SessionInputBufferImpl sessionInputBuffer = clientConnection.getSessionInputBuffer();
+        if (sessionInputBuffer.hasBufferedData()) {
+            byte[] buffer = new byte[sessionInputBuffer.length()];
+            int length = sessionInputBuffer.read(buffer);
+            socket.getOutputStream().write(buffer, 0, length);
+        }
+
+        // Then what is left in the input stream without blocking,
+        // like the bytes read by the event-driven listener along with a large head,
+        // that the relay engine reading from the channel would never see
+        InputStream inputStream = clientConnection.getInputStream();
+        for (int available = inputStream.available(); available > 0; available = inputStream.available()) {
+            byte[] buffer = new byte[Math.min(available, InputOutputs.DEFAULT_BUFFER_SIZE)];
+            int length = inputStream.read(buffer);
+            if (length < 0) {
+                break;
+            }
+            socket.getOutputStream().write(buffer, 0, length);
+        }
+
+        logger.debug("Hand over the tunnel to the relay engine");
+        AdmissionController.Permit permit = clientConnection.getPermit();
+        RelayEngine.Relay relay = relayEngine.relay(clientConnection.detach(), channel, closedRelay -> {
+            // The tunnel stays admitted while relayed
+            if (permit != null) {
+                permit.release();
+            }
+            connectionRegistry.unregister(clientConnection);
+            long bytesIn = clientConnection.getBytesIn() + closedRelay.getClientToUpstreamBytes();
+            long bytesOut = clientConnection.getBytesOut() + closedRelay.getUpstreamToClientBytes();
+            accessLog.log(clientConnection, bytesIn, bytesOut);
+            tunnelClosed(event, clientConnection, bytesIn, bytesOut, true);
+        });
+        connectionRegistry.relayed(clientConnection, relay);
+        return true;
+    }
+
+    private static void tunnelClosed(final TunnelClosedEvent event, final ClientConnection clientConnection,
+                                     final long bytesIn, final long bytesOut, final boolean relayed) {
+        if (event != null) {
+            ProxyInfo proxyInfo = clientConnection.getProxyInfo();
+            event.emit(String.valueOf(clientConnection.getClientAddress()),
+                    clientConnection.getRequestLine().getUri(),
+                    proxyInfo != null ? ProxyMetrics.upstream(proxyInfo) : null,
+                    bytesIn, bytesOut, relayed);
+        }
+    }
+
     /**
      * Call the {@link #handleKerberosRequest(ClientConnection, ProxyInfo)} method.
      * On {@link ProxyAuthorizationException} re-authenticate and call the same method again.
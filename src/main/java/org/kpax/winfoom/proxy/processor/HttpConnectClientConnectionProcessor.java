@@ -54,7 +54,9 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
         RequestLine requestLine = clientConnection.getRequestLine();
         HttpHost target = HttpHost.create(requestLine.getUri());
         HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort());
-        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion())) {
+        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(),
+                clientConnection.getTimings())) {
+            clientConnection.setAuthScheme(tunnel.getAuthScheme());
             try {
                 // Handle the tunnel response
                 logger.debug("Write status line {}", tunnel.getStatusLine());
@@ -71,7 +73,10 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
                 // The proxy facade mediates the full duplex communication
                 // between the client and the remote proxy.
                 // This usually ends on connection reset, timeout or any other error
-                duplex(tunnel, clientConnection);
+                if (relay(tunnel.getSocket(), clientConnection)) {
+                    // The relay engine owns the tunnel's socket now
+                    tunnel.detach();
+                }
             } catch (Exception e) {
                 logger.debug("Error on handling CONNECT response", e);
             }
@@ -21,6 +21,10 @@ import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.io.ChunkedOutputStream;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
@@ -30,7 +34,10 @@ import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.HttpClientBuilderFactory;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.RequestTimings;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -60,80 +67,139 @@ class NonConnectClientConnectionProcessor extends ClientConnectionProcessor {
     @Autowired
     private HttpClientBuilderFactory clientBuilderFactory;
 
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     @Override
     void handleRequest(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException, ProxyAuthorizationException {
-        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
-            URI uri = clientConnection.getRequestUri();
-            HttpHost target = new HttpHost(uri.getHost(),
-                    uri.getPort(),
-                    uri.getScheme());
-            HttpClientContext context = HttpClientContext.create();
-            if (proxyInfo.getType().isSocks()) {
-                InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                        proxyInfo.getProxyHost().getPort());
-                context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
-            }
+        CloseableHttpClient httpClient = clientBuilderFactory.getHttpClient(proxyInfo);
+        URI uri = clientConnection.getRequestUri();
+        HttpHost target = new HttpHost(uri.getHost(),
+                uri.getPort(),
+                uri.getScheme());
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(RequestTimings.ATTRIBUTE, clientConnection.getTimings());
+        if (proxyInfo.getType().isSocks()) {
+            InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                    proxyInfo.getProxyHost().getPort());
+            context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        }
 
-            // Execute the request
-            try (CloseableHttpResponse response = httpClient.execute(target, clientConnection.getRequest(), context)) {
-                StatusLine statusLine = response.getStatusLine();
-                if (statusLine.getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED &&
-                        proxyConfig.isKerberos()) {
-                    if (response.getEntity() != null) {
-                        response.setEntity(new BufferedHttpEntity(response.getEntity()));
-                    }
-                    throw new ProxyAuthorizationException(response);
+        // Execute the request
+        try (CloseableHttpResponse response = httpClient.execute(target, clientConnection.getRequest(), context)) {
+            proxyMetrics.exchangeTimes(ProxyMetrics.upstream(proxyInfo), context);
+            if (context.getProxyAuthState() != null && context.getProxyAuthState().getAuthScheme() != null) {
+                clientConnection.setAuthScheme(context.getProxyAuthState().getAuthScheme().getSchemeName());
+            }
+            StatusLine statusLine = response.getStatusLine();
+            if (statusLine.getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED &&
+                    proxyConfig.isKerberos()) {
+                if (response.getEntity() != null) {
+                    response.setEntity(new BufferedHttpEntity(response.getEntity()));
                 }
-                try {
-                    logger.debug("Write status line: {}", statusLine);
-                    clientConnection.write(statusLine);
-                    clientConnection.write(HttpUtils.createViaHeader(
-                            clientConnection.getRequestLine().getProtocolVersion(),
-                            response.getFirstHeader(HttpHeaders.VIA)));
-
-                    response.removeHeaders(HttpHeaders.VIA);
-                    response.removeHeaders(HttpHeaders.PROXY_AUTHENTICATE);
-
-                    for (Header header : response.getAllHeaders()) {
-                        if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
-
-                            // Strip 'chunked' from Transfer-Encoding header's value
-                            // since the response is not chunked
-                            String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
-                            if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
-                                clientConnection.write(
-                                        HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
-                                                nonChunkedTransferEncoding));
-                                logger.debug("Add chunk-striped header response");
-                            } else {
-                                logger.debug("Remove transfer encoding chunked header response");
-                            }
-                        } else {
-                            logger.debug("Write response header: {}", header);
-                            clientConnection.write(header);
-                        }
-                    }
-
-                    // Empty line marking the end
-                    // of header's section
-                    clientConnection.writeln();
-
-                    // Now write the request body, if any
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        logger.debug("Start writing entity content");
-                        entity.writeTo(clientConnection.getOutputStream());
-                        logger.debug("End writing entity content");
+                throw new ProxyAuthorizationException(response);
+            }
+            writeResponse(clientConnection, response);
+        }
+    }
 
-                        // Make sure the entity is fully consumed
-                        EntityUtils.consume(entity);
+    /**
+     * Write the remote response to the client.
+     * <p>When the client's connection is persistent, the response body must be delimited:
+     * the body of unknown length is sent with chunked transfer encoding.
+     * Otherwise, the body is close-delimited.
+     *
+     * @param clientConnection the {@link ClientConnection} instance
+     * @param response         the remote response
+     */
+    private void writeResponse(final ClientConnection clientConnection, final CloseableHttpResponse response) {
+        StatusLine statusLine = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        boolean bodyless = entity == null
+                || HttpUtils.HTTP_HEAD.equalsIgnoreCase(clientConnection.getRequestLine().getMethod());
+        boolean keepAlive = clientConnection.isKeepAlive()
+                && statusLine.getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+        boolean chunked = keepAlive && !bodyless && entity.getContentLength() < 0;
+
+        // Until the response is entirely written
+        clientConnection.setKeepAlive(false);
+        try {
+            logger.debug("Write status line: {}", statusLine);
+            clientConnection.write(statusLine);
+            clientConnection.write(HttpUtils.createViaHeader(
+                    clientConnection.getRequestLine().getProtocolVersion(),
+                    response.getFirstHeader(HttpHeaders.VIA)));
+
+            response.removeHeaders(HttpHeaders.VIA);
+            response.removeHeaders(HttpHeaders.PROXY_AUTHENTICATE);
+
+            boolean transferEncodingWritten = false;
+            for (Header header : response.getAllHeaders()) {
+                if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
+
+                    // Strip 'chunked' from Transfer-Encoding header's value
+                    // since the response is not chunked, unless chunked again below
+                    String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
+                    if (chunked) {
+                        clientConnection.write(
+                                HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+                                        StringUtils.isNotEmpty(nonChunkedTransferEncoding) ?
+                                                nonChunkedTransferEncoding + ", " + HTTP.CHUNK_CODING :
+                                                HTTP.CHUNK_CODING));
+                        transferEncodingWritten = true;
+                    } else if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
+                        clientConnection.write(
+                                HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+                                        nonChunkedTransferEncoding));
+                        logger.debug("Add chunk-striped header response");
+                    } else {
+                        logger.debug("Remove transfer encoding chunked header response");
                     }
+                } else if (HttpUtils.CONNECTION_HEADERS.stream().anyMatch(header.getName()::equalsIgnoreCase)) {
+                    logger.debug("Remove hop-by-hop header response: {}", header);
+                } else {
+                    logger.debug("Write response header: {}", header);
+                    clientConnection.write(header);
+                }
+            }
+            if (chunked && !transferEncodingWritten) {
+                clientConnection.write(HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING, HTTP.CHUNK_CODING));
+            }
+            if (!keepAlive) {
+                clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE));
+            }
 
-                } catch (Exception e) {
-                    logger.debug("Error on handling non CONNECT response", e);
+            // Empty line marking the end
+            // of header's section
+            clientConnection.writeln();
+
+            // Now write the request body, if any
+            if (entity != null) {
+                logger.debug("Start writing entity content");
+                if (chunked) {
+                    SessionOutputBufferImpl outputBuffer = new SessionOutputBufferImpl(
+                            new HttpTransportMetricsImpl(), InputOutputs.DEFAULT_BUFFER_SIZE);
+                    outputBuffer.bind(clientConnection.getOutputStream());
+                    ChunkedOutputStream chunkedOutputStream =
+                            new ChunkedOutputStream(InputOutputs.DEFAULT_BUFFER_SIZE, outputBuffer);
+                    entity.writeTo(chunkedOutputStream);
+
+                    // Write the last chunk only when the body is complete,
+                    // otherwise the client would take a truncated body for a complete one
+                    chunkedOutputStream.close();
+                } else {
+                    entity.writeTo(clientConnection.getOutputStream());
                 }
+                logger.debug("End writing entity content");
+
+                // Make sure the entity is fully consumed
+                EntityUtils.consume(entity);
             }
+            clientConnection.getOutputStream().flush();
+            clientConnection.setKeepAlive(keepAlive);
+        } catch (Exception e) {
+            logger.debug("Error on handling non CONNECT response", e);
         }
     }
 
@@ -22,13 +22,18 @@ import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.RelayEngine;
+import org.kpax.winfoom.proxy.RequestTimings;
+import org.kpax.winfoom.proxy.jfr.UpstreamConnectEvent;
 import org.kpax.winfoom.util.HttpUtils;
-import org.kpax.winfoom.util.StreamSource;
+import org.kpax.winfoom.util.InputOutputs;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 /**
  * Process a CONNECT request through a SOCKS proxy or no proxy (DIRECT).
@@ -45,6 +50,12 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private RelayEngine relayEngine;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     @Override
     void handleRequest(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
@@ -59,20 +70,34 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
             proxy = Proxy.NO_PROXY;
         }
 
-        try (Socket socket = new Socket(proxy)) {
+        // Only a direct connection can be channel backed, the SOCKS handshake being done by the Socket itself
+        Socket socket = proxy == Proxy.NO_PROXY && relayEngine.isEnabled() ?
+                SocketChannel.open().socket() : new Socket(proxy);
+        boolean relayed = false;
+        try {
             systemConfig.configureSocket(socket);
             if (proxyInfo.getType().isSocks4()) {
                 HttpUtils.setSocks4(socket);
             }
             logger.debug("Open connection");
-            socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
-                    systemConfig.getSocketConnectTimeout() * 1000);
+            UpstreamConnectEvent connectEvent = new UpstreamConnectEvent();
+            connectEvent.begin();
+            long connectStart = System.nanoTime();
+            try {
+                socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
+                        systemConfig.getSocketConnectTimeout() * 1000);
+            } finally {
+                connectEvent.emit(ProxyMetrics.upstream(proxyInfo), target.toHostString(), socket.isConnected());
+            }
+            long connectEnd = System.nanoTime();
+            proxyMetrics.connectTime(ProxyMetrics.upstream(proxyInfo), connectEnd - connectStart);
+            clientConnection.getTimings().mark(RequestTimings.Phase.CONNECTED, connectEnd);
 
             logger.debug("Connected to {}", target);
 
             // Respond with 200 code
-            clientConnection.write(String.format("%s 200 Connection established",
-                    requestLine.getProtocolVersion()));
+            clientConnection.write(HttpUtils.toStatusLine(requestLine.getProtocolVersion(),
+                    HttpStatus.SC_OK, "Connection established"));
             clientConnection.write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER,
                     HttpUtils.getCurrentDate()));
             clientConnection.writeln();
@@ -81,11 +106,14 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
                 // The proxy facade mediates the full duplex communication
                 // between the client and the remote proxy
                 // This usually ends on connection reset, timeout or any other error
-                duplex(StreamSource.from(socket), clientConnection);
+                relayed = relay(socket, clientConnection);
             } catch (Exception e) {
                 logger.error("Error on full duplex", e);
             }
-
+        } finally {
+            if (!relayed) {
+                InputOutputs.close(socket);
+            }
         }
     }
 
@@ -34,8 +34,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -54,6 +54,24 @@ public final class HttpUtils {
      */
     public static final String HTTP_CONNECT = "CONNECT";
 
+    /**
+     * The HEAD HTTP method.
+     */
+    public static final String HTTP_HEAD = "HEAD";
+
+    /**
+     * The non-standard header used by some clients instead of {@code Connection}, when talking to a proxy.
+     */
+    public static final String PROXY_CONNECTION = "Proxy-Connection";
+
+    /**
+     * The hop-by-hop headers describing the connection, removed from the remote response.
+     */
+    public static final List<String> CONNECTION_HEADERS = List.of(
+            HTTP.CONN_DIRECTIVE,
+            HTTP.CONN_KEEP_ALIVE,
+            PROXY_CONNECTION);
+
     /**
      * The context's key for the SOCKS proxy.
      */
@@ -93,6 +111,14 @@ public final class HttpUtils {
      */
     public static final TimeZone GMT = TimeZone.getTimeZone("GMT");
 
+    private static final DateTimeFormatter RFC1123_FORMATTER =
+            DateTimeFormatter.ofPattern(PATTERN_RFC1123, Locale.US).withZone(GMT.toZoneId());
+
+    /**
+     * The date header's value of the current second, shared by all the responses written within that second.
+     */
+    private static volatile CurrentDate currentDate = new CurrentDate(-1, null);
+
     private HttpUtils() {
     }
 
@@ -448,13 +474,19 @@ public final class HttpUtils {
 
     /**
      * Generate the current date in RFC 1123 format to be used in HTTP header.
+     * <p>The value is formatted at most once per second, then reused.
      *
      * @return the current date in RFC 1123 format.
      */
     public static String getCurrentDate() {
-        DateFormat dateformat = new SimpleDateFormat(PATTERN_RFC1123, Locale.US);
-        dateformat.setTimeZone(GMT);
-        return dateformat.format(new Date());
+        long second = System.currentTimeMillis() / 1000;
+        CurrentDate date = currentDate;
+        if (date.second != second) {
+            // Concurrent threads may format the same second, which is harmless
+            date = new CurrentDate(second, RFC1123_FORMATTER.format(Instant.ofEpochSecond(second)));
+            currentDate = date;
+        }
+        return date.value;
     }
 
     /**
@@ -539,4 +571,16 @@ public final class HttpUtils {
             }
         }
     }
+
+    private static final class CurrentDate {
+
+        private final long second;
+        private final String value;
+
+        private CurrentDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads support, accessed by reflection to keep the Java 11 compatibility.
+ *
+ * @author Eugen Covaci
+ */
+@Slf4j
+public final class VirtualThreads {
+
+    /**
+     * The {@code Thread.ofVirtual()} method, {@code null} when not supported.
+     */
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findOfVirtual() {
+        // Virtual threads are final from Java 21 on, preview before
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code true} iff the current runtime supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create an {@link ExecutorService} that starts a new virtual thread for each task.
+     *
+     * @param namePrefix the prefix of the threads names
+     * @return the new {@link ExecutorService}
+     * @throws UnsupportedOperationException if virtual threads are not supported
+     */
+    @NotNull
+    public static ExecutorService newThreadPerTaskExecutor(@NotNull String namePrefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Cannot create virtual threads executor", e);
+        }
+    }
+
+    /**
+     * @param thread the thread to check
+     * @return {@code true} iff the thread is a virtual one
+     */
+    public static boolean isVirtual(@NotNull Thread thread) {
+        if (!isSupported()) {
+            return false;
+        }
+        try {
+            return (boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Cannot check thread", e);
+            return false;
+        }
+    }
+
+}
@@ -17,6 +17,8 @@ import org.kpax.winfoom.util.InputOutputs;
 import org.springframework.util.Assert;
 
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 
@@ -37,8 +39,10 @@ public class TripleExceptionSingletonSupplier<T, E1 extends Exception, E2 extend
 
     /**
      * For thread safety purposes.
+     * <p>Not a monitor, since the supplier might block on I/O: a virtual thread
+     * blocked inside a {@code synchronized} block would pin its carrier thread.
      */
-    private final Object LOCK = new Object();
+    private final Lock lock = new ReentrantLock();
 
     /**
      * The {@link java.util.function.Supplier} used to initialize the value.
@@ -69,11 +73,14 @@ public class TripleExceptionSingletonSupplier<T, E1 extends Exception, E2 extend
     @Override
     public T get() throws E1, E2, E3 {
         if (t == null) {
-            synchronized (LOCK) {
+            lock.lock();
+            try {
                 if (t == null) {
                     t = supplier.get();
                     Assert.state(t != null, "No instance from supplier");
                 }
+            } finally {
+                lock.unlock();
             }
         }
         return t;
@@ -87,11 +94,14 @@ public class TripleExceptionSingletonSupplier<T, E1 extends Exception, E2 extend
      * If the value is an {@link AutoCloseable} close it, then nullify the value in a thread safe manner.
      */
     public void reset() {
-        synchronized (LOCK) {
+        lock.lock();
+        try {
             if (t instanceof AutoCloseable) {
                 InputOutputs.close((AutoCloseable) t);
             }
             t = null;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -16,6 +16,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.proxy.ConnectionRegistry;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyController;
 import org.kpax.winfoom.proxy.ProxyValidator;
@@ -63,6 +64,9 @@ public class AppFrame extends JFrame {
     @Autowired
     private ProxyBlacklist proxyBlacklist;
 
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
     private JLabel proxyTypeLabel;
     private JComboBox<ProxyConfig.Type> proxyTypeCombo;
 
@@ -83,6 +87,9 @@ public class AppFrame extends JFrame {
     private JMenuBar menuBar;
     private JMenu mnFile;
     private JMenu mntmSettings;
+    private JMenu mnView;
+    private JMenuItem mntmConnections;
+    private ConnectionsDialog connectionsDialog;
 
     private JCheckBoxMenuItem autoStartMenuItem;
     private JCheckBoxMenuItem autoDetectMenuItem;
@@ -661,6 +668,7 @@ public class AppFrame extends JFrame {
             menuBar = new JMenuBar();
             menuBar.add(getMnFile());
             menuBar.add(getMntmSettings());
+            menuBar.add(getMnView());
             menuBar.add(getMnHelp());
         }
         return menuBar;
@@ -717,6 +725,29 @@ public class AppFrame extends JFrame {
         return autoDetectMenuItem;
     }
 
+    private JMenu getMnView() {
+        if (mnView == null) {
+            mnView = new JMenu("View");
+            mnView.add(getMntmConnections());
+        }
+        return mnView;
+    }
+
+    private JMenuItem getMntmConnections() {
+        if (mntmConnections == null) {
+            mntmConnections = new JMenuItem("Connections");
+            mntmConnections.setIcon(new TunedImageIcon("system-search.png"));
+            mntmConnections.setToolTipText("The active connections and tunnels, the busiest first");
+            mntmConnections.addActionListener(e -> {
+                if (connectionsDialog == null) {
+                    connectionsDialog = new ConnectionsDialog(this, connectionRegistry);
+                }
+                connectionsDialog.open();
+            });
+        }
+        return mntmConnections;
+    }
+
     private JMenu getMnHelp() {
         if (mnHelp == null) {
             mnHelp = new JMenu("Help");
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.view;
+
+import org.kpax.winfoom.proxy.ConnectionRegistry;
+import org.kpax.winfoom.util.SwingUtils;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The live table of the active connections, refreshed every second while shown,
+ * the ones with the highest bandwidth first.
+ *
+ * @author Eugen Covaci
+ */
+class ConnectionsDialog extends JDialog {
+    private static final long serialVersionUID = -2785147391127470212L;
+
+    private static final int REFRESH_INTERVAL = 1000;
+
+    private final transient ConnectionRegistry connectionRegistry;
+
+    private final ConnectionsTableModel tableModel = new ConnectionsTableModel();
+
+    private final JTable table = new JTable(tableModel);
+
+    private final Timer refreshTimer = new Timer(REFRESH_INTERVAL, e -> refresh());
+
+    ConnectionsDialog(Frame owner, ConnectionRegistry connectionRegistry) {
+        super(owner, "Connections", false);
+        this.connectionRegistry = connectionRegistry;
+        setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.setFillsViewportHeight(true);
+        table.setPreferredScrollableViewportSize(new Dimension(900, 300));
+        table.getColumnModel().getColumn(3).setPreferredWidth(250);
+
+        JButton btnKill = new JButton("Kill");
+        btnKill.setToolTipText("Close the selected connection");
+        btnKill.addActionListener(e -> killSelected());
+
+        JPanel btnPanel = new JPanel();
+        btnPanel.add(btnKill);
+
+        JPanel contentPanel = new JPanel(new BorderLayout());
+        contentPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        contentPanel.add(new JScrollPane(table), BorderLayout.CENTER);
+        contentPanel.add(btnPanel, BorderLayout.SOUTH);
+        setContentPane(contentPanel);
+        pack();
+        setLocationRelativeTo(owner);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                refreshTimer.stop();
+            }
+        });
+    }
+
+    /**
+     * Show the dialog and start refreshing the table.
+     */
+    void open() {
+        refresh();
+        refreshTimer.start();
+        setVisible(true);
+        toFront();
+    }
+
+    @Override
+    public void dispose() {
+        refreshTimer.stop();
+        super.dispose();
+    }
+
+    private void refresh() {
+        long selectedId = getSelectedId();
+        tableModel.setConnections(connectionRegistry.getConnections());
+        if (selectedId != -1) {
+            int row = tableModel.indexOf(selectedId);
+            if (row != -1) {
+                table.setRowSelectionInterval(row, row);
+            }
+        }
+    }
+
+    private long getSelectedId() {
+        int row = table.getSelectedRow();
+        return row != -1 ? tableModel.getConnection(row).getId() : -1;
+    }
+
+    private void killSelected() {
+        long selectedId = getSelectedId();
+        if (selectedId == -1) {
+            SwingUtils.showWarningMessage(this, "Select a connection first!");
+        } else if (!connectionRegistry.kill(selectedId)) {
+            SwingUtils.showWarningMessage(this, "The connection is already closed!");
+        }
+        refresh();
+    }
+
+    private static class ConnectionsTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 3590117064470781523L;
+
+        private static final String[] COLUMNS = {"Id", "Client", "Method", "Target", "Upstream", "Relayed",
+                "Age (s)", "Idle (s)", "Bytes in", "Bytes out", "Bandwidth (B/s)"};
+
+        private transient List<ConnectionRegistry.ConnectionInfo> connections = Collections.emptyList();
+
+        void setConnections(List<ConnectionRegistry.ConnectionInfo> connections) {
+            this.connections = connections;
+            fireTableDataChanged();
+        }
+
+        ConnectionRegistry.ConnectionInfo getConnection(int row) {
+            return connections.get(row);
+        }
+
+        int indexOf(long id) {
+            for (int i = 0; i < connections.size(); i++) {
+                if (connections.get(i).getId() == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int getRowCount() {
+            return connections.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            switch (column) {
+                case 0:
+                case 6:
+                case 7:
+                case 8:
+                case 9:
+                case 10:
+                    return Long.class;
+                case 5:
+                    return Boolean.class;
+                default:
+                    return String.class;
+            }
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            ConnectionRegistry.ConnectionInfo connection = connections.get(row);
+            switch (column) {
+                case 0:
+                    return connection.getId();
+                case 1:
+                    return connection.getClient();
+                case 2:
+                    return connection.getMethod();
+                case 3:
+                    return connection.getTarget();
+                case 4:
+                    return connection.getUpstream();
+                case 5:
+                    return connection.isRelayed();
+                case 6:
+                    return connection.getAge() / 1000;
+                case 7:
+                    return connection.getIdle() / 1000;
+                case 8:
+                    return connection.getBytesIn();
+                case 9:
+                    return connection.getBytesOut();
+                default:
+                    return connection.getBandwidth();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.load;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a mix of CONNECT tunnels and plain HTTP requests through the local proxy server from many client threads,
+ * everything on localhost.
+ * <p>Each client thread picks the next request's kind with its own seeded {@link Random}, so a run is reproducible.
+ * A CONNECT tunnel is opened on a new socket, carries one {@code GET} request and is closed,
+ * while the plain requests reuse the persistent client connections.
+ * <p>Every second, it logs the throughput, the tunnels in flight, the JVM's thread count and used heap,
+ * then at the end the throughput and the latency histogram of each kind.
+ * The thread count and the heap are the whole JVM's: the local proxy server, the upstream proxies and the clients.
+ */
+public class LoadHarness {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HttpHost localProxy;
+
+    private final HttpHost target;
+
+    private final String path;
+
+    private final int threads;
+
+    private final int durationSeconds;
+
+    private final int connectPercent;
+
+    private final long seed;
+
+    private final int socketTimeoutMillis;
+
+    private final AtomicLong plainCount = new AtomicLong();
+
+    private final AtomicLong connectCount = new AtomicLong();
+
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private final AtomicInteger tunnelsInFlight = new AtomicInteger();
+
+    private LoadHarness(HttpHost localProxy, HttpHost target, String path, int threads, int durationSeconds,
+                        int connectPercent, long seed, int socketTimeoutMillis) {
+        this.localProxy = localProxy;
+        this.target = target;
+        this.path = path;
+        this.threads = threads;
+        this.durationSeconds = durationSeconds;
+        this.connectPercent = connectPercent;
+        this.seed = seed;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    /**
+     * Run the load for the configured duration.
+     *
+     * @param name the name of the run, for the logs.
+     * @return the report.
+     * @throws Exception when the load cannot be run.
+     */
+    public LoadReport run(String name) throws Exception {
+        logger.info("[{}] Run {} client threads for {} s, {}% CONNECT, through {} to {}{}",
+                name, threads, durationSeconds, connectPercent, localProxy, target, path);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(threads);
+        connectionManager.setDefaultMaxPerRoute(threads);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setProxy(localProxy)
+                .setConnectTimeout(socketTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        LoadReport report = new LoadReport(name);
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableAutomaticRetries()
+                .build()) {
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            sampler.scheduleAtFixedRate(new Sampler(name, report, start), 1, 1, TimeUnit.SECONDS);
+            List<Future<Worker>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(httpClient, new Random(seed + i), end);
+                futures.add(executorService.submit(worker, worker));
+            }
+            for (Future<Worker> future : futures) {
+                Worker worker = future.get();
+                report.plainLatencies.addAll(worker.plainLatencies);
+                report.connectLatencies.addAll(worker.connectLatencies);
+            }
+            report.elapsedNanos = System.nanoTime() - start;
+        } finally {
+            sampler.shutdownNow();
+            executorService.shutdownNow();
+        }
+        report.errors = errorCount.get();
+        report.log(logger);
+        return report;
+    }
+
+    /**
+     * Send a request through a new CONNECT tunnel.
+     */
+    private void tunnel() throws IOException {
+        String authority = target.getHostName() + ":" + target.getPort();
+        tunnelsInFlight.incrementAndGet();
+        try (Socket socket = new Socket(localProxy.getHostName(), localProxy.getPort())) {
+            socket.setSoTimeout(socketTimeoutMillis);
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            outputStream.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            outputStream.flush();
+            assertStatusOk(readHead(inputStream));
+            outputStream.write(("GET " + path + " HTTP/1.1\r\nHost: " + authority + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            outputStream.flush();
+            String head = readHead(inputStream);
+            assertStatusOk(head);
+            // Do not wait for the tunnel to be closed from the other end
+            long remaining = getContentLength(head);
+            while (remaining > 0) {
+                long skipped = inputStream.skip(remaining);
+                if (skipped <= 0 && inputStream.read() == -1) {
+                    throw new EOFException("Unexpected end of stream, " + remaining + " bytes missing");
+                }
+                remaining -= Math.max(skipped, 1);
+            }
+        } finally {
+            tunnelsInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the response's head.
+     */
+    private static String readHead(InputStream inputStream) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || !"\r\n\r\n".equals(head.substring(head.length() - 4))) {
+            int c = inputStream.read();
+            if (c == -1) {
+                throw new EOFException("Unexpected end of stream, got: " + head);
+            }
+            head.append((char) c);
+        }
+        return head.toString();
+    }
+
+    private static long getContentLength(String head) throws IOException {
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, HttpHeaders.CONTENT_LENGTH + ":", 0, HttpHeaders.CONTENT_LENGTH.length() + 1)) {
+                return Long.parseLong(line.substring(HttpHeaders.CONTENT_LENGTH.length() + 1).trim());
+            }
+        }
+        throw new IOException("No Content-Length header: " + head);
+    }
+
+    private static void assertStatusOk(String head) throws IOException {
+        String statusLine = head.split("\r\n", 2)[0];
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2 || !String.valueOf(HttpStatus.SC_OK).equals(parts[1])) {
+            throw new IOException("Unexpected status line: " + statusLine);
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final CloseableHttpClient httpClient;
+
+        private final Random random;
+
+        private final long end;
+
+        private final LongList plainLatencies = new LongList();
+
+        private final LongList connectLatencies = new LongList();
+
+        private Worker(CloseableHttpClient httpClient, Random random, long end) {
+            this.httpClient = httpClient;
+            this.random = random;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                boolean connect = random.nextInt(100) < connectPercent;
+                long start = System.nanoTime();
+                try {
+                    if (connect) {
+                        tunnel();
+                        connectLatencies.add(System.nanoTime() - start);
+                        connectCount.incrementAndGet();
+                    } else {
+                        try (CloseableHttpResponse response = httpClient.execute(target, new HttpGet(path))) {
+                            EntityUtils.consume(response.getEntity());
+                            assertStatusOk(response.getStatusLine().toString());
+                        }
+                        plainLatencies.add(System.nanoTime() - start);
+                        plainCount.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    if (errorCount.incrementAndGet() <= 10) {
+                        logger.warn("Request failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the throughput of the last second, the tunnels in flight, the thread count and the used heap.
+     */
+    private class Sampler implements Runnable {
+
+        private final String name;
+
+        private final LoadReport report;
+
+        private final long start;
+
+        private long lastPlainCount;
+
+        private long lastConnectCount;
+
+        private Sampler(String name, LoadReport report, long start) {
+            this.name = name;
+            this.report = report;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            long plain = plainCount.get();
+            long connect = connectCount.get();
+            int threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            report.peakThreads = Math.max(report.peakThreads, threadCount);
+            report.peakHeap = Math.max(report.peakHeap, heapUsed);
+            logger.info("[{}] {} s: {} plain req/s, {} CONNECT req/s, {} tunnels in flight, {} errors, "
+                            + "{} threads, {} MB heap",
+                    name, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    plain - lastPlainCount, connect - lastConnectCount, tunnelsInFlight.get(), errorCount.get(),
+                    threadCount, heapUsed / (1024 * 1024));
+            lastPlainCount = plain;
+            lastConnectCount = connect;
+        }
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class LoadReport {
+
+        private final String name;
+
+        private final LongList plainLatencies = new LongList();
+
+        private final LongList connectLatencies = new LongList();
+
+        private long elapsedNanos;
+
+        private long errors;
+
+        private int peakThreads;
+
+        private long peakHeap;
+
+        private LoadReport(String name) {
+            this.name = name;
+        }
+
+        public long getPlainCount() {
+            return plainLatencies.size;
+        }
+
+        public long getConnectCount() {
+            return connectLatencies.size;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the requests per second, both kinds.
+         */
+        public long getThroughput() {
+            return (getPlainCount() + getConnectCount()) * 1_000_000_000L / Math.max(elapsedNanos, 1);
+        }
+
+        private void log(Logger logger) {
+            logger.info("[{}] {} requests/s, {} errors, peak {} threads, peak {} MB heap",
+                    name, getThroughput(), errors, peakThreads, peakHeap / (1024 * 1024));
+            logLatencies(logger, "plain", plainLatencies);
+            logLatencies(logger, "CONNECT", connectLatencies);
+        }
+
+        private void logLatencies(Logger logger, String kind, LongList latencies) {
+            if (latencies.size == 0) {
+                return;
+            }
+            long[] sorted = Arrays.copyOf(latencies.values, latencies.size);
+            Arrays.sort(sorted);
+            logger.info("[{}] {}: {} requests, {} req/s, latency p50 {} us, p90 {} us, p99 {} us, p99.9 {} us, max {} us",
+                    name, kind, sorted.length, sorted.length * 1_000_000_000L / Math.max(elapsedNanos, 1),
+                    toMicros(percentile(sorted, 50)), toMicros(percentile(sorted, 90)),
+                    toMicros(percentile(sorted, 99)), toMicros(percentile(sorted, 99.9)),
+                    toMicros(sorted[sorted.length - 1]));
+            // Power of two buckets, in microseconds
+            int index = 0;
+            for (long bound = 64; index < sorted.length; bound *= 2) {
+                int count = 0;
+                while (index < sorted.length && toMicros(sorted[index]) < bound) {
+                    count++;
+                    index++;
+                }
+                if (count > 0) {
+                    logger.info("[{}] {}: < {} us: {} ({}%)", name, kind, bound, count, count * 100 / sorted.length);
+                }
+            }
+        }
+
+        private static long percentile(long[] sorted, double percent) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percent / 100) - 1)];
+        }
+
+        private static long toMicros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    /**
+     * A growable array of {@code long}, not to box every latency.
+     */
+    private static final class LongList {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private void addAll(LongList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+    }
+
+    public static class LoadHarnessBuilder {
+
+        private HttpHost localProxy;
+
+        private HttpHost target;
+
+        private String path = "/";
+
+        private int threads = Integer.getInteger("perft.load.threads", 50);
+
+        private int durationSeconds = Integer.getInteger("perft.load.duration", 20);
+
+        private int connectPercent = Integer.getInteger("perft.load.connectPercent", 50);
+
+        private long seed = Long.getLong("perft.load.seed", 42);
+
+        private int socketTimeoutMillis = 10000;
+
+        public LoadHarnessBuilder withLocalProxy(HttpHost localProxy) {
+            this.localProxy = localProxy;
+            return this;
+        }
+
+        public LoadHarnessBuilder withTarget(HttpHost target, String path) {
+            this.target = target;
+            this.path = path;
+            return this;
+        }
+
+        public LoadHarnessBuilder withThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public LoadHarnessBuilder withDuration(int durationSeconds) {
+            this.durationSeconds = durationSeconds;
+            return this;
+        }
+
+        public LoadHarnessBuilder withConnectPercent(int connectPercent) {
+            this.connectPercent = connectPercent;
+            return this;
+        }
+
+        public LoadHarnessBuilder withSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public LoadHarness build() {
+            Assert.notNull(localProxy, "localProxy cannot be null");
+            Assert.notNull(target, "target cannot be null");
+            Assert.isTrue(connectPercent >= 0 && connectPercent <= 100, "connectPercent must be between 0 and 100");
+            return new LoadHarness(localProxy, target, path, threads, durationSeconds, connectPercent, seed,
+                    socketTimeoutMillis);
+        }
+    }
+}
@@ -12,8 +12,10 @@
 
 package org.kpax.winfoom.pac;
 
+import inet.ipaddr.IPAddressString;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.kpax.winfoom.FoomApplicationTest;
 import org.kpax.winfoom.config.SystemConfig;
@@ -27,7 +29,9 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -178,4 +182,64 @@ public class DefaultPacHelperMethodsTests {
         });
     }
 
+    /**
+     * Compare the throughput of parsing the networks on each {@code isInNet} call with the compiled networks,
+     * for a typical intranet PAC script testing the host against 50 networks.
+     * Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_IsInNet_50Rules() {
+        int iterations = Integer.getInteger("perft.iterations", 20000);
+        List<String[]> rules = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            switch (i % 3) {
+                case 0:
+                    rules.add(new String[]{"10." + i + ".0.0", "255.255.0.0"});
+                    break;
+                case 1:
+                    rules.add(new String[]{"172." + (16 + i % 16) + "." + i + ".0", "255.255.255.0"});
+                    break;
+                default:
+                    rules.add(new String[]{"192.168." + i + ".0", "255.255.255.128"});
+            }
+        }
+        List<String> hosts = Arrays.asList("10.0.1.1", "10.48.200.3", "172.17.1.9", "172.29.49.200",
+                "192.168.2.100", "192.168.47.10", "8.8.8.8", "198.95.249.79");
+        for (int round = 0; round < 2; round++) {
+            int parsedMatches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                String host = hosts.get(i % hosts.size());
+                for (String[] rule : rules) {
+                    if (new IPAddressString(rule[0] + "/" + rule[1]).contains(new IPAddressString(host))) {
+                        parsedMatches++;
+                        break;
+                    }
+                }
+            }
+            long parsedNanos = System.nanoTime() - start;
+
+            int compiledMatches = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                String host = hosts.get(i % hosts.size());
+                for (String[] rule : rules) {
+                    if (defaultPacHelperMethods.isInNet(host, rule[0], rule[1])) {
+                        compiledMatches++;
+                        break;
+                    }
+                }
+            }
+            long compiledNanos = System.nanoTime() - start;
+            assertEquals(parsedMatches, compiledMatches);
+
+            // The first round is the warm up
+            if (round > 0) {
+                logger.info("Parsed: {} lookups/s, compiled: {} lookups/s",
+                        iterations * 1_000_000_000L / parsedNanos, iterations * 1_000_000_000L / compiledNanos);
+            }
+        }
+    }
+
 }
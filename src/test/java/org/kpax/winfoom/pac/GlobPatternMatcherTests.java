@@ -14,11 +14,19 @@ package org.kpax.winfoom.pac;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.regex.Pattern;
 
 public class GlobPatternMatcherTests {
 
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
     @Test
     void convertGlobToRegEx_StartWithStar_Matches() {
         Pattern pattern = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx("*.java"));
@@ -84,4 +92,117 @@ public class GlobPatternMatcherTests {
         Assertions.assertFalse(matches);
     }
 
+    @Test
+    void compile_CompatibilitySuite_SameAsRegex() {
+        String[][] cases = {
+                {"*.java", "bla/bla.java"},
+                {"x?.java", "xc.java"},
+                {"x?.java", "xab.java"},
+                {"bla/x[abc].java", "bla/xb.java"},
+                {"bla/x[abc].java", "bla/xbc.java"},
+                {"**.java", "xbc/abc/bla/foo.java"},
+                {"*.java", "xbc/abc/bla/foo.exe"},
+                {"*.example.com", "www.example.com"},
+                {"*.example.com", "example.com"},
+                {"*.EXAMPLE.com", "www.example.com"},
+                {"10.[0-9]*", "10.1.2.3"},
+                {"10.[!0-9]*", "10.a"},
+                {"10.[^0-9]*", "10.1"},
+                {"[!a]", "\n"},
+                {"*", "line\nbreak"},
+                {"a?b", "a\u2028b"},
+                {"a?b", "a\uD83D\uDE00b"},
+                {"\\*", "\\share"},
+                {"!*", "!x"},
+                {"", ""},
+                {"", "x"}};
+        for (String[] testCase : cases) {
+            GlobAutomaton automaton = GlobAutomaton.compile(testCase[0]);
+            Assertions.assertNotNull(automaton, testCase[0]);
+            Assertions.assertEquals(regexMatches(testCase[0], testCase[1]), automaton.matches(testCase[1]),
+                    testCase[0] + " / " + testCase[1]);
+        }
+    }
+
+    @Test
+    void compile_RegexConstructs_Null() {
+        List<String> globs = Arrays.asList("xyz(ab|cd|ef).java", "a+", "^a", "a$", "a{2}", "[a", "a]",
+                "[]", "[!]", "[a-]", "[z-a]", "[a&&b]", "[\\w]", "a".repeat(GlobAutomaton.MAX_TOKENS + 1));
+        for (String glob : globs) {
+            Assertions.assertNull(GlobAutomaton.compile(glob), glob);
+        }
+        Assertions.assertNotNull(GlobAutomaton.compile("a".repeat(GlobAutomaton.MAX_TOKENS)));
+    }
+
+    @Test
+    void compile_RandomGlobs_SameAsRegex() {
+        String[] globParts = {"*", "?", "a", "b", ".", "[ab]", "[!a]", "[a-c0-9]", "-", "!"};
+        String[] inputParts = {"a", "b", "c", ".", "-", "!", "1", "\n", "ab", "\uD83D\uDE00"};
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String glob = randomString(random, globParts, 6);
+            String input = randomString(random, inputParts, 8);
+            GlobAutomaton automaton = GlobAutomaton.compile(glob);
+            Assertions.assertNotNull(automaton, glob);
+            Assertions.assertEquals(regexMatches(glob, input), automaton.matches(input), glob + " / " + input);
+        }
+    }
+
+    /**
+     * Compare the throughput of the regex with the automaton.
+     * Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_RegexVsGlobAutomaton() {
+        int iterations = Integer.getInteger("perft.iterations", 1_000_000);
+        String[] globs = {"*.example.com", "10.[0-9]*", "*/ari/*", "*.dev.*.example.???"};
+        String[] inputs = {"www.intranet.example.com", "10.120.33.4",
+                "http://home.netscape.com/people/ari/index.html", "build.dev.eu.example.net"};
+        Pattern[] patterns = new Pattern[globs.length];
+        GlobAutomaton[] automata = new GlobAutomaton[globs.length];
+        for (int i = 0; i < globs.length; i++) {
+            patterns[i] = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(globs[i]));
+            automata[i] = GlobAutomaton.compile(globs[i]);
+        }
+        for (int round = 0; round < 2; round++) {
+            int regexCount = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (patterns[i % globs.length].matcher(inputs[i % inputs.length]).matches()) {
+                    regexCount++;
+                }
+            }
+            long regexNanos = System.nanoTime() - start;
+
+            int automatonCount = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (automata[i % globs.length].matches(inputs[i % inputs.length])) {
+                    automatonCount++;
+                }
+            }
+            long automatonNanos = System.nanoTime() - start;
+            Assertions.assertEquals(regexCount, automatonCount);
+
+            // The first round is the warm up
+            if (round > 0) {
+                logger.info("Regex: {} matches/s, automaton: {} matches/s",
+                        iterations * 1_000_000_000L / regexNanos, iterations * 1_000_000_000L / automatonNanos);
+            }
+        }
+    }
+
+    private static boolean regexMatches(String glob, String input) {
+        return Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob)).matcher(input).matches();
+    }
+
+    private static String randomString(Random random, String[] parts, int maxParts) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = random.nextInt(maxParts + 1); i > 0; i--) {
+            builder.append(parts[random.nextInt(parts.length)]);
+        }
+        return builder.toString();
+    }
+
 }
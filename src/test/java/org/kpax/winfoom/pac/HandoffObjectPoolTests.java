@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HandoffObjectPoolTests {
+
+    @Test
+    void invalidateObject_ReplacementFailsOnce_SlotRebuiltOnBorrow() throws Exception {
+        FailingFactory factory = new FailingFactory();
+        HandoffObjectPool<Object> pool = new HandoffObjectPool<>(factory, 1);
+        Object first = pool.borrowObject();
+
+        factory.failures.set(1);
+        pool.invalidateObject(first);
+        assertEquals(1, factory.destroyed.get());
+        // An empty slot is neither idle nor active
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+
+        Object second = pool.borrowObject();
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertEquals(1, pool.getNumActive());
+        pool.returnObject(second);
+        assertSame(second, pool.borrowObject());
+        pool.close();
+    }
+
+    @Test
+    void borrowObject_RebuildFails_SlotKeptForNextBorrower() throws Exception {
+        FailingFactory factory = new FailingFactory();
+        HandoffObjectPool<Object> pool = new HandoffObjectPool<>(factory, 1);
+        Object first = pool.borrowObject();
+
+        factory.failures.set(2);
+        pool.invalidateObject(first);
+        assertThrows(IllegalStateException.class, pool::borrowObject);
+
+        // The slot must not be lost, or this would block forever
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Object second = executor.submit(pool::borrowObject).get(5, TimeUnit.SECONDS);
+            assertNotNull(second);
+            assertEquals(2, factory.created.get());
+        } finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+    }
+
+    private static class FailingFactory extends BasePooledObjectFactory<Object> {
+
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger destroyed = new AtomicInteger();
+
+        @Override
+        public Object create() {
+            if (failures.getAndUpdate(n -> n > 0 ? n - 1 : n) > 0) {
+                throw new IllegalStateException("Cannot create the object");
+            }
+            created.incrementAndGet();
+            return new Object();
+        }
+
+        @Override
+        public PooledObject<Object> wrap(Object obj) {
+            return new DefaultPooledObject<>(obj);
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Object> p) {
+            destroyed.incrementAndGet();
+        }
+    }
+
+}
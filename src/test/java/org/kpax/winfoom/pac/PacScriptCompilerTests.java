@@ -0,0 +1,209 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.pac.compiler.PacDecisionTree;
+import org.kpax.winfoom.pac.compiler.PacScriptCompiler;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.util.HttpUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Differential tests: the compiled PAC scripts must decide like the JavaScript engine.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {
+        "pac.fastPath=true",
+        "cache.pacDecision.ttl=0"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class PacScriptCompilerTests {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final List<String> HOSTS = Arrays.asList(
+            "intranet", "www", "localhost", "LOCALHOST", "127.0.0.1",
+            "wiki.corp.example.com", "a.b.corp.example.com", "corp.example.com", "x.intranet.example.com",
+            "build.dev.example.com", "dev.example.com", "www.partner.org", "partner.org", "Shop.Partner.Org",
+            "www.example.com", "example.com", "img.cdn-eu.net", "cdn-eu.net", "www.example.org",
+            "ftp.gnu.invalid", "secure.example.net", "bank.invalid", "a.b.c.d.invalid",
+            "10.1.2.3", "172.20.1.1", "172.32.0.1", "192.168.5.5", "8.8.8.8");
+
+    private static final List<String> URL_TEMPLATES = Arrays.asList(
+            "http://%s/", "https://%s/secure/login?user=1", "ftp://%s/pub/file.txt", "http://%s:8080/path");
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    @Autowired
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    @Test
+    void compile_CorporateScript_SameDecisions() throws Exception {
+        PacDecisionTree decisionTree = start("proxy-corporate.pac");
+        assertNotNull(decisionTree);
+        assertEquals(5, decisionTree.getIndexedRuleCount());
+        assertSameDecisions(decisionTree);
+    }
+
+    @Test
+    void compile_ComplexScript_SameDecisions() throws Exception {
+        PacDecisionTree decisionTree = start("proxy-complex.pac");
+        assertNotNull(decisionTree);
+        assertSameDecisions(decisionTree);
+    }
+
+    @Test
+    void compile_UnsupportedScript_JavaScriptUsed() throws Exception {
+        assertNull(start("proxy-simple-all-helpers.pac"));
+        List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path"));
+        assertEquals(1, proxies.size());
+        assertTrue(proxies.get(0).getType().isDirect());
+    }
+
+    @Test
+    void compile_UnsupportedConstructs_Null() {
+        List<String> scripts = Arrays.asList(
+                // Other functions
+                "function helper() {} function FindProxyForURL(url, host) { return \"DIRECT\"; }",
+                // A line terminator after return makes it return undefined
+                "function FindProxyForURL(url, host) { return\n \"DIRECT\"; }",
+                // Comparing a boolean involves the JavaScript conversions
+                "function FindProxyForURL(url, host) { if (!host == \"x\") return \"DIRECT\"; }",
+                // Unsupported helper function
+                "function FindProxyForURL(url, host) { if (weekdayRange(\"MON\", \"FRI\")) return \"DIRECT\"; }",
+                // Non literal return value
+                "function FindProxyForURL(url, host) { return \"PROXY \" + host + \":8080\"; }",
+                // Loops
+                "function FindProxyForURL(url, host) { while (true) {} }",
+                // Octal literal
+                "function FindProxyForURL(url, host) { if (url.substring(0, 010) == \"x\") return \"DIRECT\"; }",
+                // Undeclared variable
+                "function FindProxyForURL(url, host) { if (proxy == \"x\") return \"DIRECT\"; }");
+        for (String script : scripts) {
+            assertNull(PacScriptCompiler.compile(script, pacHelperMethods), script);
+        }
+    }
+
+    @Test
+    void compile_IndexedRules_FirstMatchWins() {
+        PacDecisionTree decisionTree = PacScriptCompiler.compile("function FindProxyForURL(url, host) {\n"
+                + "  if (shExpMatch(host, \"*.example.com\")) return \"PROXY first:80\";\n"
+                + "  if (host === \"www.example.com\" || isPlainHostName(host)) return \"PROXY second:80\";\n"
+                + "  if (shExpMatch(host, \"*\")) return \"PROXY third:80\";\n"
+                + "}", pacHelperMethods);
+        assertNotNull(decisionTree);
+        assertEquals(3, decisionTree.getIndexedRuleCount());
+        assertEquals("PROXY first:80", decisionTree.findProxyForURL("http://www.example.com/", "www.example.com"));
+        assertEquals("PROXY second:80", decisionTree.findProxyForURL("http://www/", "www"));
+        assertEquals("PROXY third:80", decisionTree.findProxyForURL("http://example.org/", "example.org"));
+    }
+
+    /**
+     * Compare the throughput of the JavaScript engine with the compiled script.
+     * Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_JavaScriptVsCompiled() throws Exception {
+        int iterations = Integer.getInteger("perft.iterations", 20000);
+        PacDecisionTree decisionTree = start("proxy-corporate.pac");
+        assertNotNull(decisionTree);
+        // Keep out the hosts resolved through DNS, it would dominate both measurements
+        List<String[]> corpus = new ArrayList<>();
+        for (String[] entry : getCorpus()) {
+            if (!pacScriptEvaluator.invokeScript(entry[0], entry[1]).startsWith("PROXY proxy.example.com:8080")) {
+                corpus.add(entry);
+            }
+        }
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                String[] entry = corpus.get(i % corpus.size());
+                assertNotNull(pacScriptEvaluator.invokeScript(entry[0], entry[1]));
+            }
+            long scriptNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                String[] entry = corpus.get(i % corpus.size());
+                assertNotNull(decisionTree.findProxyForURL(entry[0], entry[1]));
+            }
+            long compiledNanos = System.nanoTime() - start;
+
+            // The first round is the warm up
+            if (round > 0) {
+                logger.info("JavaScript: {} lookups/s, compiled: {} lookups/s",
+                        iterations * 1_000_000_000L / scriptNanos, iterations * 1_000_000_000L / compiledNanos);
+            }
+        }
+    }
+
+    private PacDecisionTree start(String pacFile) throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(getClass().getClassLoader().getResource(pacFile));
+        pacScriptEvaluator.onStop();
+        pacScriptEvaluator.onStart();
+        return pacScriptEvaluator.getDecisionTree();
+    }
+
+    private void assertSameDecisions(PacDecisionTree decisionTree) throws Exception {
+        for (String[] entry : getCorpus()) {
+            assertEquals(pacScriptEvaluator.invokeScript(entry[0], entry[1]),
+                    decisionTree.findProxyForURL(entry[0], entry[1]), entry[0]);
+        }
+    }
+
+    /**
+     * @return the (stripped URL, host) pairs.
+     */
+    private List<String[]> getCorpus() {
+        List<String[]> corpus = new ArrayList<>();
+        for (String host : HOSTS) {
+            for (String template : URL_TEMPLATES) {
+                URI uri = URI.create(String.format(template, host));
+                corpus.add(new String[]{HttpUtils.toStrippedURLStr(uri), uri.getHost()});
+            }
+        }
+        return corpus;
+    }
+
+    @AfterAll
+    void after() {
+        pacScriptEvaluator.onStop();
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CidrMatcherTests {
+
+    private static final List<String> ADDRESSES = Arrays.asList(
+            "10.0.0.1", "10.255.255.255", "11.0.0.1", "172.16.0.1", "172.31.255.254", "172.32.0.1",
+            "192.168.1.1", "192.168.2.1", "198.95.249.79", "0.0.0.0", "255.255.255.255",
+            "::1", "2001:db8:a1d5::", "2001:db8:a1d5:fff::1", "2001:db8:a1d6::", "fe80::1", "::ffff:10.0.0.1");
+
+    private static final List<String> PREFIXES = Arrays.asList(
+            "10.0.0.0/8", "172.16.0.0/12", "192.168.1.0/24", "198.95.249.79/32", "198.95.249.79",
+            "0.0.0.0/0", "10.1.2.3/8", "192.168.1.1/31", "2001:db8:a1d5::/52", "2001:db8::/32", "fe80::/10",
+            "::1/128", "::1", "::/0", "2001:db8:a1d5::/127");
+
+    @Test
+    void compile_Prefixes_SameAsIpAddressMatcher() throws Exception {
+        for (String prefix : PREFIXES) {
+            CidrMatcher cidrMatcher = CidrMatcher.compile(prefix);
+            assertNotNull(cidrMatcher, prefix);
+            IpAddressMatcher ipAddressMatcher = new IpAddressMatcher(prefix);
+            for (String address : ADDRESSES) {
+                assertEquals(ipAddressMatcher.matches(address), cidrMatcher.matches(InetAddress.getByName(address)),
+                        address + " in " + prefix);
+            }
+        }
+    }
+
+    @Test
+    void compile_AddressAndMask_Matches() throws Exception {
+        CidrMatcher cidrMatcher = CidrMatcher.compile("198.95.0.0", "255.255.0.0");
+        assertNotNull(cidrMatcher);
+        assertTrue(cidrMatcher.matches(InetAddress.getByName("198.95.249.79")));
+        assertFalse(cidrMatcher.matches(InetAddress.getByName("198.96.249.79")));
+        assertFalse(cidrMatcher.matches(InetAddress.getByName("2001:db8::1")));
+        cidrMatcher = CidrMatcher.compile("198.95.249.79", "255.255.255.255");
+        assertNotNull(cidrMatcher);
+        assertTrue(cidrMatcher.matches(InetAddress.getByName("198.95.249.79")));
+        assertFalse(cidrMatcher.matches(InetAddress.getByName("198.95.249.78")));
+        cidrMatcher = CidrMatcher.compile("10.0.0.0", "8");
+        assertNotNull(cidrMatcher);
+        assertTrue(cidrMatcher.matches(InetAddress.getByName("10.20.30.40")));
+    }
+
+    @Test
+    void compile_NotValid_Null() {
+        List<String[]> networks = Arrays.asList(
+                new String[]{"www.example.com", "255.255.0.0"},
+                new String[]{"10.0.0.0", "2001:db8::"},
+                new String[]{"10.0.0.0", "33"},
+                new String[]{"10.0.0.0", "abc"},
+                new String[]{"10.0.0.0", ""},
+                new String[]{"", "255.0.0.0"},
+                new String[]{"2001:db8::", "129"});
+        for (String[] network : networks) {
+            assertNull(CidrMatcher.compile(network[0], network[1]), Arrays.toString(network));
+        }
+        assertNull(CidrMatcher.compile("www.example.com"));
+        assertNull(CidrMatcher.compile(""));
+        assertNull(CidrMatcher.compile("10.0.0.0/"));
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac.net;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.pac.DefaultPacHelperMethods;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * The name service is mocked, no network is needed.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {
+        "cache.dns.ttl=1",
+        "cache.dns.negativeTtl=60",
+        "dns.timeout=300"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class DnsResolverTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @MockBean
+    private HostResolver hostResolver;
+
+    @Autowired
+    private DnsResolver dnsResolver;
+
+    @Autowired
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    @BeforeEach
+    void beforeEach() {
+        dnsResolver.onStop();
+    }
+
+    @Test
+    void resolve_SameHostTwice_ResolvedOnce() throws Exception {
+        when(hostResolver.resolve("host.example.com")).thenReturn(addresses("10.0.0.1"));
+        assertEquals("10.0.0.1", pacHelperMethods.dnsResolve("host.example.com"));
+        assertEquals("10.0.0.1", pacHelperMethods.dnsResolve("host.example.com"));
+        assertTrue(pacHelperMethods.isResolvable("host.example.com"));
+        verify(hostResolver, times(1)).resolve("host.example.com");
+    }
+
+    @Test
+    void resolve_IpAddress_NoLookup() throws Exception {
+        assertEquals("10.1.2.3", pacHelperMethods.dnsResolve("10.1.2.3"));
+        verify(hostResolver, never()).resolve(anyString());
+    }
+
+    @Test
+    void resolve_ConcurrentLookups_Coalesced() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(hostResolver.resolve("slow.example.com")).thenAnswer(invocation -> {
+            release.await();
+            return addresses("10.0.0.2");
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<List<InetAddress>>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(executor.submit(() -> dnsResolver.resolve("slow.example.com")));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<List<InetAddress>> future : futures) {
+                assertEquals("10.0.0.2", future.get().get(0).getHostAddress());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(hostResolver, times(1)).resolve("slow.example.com");
+    }
+
+    @Test
+    void resolve_UnknownHost_NegativeCached() throws Exception {
+        when(hostResolver.resolve("unknown.example.com")).thenThrow(new UnknownHostException("unknown.example.com"));
+        assertNull(pacHelperMethods.dnsResolve("unknown.example.com"));
+        assertFalse(pacHelperMethods.isResolvable("unknown.example.com"));
+        assertEquals("", pacHelperMethods.dnsResolveEx("unknown.example.com"));
+        verify(hostResolver, times(1)).resolve("unknown.example.com");
+    }
+
+    @Test
+    void resolve_SlowNameService_TimeoutThenCached() throws Exception {
+        when(hostResolver.resolve("stalled.example.com")).thenAnswer(invocation -> {
+            Thread.sleep(600);
+            return addresses("10.0.0.3");
+        });
+        long start = System.nanoTime();
+        assertThrows(UnknownHostException.class, () -> dnsResolver.resolve("stalled.example.com"));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(550));
+        // The lookup keeps going in background
+        Thread.sleep(500);
+        assertEquals("10.0.0.3", dnsResolver.resolve("stalled.example.com").get(0).getHostAddress());
+        verify(hostResolver, times(1)).resolve("stalled.example.com");
+        assertTrue((Long) dnsResolver.getStats().get("timeouts") > 0);
+    }
+
+    @Test
+    void resolve_HotEntry_RefreshedAhead() throws Exception {
+        when(hostResolver.resolve("hot.example.com"))
+                .thenReturn(addresses("10.0.0.4"))
+                .thenReturn(addresses("10.0.0.5"));
+        assertEquals("10.0.0.4", pacHelperMethods.dnsResolve("hot.example.com"));
+        // In the last quarter of the TTL, the cached address is served while refreshing
+        Thread.sleep(800);
+        assertEquals("10.0.0.4", pacHelperMethods.dnsResolve("hot.example.com"));
+        verify(hostResolver, timeout(1000).times(2)).resolve("hot.example.com");
+        Thread.sleep(100);
+        assertEquals("10.0.0.5", pacHelperMethods.dnsResolve("hot.example.com"));
+        verify(hostResolver, times(2)).resolve("hot.example.com");
+    }
+
+    @Test
+    void resolve_Expired_ResolvedAgain() throws Exception {
+        when(hostResolver.resolve("cold.example.com"))
+                .thenReturn(addresses("10.0.0.6"))
+                .thenReturn(addresses("10.0.0.7"));
+        assertEquals("10.0.0.6", pacHelperMethods.dnsResolve("cold.example.com"));
+        Thread.sleep(1100);
+        assertEquals("10.0.0.7", pacHelperMethods.dnsResolve("cold.example.com"));
+        verify(hostResolver, times(2)).resolve("cold.example.com");
+    }
+
+    @Test
+    void isInNet_HostName_ResolvedAddressChecked() throws Exception {
+        when(hostResolver.resolve("intranet.example.com")).thenReturn(addresses("10.1.2.3"));
+        assertTrue(pacHelperMethods.isInNet("intranet.example.com", "10.0.0.0", "255.0.0.0"));
+        assertFalse(pacHelperMethods.isInNet("intranet.example.com", "192.168.0.0", "255.255.0.0"));
+        assertTrue(pacHelperMethods.isInNetEx("intranet.example.com", "10.1.0.0/16"));
+        verify(hostResolver, times(1)).resolve("intranet.example.com");
+    }
+
+    private static InetAddress[] addresses(String... ipAddresses) throws UnknownHostException {
+        InetAddress[] addresses = new InetAddress[ipAddresses.length];
+        for (int i = 0; i < ipAddresses.length; i++) {
+            addresses[i] = InetAddress.getByName(ipAddresses[i]);
+        }
+        return addresses;
+    }
+
+}
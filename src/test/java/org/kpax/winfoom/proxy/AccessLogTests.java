@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicRequestLine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Timeout(10)
+public class AccessLogTests {
+
+    @TempDir
+    Path logDirectory;
+
+    @Test
+    void log_Request_OneLineWithAllFields() throws Exception {
+        AccessLog accessLog = createAccessLog(true, 1024 * 1024);
+        accessLog.log(mockClientConnection("GET", "http://example.com/index.html",
+                new ProxyInfo(ProxyConfig.Type.HTTP, new HttpHost("proxy", 3128)), 200, "NTLM"), 120, 4500);
+        accessLog.log(mockClientConnection("CONNECT", "example.com:443",
+                new ProxyInfo(ProxyConfig.Type.DIRECT, null), 0, null), 10, 0);
+        accessLog.onStop();
+
+        List<String> lines = Files.readAllLines(logDirectory.resolve(AccessLog.FILENAME), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\S+ 127\\.0\\.0\\.1:50000 GET http://example\\.com/index\\.html "
+                + "http://proxy:3128 200 120 4500 \\d+ NTLM"), lines.get(0));
+        assertTrue(lines.get(1).matches("\\S+ 127\\.0\\.0\\.1:50000 CONNECT example\\.com:443 direct - 10 0 \\d+ -"),
+                lines.get(1));
+        assertEquals(2L, accessLog.getStats().get("logged"));
+    }
+
+    @Test
+    void log_MaxFileSizeReached_Rotated() throws Exception {
+        AccessLog accessLog = createAccessLog(true, 100);
+        for (int i = 0; i < 10; i++) {
+            accessLog.log(mockClientConnection("GET", "http://example.com/" + i,
+                    new ProxyInfo(ProxyConfig.Type.DIRECT, null), 200, null), 100, 100);
+        }
+        accessLog.onStop();
+
+        Path archived = logDirectory.resolve("archived");
+        assertTrue(Files.exists(archived.resolve("access_1.log")));
+        assertTrue(Files.exists(archived.resolve("access_2.log")));
+        assertFalse(Files.exists(archived.resolve("access_3.log")));
+        assertTrue(Files.readAllLines(archived.resolve("access_1.log")).get(0).contains("http://example.com/"));
+    }
+
+    @Test
+    void log_NonAsciiTarget_RotatedOnEncodedSize() throws Exception {
+        // About 145 chars, but over 200 bytes once encoded
+        AccessLog accessLog = createAccessLog(true, 160);
+        accessLog.log(mockClientConnection("GET", "http://e/" + "\u00e9".repeat(60),
+                new ProxyInfo(ProxyConfig.Type.DIRECT, null), 200, null), 100, 100);
+        accessLog.onStop();
+        assertTrue(Files.exists(logDirectory.resolve("archived").resolve("access_1.log")));
+    }
+
+    @Test
+    void log_WriterIdle_LineFlushed() throws Exception {
+        AccessLog accessLog = createAccessLog(true, 1024 * 1024);
+        try {
+            accessLog.log(mockClientConnection("GET", "http://example.com/",
+                    new ProxyInfo(ProxyConfig.Type.DIRECT, null), 200, null), 100, 100);
+            Path file = logDirectory.resolve(AccessLog.FILENAME);
+            while (!Files.exists(file) || Files.size(file) == 0) {
+                Thread.sleep(10);
+            }
+            assertTrue(Files.readAllLines(file, StandardCharsets.UTF_8).get(0).contains("http://example.com/"));
+        } finally {
+            accessLog.onStop();
+        }
+    }
+
+    @Test
+    void log_Disabled_NothingWritten() {
+        AccessLog accessLog = createAccessLog(false, 1024 * 1024);
+        accessLog.log(mockClientConnection("GET", "http://example.com/",
+                new ProxyInfo(ProxyConfig.Type.DIRECT, null), 200, null), 100, 100);
+        accessLog.onStop();
+        assertFalse(Files.exists(logDirectory.resolve(AccessLog.FILENAME)));
+        assertEquals(0L, accessLog.getStats().get("logged"));
+    }
+
+    private AccessLog createAccessLog(boolean enabled, long maxFileSize) {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isAccessLogEnabled()).thenReturn(enabled);
+        when(systemConfig.getAccessLogBufferSize()).thenReturn(16);
+        when(systemConfig.getAccessLogMaxFileSize()).thenReturn(maxFileSize);
+        when(systemConfig.getAccessLogMaxFiles()).thenReturn(2);
+        AccessLog accessLog = new AccessLog() {
+            @Override
+            Path getLogDirectory() {
+                return logDirectory;
+            }
+        };
+        ReflectionTestUtils.setField(accessLog, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(accessLog, "proxyMetrics", new ProxyMetrics());
+        accessLog.init();
+        return accessLog;
+    }
+
+    private ClientConnection mockClientConnection(String method, String uri, ProxyInfo proxyInfo, int status,
+                                                  String authScheme) {
+        ClientConnection clientConnection = mock(ClientConnection.class);
+        when(clientConnection.getClientAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 50000));
+        when(clientConnection.getRequestLine()).thenReturn(new BasicRequestLine(method, uri, HttpVersion.HTTP_1_1));
+        when(clientConnection.getProxyInfo()).thenReturn(proxyInfo);
+        when(clientConnection.getResponseStatus()).thenReturn(status);
+        when(clientConnection.getAuthScheme()).thenReturn(authScheme);
+        when(clientConnection.getTimings()).thenReturn(new RequestTimings());
+        return clientConnection;
+    }
+
+}
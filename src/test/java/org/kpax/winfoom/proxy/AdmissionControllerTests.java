@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@Timeout(10)
+public class AdmissionControllerTests {
+
+    @Test
+    void admit_UnderLimit_Admitted() {
+        AdmissionController admissionController = createAdmissionController(2, 0, 1);
+        ClientConnection clientConnection = mockClientConnection(false);
+        assertNotNull(admissionController.admit(clientConnection));
+        assertNotNull(admissionController.admit(clientConnection));
+        verify(clientConnection, never()).writeErrorResponse(anyInt(), anyString(), any(Header.class));
+        assertEquals(2L, stats(admissionController, "requests").get("inFlight"));
+        assertEquals(0L, stats(admissionController, "tunnels").get("inFlight"));
+    }
+
+    @Test
+    void admit_QueueFull_RejectedWithRetryAfter() {
+        AdmissionController admissionController = createAdmissionController(1, 0, 1);
+        ClientConnection clientConnection = mockClientConnection(true);
+        assertNotNull(admissionController.admit(clientConnection));
+        assertNull(admissionController.admit(clientConnection));
+
+        ArgumentCaptor<Header> headerCaptor = ArgumentCaptor.forClass(Header.class);
+        verify(clientConnection).writeErrorResponse(eq(HttpStatus.SC_SERVICE_UNAVAILABLE), anyString(),
+                headerCaptor.capture());
+        assertEquals(HttpHeaders.RETRY_AFTER, headerCaptor.getValue().getName());
+        assertEquals("7", headerCaptor.getValue().getValue());
+
+        Map<String, Object> tunnels = stats(admissionController, "tunnels");
+        assertEquals(1L, tunnels.get("admitted"));
+        assertEquals(1L, tunnels.get("rejected"));
+        assertEquals(0L, tunnels.get("queued"));
+    }
+
+    @Test
+    void admit_QueueTimeout_Rejected() {
+        AdmissionController admissionController = createAdmissionController(1, 1, 1);
+        ClientConnection clientConnection = mockClientConnection(false);
+        assertNotNull(admissionController.admit(clientConnection));
+        assertNull(admissionController.admit(clientConnection));
+        Map<String, Object> requests = stats(admissionController, "requests");
+        assertEquals(1L, requests.get("queued"));
+        assertEquals(1L, requests.get("timedOut"));
+        assertEquals(1L, requests.get("rejected"));
+    }
+
+    @Test
+    void admit_PermitReleasedWhileQueued_Admitted() throws Exception {
+        AdmissionController admissionController = createAdmissionController(1, 1, 5);
+        ClientConnection clientConnection = mockClientConnection(false);
+        AdmissionController.Permit permit = admissionController.admit(clientConnection);
+        CompletableFuture<AdmissionController.Permit> queued =
+                CompletableFuture.supplyAsync(() -> admissionController.admit(clientConnection));
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertFalse(queued.isDone());
+
+        permit.release();
+        // Releasing twice must not free a second slot
+        permit.release();
+
+        assertNotNull(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(1L, stats(admissionController, "requests").get("inFlight"));
+        assertEquals(2L, stats(admissionController, "requests").get("admitted"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> stats(AdmissionController admissionController, String kind) {
+        Map<String, Object> stats = (Map<String, Object>) admissionController.getStats().get(kind);
+        stats.replaceAll((key, value) -> ((Number) value).longValue());
+        return stats;
+    }
+
+    private static ClientConnection mockClientConnection(boolean connect) {
+        ClientConnection clientConnection = mock(ClientConnection.class);
+        when(clientConnection.isConnect()).thenReturn(connect);
+        return clientConnection;
+    }
+
+    private static AdmissionController createAdmissionController(int limit, int queueSize, int queueTimeout) {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getAdmissionMaxTunnels()).thenReturn(limit);
+        when(systemConfig.getAdmissionMaxRequests()).thenReturn(limit);
+        when(systemConfig.getAdmissionQueueSize()).thenReturn(queueSize);
+        when(systemConfig.getAdmissionQueueTimeout()).thenReturn(queueTimeout);
+        when(systemConfig.getAdmissionRetryAfter()).thenReturn(7);
+        AdmissionController admissionController = new AdmissionController();
+        ReflectionTestUtils.setField(admissionController, "systemConfig", systemConfig);
+        admissionController.init();
+        return admissionController;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicRequestLine;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class ConnectionRegistryTests {
+
+    @Test
+    void getConnections_Registered_BusiestFirst() throws Exception {
+        ConnectionRegistry connectionRegistry = createConnectionRegistry();
+        ClientConnection slow = mockClientConnection("GET", "http://example.com/", 50000, 300, 1000);
+        ClientConnection busy = mockClientConnection("CONNECT", "example.com:443", 50001, 2000, 900000);
+        connectionRegistry.register(slow);
+        connectionRegistry.register(busy);
+        Thread.sleep(20);
+
+        List<ConnectionRegistry.ConnectionInfo> connections = connectionRegistry.getConnections();
+        assertEquals(2, connections.size());
+        ConnectionRegistry.ConnectionInfo first = connections.get(0);
+        assertEquals("example.com:443", first.getTarget());
+        assertEquals("127.0.0.1:50001", first.getClient());
+        assertEquals("direct", first.getUpstream());
+        assertTrue(first.isTunnel());
+        assertFalse(first.isRelayed());
+        assertEquals(2000, first.getBytesIn());
+        assertEquals(900000, first.getBytesOut());
+        assertTrue(first.getAge() >= 20);
+        assertTrue(first.getBandwidth() > connections.get(1).getBandwidth());
+        assertEquals("GET", connections.get(1).getMethod());
+
+        connectionRegistry.unregister(busy);
+        assertEquals(1, connectionRegistry.getActiveCount());
+        assertEquals("http://example.com/", connectionRegistry.getConnections().get(0).getTarget());
+    }
+
+    @Test
+    void kill_ById_ClientConnectionKilled() {
+        ConnectionRegistry connectionRegistry = createConnectionRegistry();
+        ClientConnection first = mockClientConnection("GET", "http://example.com/", 50000, 0, 0);
+        ClientConnection second = mockClientConnection("GET", "http://example.org/", 50001, 0, 0);
+        connectionRegistry.register(first);
+        connectionRegistry.register(second);
+        long id = connectionRegistry.getConnections().stream()
+                .filter(connection -> connection.getTarget().equals("http://example.org/"))
+                .findFirst().orElseThrow(AssertionError::new).getId();
+
+        assertTrue(connectionRegistry.kill(id));
+        verify(second).kill();
+        verify(first, never()).kill();
+        assertFalse(connectionRegistry.kill(id + 100));
+    }
+
+    private ConnectionRegistry createConnectionRegistry() {
+        ConnectionRegistry connectionRegistry = new ConnectionRegistry();
+        ReflectionTestUtils.setField(connectionRegistry, "relayEngine", mock(RelayEngine.class));
+        return connectionRegistry;
+    }
+
+    private ClientConnection mockClientConnection(String method, String uri, int port, long bytesIn, long bytesOut) {
+        ClientConnection clientConnection = mock(ClientConnection.class);
+        when(clientConnection.getClientAddress()).thenReturn(new InetSocketAddress("127.0.0.1", port));
+        when(clientConnection.getRequestLine()).thenReturn(new BasicRequestLine(method, uri, HttpVersion.HTTP_1_1));
+        when(clientConnection.getProxyInfo()).thenReturn(new ProxyInfo(ProxyConfig.Type.DIRECT, null));
+        when(clientConnection.isConnect()).thenReturn("CONNECT".equals(method));
+        when(clientConnection.getBytesIn()).thenReturn(bytesIn);
+        when(clientConnection.getBytesOut()).thenReturn(bytesOut);
+        when(clientConnection.getLastActivity()).thenReturn(System.nanoTime());
+        return clientConnection;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class HttpClientBuilderFactoryTests {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final ProxyInfo HTTP_PROXY = new ProxyInfo(ProxyInfo.PacType.PROXY,
+            new HttpHost("localhost", 3128));
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private HttpClientBuilderFactory clientBuilderFactory;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    @BeforeAll
+    void before() throws Exception {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyController.start();
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        when(proxyConfig.isAutoConfig()).thenReturn(true);
+        when(proxyConfig.getPacHttpAuthProtocol()).thenReturn(ProxyConfig.HttpAuthProtocol.BASIC);
+        clientBuilderFactory.onStop();
+    }
+
+    @Test
+    void getHttpClient_SameProxy_SameInstance() {
+        CloseableHttpClient httpClient = clientBuilderFactory.getHttpClient(HTTP_PROXY);
+        assertSame(httpClient, clientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", 3128))));
+        assertNotSame(httpClient, clientBuilderFactory.getHttpClient(new ProxyInfo(ProxyInfo.PacType.DIRECT)));
+        assertNotSame(httpClient, clientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.SOCKS5, new HttpHost("localhost", 3128))));
+    }
+
+    @Test
+    void getHttpClient_AuthProtocolChanged_NewInstance() {
+        CloseableHttpClient httpClient = clientBuilderFactory.getHttpClient(HTTP_PROXY);
+        when(proxyConfig.getPacHttpAuthProtocol()).thenReturn(ProxyConfig.HttpAuthProtocol.NTLM);
+        assertNotSame(httpClient, clientBuilderFactory.getHttpClient(HTTP_PROXY));
+    }
+
+    @Test
+    void getHttpClient_Stopped_NewInstance() {
+        CloseableHttpClient httpClient = clientBuilderFactory.getHttpClient(HTTP_PROXY);
+        clientBuilderFactory.onStop();
+        assertNotSame(httpClient, clientBuilderFactory.getHttpClient(HTTP_PROXY));
+        httpClient = clientBuilderFactory.getHttpClient(HTTP_PROXY);
+        clientBuilderFactory.clearHttpClients();
+        assertNotSame(httpClient, clientBuilderFactory.getHttpClient(HTTP_PROXY));
+    }
+
+    /**
+     * Compare the per request cost of building then closing a client with the cached one.
+     * Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_BuildPerRequestVsCached() throws IOException {
+        int iterations = Integer.getInteger("perft.iterations", 20000);
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // A SOCKS proxy, so the mocked configuration, that records each call, stays out of the measurement
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.SOCKS5, new HttpHost("localhost", 1080));
+        for (int round = 0; round < 2; round++) {
+            long bytesBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
+                    assertNotNull(httpClient);
+                }
+            }
+            long buildNanos = (System.nanoTime() - start) / iterations;
+            long buildBytes = (threadMXBean.getThreadAllocatedBytes(threadId) - bytesBefore) / iterations;
+
+            bytesBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertNotNull(clientBuilderFactory.getHttpClient(proxyInfo));
+            }
+            long cachedNanos = (System.nanoTime() - start) / iterations;
+            long cachedBytes = (threadMXBean.getThreadAllocatedBytes(threadId) - bytesBefore) / iterations;
+
+            // The first round is the warm up
+            if (round > 0) {
+                logger.info("Build per request: {} ns, {} bytes; cached: {} ns, {} bytes",
+                        buildNanos, buildBytes, cachedNanos, cachedBytes);
+            }
+        }
+    }
+
+    @AfterAll
+    void after() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyController.stop();
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.kpax.winfoom.TestConstants.PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * Persistent client's connections on the local proxy port.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {
+        "serverSocket.keepAlive.timeout=1",
+        "serverSocket.keepAlive.maxRequests=3"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(20)
+public class KeepAliveTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    private HttpServer remoteServer;
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+    }
+
+    @BeforeAll
+    void before() throws Exception {
+        beforeEach();
+        remoteServer = ServerBootstrap.bootstrap()
+                .registerHandler("/length",
+                        (request, response, context) -> response.setEntity(new StringEntity("12345")))
+                .registerHandler("/chunked",
+                        (request, response, context) -> response.setEntity(new InputStreamEntity(
+                                new ByteArrayInputStream("chunked-body".getBytes(StandardCharsets.UTF_8)), -1)))
+                .registerHandler("/post",
+                        (request, response, context) -> response.setEntity(new StringEntity("posted:" +
+                                EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()))))
+                .create();
+        remoteServer.start();
+        if (!proxyController.isRunning()) {
+            proxyController.start();
+        }
+    }
+
+    @Test
+    void keepAlive_ContentLengthResponses_SameConnection() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                sendGet(socket, "/length", false);
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                assertNull(response.getFirstHeader(HTTP.CONN_DIRECTIVE));
+                assertEquals("12345", readBody(inputBuffer, response));
+            }
+        }
+    }
+
+    @Test
+    void keepAlive_ChunkedResponses_Rechunked() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                sendGet(socket, "/chunked", false);
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                assertEquals(HTTP.CHUNK_CODING, response.getFirstHeader(HttpHeaders.TRANSFER_ENCODING).getValue());
+                assertEquals("chunked-body", readBody(inputBuffer, response));
+            }
+        }
+    }
+
+    @Test
+    void keepAlive_PostThenGet_SameConnection() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+            String body = "name=value";
+            socket.getOutputStream().write(("POST http://localhost:" + remoteServer.getLocalPort() + "/post HTTP/1.1\r\n"
+                    + "Host: localhost:" + remoteServer.getLocalPort() + "\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals("posted:" + body, readBody(inputBuffer, response));
+
+            sendGet(socket, "/length", false);
+            response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals("12345", readBody(inputBuffer, response));
+        }
+    }
+
+    @Test
+    void keepAlive_ConnectionClose_Closed() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+            sendGet(socket, "/chunked", true);
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals(HTTP.CONN_CLOSE, response.getFirstHeader(HTTP.CONN_DIRECTIVE).getValue());
+            assertNull(response.getFirstHeader(HttpHeaders.TRANSFER_ENCODING));
+            assertEquals("chunked-body", readToEnd(inputBuffer));
+        }
+    }
+
+    @Test
+    void keepAlive_MaxRequests_ClosedAfterLast() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+            for (int i = 1; i <= 3; i++) {
+                sendGet(socket, "/length", false);
+                HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+                assertEquals(i == 3, response.containsHeader(HTTP.CONN_DIRECTIVE));
+                assertEquals("12345", readBody(inputBuffer, response));
+            }
+            assertEquals(-1, inputBuffer.fillBuffer());
+        }
+    }
+
+    @Test
+    void keepAlive_IdleTimeout_Closed() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+            sendGet(socket, "/length", false);
+            HttpResponse response = new DefaultHttpResponseParser(inputBuffer).parse();
+            assertEquals("12345", readBody(inputBuffer, response));
+
+            long start = System.nanoTime();
+            assertEquals(-1, inputBuffer.fillBuffer());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+    }
+
+    private void sendGet(Socket socket, String path, boolean close) throws IOException {
+        socket.getOutputStream().write(("GET http://localhost:" + remoteServer.getLocalPort() + path + " HTTP/1.1\r\n"
+                + "Host: localhost:" + remoteServer.getLocalPort() + "\r\n"
+                + (close ? "Connection: close\r\n" : "")
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String readBody(SessionInputBufferImpl inputBuffer, HttpResponse response) throws IOException {
+        InputStream inputStream;
+        if (response.containsHeader(HttpHeaders.TRANSFER_ENCODING)) {
+            inputStream = new ChunkedInputStream(inputBuffer);
+        } else {
+            inputStream = new ContentLengthInputStream(inputBuffer,
+                    Long.parseLong(response.getFirstHeader(HttpHeaders.CONTENT_LENGTH).getValue()));
+        }
+        return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static String readToEnd(SessionInputBufferImpl inputBuffer) throws IOException {
+        StringBuilder body = new StringBuilder();
+        byte[] buffer = new byte[1024];
+        for (int read; (read = inputBuffer.read(buffer)) != -1; ) {
+            body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+        }
+        return body.toString();
+    }
+
+    @AfterAll
+    void after() {
+        if (remoteServer != null) {
+            remoteServer.shutdown(0, TimeUnit.MILLISECONDS);
+        }
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyController.stop();
+    }
+}
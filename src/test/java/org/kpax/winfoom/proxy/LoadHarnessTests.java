@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.DisabledForJreRange;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.condition.JRE;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.load.LoadHarness;
+import org.kpax.winfoom.util.InMemoryURLFactory;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.ProxyAuthenticator;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.kpax.winfoom.TestConstants.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * End-to-end load through the local proxy server, for each kind of upstream proxy, all of them running on localhost.
+ * <p>Run with {@code -Dperft=true}, the load being configured by:
+ * <ul>
+ * <li>{@code perft.load.threads}: the number of client threads (50),</li>
+ * <li>{@code perft.load.duration}: the duration of each run, in seconds (20),</li>
+ * <li>{@code perft.load.connectPercent}: the percentage of CONNECT tunnels, the rest being plain requests (50),</li>
+ * <li>{@code perft.load.bodySize}: the size of the response's body, in bytes (1024),</li>
+ * <li>{@code perft.load.seed}: the seed of the requests' mix (42).</li>
+ * </ul>
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@EnabledIfSystemProperty(named = "perft", matches = "true")
+class LoadHarnessTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    private HttpServer remoteServer;
+
+    private HttpHost localProxy;
+
+    private HttpHost target;
+
+    @BeforeAll
+    void before() throws Exception {
+        byte[] body = new byte[Integer.getInteger("perft.load.bodySize", 1024)];
+        new Random(42).nextBytes(body);
+        remoteServer = ServerBootstrap.bootstrap()
+                .registerHandler("/bytes", (request, response, context) -> response.setEntity(new ByteArrayEntity(body)))
+                .create();
+        remoteServer.start();
+        localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+        target = new HttpHost("localhost", remoteServer.getLocalPort(), "http");
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getBlacklistTimeout()).thenReturn(1);
+    }
+
+    @Test
+    void perft_DirectUpstream() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        run("DIRECT");
+    }
+
+    @Test
+    void perft_HttpBasicUpstream() throws Exception {
+        HttpProxyServer upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withName("BasicUpstreamProxy")
+                .withProxyAuthenticator(new ProxyAuthenticator() {
+                    public boolean authenticate(String userName, String password) {
+                        return userName.equals(USERNAME) && password.equals(PASSWORD);
+                    }
+
+                    @Override
+                    public String getRealm() {
+                        return null;
+                    }
+                })
+                .start();
+        try {
+            when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+            when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+            run("HTTP basic");
+        } finally {
+            upstreamProxy.abort();
+        }
+    }
+
+    /**
+     * Since Java 13, the JDK's sockets no longer talk SOCKS4.
+     */
+    @Test
+    @DisabledForJreRange(min = JRE.JAVA_13)
+    void perft_Socks4Upstream() throws Exception {
+        ClientAndServer upstreamProxy = ClientAndServer.startClientAndServer();
+        try {
+            when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS4);
+            when(proxyConfig.getProxyPort()).thenReturn(upstreamProxy.getLocalPort());
+            run("SOCKS4");
+        } finally {
+            upstreamProxy.stop();
+        }
+    }
+
+    @Test
+    void perft_Socks5Upstream() throws Exception {
+        ClientAndServer upstreamProxy = ClientAndServer.startClientAndServer();
+        try {
+            when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS5);
+            when(proxyConfig.getProxyPort()).thenReturn(upstreamProxy.getLocalPort());
+            run("SOCKS5");
+        } finally {
+            upstreamProxy.stop();
+        }
+    }
+
+    /**
+     * The PAC script's first proxy is down, so it gets blacklisted and the requests fall back to DIRECT.
+     */
+    @Test
+    void perft_PacDirectFallback() throws Exception {
+        int downPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            downPort = serverSocket.getLocalPort();
+        }
+        String content = String.format(
+                "function FindProxyForURL(url, host) {return \"PROXY localhost:%s; DIRECT\";}", downPort);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.PAC);
+        when(proxyConfig.isAutoConfig()).thenReturn(true);
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(
+                InMemoryURLFactory.getInstance().build("/load/pac/file", content));
+        try {
+            run("PAC with DIRECT fallback");
+        } finally {
+            proxyBlacklist.clear();
+        }
+    }
+
+    private void run(String name) throws Exception {
+        proxyController.start();
+        LoadHarness.LoadReport report = new LoadHarness.LoadHarnessBuilder()
+                .withLocalProxy(localProxy)
+                .withTarget(target, "/bytes")
+                .build()
+                .run(name);
+        assertTrue(report.getPlainCount() + report.getConnectCount() > 0, "No request completed");
+        assertEquals(0, report.getErrors(), "Failed requests");
+    }
+
+    @AfterEach
+    void afterEach() {
+        proxyController.stop();
+    }
+
+    @AfterAll
+    void after() {
+        remoteServer.shutdown(0, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.kpax.winfoom.TestConstants.PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load test for the event-driven listener and the relay engine:
+ * idle client connections and open tunnels must not hold any thread.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {"serverSocket.nio=true"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@Timeout(30)
+public class NioLocalProxyServerTests {
+
+    private static final int IDLE_CONNECTIONS = 300;
+
+    private static final int TUNNELS = 100;
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    @Autowired
+    private RelayEngine relayEngine;
+
+    /**
+     * Its busy threads are the ones held by the connections, unlike the JVM-wide thread count
+     * that is also moved by the other tests' contexts.
+     */
+    @Autowired
+    private ProxyExecutorService proxyExecutorService;
+
+    private HttpServer remoteServer;
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+    }
+
+    @BeforeAll
+    void before() throws Exception {
+        Assumptions.assumeTrue(NioConnectionAcceptor.isSupported());
+        assertTrue(systemConfig.isServerSocketNio());
+        beforeEach();
+        remoteServer = ServerBootstrap.bootstrap().registerHandler("/get",
+                (request, response, context) -> response.setEntity(new StringEntity("12345"))).create();
+        remoteServer.start();
+        if (!proxyController.isRunning()) {
+            proxyController.start();
+        }
+    }
+
+    @Test
+    @Order(0)
+    void nio_NonConnect_CorrectResponse() throws IOException {
+        assertGetThroughProxy();
+    }
+
+    @Test
+    @Order(1)
+    void nio_Connect_200OK() throws IOException {
+        HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create()
+                .setProxy(localProxy).build()) {
+            HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+            HttpRequest request = new BasicHttpRequest("CONNECT", "localhost:" + remoteServer.getLocalPort());
+            try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    @Order(2)
+    void nio_FragmentedRequestHead_CorrectResponse() throws Exception {
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            OutputStream outputStream = socket.getOutputStream();
+            String head = "GET http://localhost:" + remoteServer.getLocalPort() + "/get HTTP/1.1\r\n"
+                    + "Host: localhost:" + remoteServer.getLocalPort() + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            byte[] bytes = head.getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < bytes.length; i += 7) {
+                outputStream.write(bytes, i, Math.min(7, bytes.length - i));
+                outputStream.flush();
+                Thread.sleep(5);
+            }
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(reader.readLine().contains(" 200 "));
+        }
+    }
+
+    @Test
+    @Order(3)
+    void nio_ManyIdleConnections_ThreadCountFlat() throws Exception {
+        // Warm up the thread pool
+        assertGetThroughProxy();
+        int threadCountBefore = proxyExecutorService.getActiveCount();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+                Socket socket = new Socket("localhost", LOCAL_PROXY_PORT);
+                // An incomplete request head
+                socket.getOutputStream().write("GET http://localhost/ HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+                sockets.add(socket);
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+            int threadCountAfter = proxyExecutorService.getActiveCount();
+            assertTrue(threadCountAfter - threadCountBefore < 10,
+                    "Busy threads grew from " + threadCountBefore + " to " + threadCountAfter);
+
+            // Still serving requests
+            assertGetThroughProxy();
+        } finally {
+            sockets.forEach(socket -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            });
+        }
+    }
+
+    @Test
+    @Order(4)
+    void nio_ManyOpenTunnels_ThreadCountFlat() throws Exception {
+        int threadCountBefore = proxyExecutorService.getActiveCount();
+        int activeBefore = relayEngine.getActiveCount();
+
+        List<Socket> sockets = new ArrayList<>();
+        try (ServerSocketChannel remote = ServerSocketChannel.open()) {
+            remote.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int remotePort = remote.socket().getLocalPort();
+            for (int i = 0; i < TUNNELS; i++) {
+                Socket socket = new Socket("localhost", LOCAL_PROXY_PORT);
+                sockets.add(socket);
+                socket.getOutputStream().write(("CONNECT localhost:" + remotePort + " HTTP/1.1\r\n"
+                        + "Host: localhost:" + remotePort + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                assertTrue(readHead(socket.getInputStream()).contains(" 200 "));
+
+                SocketChannel remoteChannel = remote.accept();
+                sockets.add(remoteChannel.socket());
+                byte[] message = ("hello-" + i).getBytes(StandardCharsets.US_ASCII);
+                socket.getOutputStream().write(message);
+                byte[] received = remoteChannel.socket().getInputStream().readNBytes(message.length);
+                remoteChannel.socket().getOutputStream().write(received);
+                assertArrayEquals(message, socket.getInputStream().readNBytes(message.length));
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+            assertEquals(activeBefore + TUNNELS, relayEngine.getActiveCount());
+            int threadCountAfter = proxyExecutorService.getActiveCount();
+            assertTrue(threadCountAfter - threadCountBefore < 10,
+                    "Busy threads grew from " + threadCountBefore + " to " + threadCountAfter);
+        } finally {
+            sockets.forEach(socket -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            });
+        }
+    }
+
+    @Test
+    @Order(5)
+    void nio_IdlePersistentConnections_ThreadCountFlat() throws Exception {
+        assertGetThroughProxy();
+        int threadCountBefore = proxyExecutorService.getActiveCount();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+                Socket socket = new Socket("localhost", LOCAL_PROXY_PORT);
+                sockets.add(socket);
+                sendGet(socket);
+                String head = readHead(socket.getInputStream());
+                assertTrue(head.contains(" 200 "));
+                assertFalse(head.contains("Connection: close"));
+                assertEquals("12345", new String(socket.getInputStream().readNBytes(5), StandardCharsets.US_ASCII));
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+            int threadCountAfter = proxyExecutorService.getActiveCount();
+            assertTrue(threadCountAfter - threadCountBefore < 10,
+                    "Busy threads grew from " + threadCountBefore + " to " + threadCountAfter);
+
+            // The idle connections are still usable
+            for (Socket socket : sockets.subList(0, 10)) {
+                sendGet(socket);
+                assertTrue(readHead(socket.getInputStream()).contains(" 200 "));
+                assertEquals("12345", new String(socket.getInputStream().readNBytes(5), StandardCharsets.US_ASCII));
+            }
+        } finally {
+            sockets.forEach(socket -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            });
+        }
+    }
+
+    @Test
+    @Order(6)
+    void nio_ConnectWithPipelinedData_AllDataRelayed() throws Exception {
+        try (ServerSocketChannel remote = ServerSocketChannel.open();
+             Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            remote.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int remotePort = remote.socket().getLocalPort();
+            StringBuilder headBuilder = new StringBuilder("CONNECT localhost:" + remotePort + " HTTP/1.1\r\n"
+                    + "Host: localhost:" + remotePort + "\r\n");
+            // Ending close to the session input buffer's size
+            for (int i = 0; headBuilder.length() < 7900; i++) {
+                headBuilder.append("X-Padding-").append(i).append(": ").append("x".repeat(80)).append("\r\n");
+            }
+            byte[] head = headBuilder.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+            byte[] payload = new byte[20000];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) i;
+            }
+
+            // A first short read of the head, then the rest of it along with the data,
+            // sent without waiting for the response: the listener reads past the head
+            int firstPart = 3000;
+            socket.getOutputStream().write(head, 0, firstPart);
+            socket.getOutputStream().flush();
+            TimeUnit.MILLISECONDS.sleep(300);
+            byte[] rest = new byte[head.length - firstPart + payload.length];
+            System.arraycopy(head, firstPart, rest, 0, head.length - firstPart);
+            System.arraycopy(payload, 0, rest, head.length - firstPart, payload.length);
+            socket.getOutputStream().write(rest);
+            assertTrue(readHead(socket.getInputStream()).contains(" 200 "));
+
+            try (SocketChannel remoteChannel = remote.accept()) {
+                remoteChannel.socket().setSoTimeout(5000);
+                assertArrayEquals(payload, remoteChannel.socket().getInputStream().readNBytes(payload.length));
+            }
+        }
+    }
+
+    @Test
+    @Order(7)
+    void nio_KeepAliveMaxRequests_ClosedAfterLast() throws Exception {
+        int maxRequests = 3;
+        Object defaultMaxRequests = ReflectionTestUtils.getField(systemConfig, "serverSocketKeepAliveMaxRequests");
+        ReflectionTestUtils.setField(systemConfig, "serverSocketKeepAliveMaxRequests", maxRequests);
+        try (Socket socket = new Socket("localhost", LOCAL_PROXY_PORT)) {
+            socket.setSoTimeout(5000);
+            for (int i = 1; i <= maxRequests; i++) {
+                sendGet(socket);
+                String head = readHead(socket.getInputStream());
+                assertTrue(head.contains(" 200 "));
+                assertEquals(i == maxRequests, head.toLowerCase().contains("connection: close"));
+                assertEquals("12345", new String(socket.getInputStream().readNBytes(5), StandardCharsets.US_ASCII));
+                // Let the connection go idle, so the next request is dispatched again
+                TimeUnit.MILLISECONDS.sleep(200);
+            }
+            try {
+                sendGet(socket);
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (SocketException e) {
+                // Reset by the server, closed as well
+            }
+        } finally {
+            ReflectionTestUtils.setField(systemConfig, "serverSocketKeepAliveMaxRequests", defaultMaxRequests);
+        }
+    }
+
+    private void sendGet(Socket socket) throws IOException {
+        socket.getOutputStream().write(("GET http://localhost:" + remoteServer.getLocalPort() + "/get HTTP/1.1\r\n"
+                + "Host: localhost:" + remoteServer.getLocalPort() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String readHead(InputStream inputStream) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = inputStream.read();
+            if (b == -1) {
+                break;
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    private void assertGetThroughProxy() throws IOException {
+        HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            RequestConfig config = RequestConfig.custom()
+                    .setProxy(localProxy)
+                    .build();
+            HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+            HttpGet request = new HttpGet("/get");
+            request.setConfig(config);
+            try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                assertEquals("12345", EntityUtils.toString(response.getEntity()));
+            }
+        }
+    }
+
+    @AfterAll
+    void after() {
+        if (remoteServer != null) {
+            remoteServer.shutdown(0, TimeUnit.MILLISECONDS);
+        }
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyController.stop();
+    }
+}
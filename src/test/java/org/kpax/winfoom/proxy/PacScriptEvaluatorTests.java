@@ -16,12 +16,17 @@ import org.apache.http.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.bootstrap.*;
 import org.apache.http.protocol.*;
+import com.oracle.truffle.js.scriptengine.*;
+import org.apache.commons.pool2.*;
+import org.apache.commons.pool2.impl.*;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.*;
 import org.junit.jupiter.api.extension.*;
 import org.kpax.winfoom.*;
 import org.kpax.winfoom.config.*;
 import org.kpax.winfoom.exception.*;
 import org.kpax.winfoom.pac.*;
+import org.kpax.winfoom.util.functional.*;
 import org.springframework.beans.factory.annotation.*;
 import org.springframework.boot.test.context.*;
 import org.springframework.boot.test.mock.mockito.*;
@@ -29,11 +34,15 @@ import org.springframework.context.*;
 import org.springframework.test.annotation.*;
 import org.springframework.test.context.*;
 import org.springframework.test.context.junit.jupiter.*;
+import org.springframework.test.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -41,10 +50,12 @@ import static org.mockito.Mockito.*;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
 @ExtendWith(SpringExtension.class)
 @ActiveProfiles("test")
-@SpringBootTest(classes = FoomApplicationTest.class)
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {"cache.pacDecision.ttl=60"})
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 class PacScriptEvaluatorTests {
+    private final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());
+
     @MockBean
     private ProxyConfig proxyConfig;
 
@@ -57,15 +68,39 @@ class PacScriptEvaluatorTests {
     @Autowired
     private ProxyController proxyController;
 
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
     private HttpServer remoteServer;
 
+    private final AtomicInteger pacFileRequests = new AtomicInteger();
+
+    private final AtomicInteger pacFileDownloads = new AtomicInteger();
+
     @BeforeAll
     void beforeAll() throws IOException {
         remoteServer = ServerBootstrap.bootstrap().registerHandler("/pacFile", new HttpRequestHandler() {
             @Override
             public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+                pacFileRequests.incrementAndGet();
                 response.setEntity(new InputStreamEntity(getClass().getClassLoader().getResourceAsStream("proxy-simple.pac")));
             }
+        }).registerHandler("/etagPacFile", new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+                pacFileRequests.incrementAndGet();
+                Header ifNoneMatch = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+                if (ifNoneMatch != null && "\"v1\"".equals(ifNoneMatch.getValue())) {
+                    response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                } else {
+                    pacFileDownloads.incrementAndGet();
+                    response.setHeader(HttpHeaders.ETAG, "\"v1\"");
+                    response.setEntity(new InputStreamEntity(getClass().getClassLoader().getResourceAsStream("proxy-simple.pac")));
+                }
+            }
         }).create();
         remoteServer.start();
     }
@@ -87,6 +122,27 @@ class PacScriptEvaluatorTests {
     }
 
 
+    @Test
+    void loadPacFileContent_MultipleEngines_LoadedOnce() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(new URL("http://localhost:" + remoteServer.getLocalPort() + "/pacFile"));
+        proxyController.callStopListeners();
+        pacFileRequests.set(0);
+        pacScriptEvaluator.onStart();
+        GenericObjectPool<GraalJSScriptEngine> enginePool = getEnginePool();
+        List<GraalJSScriptEngine> scriptEngines = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            scriptEngines.add(enginePool.borrowObject());
+        }
+        assertEquals(3, enginePool.getCreatedCount());
+        scriptEngines.forEach(enginePool::returnObject);
+        assertEquals(1, pacFileRequests.get());
+
+        // Loaded again for the next session
+        proxyController.callStopListeners();
+        pacScriptEvaluator.onStart();
+        assertEquals(2, pacFileRequests.get());
+    }
+
     @Test
     void loadPacFileContent_invalidLocalFile_PacFileException() throws Exception {
         when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(getClass().getClassLoader().getResource("proxy-invalid.pac"));
@@ -109,6 +165,412 @@ class PacScriptEvaluatorTests {
         assertTrue(proxies.get(0).getType().isDirect());
     }
 
+    @Test
+    void findProxyForURL_SameUrl_CachedDecision() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-simple-http-socks4.pac"));
+        proxyController.callStopListeners();
+        pacScriptEvaluator.onStart();
+        long hits = (Long) pacScriptEvaluator.getDecisionCacheStats().get("hits");
+        long misses = (Long) pacScriptEvaluator.getDecisionCacheStats().get("misses");
+        List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path?param1=val"));
+        assertEquals(proxies, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path?param1=val")));
+        assertEquals(2, proxies.size());
+        assertEquals(hits + 1, pacScriptEvaluator.getDecisionCacheStats().get("hits"));
+        assertEquals(misses + 1, pacScriptEvaluator.getDecisionCacheStats().get("misses"));
+        assertEquals(1L, pacScriptEvaluator.getDecisionCacheStats().get("size"));
+    }
+
+    @Test
+    void findProxyForURL_ProxyBlacklistedAfterCaching_Filtered() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-simple-http-socks4.pac"));
+        when(proxyConfig.getBlacklistTimeout()).thenReturn(1);
+        proxyController.callStopListeners();
+        pacScriptEvaluator.onStart();
+        List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path"));
+        assertEquals(2, proxies.size());
+        proxyBlacklist.blacklist(proxies.get(0));
+        List<ProxyInfo> activeProxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path"));
+        assertEquals(Collections.singletonList(proxies.get(1)), activeProxies);
+        proxyBlacklist.clear();
+        assertEquals(proxies, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")));
+    }
+
+    @Test
+    void findProxyForURL_Stopped_CacheInvalidated() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-simple-http-socks4.pac"));
+        proxyController.callStopListeners();
+        pacScriptEvaluator.onStart();
+        assertEquals(2, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")).size());
+
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-simple-all-helpers.pac"));
+        proxyController.callStopListeners();
+        pacScriptEvaluator.onStart();
+        assertEquals(0L, pacScriptEvaluator.getDecisionCacheStats().get("size"));
+        List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path"));
+        assertEquals(1, proxies.size());
+        assertTrue(proxies.get(0).getType().isDirect());
+
+        pacScriptEvaluator.clearDecisionCache();
+        assertEquals(0L, pacScriptEvaluator.getDecisionCacheStats().get("size"));
+    }
+
+    @Test
+    void findProxyForURL_InfiniteLoop_CancelledAndFallback() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-infinite-loop.pac"));
+        ReflectionTestUtils.setField(systemConfig, "pacEvaluationTimeout", 200);
+        ReflectionTestUtils.setField(systemConfig, "pacEvaluationFallback", "PROXY fallback.example.com:8080");
+        try {
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            long timeouts = (Long) pacScriptEvaluator.getEvaluationStats().get("timeouts");
+            long recycledEngines = (Long) pacScriptEvaluator.getEvaluationStats().get("recycledEngines");
+            long cacheSize = (Long) pacScriptEvaluator.getDecisionCacheStats().get("size");
+            for (int i = 0; i < 3; i++) {
+                List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host" + i + ":80/path"));
+                assertEquals(1, proxies.size());
+                assertEquals(new HttpHost("fallback.example.com", 8080), proxies.get(0).getProxyHost());
+            }
+            assertEquals(timeouts + 3, pacScriptEvaluator.getEvaluationStats().get("timeouts"));
+            assertEquals(recycledEngines + 3, pacScriptEvaluator.getEvaluationStats().get("recycledEngines"));
+            assertEquals(3, getEnginePool().getDestroyedCount());
+            // The fallback is not cached
+            assertEquals(cacheSize, pacScriptEvaluator.getDecisionCacheStats().get("size"));
+
+            // The replacing engines work
+            List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://www.example.com/path"));
+            assertEquals(1, proxies.size());
+            assertTrue(proxies.get(0).getType().isDirect());
+        } finally {
+            proxyController.callStopListeners();
+            ReflectionTestUtils.setField(systemConfig, "pacEvaluationTimeout", 5000);
+            ReflectionTestUtils.setField(systemConfig, "pacEvaluationFallback", "DIRECT");
+        }
+    }
+
+    /**
+     * Measure the time to start the PAC evaluation and the time to create each additional pooled engine.
+     * Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_StartAndEngineCreation() throws Exception {
+        int iterations = Integer.getInteger("perft.iterations", 20);
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(new URL("http://localhost:" + remoteServer.getLocalPort() + "/pacFile"));
+        for (int round = 0; round < 2; round++) {
+            proxyController.callStopListeners();
+            long start = System.nanoTime();
+            pacScriptEvaluator.onStart();
+            long startNanos = System.nanoTime() - start;
+
+            GenericObjectPool<GraalJSScriptEngine> enginePool = getEnginePool();
+            List<GraalJSScriptEngine> scriptEngines = new ArrayList<>();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                scriptEngines.add(enginePool.borrowObject());
+            }
+            long createNanos = (System.nanoTime() - start) / iterations;
+            scriptEngines.forEach(enginePool::returnObject);
+
+            // The first round is the warm up
+            if (round > 0) {
+                logger.info("Start: {} ms, engine creation: {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(startNanos), TimeUnit.NANOSECONDS.toMillis(createNanos));
+            }
+        }
+    }
+
+    @Test
+    void findProxyForURL_SharedEngines_ConcurrentCallsNoError() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-simple-http-socks4.pac"));
+        ReflectionTestUtils.setField(systemConfig, "pacScriptEngineShared", true);
+        ReflectionTestUtils.setField(systemConfig, "pacScriptEngineSharedSize", 2);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            ObjectPool<GraalJSScriptEngine> enginePool = getObjectPool();
+            assertFalse(enginePool instanceof GenericObjectPool);
+            assertEquals(2, enginePool.getNumIdle());
+
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                int thread = i;
+                futures.add(executorService.submit(() -> {
+                    int proxyCount = 0;
+                    for (int j = 0; j < 50; j++) {
+                        // Distinct URLs, not to be served by the decision cache
+                        proxyCount += pacScriptEvaluator.findProxyForURL(
+                                new URI("http://host" + thread + "-" + j + ":80/path")).size();
+                    }
+                    return proxyCount;
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(100, future.get());
+            }
+            assertEquals(2, enginePool.getNumIdle());
+            assertEquals(0, enginePool.getNumActive());
+
+            proxyController.callStopListeners();
+            assertEquals(0, enginePool.getNumIdle());
+        } finally {
+            executorService.shutdownNow();
+            ReflectionTestUtils.setField(systemConfig, "pacScriptEngineShared", false);
+            ReflectionTestUtils.setField(systemConfig, "pacScriptEngineSharedSize", 0);
+        }
+    }
+
+    /**
+     * Compare the engine pool with the shared engines: the heap taken by each engine
+     * and the latency of the PAC script's calls when many threads make them at the same time.
+     * Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_PoolVsSharedEngines() throws Exception {
+        int iterations = Integer.getInteger("perft.iterations", 500);
+        int threads = Integer.getInteger("perft.threads", 32);
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(getClass().getClassLoader().getResource("proxy-simple-all-helpers.pac"));
+        int cachePacDecisionTtl = systemConfig.getCachePacDecisionTtl();
+        ReflectionTestUtils.setField(systemConfig, "cachePacDecisionTtl", 0);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 2; round++) {
+                for (boolean shared : new boolean[]{false, true}) {
+                    ReflectionTestUtils.setField(systemConfig, "pacScriptEngineShared", shared);
+                    proxyController.callStopListeners();
+                    long heapBefore = getUsedHeap();
+                    pacScriptEvaluator.onStart();
+
+                    List<Future<long[]>> futures = new ArrayList<>();
+                    for (int i = 0; i < threads; i++) {
+                        futures.add(executorService.submit(() -> {
+                            long[] latencies = new long[iterations];
+                            for (int j = 0; j < iterations; j++) {
+                                long start = System.nanoTime();
+                                pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path" + j));
+                                latencies[j] = System.nanoTime() - start;
+                            }
+                            return latencies;
+                        }));
+                    }
+                    long[] latencies = new long[threads * iterations];
+                    for (int i = 0; i < threads; i++) {
+                        System.arraycopy(futures.get(i).get(), 0, latencies, i * iterations, iterations);
+                    }
+                    Arrays.sort(latencies);
+                    ObjectPool<GraalJSScriptEngine> enginePool = getObjectPool();
+                    int engines = enginePool.getNumIdle() + enginePool.getNumActive();
+                    long heapPerEngine = (getUsedHeap() - heapBefore) / engines;
+
+                    // The first round is the warm up
+                    if (round > 0) {
+                        logger.info("{}: {} engines, {} KB heap per engine, p50 {} us, p99 {} us",
+                                shared ? "Shared engines" : "Engine pool", engines, heapPerEngine / 1024,
+                                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]),
+                                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 99 / 100]));
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            proxyController.callStopListeners();
+            ReflectionTestUtils.setField(systemConfig, "pacScriptEngineShared", false);
+            ReflectionTestUtils.setField(systemConfig, "cachePacDecisionTtl", cachePacDecisionTtl);
+        }
+    }
+
+    @Test
+    void reloadIfChanged_FileModified_Reloaded() throws Exception {
+        Path pacFile = Files.createTempFile("proxy", ".pac");
+        try {
+            copyResource("proxy-simple-http-socks4.pac", pacFile);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            assertEquals(2, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")).size());
+            assertFalse(pacScriptEvaluator.reloadIfChanged());
+
+            GenericObjectPool<GraalJSScriptEngine> previousEnginePool = getEnginePool();
+            copyResource("proxy-simple-all-helpers.pac", pacFile);
+            assertTrue(pacScriptEvaluator.reloadIfChanged());
+            assertTrue(previousEnginePool.isClosed());
+            List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path"));
+            assertEquals(1, proxies.size());
+            assertTrue(proxies.get(0).getType().isDirect());
+            assertEquals("RELOADED", pacScriptEvaluator.getReloadStatus().get("status"));
+            assertFalse(pacScriptEvaluator.reloadIfChanged());
+        } finally {
+            proxyController.callStopListeners();
+            Files.deleteIfExists(pacFile);
+        }
+    }
+
+    @Test
+    void findProxyForURL_DecisionOfPreviousScript_Ignored() throws Exception {
+        Path pacFile = Files.createTempFile("proxy", ".pac");
+        try {
+            copyResource("proxy-simple-http-socks4.pac", pacFile);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            assertEquals(2, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")).size());
+            org.cache2k.Cache<String, Object> decisionCache = getDecisionCache();
+            String strippedUrl = "http://host:80/";
+            Object previousDecision = decisionCache.peek(strippedUrl);
+            assertNotNull(previousDecision);
+
+            copyResource("proxy-simple-all-helpers.pac", pacFile);
+            assertTrue(pacScriptEvaluator.reloadIfChanged());
+            // A call of the previous script completing after the reload
+            decisionCache.put(strippedUrl, previousDecision);
+            List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path"));
+            assertEquals(1, proxies.size());
+            assertTrue(proxies.get(0).getType().isDirect());
+            assertNotSame(previousDecision, decisionCache.peek(strippedUrl));
+        } finally {
+            proxyController.callStopListeners();
+            Files.deleteIfExists(pacFile);
+        }
+    }
+
+    @Test
+    void reloadIfChanged_SameModifiedTimeOtherSize_Reloaded() throws Exception {
+        Path pacFile = Files.createTempFile("proxy", ".pac");
+        try {
+            copyResource("proxy-simple-http-socks4.pac", pacFile);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            FileTime modifiedTime = Files.getLastModifiedTime(pacFile);
+            long size = Files.size(pacFile);
+
+            copyResource("proxy-simple-all-helpers.pac", pacFile);
+            Files.setLastModifiedTime(pacFile, modifiedTime);
+            assertNotEquals(size, Files.size(pacFile));
+            assertTrue(pacScriptEvaluator.reloadIfChanged());
+            assertTrue(pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")).get(0).getType().isDirect());
+        } finally {
+            proxyController.callStopListeners();
+            Files.deleteIfExists(pacFile);
+        }
+    }
+
+    @Test
+    void reloadIfChanged_InvalidScript_PreviousKept() throws Exception {
+        Path pacFile = Files.createTempFile("proxy", ".pac");
+        try {
+            copyResource("proxy-simple-http-socks4.pac", pacFile);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            long failures = (Long) pacScriptEvaluator.getReloadStatus().get("failures");
+
+            copyResource("proxy-invalid.pac", pacFile);
+            assertFalse(pacScriptEvaluator.reloadIfChanged());
+            assertEquals("FAILED", pacScriptEvaluator.getReloadStatus().get("status"));
+            assertEquals(failures + 1, pacScriptEvaluator.getReloadStatus().get("failures"));
+            assertFalse(getEnginePool().isClosed());
+            assertEquals(2, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")).size());
+        } finally {
+            proxyController.callStopListeners();
+            Files.deleteIfExists(pacFile);
+        }
+    }
+
+    @Test
+    void onStart_ReloadInterval_PolledInBackground() throws Exception {
+        Path pacFile = Files.createTempFile("proxy", ".pac");
+        Integer pacReloadInterval = systemConfig.getPacReloadInterval();
+        try {
+            ReflectionTestUtils.setField(systemConfig, "pacReloadInterval", 1);
+            copyResource("proxy-simple-http-socks4.pac", pacFile);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+            proxyController.callStopListeners();
+            pacScriptEvaluator.onStart();
+            long reloads = (Long) pacScriptEvaluator.getReloadStatus().get("reloads");
+
+            copyResource("proxy-simple-all-helpers.pac", pacFile);
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((Long) pacScriptEvaluator.getReloadStatus().get("reloads") == reloads
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertEquals(reloads + 1, pacScriptEvaluator.getReloadStatus().get("reloads"));
+            assertEquals(1, pacScriptEvaluator.findProxyForURL(new URI("http://host:80/path")).size());
+        } finally {
+            proxyController.callStopListeners();
+            ReflectionTestUtils.setField(systemConfig, "pacReloadInterval", pacReloadInterval);
+            Files.deleteIfExists(pacFile);
+        }
+    }
+
+    @Test
+    void reloadIfChanged_RemoteFileNotModified_NotDownloaded() throws Exception {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(new URL("http://localhost:" + remoteServer.getLocalPort() + "/etagPacFile"));
+        proxyController.callStopListeners();
+        pacFileRequests.set(0);
+        pacFileDownloads.set(0);
+        pacScriptEvaluator.onStart();
+        assertFalse(pacScriptEvaluator.reloadIfChanged());
+        assertFalse(pacScriptEvaluator.reloadIfChanged());
+        assertEquals(3, pacFileRequests.get());
+        assertEquals(1, pacFileDownloads.get());
+        proxyController.callStopListeners();
+    }
+
+    @SuppressWarnings("unchecked")
+    private org.cache2k.Cache<String, Object> getDecisionCache() {
+        SingletonSupplier<org.cache2k.Cache<String, Object>> decisionCacheSupplier =
+                (SingletonSupplier<org.cache2k.Cache<String, Object>>)
+                        ReflectionTestUtils.getField(pacScriptEvaluator, "decisionCacheSupplier");
+        assertNotNull(decisionCacheSupplier);
+        return decisionCacheSupplier.get();
+    }
+
+    private GenericObjectPool<GraalJSScriptEngine> getEnginePool() {
+        Object loadedScript = ReflectionTestUtils.getField(pacScriptEvaluator, "loadedScript");
+        assertNotNull(loadedScript);
+        @SuppressWarnings("unchecked")
+        GenericObjectPool<GraalJSScriptEngine> enginePool =
+                (GenericObjectPool<GraalJSScriptEngine>) ReflectionTestUtils.getField(loadedScript, "enginePool");
+        return enginePool;
+    }
+
+    private ObjectPool<GraalJSScriptEngine> getObjectPool() {
+        Object loadedScript = ReflectionTestUtils.getField(pacScriptEvaluator, "loadedScript");
+        assertNotNull(loadedScript);
+        @SuppressWarnings("unchecked")
+        ObjectPool<GraalJSScriptEngine> enginePool =
+                (ObjectPool<GraalJSScriptEngine>) ReflectionTestUtils.getField(loadedScript, "enginePool");
+        return enginePool;
+    }
+
+    private long getUsedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void copyResource(String resource, Path target) throws IOException {
+        FileTime previousTime = Files.getLastModifiedTime(target);
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream(resource)) {
+            Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // Make sure the modification time changes, whatever the file system's resolution
+        Files.setLastModifiedTime(target, FileTime.fromMillis(previousTime.toMillis() + 2000));
+    }
+
     @AfterAll
     void after() {
         remoteServer.shutdown(0, TimeUnit.MILLISECONDS);
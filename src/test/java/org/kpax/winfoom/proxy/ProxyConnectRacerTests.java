@@ -0,0 +1,168 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.*;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(20)
+public class ProxyConnectRacerTests {
+
+    private static final URI REQUEST_URI = URI.create("http://example.com/");
+
+    private ServerSocket liveServer;
+
+    /**
+     * A listener with its backlog full, so the connects hang like on a black-holed proxy.
+     */
+    private ServerSocket blackHoleServer;
+
+    private final List<Socket> backlogSockets = new ArrayList<>();
+
+    private int closedPort;
+
+    private ProxyExecutorService executorService;
+
+    private ProxyBlacklist proxyBlacklist;
+
+    private SystemConfig systemConfig;
+
+    private ProxyConnectRacer proxyConnectRacer;
+
+    @BeforeAll
+    void before() throws Exception {
+        liveServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        blackHoleServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        for (int i = 0; i < 5; i++) {
+            Socket socket = new Socket();
+            backlogSockets.add(socket);
+            try {
+                socket.connect(blackHoleServer.getLocalSocketAddress(), 200);
+            } catch (Exception e) {
+                // The backlog is full
+            }
+        }
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        SystemConfig executorConfig = mock(SystemConfig.class);
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", executorConfig);
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isPacConnectRace()).thenReturn(true);
+        when(systemConfig.getPacConnectRaceStagger()).thenReturn(100);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(5);
+        proxyBlacklist = mock(ProxyBlacklist.class);
+        proxyConnectRacer = new ProxyConnectRacer();
+        ReflectionTestUtils.setField(proxyConnectRacer, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyConnectRacer, "executorService", executorService);
+        ReflectionTestUtils.setField(proxyConnectRacer, "proxyBlacklist", proxyBlacklist);
+    }
+
+    @Test
+    void race_FirstConnects_OrderKept() {
+        ProxyInfo first = proxyInfo(liveServer.getLocalPort());
+        ProxyInfo second = proxyInfo(blackHoleServer.getLocalPort());
+        List<ProxyInfo> result = proxyConnectRacer.race(Arrays.asList(first, second), REQUEST_URI);
+        assertEquals(Arrays.asList(first, second), result);
+        verifyNoInteractions(proxyBlacklist);
+    }
+
+    @Test
+    void race_FirstBlackHoled_SecondWinsWithinStagger() {
+        ProxyInfo first = proxyInfo(blackHoleServer.getLocalPort());
+        ProxyInfo second = proxyInfo(liveServer.getLocalPort());
+        long start = System.nanoTime();
+        List<ProxyInfo> result = proxyConnectRacer.race(Arrays.asList(first, second), REQUEST_URI);
+        // Far less than the connect timeout
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        assertEquals(Arrays.asList(second, first), result);
+        // The loser's connect is cancelled, which is not a failure
+        verify(proxyBlacklist, Mockito.after(1000).never()).blacklist(first);
+        verify(proxyBlacklist, never()).blacklist(second);
+    }
+
+    @Test
+    void race_FirstRefused_Blacklisted() {
+        ProxyInfo first = proxyInfo(closedPort);
+        ProxyInfo second = proxyInfo(liveServer.getLocalPort());
+        List<ProxyInfo> result = proxyConnectRacer.race(Arrays.asList(first, second), REQUEST_URI);
+        assertEquals(Arrays.asList(second), result);
+        verify(proxyBlacklist).blacklist(first);
+    }
+
+    @Test
+    void race_AllRefused_Empty() {
+        ProxyInfo first = proxyInfo(closedPort);
+        ProxyInfo direct = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+        List<ProxyInfo> result = proxyConnectRacer.race(Arrays.asList(first, direct),
+                URI.create("http://localhost:" + closedPort + "/"));
+        assertTrue(result.isEmpty());
+        verify(proxyBlacklist).blacklist(first);
+        // DIRECT is never filtered out
+        verify(proxyBlacklist, never()).blacklist(direct);
+    }
+
+    @Test
+    void race_SameCandidatesWithinCacheTtl_NoConnect() throws Exception {
+        when(systemConfig.getPacConnectRaceCacheTtl()).thenReturn(60);
+        ProxyInfo second = proxyInfo(liveServer.getLocalPort());
+        ProxyInfo first;
+        try (ServerSocket firstServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            first = proxyInfo(firstServer.getLocalPort());
+            assertEquals(Arrays.asList(first, second),
+                    proxyConnectRacer.race(Arrays.asList(first, second), REQUEST_URI));
+        }
+        // The first proxy is down now, but it is not connected again
+        assertEquals(Arrays.asList(first, second), proxyConnectRacer.race(Arrays.asList(first, second), REQUEST_URI));
+        verifyNoInteractions(proxyBlacklist);
+
+        proxyConnectRacer.onStop();
+        assertEquals(Arrays.asList(second), proxyConnectRacer.race(Arrays.asList(first, second), REQUEST_URI));
+        verify(proxyBlacklist).blacklist(first);
+    }
+
+    private static ProxyInfo proxyInfo(int port) {
+        return new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", port));
+    }
+
+    @AfterAll
+    void after() throws Exception {
+        for (Socket socket : backlogSockets) {
+            socket.close();
+        }
+        blackHoleServer.close();
+        liveServer.close();
+        executorService.onStop();
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Timeout(60)
+public class ProxyExecutorServiceTests {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Test
+    void platformThreads_Default_DaemonPoolThread() throws Exception {
+        ProxyExecutorService executorService = createExecutorService(false);
+        try {
+            Thread thread = executorService.submit(Thread::currentThread).get();
+            assertTrue(thread.getName().startsWith("pool-"));
+            assertTrue(thread.isDaemon());
+            assertFalse(VirtualThreads.isVirtual(thread));
+        } finally {
+            executorService.onStop();
+        }
+    }
+
+    @Test
+    void virtualThreads_Unsupported_FallbackToPlatformThread() throws Exception {
+        Assumptions.assumeFalse(VirtualThreads.isSupported());
+        ProxyExecutorService executorService = createExecutorService(true);
+        try {
+            Thread thread = executorService.submit(Thread::currentThread).get();
+            assertTrue(thread.getName().startsWith("pool-"));
+        } finally {
+            executorService.onStop();
+        }
+    }
+
+    @Test
+    void virtualThreads_Supported_VirtualThread() throws Exception {
+        Assumptions.assumeTrue(VirtualThreads.isSupported());
+        ProxyExecutorService executorService = createExecutorService(true);
+        try {
+            Thread thread = executorService.submit(Thread::currentThread).get();
+            assertTrue(VirtualThreads.isVirtual(thread));
+            assertTrue(thread.getName().startsWith("vthread-"));
+        } finally {
+            executorService.onStop();
+        }
+    }
+
+    /**
+     * Compare the heap cost of the idle tunnels relayed by the thread-based duplex,
+     * in both execution modes. Run with {@code -Dperft=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "perft", matches = "true")
+    void perft_TunnelsPerGbHeap() throws Exception {
+        int tunnels = Integer.getInteger("perft.tunnels", 2000);
+        logger.info("Platform threads: {}", measureTunnelsPerGbHeap(false, tunnels));
+        if (VirtualThreads.isSupported()) {
+            logger.info("Virtual threads: {}", measureTunnelsPerGbHeap(true, tunnels));
+        } else {
+            logger.info("Virtual threads: not supported by this runtime");
+        }
+    }
+
+    private String measureTunnelsPerGbHeap(boolean virtualThreads, int tunnels) throws Exception {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        ProxyExecutorService executorService = createExecutorService(virtualThreads);
+        List<Socket> sockets = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0, tunnels, InetAddress.getLoopbackAddress())) {
+            long heapBefore = usedHeapAfterGc(memoryMXBean);
+            int threadsBefore = Thread.activeCount();
+            CountDownLatch started = new CountDownLatch(tunnels * 2);
+            for (int i = 0; i < tunnels; i++) {
+                Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                Socket remote = serverSocket.accept();
+                sockets.add(client);
+                sockets.add(remote);
+
+                // Same as ClientConnectionProcessor.duplex: one blocked transfer per direction
+                executorService.submit(() -> transfer(remote, client, started));
+                executorService.submit(() -> transfer(client, remote, started));
+            }
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            TimeUnit.MILLISECONDS.sleep(200);
+            long heapPerTunnel = Math.max(1, (usedHeapAfterGc(memoryMXBean) - heapBefore) / tunnels);
+            return String.format("%d tunnels, %d bytes heap/tunnel, %d tunnels/GB heap, %d new platform threads",
+                    tunnels, heapPerTunnel, (1L << 30) / heapPerTunnel, Thread.activeCount() - threadsBefore);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            executorService.onStop();
+        }
+    }
+
+    private static void transfer(Socket from, Socket to, CountDownLatch started) {
+        started.countDown();
+        try {
+            from.getInputStream().transferTo(to.getOutputStream());
+        } catch (IOException e) {
+            // Closed at the end of the measurement
+        }
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memoryMXBean) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return memoryMXBean.getHeapMemoryUsage().getUsed();
+    }
+
+    private static ProxyExecutorService createExecutorService(boolean virtualThreads) {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isExecutorVirtualThreads()).thenReturn(virtualThreads);
+        ProxyExecutorService executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        return executorService;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kpax.winfoom.config.ProxyConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(10)
+public class ProxyMetricsTests {
+
+    @Test
+    void scrape_Histogram_CumulativeBuckets() {
+        ProxyMetrics proxyMetrics = new ProxyMetrics();
+        proxyMetrics.connectTime("direct", TimeUnit.MILLISECONDS.toNanos(3));
+        proxyMetrics.connectTime("direct", TimeUnit.SECONDS.toNanos(2));
+        proxyMetrics.connectTime("direct", TimeUnit.SECONDS.toNanos(20));
+        String scrape = proxyMetrics.scrape();
+        assertTrue(scrape.contains("# TYPE winfoom_upstream_connect_seconds histogram\n"), scrape);
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_bucket{upstream=\"direct\",le=\"0.0025\"} 0\n"));
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_bucket{upstream=\"direct\",le=\"0.005\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_bucket{upstream=\"direct\",le=\"2.5\"} 2\n"));
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_bucket{upstream=\"direct\",le=\"10.0\"} 2\n"));
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_bucket{upstream=\"direct\",le=\"+Inf\"} 3\n"));
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_sum{upstream=\"direct\"} 22.003\n"));
+        assertTrue(scrape.contains("winfoom_upstream_connect_seconds_count{upstream=\"direct\"} 3\n"));
+    }
+
+    @Test
+    void scrape_Counters_ByLabels() {
+        ProxyMetrics proxyMetrics = new ProxyMetrics();
+        proxyMetrics.requestProcessed("NonConnect", 200);
+        proxyMetrics.requestProcessed("NonConnect", 200);
+        proxyMetrics.requestProcessed("HttpConnect", 407);
+        proxyMetrics.requestProcessed(null, 0);
+        proxyMetrics.proxyBlacklisted(new ProxyInfo(ProxyConfig.Type.SOCKS5, new HttpHost("localhost", 1080)));
+        proxyMetrics.proxyBlacklisted(new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", 3128)));
+        String scrape = proxyMetrics.scrape();
+        assertTrue(scrape.contains("# TYPE winfoom_requests_total counter\n"), scrape);
+        assertTrue(scrape.contains("winfoom_requests_total{processor=\"NonConnect\",status=\"200\"} 2\n"));
+        assertTrue(scrape.contains("winfoom_requests_total{processor=\"HttpConnect\",status=\"407\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_requests_total{processor=\"none\",status=\"none\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_proxy_blacklisted_total{upstream=\"socks5://localhost:1080\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_proxy_blacklisted_total{upstream=\"http://localhost:3128\"} 1\n"));
+    }
+
+    @Test
+    void exchangeTimes_ContextAttributes_Recorded() {
+        ProxyMetrics proxyMetrics = new ProxyMetrics();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ProxyMetrics.AUTH_NANOS, TimeUnit.MILLISECONDS.toNanos(40));
+        context.setAttribute(ProxyMetrics.FIRST_BYTE_NANOS, TimeUnit.MILLISECONDS.toNanos(70));
+        proxyMetrics.exchangeTimes("http://localhost:3128", context);
+        String scrape = proxyMetrics.scrape();
+        assertFalse(scrape.contains("winfoom_upstream_connect_seconds_count"), scrape);
+        assertTrue(scrape.contains("winfoom_upstream_auth_seconds_bucket{upstream=\"http://localhost:3128\",le=\"0.05\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_upstream_first_byte_seconds_bucket{upstream=\"http://localhost:3128\",le=\"0.05\"} 0\n"));
+        assertTrue(scrape.contains("winfoom_upstream_first_byte_seconds_count{upstream=\"http://localhost:3128\"} 1\n"));
+    }
+
+    @Test
+    void requestTimings_MarkedPhases_Recorded() {
+        ProxyMetrics proxyMetrics = new ProxyMetrics();
+        RequestTimings timings = new RequestTimings();
+        long now = System.nanoTime();
+        timings.mark(RequestTimings.Phase.PARSED, now);
+        timings.mark(RequestTimings.Phase.CONNECTED, now + TimeUnit.MILLISECONDS.toNanos(20));
+        timings.mark(RequestTimings.Phase.COMPLETED, now + TimeUnit.MILLISECONDS.toNanos(400));
+        proxyMetrics.requestTimings(timings);
+        String scrape = proxyMetrics.scrape();
+        assertTrue(scrape.contains("winfoom_request_phase_seconds_count{phase=\"resolve\"} 0\n"), scrape);
+        assertTrue(scrape.contains("winfoom_request_phase_seconds_bucket{phase=\"connect\",le=\"0.01\"} 0\n"));
+        assertTrue(scrape.contains("winfoom_request_phase_seconds_bucket{phase=\"connect\",le=\"0.025\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_request_phase_seconds_bucket{phase=\"transfer\",le=\"0.25\"} 0\n"));
+        assertTrue(scrape.contains("winfoom_request_phase_seconds_bucket{phase=\"transfer\",le=\"0.5\"} 1\n"));
+        assertTrue(scrape.contains("winfoom_request_phase_seconds_count{phase=\"total\"} 1\n"));
+    }
+
+    @Test
+    void register_Collector_ReadOnScrapeAndEscaped() {
+        ProxyMetrics proxyMetrics = new ProxyMetrics();
+        List<Long> values = new ArrayList<>();
+        proxyMetrics.register("test_values", "Test values", ProxyMetrics.Type.GAUGE,
+                sink -> {
+                    for (Long value : values) {
+                        sink.accept(value, "a\"b\\c\nd");
+                    }
+                }, "name");
+        assertFalse(proxyMetrics.scrape().contains("test_values{"));
+        values.add(5L);
+        String scrape = proxyMetrics.scrape();
+        assertTrue(scrape.contains("# HELP test_values Test values\n# TYPE test_values gauge\n"), scrape);
+        assertTrue(scrape.contains("test_values{name=\"a\\\"b\\\\c\\nd\"} 5\n"));
+        assertThrows(IllegalStateException.class, () -> proxyMetrics.register("test_values", "Again",
+                ProxyMetrics.Type.GAUGE, sink -> {
+                }));
+    }
+
+    @Test
+    void tunnelBytes_ConcurrentThreads_NoneLost() throws Exception {
+        ProxyMetrics proxyMetrics = new ProxyMetrics();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        proxyMetrics.tunnelOpened(true);
+                        proxyMetrics.tunnelBytes(true, 3);
+                        proxyMetrics.tunnelBytes(false, 5);
+                        proxyMetrics.tunnelClosed(true);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        String scrape = proxyMetrics.scrape();
+        assertTrue(scrape.contains("winfoom_tunnel_bytes_total{direction=\"client_to_upstream\"} 240000\n"), scrape);
+        assertTrue(scrape.contains("winfoom_tunnel_bytes_total{direction=\"upstream_to_client\"} 400000\n"));
+        assertTrue(scrape.contains("winfoom_tunnels_active{mode=\"relayed\"} 0\n"));
+    }
+
+}
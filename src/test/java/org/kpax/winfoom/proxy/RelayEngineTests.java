@@ -0,0 +1,175 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(20)
+public class RelayEngineTests {
+
+    @Autowired
+    private RelayEngine relayEngine;
+
+    @Test
+    void relay_BothDirections_BytesTransferred() throws Exception {
+        SocketChannel[] clientPair = connectedPair();
+        SocketChannel[] upstreamPair = connectedPair();
+        relayEngine.relay(clientPair[1], upstreamPair[0], null);
+        try (SocketChannel client = clientPair[0]; SocketChannel upstream = upstreamPair[1]) {
+            client.socket().getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("ping", readString(upstream.socket().getInputStream(), 4));
+            upstream.socket().getOutputStream().write("pong".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("pong", readString(client.socket().getInputStream(), 4));
+        }
+    }
+
+    @Test
+    void relay_HalfClose_PeerStillSends() throws Exception {
+        SocketChannel[] clientPair = connectedPair();
+        SocketChannel[] upstreamPair = connectedPair();
+        CompletableFuture<RelayEngine.Relay> closed = new CompletableFuture<>();
+        relayEngine.relay(clientPair[1], upstreamPair[0], closed::complete);
+        try (SocketChannel client = clientPair[0]; SocketChannel upstream = upstreamPair[1]) {
+            client.socket().getOutputStream().write("request".getBytes(StandardCharsets.US_ASCII));
+            client.shutdownOutput();
+
+            InputStream upstreamInput = upstream.socket().getInputStream();
+            assertEquals("request", readString(upstreamInput, 7));
+            assertEquals(-1, upstreamInput.read(), "The half-close should reach the remote side");
+            assertFalse(closed.isDone());
+
+            upstream.socket().getOutputStream().write("response".getBytes(StandardCharsets.US_ASCII));
+            upstream.shutdownOutput();
+            InputStream clientInput = client.socket().getInputStream();
+            assertEquals("response", readString(clientInput, 8));
+            assertEquals(-1, clientInput.read());
+
+            RelayEngine.Relay relay = closed.get(5, TimeUnit.SECONDS);
+            assertEquals(7, relay.getClientToUpstreamBytes());
+            assertEquals(8, relay.getUpstreamToClientBytes());
+            assertTrue(relay.isClosed());
+        }
+    }
+
+    @Test
+    void relay_LargeTransferSlowReader_AllBytesDelivered() throws Exception {
+        SocketChannel[] clientPair = connectedPair();
+        SocketChannel[] upstreamPair = connectedPair();
+        relayEngine.relay(clientPair[1], upstreamPair[0], null);
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        CRC32 expected = new CRC32();
+        expected.update(data);
+        try (SocketChannel client = clientPair[0]; SocketChannel upstream = upstreamPair[1]) {
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                try (OutputStream outputStream = upstream.socket().getOutputStream()) {
+                    outputStream.write(data);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            // Let the buffers fill up, so the relay has to suspend the reading
+            TimeUnit.MILLISECONDS.sleep(300);
+
+            InputStream inputStream = client.socket().getInputStream();
+            CRC32 actual = new CRC32();
+            byte[] buffer = new byte[4096];
+            long total = 0;
+            for (int read; (read = inputStream.read(buffer)) != -1; ) {
+                actual.update(buffer, 0, read);
+                total += read;
+            }
+            writer.get(5, TimeUnit.SECONDS);
+            assertEquals(data.length, total);
+            assertEquals(expected.getValue(), actual.getValue());
+        }
+    }
+
+    @Test
+    void relay_RemoteReset_ClientClosed() throws Exception {
+        SocketChannel[] clientPair = connectedPair();
+        SocketChannel[] upstreamPair = connectedPair();
+        CompletableFuture<RelayEngine.Relay> closed = new CompletableFuture<>();
+        int activeBefore = relayEngine.getActiveCount();
+        relayEngine.relay(clientPair[1], upstreamPair[0], closed::complete);
+        try (SocketChannel client = clientPair[0]) {
+            upstreamPair[1].socket().setSoLinger(true, 0);
+            upstreamPair[1].close();
+            closed.get(5, TimeUnit.SECONDS);
+            assertEquals(-1, client.socket().getInputStream().read());
+            assertEquals(activeBefore, relayEngine.getActiveCount());
+        }
+    }
+
+    @Test
+    void kill_ActiveRelay_BothSidesClosed() throws Exception {
+        SocketChannel[] clientPair = connectedPair();
+        SocketChannel[] upstreamPair = connectedPair();
+        CompletableFuture<RelayEngine.Relay> closed = new CompletableFuture<>();
+        int activeBefore = relayEngine.getActiveCount();
+        RelayEngine.Relay relay = relayEngine.relay(clientPair[1], upstreamPair[0], closed::complete);
+        try (SocketChannel client = clientPair[0]; SocketChannel upstream = upstreamPair[1]) {
+            client.write(ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII)));
+            assertEquals("ping", readString(upstream.socket().getInputStream(), 4));
+            relayEngine.kill(relay);
+            assertSame(relay, closed.get(5, TimeUnit.SECONDS));
+            assertTrue(relay.isClosed());
+            assertEquals(-1, client.socket().getInputStream().read());
+            assertEquals(-1, upstream.socket().getInputStream().read());
+            assertEquals(activeBefore, relayEngine.getActiveCount());
+        }
+    }
+
+    private static SocketChannel[] connectedPair() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel first = SocketChannel.open(server.getLocalAddress());
+            SocketChannel second = server.accept();
+            return new SocketChannel[]{first, second};
+        }
+    }
+
+    private static String readString(InputStream inputStream, int length) throws IOException {
+        return new String(inputStream.readNBytes(length), StandardCharsets.US_ASCII);
+    }
+
+}
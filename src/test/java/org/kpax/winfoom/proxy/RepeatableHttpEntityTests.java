@@ -98,7 +98,9 @@ class RepeatableHttpEntityTests {
 
                         // Handle this connection.
                         try {
-                            ClientConnection clientConnection = new ManualProxyClientConnection(socket, proxyConfig, systemConfig, null, null);
+                            InputStream inputStream = socket.getInputStream();
+                            ClientConnection clientConnection = new ManualProxyClientConnection(socket, inputStream,
+                                    ClientConnection.createSessionInputBuffer(inputStream), proxyConfig, systemConfig, null, null);
                             RepeatableHttpEntity requestEntity;
                             HttpRequest request = clientConnection.getRequest();
                             try {
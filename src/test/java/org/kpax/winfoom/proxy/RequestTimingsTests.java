@@ -0,0 +1,67 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestTimingsTests {
+
+    @Test
+    void getDuration_UnmarkedPhases_CountedByNextMarked() {
+        RequestTimings timings = new RequestTimings();
+        long now = System.nanoTime();
+        timings.mark(RequestTimings.Phase.PARSED, now);
+        timings.mark(RequestTimings.Phase.CONNECTED, now + TimeUnit.MILLISECONDS.toNanos(30));
+        timings.mark(RequestTimings.Phase.FIRST_BYTE, now + TimeUnit.MILLISECONDS.toNanos(50));
+        timings.mark(RequestTimings.Phase.COMPLETED, now + TimeUnit.MILLISECONDS.toNanos(55));
+
+        assertFalse(timings.isMarked(RequestTimings.Phase.RESOLVED));
+        assertEquals(-1, timings.getDuration(RequestTimings.Phase.RESOLVED));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(30), timings.getDuration(RequestTimings.Phase.CONNECTED));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), timings.getDuration(RequestTimings.Phase.FIRST_BYTE));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), timings.getDuration(RequestTimings.Phase.COMPLETED));
+        assertTrue(timings.getTotal() >= TimeUnit.MILLISECONDS.toNanos(55));
+    }
+
+    @Test
+    void mark_AgainAndThroughContext_LastWins() {
+        RequestTimings timings = new RequestTimings();
+        long now = System.nanoTime();
+        timings.mark(RequestTimings.Phase.CONNECTED, now);
+        HttpContext context = new BasicHttpContext();
+        RequestTimings.mark(context, RequestTimings.Phase.AUTHENTICATED);
+        assertFalse(timings.isMarked(RequestTimings.Phase.AUTHENTICATED));
+
+        context.setAttribute(RequestTimings.ATTRIBUTE, timings);
+        RequestTimings.mark(context, RequestTimings.Phase.CONNECTED);
+        assertTrue(timings.getDuration(RequestTimings.Phase.CONNECTED) >= 0);
+        assertFalse(timings.isMarked(RequestTimings.Phase.PARSED));
+    }
+
+    @Test
+    void toString_MarkedPhases_Breakdown() {
+        RequestTimings timings = new RequestTimings();
+        long now = System.nanoTime();
+        timings.mark(RequestTimings.Phase.PARSED, now);
+        timings.mark(RequestTimings.Phase.RESOLVED, now + TimeUnit.MICROSECONDS.toNanos(1500));
+        String breakdown = timings.toString();
+        assertTrue(breakdown.matches("parse=\\d+\\.\\d{3}ms resolve=1\\.500ms total=\\d+\\.\\d{3}ms"), breakdown);
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.CharArrayBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseHeadEncoderTests {
+
+    @Test
+    void writeTo_StatusLineAndHeaders_SingleWrite() throws IOException {
+        AtomicInteger writes = new AtomicInteger();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes.incrementAndGet();
+                bytes.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                bytes.write(b, off, len);
+            }
+        };
+        CharArrayBuffer received = new CharArrayBuffer(32);
+        received.append("Content-Type:  text/html");
+
+        ResponseHeadEncoder encoder = new ResponseHeadEncoder();
+        encoder.append(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        encoder.append(new BasicHeader("Content-Length", "1024"));
+        encoder.append(BasicLineParser.parseHeader(received.toString(), null));
+        encoder.append(new BasicHeader("X-Empty", null));
+        assertTrue(encoder.isPending());
+        encoder.writeTo(outputStream);
+
+        assertEquals(1, writes.get());
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 1024\r\nContent-Type:  text/html\r\nX-Empty: \r\n\r\n",
+                bytes.toString(StandardCharsets.ISO_8859_1));
+        assertFalse(encoder.isPending());
+    }
+
+    @Test
+    void writeTo_NoReasonPhrase_SameAsToString() throws IOException {
+        BasicStatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_0, 407, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResponseHeadEncoder encoder = new ResponseHeadEncoder();
+        encoder.append(statusLine);
+        encoder.writeTo(bytes);
+        assertEquals(statusLine + "\r\n\r\n", bytes.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void writeTo_LargerThanBuffer_AllWritten() throws IOException {
+        String value = "x".repeat(ResponseHeadEncoder.BUFFER_SIZE * 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResponseHeadEncoder encoder = new ResponseHeadEncoder();
+        encoder.append(new BasicStatusLine(HttpVersion.HTTP_1_1, 502, "Bad Gateway"));
+        encoder.append(new BasicHeader("X-Large", value));
+        encoder.append("X-Unicode: é€");
+        encoder.writeTo(bytes);
+        assertEquals("HTTP/1.1 502 Bad Gateway\r\nX-Large: " + value + "\r\nX-Unicode: é?\r\n\r\n",
+                bytes.toString(StandardCharsets.ISO_8859_1));
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.io.DefaultHttpRequestParser;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.functional.ProxySingletonSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Prepared tunnel connections to an upstream proxy requiring Basic authentication.
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class, properties = {
+        "tunnelPool.size=2",
+        "tunnelPool.idleTimeout=1"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(20)
+public class TunnelPoolTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private TunnelConnection tunnelConnection;
+
+    @Autowired
+    private TunnelPool tunnelPool;
+
+    @Autowired
+    private ProxySingletonSupplier<CredentialsProvider> credentialsProviderSupplier;
+
+    /**
+     * The number of requests sent on the last authorized tunnel's connection since {@link #mark}.
+     */
+    private final AtomicInteger tunnelRequests = new AtomicInteger();
+
+    private volatile long mark;
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private ServerSocket proxyServer;
+
+    private HttpHost proxy;
+
+    private HttpHost target;
+
+    @BeforeAll
+    void before() throws Exception {
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        proxyServer = new ServerSocket(PROXY_PORT, 50, InetAddress.getLoopbackAddress());
+        proxy = new HttpHost("localhost", PROXY_PORT, "http");
+        target = new HttpHost("localhost", 443);
+        String expectedAuthorization = "Basic " + Base64.getEncoder().encodeToString(
+                (USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+        executorService.submit(() -> {
+            while (!proxyServer.isClosed()) {
+                Socket socket = proxyServer.accept();
+                executorService.submit(() -> {
+                    try (socket) {
+                        handleConnection(socket, expectedAuthorization);
+                    }
+                    return null;
+                });
+            }
+            return null;
+        });
+    }
+
+    /**
+     * A minimal upstream proxy: Basic authentication over persistent connections,
+     * the authorized CONNECT requests being answered with {@code 200} and the connection kept open.
+     */
+    private void handleConnection(Socket socket, String expectedAuthorization) throws Exception {
+        SessionInputBufferImpl inputBuffer = ClientConnection.createSessionInputBuffer(socket.getInputStream());
+        List<Long> arrivals = new ArrayList<>();
+        while (true) {
+            HttpRequest request = new DefaultHttpRequestParser(inputBuffer).parse();
+            arrivals.add(System.nanoTime());
+            Header authorization = request.getFirstHeader(HttpHeaders.PROXY_AUTHORIZATION);
+            if (authorization != null && expectedAuthorization.equals(authorization.getValue())) {
+                tunnelRequests.set((int) arrivals.stream().filter(arrival -> arrival - mark >= 0).count());
+                socket.getOutputStream().write("HTTP/1.1 200 Connection established\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                // Wait for the client to close the tunnel
+                socket.getInputStream().read();
+                return;
+            }
+            socket.getOutputStream().write(("HTTP/1.1 407 Proxy Authentication Required\r\n"
+                    + "Proxy-Authenticate: Basic realm=\"test\"\r\n"
+                    + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        credentialsProviderSupplier.get().clear();
+        credentialsProviderSupplier.get().setCredentials(AuthScope.ANY,
+                new UsernamePasswordCredentials(USERNAME, PASSWORD));
+        tunnelPool.onStop();
+    }
+
+    @Test
+    void open_AuthenticationRequired_PreparedConnectionUsed() throws Exception {
+        tunnelConnection.open(proxy, target, HttpVersion.HTTP_1_1).close();
+        awaitIdleCount(2);
+
+        mark = System.nanoTime();
+        try (Tunnel tunnel = tunnelConnection.open(proxy, target, HttpVersion.HTTP_1_1)) {
+            assertEquals(HttpStatus.SC_OK, tunnel.getStatusLine().getStatusCode());
+        }
+        // Only the final leg, the challenge was received in advance
+        assertEquals(1, tunnelRequests.get());
+        assertTrue((Long) tunnelPool.getStats().get("hits") > 0);
+
+        // Refilled after use
+        awaitIdleCount(2);
+    }
+
+    @Test
+    void open_PreparedConnectionExpired_NewConnectionUsed() throws Exception {
+        tunnelConnection.open(proxy, target, HttpVersion.HTTP_1_1).close();
+        awaitIdleCount(2);
+        TimeUnit.MILLISECONDS.sleep(1200);
+
+        mark = System.nanoTime();
+        try (Tunnel tunnel = tunnelConnection.open(proxy, target, HttpVersion.HTTP_1_1)) {
+            assertEquals(HttpStatus.SC_OK, tunnel.getStatusLine().getStatusCode());
+        }
+        assertEquals(2, tunnelRequests.get());
+    }
+
+    @Test
+    void onStop_PreparedConnections_Closed() throws Exception {
+        tunnelConnection.open(proxy, target, HttpVersion.HTTP_1_1).close();
+        awaitIdleCount(2);
+        tunnelPool.onStop();
+        assertEquals(0, tunnelPool.getIdleCount(proxy));
+    }
+
+    private void awaitIdleCount(int count) throws InterruptedException {
+        while (tunnelPool.getIdleCount(proxy) < count) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+
+    @AfterAll
+    void after() throws Exception {
+        tunnelPool.onStop();
+        if (proxyServer != null) {
+            proxyServer.close();
+        }
+        executorService.shutdownNow();
+    }
+
+}
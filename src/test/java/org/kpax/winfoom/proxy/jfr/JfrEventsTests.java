@@ -0,0 +1,71 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JfrEventsTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void start_NotRecording_Null() {
+        assertNull(TunnelClosedEvent.start());
+    }
+
+    @Test
+    void emit_WinfoomTemplate_Recorded() throws Exception {
+        Configuration configuration = Configuration.create(Paths.get("assets", "jfr", "winfoom.jfc"));
+        assertEquals("Winfoom", configuration.getLabel());
+        assertEquals("true", configuration.getSettings().get("winfoom.TunnelClosed#enabled"));
+
+        Path file = tempDir.resolve("winfoom.jfr");
+        try (Recording recording = new Recording(configuration)) {
+            recording.start();
+            TunnelClosedEvent event = TunnelClosedEvent.start();
+            assertNotNull(event);
+            event.emit("127.0.0.1:50000", "example.com:443", "direct", 100, 2000, true);
+            ProxyAuthChallengeEvent authEvent = new ProxyAuthChallengeEvent();
+            authEvent.begin();
+            authEvent.emit("http://proxy:3128", "example.com:443", "NTLM", 2, 200);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        RecordedEvent tunnelClosed = events.stream()
+                .filter(e -> e.getEventType().getName().equals("winfoom.TunnelClosed"))
+                .findFirst().orElseThrow();
+        assertEquals("example.com:443", tunnelClosed.getString("target"));
+        assertEquals(2000, tunnelClosed.getLong("bytesOut"));
+        assertTrue(tunnelClosed.getBoolean("relayed"));
+        RecordedEvent authChallenge = events.stream()
+                .filter(e -> e.getEventType().getName().equals("winfoom.ProxyAuthChallenge"))
+                .findFirst().orElseThrow();
+        assertEquals("NTLM", authChallenge.getString("scheme"));
+        assertEquals(2, authChallenge.getInt("roundTrips"));
+    }
+
+}
@@ -25,10 +25,14 @@ import org.kpax.winfoom.proxy.ProxyInfo;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
@@ -210,4 +214,21 @@ class HttpUtilsTests {
         String s = "bla\nfoo";
         assertEquals("bla foo", HttpUtils.replaceCRAndLF(s, StringUtils.SPACE));
     }
+
+    @Test
+    void getCurrentDate_SameSecond_SameValueAsSimpleDateFormat() {
+        String first;
+        String second;
+        long start;
+        do {
+            start = System.currentTimeMillis() / 1000;
+            first = HttpUtils.getCurrentDate();
+            second = HttpUtils.getCurrentDate();
+        } while (System.currentTimeMillis() / 1000 != start);
+        assertSame(first, second);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat(HttpUtils.PATTERN_RFC1123, Locale.US);
+        dateFormat.setTimeZone(HttpUtils.GMT);
+        assertEquals(dateFormat.format(new Date(start * 1000)), first);
+    }
 }